@@ -18,7 +18,7 @@
 
 if [ $# != 8 ];
 then
-	echo 'USAGE: bin/build-readonly-store.sh cluster.xml store_definitions.xml store_name sort_obj_buffer_size input_data output_dir num_threads num_chunks'
+	echo 'USAGE: bin/build-readonly-store.sh cluster.xml store_definitions.xml store_name sort_buffer_bytes input_data output_dir num_threads num_chunks'
 	exit 1
 fi
 
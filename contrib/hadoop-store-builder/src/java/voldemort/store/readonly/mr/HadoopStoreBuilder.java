@@ -17,8 +17,11 @@
 package voldemort.store.readonly.mr;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Collections;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
@@ -34,7 +37,9 @@ import org.apache.log4j.Logger;
 
 import voldemort.VoldemortException;
 import voldemort.cluster.Cluster;
+import voldemort.cluster.Node;
 import voldemort.store.StoreDefinition;
+import voldemort.store.readonly.StoreManifest;
 import voldemort.utils.Utils;
 import voldemort.xml.ClusterMapper;
 import voldemort.xml.StoreDefinitionsMapper;
@@ -149,11 +154,43 @@ public class HadoopStoreBuilder {
 
             logger.info("Building store...");
             JobClient.runJob(conf);
+
+            logger.info("Writing manifests...");
+            for(Node node: cluster.getNodes())
+                combineManifests(outputDir.getFileSystem(conf),
+                                 new Path(outputDir, "node-" + node.getId()));
         } catch(IOException e) {
             throw new VoldemortException(e);
         }
     }
 
+    /*
+     * Concatenate the manifest written by each reducer into a single manifest
+     * for the node
+     */
+    private void combineManifests(FileSystem fs, Path nodeDir) throws IOException {
+        if(!fs.exists(nodeDir))
+            return;
+        FileStatus[] statuses = fs.listStatus(nodeDir);
+        OutputStream output = fs.create(new Path(nodeDir, StoreManifest.FILE_NAME));
+        try {
+            for(FileStatus status: statuses) {
+                Path path = status.getPath();
+                if(!path.getName().startsWith(StoreManifest.FILE_NAME + "."))
+                    continue;
+                InputStream input = fs.open(path);
+                try {
+                    IOUtils.copy(input, output);
+                } finally {
+                    input.close();
+                }
+                fs.delete(path, false);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
     private long sizeOfPath(FileSystem fs, Path path) throws IOException {
         long size = 0;
         FileStatus[] statuses = fs.listStatus(path);
@@ -18,6 +18,9 @@ package voldemort.store.readonly.mr;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Iterator;
 
 import org.apache.hadoop.fs.FileSystem;
@@ -33,6 +36,7 @@ import org.apache.log4j.Logger;
 
 import voldemort.VoldemortException;
 import voldemort.store.readonly.ReadOnlyUtils;
+import voldemort.store.readonly.StoreManifest;
 import voldemort.utils.ByteUtils;
 
 /**
@@ -48,6 +52,8 @@ public class HadoopStoreBuilderReducer extends AbstractStoreBuilderConfigurable
 
     private DataOutputStream indexFileStream = null;
     private DataOutputStream valueFileStream = null;
+    private MessageDigest indexDigest = null;
+    private MessageDigest valueDigest = null;
     private int position = 0;
     private String taskId = null;
     private int numChunks = -1;
@@ -121,8 +127,14 @@ public class HadoopStoreBuilderReducer extends AbstractStoreBuilderConfigurable
             logger.info("Opening " + this.taskIndexFileName + " and " + this.taskValueFileName
                         + " for writing.");
             FileSystem fs = this.taskIndexFileName.getFileSystem(job);
-            this.indexFileStream = fs.create(this.taskIndexFileName, (short) replicationFactor);
-            this.valueFileStream = fs.create(this.taskValueFileName, (short) replicationFactor);
+            this.indexDigest = ByteUtils.getDigest("MD5");
+            this.valueDigest = ByteUtils.getDigest("MD5");
+            this.indexFileStream = new DataOutputStream(new DigestOutputStream(fs.create(this.taskIndexFileName,
+                                                                                         (short) replicationFactor),
+                                                                               this.indexDigest));
+            this.valueFileStream = new DataOutputStream(new DigestOutputStream(fs.create(this.taskValueFileName,
+                                                                                         (short) replicationFactor),
+                                                                               this.valueDigest));
         } catch(IOException e) {
             throw new RuntimeException("Failed to open Input/OutputStream", e);
         }
@@ -145,5 +157,19 @@ public class HadoopStoreBuilderReducer extends AbstractStoreBuilderConfigurable
         fs.rename(taskIndexFileName, indexFile);
         logger.info("Moving " + this.taskValueFileName + " to " + valueFile + ".");
         fs.rename(this.taskValueFileName, valueFile);
+
+        // write this chunk's part of the manifest, the builder combines them
+        if(this.chunkId != -1) {
+            StoreManifest manifest = new StoreManifest();
+            manifest.add(indexFile.getName(), this.indexFileStream.size(), this.indexDigest.digest());
+            manifest.add(valueFile.getName(), this.valueFileStream.size(), this.valueDigest.digest());
+            Path manifestFile = new Path(nodeDir, StoreManifest.FILE_NAME + "." + this.chunkId);
+            OutputStream output = fs.create(manifestFile);
+            try {
+                manifest.write(output);
+            } finally {
+                output.close();
+            }
+        }
     }
 }
@@ -18,6 +18,7 @@ package voldemort.store.readonly.fetcher;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -25,7 +26,10 @@ import junit.framework.TestCase;
 
 import org.apache.commons.io.IOUtils;
 
+import voldemort.TestUtils;
+import voldemort.store.readonly.StoreManifest;
 import voldemort.utils.ByteUtils;
+import voldemort.utils.Utils;
 
 /**
  * Tests for the HDFS-based fetcher
@@ -47,4 +51,46 @@ public class HdfsFetcherTest extends TestCase {
                    0 == ByteUtils.compare(origBytes, fetchedBytes));
     }
 
+    public void testDeltaFetch() throws IOException {
+        File current = TestUtils.createTempDir();
+        File next = new File(TestUtils.createTempDir(), "node-0");
+        next.mkdirs();
+        try {
+            write(new File(current, "0.index"), "index0");
+            write(new File(current, "0.data"), "data0");
+            StoreManifest.compute(current).write(current);
+            write(new File(next, "0.index"), "index0");
+            write(new File(next, "0.data"), "data1");
+            StoreManifest.compute(next).write(next);
+
+            HdfsFetcher fetcher = new HdfsFetcher(null, TestUtils.createTempDir());
+            File fetched = fetcher.fetch(next.getAbsolutePath(), current);
+            assertEquals(StoreManifest.read(next), StoreManifest.compute(fetched));
+            assertEquals(StoreManifest.read(next), StoreManifest.read(fetched));
+
+            // the unchanged index should be shared with the current version
+            write(new File(current, "0.index"), "index2");
+            assertEquals("index2", read(new File(fetched, "0.index")));
+            assertEquals("data1", read(new File(fetched, "0.data")));
+        } finally {
+            Utils.rm(current);
+            Utils.rm(next.getParentFile());
+        }
+    }
+
+    private void write(File file, String contents) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(contents.getBytes());
+        output.close();
+    }
+
+    private String read(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return new String(IOUtils.toByteArray(input));
+        } finally {
+            input.close();
+        }
+    }
+
 }
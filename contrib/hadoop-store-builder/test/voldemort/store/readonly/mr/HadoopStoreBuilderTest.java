@@ -41,6 +41,7 @@ import voldemort.serialization.SerializerDefinition;
 import voldemort.store.Store;
 import voldemort.store.StoreDefinition;
 import voldemort.store.readonly.ReadOnlyStorageEngine;
+import voldemort.store.readonly.StoreManifest;
 import voldemort.store.serialized.SerializingStore;
 import voldemort.versioning.Versioned;
 
@@ -121,6 +122,9 @@ public class HadoopStoreBuilderTest extends TestCase {
         versionDir.mkdirs();
         assertTrue("Rename failed.", new File(outputDir, "node-0").renameTo(versionDir));
 
+        // the combined manifest should describe every chunk
+        assertEquals(StoreManifest.compute(versionDir), StoreManifest.read(versionDir));
+
         // open store
         @SuppressWarnings("unchecked")
         Serializer<Object> serializer = (Serializer<Object>) new DefaultSerializerFactory().getSerializer(serDef);
@@ -21,12 +21,26 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import org.apache.log4j.Logger;
 
 import voldemort.VoldemortException;
+import voldemort.client.protocol.FramedEntryReader;
+import voldemort.client.protocol.FramedEntryWriter;
 import voldemort.cluster.Cluster;
 import voldemort.cluster.Node;
 import voldemort.serialization.VoldemortOpCode;
@@ -40,6 +54,7 @@ import voldemort.store.socket.SocketDestination;
 import voldemort.store.socket.SocketPool;
 import voldemort.utils.ByteArray;
 import voldemort.utils.ByteUtils;
+import voldemort.utils.DaemonThreadFactory;
 import voldemort.utils.Pair;
 import voldemort.versioning.VectorClock;
 import voldemort.versioning.Versioned;
@@ -56,12 +71,17 @@ import com.google.common.collect.AbstractIterator;
  */
 public class AdminClient {
 
+    public static final int DEFAULT_MAX_PARALLEL_TRANSFERS = 4;
+    public static final int DEFAULT_MAX_TRANSFERS_PER_DONOR = 2;
+
     private static final Logger logger = Logger.getLogger(AdminClient.class);
     private final ErrorCodeMapper errorCodeMapper = new ErrorCodeMapper();
 
     private final Node currentNode;
     private final SocketPool pool;
     private final VoldemortMetadata metadata;
+    private volatile boolean framedStreams = false;
+    private volatile boolean compressStreams = true;
 
     public AdminClient(Node currentNode, VoldemortMetadata metadata, SocketPool socketPool) {
         this.currentNode = currentNode;
@@ -81,6 +101,38 @@ public class AdminClient {
         return metadata;
     }
 
+    /**
+     * @return true if partition entries are streamed many to a frame
+     */
+    public boolean isFramedStreams() {
+        return framedStreams;
+    }
+
+    /**
+     * Whether to stream partition entries many to a checksummed frame. Only
+     * nodes that know the framed op codes can serve these requests, so this is
+     * off until every node in the cluster has been upgraded.
+     */
+    public void setFramedStreams(boolean framedStreams) {
+        this.framedStreams = framedStreams;
+    }
+
+    /**
+     * @return true if framed partition entries are streamed compressed
+     */
+    public boolean isCompressStreams() {
+        return compressStreams;
+    }
+
+    /**
+     * Whether to deflate the frames of partition entries streamed to and from
+     * nodes, which trades CPU for network when values compress well. Only
+     * applies if {@link #isFramedStreams()}.
+     */
+    public void setCompressStreams(boolean compressStreams) {
+        this.compressStreams = compressStreams;
+    }
+
     /**
      * Updates cluster information at (remote) node with given nodeId for
      * cluster_keys {@link MetadataStore#CLUSTER_KEY} OR
@@ -147,7 +199,9 @@ public class AdminClient {
 
     /**
      * Fetch all {key, value} tuples from (remote) node with given nodeId,
-     * storeName and partitionList
+     * storeName and partitionList. If {@link #isFramedStreams()} entries
+     * arrive many to a checksummed frame, compressed if
+     * {@link #isCompressStreams()}.
      * 
      * @param nodeId
      * @param storeName
@@ -163,17 +217,21 @@ public class AdminClient {
         final SocketDestination destination = new SocketDestination(node.getHost(),
                                                                     node.getAdminPort());
         final SocketAndStreams sands = pool.checkout(destination);
+        boolean framed = framedStreams;
         try {
             // get these partitions from the node for store
             DataOutputStream getOutputStream = sands.getOutputStream();
 
             // send request for get Partition List
-            getOutputStream.writeByte(VoldemortOpCode.GET_PARTITION_AS_STREAM_OP_CODE);
+            getOutputStream.writeByte(framed ? VoldemortOpCode.GET_PARTITION_AS_FRAMED_STREAM_OP_CODE
+                                            : VoldemortOpCode.GET_PARTITION_AS_STREAM_OP_CODE);
             getOutputStream.writeUTF(storeName);
             getOutputStream.writeInt(partitionList.size());
             for(Integer p: partitionList) {
                 getOutputStream.writeInt(p.intValue());
             }
+            if(framed)
+                getOutputStream.writeBoolean(compressStreams);
             getOutputStream.flush();
 
         } catch(IOException e) {
@@ -182,6 +240,14 @@ public class AdminClient {
         }
 
         // read values
+        if(framed)
+            return readFramedEntries(destination, sands);
+        else
+            return readEntries(destination, sands);
+    }
+
+    private Iterator<Pair<ByteArray, Versioned<byte[]>>> readEntries(final SocketDestination destination,
+                                                                     final SocketAndStreams sands) {
         final DataInputStream inputStream = sands.getInputStream();
 
         return new AbstractIterator<Pair<ByteArray, Versioned<byte[]>>>() {
@@ -220,9 +286,51 @@ public class AdminClient {
         };
     }
 
+    private Iterator<Pair<ByteArray, Versioned<byte[]>>> readFramedEntries(final SocketDestination destination,
+                                                                           final SocketAndStreams sands) {
+        final DataInputStream inputStream = sands.getInputStream();
+        final FramedEntryReader reader = new FramedEntryReader(inputStream);
+
+        return new AbstractIterator<Pair<ByteArray, Versioned<byte[]>>>() {
+
+            private Iterator<Pair<ByteArray, Versioned<byte[]>>> frame = Collections.<Pair<ByteArray, Versioned<byte[]>>> emptyList()
+                                                                                    .iterator();
+
+            @Override
+            protected Pair<ByteArray, Versioned<byte[]>> computeNext() {
+                try {
+                    while(!frame.hasNext()) {
+                        checkException(inputStream);
+                        List<Pair<ByteArray, Versioned<byte[]>>> entries = reader.readFrame();
+                        if(entries == null) {
+                            reader.close();
+                            pool.checkin(destination, sands);
+                            return endOfData();
+                        }
+                        frame = entries.iterator();
+                    }
+                    return frame.next();
+                } catch(IOException e) {
+                    fail();
+                    throw new VoldemortException(e);
+                } catch(VoldemortException e) {
+                    fail();
+                    throw e;
+                }
+            }
+
+            private void fail() {
+                reader.close();
+                close(sands.getSocket());
+                pool.checkin(destination, sands);
+            }
+        };
+    }
+
     /**
      * update Entries at (remote) node with all entries in iterator for passed
-     * storeName
+     * storeName. If {@link #isFramedStreams()} entries are sent many to a
+     * checksummed frame, compressed if {@link #isCompressStreams()}.
      * 
      * @param nodeId
      * @param storeName
@@ -241,34 +349,47 @@ public class AdminClient {
         DataOutputStream outputStream = sands.getOutputStream();
         DataInputStream inputStream = sands.getInputStream();
 
+        FramedEntryWriter writer = null;
         try {
             // send request for put partitions
-            outputStream.writeByte(VoldemortOpCode.PUT_ENTRIES_AS_STREAM_OP_CODE);
-            outputStream.writeUTF(storeName);
-            outputStream.flush();
-
-            while(entryIterator.hasNext()) {
-                Pair<ByteArray, Versioned<byte[]>> entry = entryIterator.next();
-                outputStream.writeInt(entry.getFirst().length());
-                outputStream.write(entry.getFirst().get());
+            if(framedStreams) {
+                writer = new FramedEntryWriter(outputStream,
+                                               compressStreams,
+                                               false,
+                                               FramedEntryWriter.DEFAULT_MAX_FRAME_BYTES);
+                outputStream.writeByte(VoldemortOpCode.PUT_ENTRIES_AS_FRAMED_STREAM_OP_CODE);
+                outputStream.writeUTF(storeName);
+
+                while(entryIterator.hasNext()) {
+                    Pair<ByteArray, Versioned<byte[]>> entry = entryIterator.next();
+                    writer.write(entry.getFirst(), entry.getSecond());
+                }
+                writer.finish();
+            } else {
+                outputStream.writeByte(VoldemortOpCode.PUT_ENTRIES_AS_STREAM_OP_CODE);
+                outputStream.writeUTF(storeName);
+                outputStream.flush();
 
-                Versioned<byte[]> value = entry.getSecond();
-                VectorClock clock = (VectorClock) value.getVersion();
-                outputStream.writeInt(value.getValue().length + clock.sizeInBytes());
-                outputStream.write(clock.toBytes());
-                outputStream.write(value.getValue());
+                while(entryIterator.hasNext()) {
+                    Pair<ByteArray, Versioned<byte[]>> entry = entryIterator.next();
+                    outputStream.writeInt(entry.getFirst().length());
+                    outputStream.write(entry.getFirst().get());
 
+                    Versioned<byte[]> value = entry.getSecond();
+                    VectorClock clock = (VectorClock) value.getVersion();
+                    outputStream.writeInt(value.getValue().length + clock.sizeInBytes());
+                    outputStream.write(clock.toBytes());
+                    outputStream.write(value.getValue());
+                }
+                outputStream.writeInt(-1);
                 outputStream.flush();
             }
-            outputStream.writeInt(-1);
-            outputStream.flush();
-
-            // read values
-
         } catch(IOException e) {
             close(sands.getSocket());
             throw new VoldemortException(e);
         } finally {
+            if(writer != null)
+                writer.close();
             // check for Exception after each entry
             checkException(inputStream);
             pool.checkin(destination, sands);
@@ -346,6 +467,59 @@ public class AdminClient {
         }
     }
 
+    /**
+     * Like {@link #redirectGet(int, String, ByteArray)} but gets many keys in
+     * one request
+     * 
+     * @param redirectedNodeId The node to get from
+     * @param storeName The store to get from
+     * @param keys The keys to get
+     * @return The versions of each key, with no entry for keys that have none
+     */
+    public Map<ByteArray, List<Versioned<byte[]>>> redirectGetAll(int redirectedNodeId,
+                                                                 String storeName,
+                                                                 List<ByteArray> keys) {
+        Node redirectedNode = metadata.getCurrentCluster().getNodeById(redirectedNodeId);
+        SocketDestination destination = new SocketDestination(redirectedNode.getHost(),
+                                                              redirectedNode.getAdminPort());
+        SocketAndStreams sands = pool.checkout(destination);
+        try {
+            DataOutputStream outputStream = sands.getOutputStream();
+            outputStream.writeByte(VoldemortOpCode.REDIRECT_GET_ALL_OP_CODE);
+            outputStream.writeUTF(storeName);
+            outputStream.writeInt(keys.size());
+            for(ByteArray key: keys) {
+                outputStream.writeInt(key.length());
+                outputStream.write(key.get());
+            }
+            outputStream.flush();
+            DataInputStream inputStream = sands.getInputStream();
+            checkException(inputStream);
+            Map<ByteArray, List<Versioned<byte[]>>> results = new HashMap<ByteArray, List<Versioned<byte[]>>>(keys.size());
+            for(ByteArray key: keys) {
+                int resultSize = inputStream.readInt();
+                if(resultSize == 0)
+                    continue;
+                List<Versioned<byte[]>> values = new ArrayList<Versioned<byte[]>>(resultSize);
+                for(int i = 0; i < resultSize; i++) {
+                    byte[] bytes = new byte[inputStream.readInt()];
+                    ByteUtils.read(inputStream, bytes);
+                    VectorClock clock = new VectorClock(bytes);
+                    values.add(new Versioned<byte[]>(ByteUtils.copy(bytes,
+                                                                    clock.sizeInBytes(),
+                                                                    bytes.length), clock));
+                }
+                results.put(key, values);
+            }
+            return results;
+        } catch(IOException e) {
+            close(sands.getSocket());
+            throw new VoldemortException(e);
+        } finally {
+            pool.checkin(destination, sands);
+        }
+    }
+
     /**
      * Provides a wrapper to start fetching from donorNodeId and updating
      * stealerNodeId as Stream for given storeName and partitionList
@@ -360,9 +534,308 @@ public class AdminClient {
                                       int stealerNodeId,
                                       String storeName,
                                       List<Integer> stealList) throws IOException {
-        updatePartitionEntries(stealerNodeId, storeName, fetchPartitionEntries(donorNodeId,
-                                                                               storeName,
-                                                                               stealList));
+        Map<Integer, List<Integer>> donorPartitions = new HashMap<Integer, List<Integer>>();
+        donorPartitions.put(donorNodeId, stealList);
+        migratePartitions(stealerNodeId,
+                          storeName,
+                          UUID.randomUUID().toString(),
+                          donorPartitions,
+                          DEFAULT_MAX_PARALLEL_TRANSFERS,
+                          DEFAULT_MAX_TRANSFERS_PER_DONOR);
+    }
+
+    /**
+     * Copy partitions of a store to the stealer node from the donor nodes.
+     * When the donor's storage engine can read one partition without reading
+     * the others, each partition is copied as a separate transfer, several at
+     * a time. Otherwise the donor would scan its whole store for every
+     * transfer, so all the partitions from that donor are copied in a single
+     * transfer. The stealer records each partition as its transfer completes.
+     * If some transfers fail the others still complete, and calling this again
+     * with the same arguments only copies the partitions that were not
+     * recorded. The records are cleared once every partition from a donor has
+     * been copied.
+     * <p>
+     * The records are kept against the migration id, which should name one
+     * steal plan. Calling this with a new id starts the copy over, and
+     * discards what an abandoned migration of the store between the same
+     * nodes had recorded, since writes made since then may not have been
+     * copied.
+     * 
+     * @param stealerNodeId The node to copy the partitions to
+     * @param storeName The store to copy
+     * @param migrationId The id of this migration, to resume it with
+     * @param donorPartitions The partitions to copy from each donor node
+     * @param maxParallelTransfers The most transfers to run at once
+     * @param maxTransfersPerDonor The most transfers to run at once from a
+     *        single donor
+     * @return The transfers made, excluding partitions copied by earlier calls
+     * @throws VoldemortException If any transfer failed, after the others have
+     *         completed
+     */
+    public List<PartitionTransfer> migratePartitions(final int stealerNodeId,
+                                                     final String storeName,
+                                                     final String migrationId,
+                                                     Map<Integer, List<Integer>> donorPartitions,
+                                                     int maxParallelTransfers,
+                                                     int maxTransfersPerDonor) {
+        // find the partitions left to copy from each donor, and how to split
+        // them into transfers
+        Map<Integer, List<List<Integer>>> remaining = new HashMap<Integer, List<List<Integer>>>();
+        Map<Integer, Semaphore> donorPermits = new HashMap<Integer, Semaphore>();
+        int numTransfers = 0;
+        for(Map.Entry<Integer, List<Integer>> entry: donorPartitions.entrySet()) {
+            int donorNodeId = entry.getKey();
+            Set<Integer> completed = getCompletedPartitions(stealerNodeId,
+                                                            storeName,
+                                                            donorNodeId,
+                                                            migrationId);
+            List<Integer> partitions = new ArrayList<Integer>();
+            for(int partition: entry.getValue())
+                if(!completed.contains(partition))
+                    partitions.add(partition);
+            if(completed.size() > 0)
+                logger.info("Resuming migration of store " + storeName + " from node "
+                            + donorNodeId + " to node " + stealerNodeId + ", partitions "
+                            + completed + " are already done.");
+            List<List<Integer>> transfers = new ArrayList<List<Integer>>();
+            if(partitions.isEmpty()) {
+                // nothing left to copy from this donor
+            } else if(isPartitionAware(donorNodeId, storeName)) {
+                for(int partition: partitions)
+                    transfers.add(Collections.singletonList(partition));
+            } else {
+                transfers.add(partitions);
+            }
+            remaining.put(donorNodeId, transfers);
+            donorPermits.put(donorNodeId, new Semaphore(maxTransfersPerDonor));
+            numTransfers += transfers.size();
+        }
+
+        // submit the transfers round robin across donors to spread the load
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+                                                                         Math.min(maxParallelTransfers,
+                                                                                  numTransfers)),
+                                                                new DaemonThreadFactory("partition-migration-"));
+        List<Future<PartitionTransfer>> results = new ArrayList<Future<PartitionTransfer>>(numTransfers);
+        try {
+            for(int i = 0; results.size() < numTransfers; i++) {
+                for(Map.Entry<Integer, List<List<Integer>>> entry: remaining.entrySet()) {
+                    if(i >= entry.getValue().size())
+                        continue;
+                    final int donorNodeId = entry.getKey();
+                    final List<Integer> partitions = entry.getValue().get(i);
+                    final Semaphore permits = donorPermits.get(donorNodeId);
+                    results.add(executor.submit(new Callable<PartitionTransfer>() {
+
+                        public PartitionTransfer call() throws Exception {
+                            permits.acquire();
+                            try {
+                                return transferPartitions(donorNodeId,
+                                                          stealerNodeId,
+                                                          storeName,
+                                                          migrationId,
+                                                          partitions);
+                            } finally {
+                                permits.release();
+                            }
+                        }
+                    }));
+                }
+            }
+
+            List<PartitionTransfer> transfers = new ArrayList<PartitionTransfer>(numTransfers);
+            Exception failure = null;
+            int failures = 0;
+            for(Future<PartitionTransfer> result: results) {
+                try {
+                    transfers.add(result.get());
+                } catch(ExecutionException e) {
+                    logger.error("Partition transfer failed:", e.getCause());
+                    failure = e;
+                    failures++;
+                } catch(InterruptedException e) {
+                    throw new VoldemortException("Interrupted while migrating partitions.", e);
+                }
+            }
+            if(failure != null)
+                throw new VoldemortException(failures + " of " + numTransfers
+                                             + " partition transfers of store " + storeName
+                                             + " failed, the rest have completed.",
+                                             failure.getCause());
+
+            for(int donorNodeId: donorPartitions.keySet())
+                clearCompletedPartitions(stealerNodeId, storeName, donorNodeId);
+            return transfers;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private PartitionTransfer transferPartitions(int donorNodeId,
+                                                 int stealerNodeId,
+                                                 String storeName,
+                                                 String migrationId,
+                                                 List<Integer> partitions) throws IOException {
+        long start = System.currentTimeMillis();
+        final Iterator<Pair<ByteArray, Versioned<byte[]>>> entries = fetchPartitionEntries(donorNodeId,
+                                                                                           storeName,
+                                                                                           partitions);
+        final long[] counts = new long[2];
+        updatePartitionEntries(stealerNodeId,
+                               storeName,
+                               new AbstractIterator<Pair<ByteArray, Versioned<byte[]>>>() {
+
+                                   @Override
+                                   protected Pair<ByteArray, Versioned<byte[]>> computeNext() {
+                                       if(!entries.hasNext())
+                                           return endOfData();
+                                       Pair<ByteArray, Versioned<byte[]>> entry = entries.next();
+                                       counts[0]++;
+                                       counts[1] += entry.getFirst().length()
+                                                    + ((VectorClock) entry.getSecond()
+                                                                          .getVersion()).sizeInBytes()
+                                                    + entry.getSecond().getValue().length;
+                                       return entry;
+                                   }
+                               });
+        for(int partition: partitions)
+            markPartitionCompleted(stealerNodeId, storeName, donorNodeId, migrationId, partition);
+        PartitionTransfer transfer = new PartitionTransfer(storeName,
+                                                           donorNodeId,
+                                                           stealerNodeId,
+                                                           partitions,
+                                                           counts[0],
+                                                           counts[1],
+                                                           System.currentTimeMillis() - start);
+        logger.info(transfer);
+        return transfer;
+    }
+
+    /**
+     * Ask a node whether its storage engine for a store can read the entries
+     * of some partitions without scanning the whole store
+     * 
+     * @param nodeId The node to ask
+     * @param storeName The store
+     * @return true if the store can be read a partition at a time
+     */
+    public boolean isPartitionAware(int nodeId, String storeName) {
+        Node node = metadata.getCurrentCluster().getNodeById(nodeId);
+        SocketDestination destination = new SocketDestination(node.getHost(), node.getAdminPort());
+        SocketAndStreams sands = pool.checkout(destination);
+        try {
+            DataOutputStream outputStream = sands.getOutputStream();
+            outputStream.writeByte(VoldemortOpCode.GET_PARTITION_AWARE_OP_CODE);
+            outputStream.writeUTF(storeName);
+            outputStream.flush();
+
+            DataInputStream inputStream = sands.getInputStream();
+            checkException(inputStream);
+            return inputStream.readBoolean();
+        } catch(IOException e) {
+            close(sands.getSocket());
+            throw new VoldemortException(e);
+        } finally {
+            pool.checkin(destination, sands);
+        }
+    }
+
+    /**
+     * Get the partitions of a store the stealer node has recorded as copied
+     * from the donor node by the given migration. The stealer forgets any
+     * partitions recorded by another migration, which was abandoned.
+     * 
+     * @param stealerNodeId The node the partitions were copied to
+     * @param storeName The store
+     * @param donorNodeId The node the partitions were copied from
+     * @param migrationId The id of the migration
+     * @return The partitions copied
+     */
+    public Set<Integer> getCompletedPartitions(int stealerNodeId,
+                                               String storeName,
+                                               int donorNodeId,
+                                               String migrationId) {
+        Node node = metadata.getCurrentCluster().getNodeById(stealerNodeId);
+        SocketDestination destination = new SocketDestination(node.getHost(), node.getAdminPort());
+        SocketAndStreams sands = pool.checkout(destination);
+        try {
+            DataOutputStream outputStream = sands.getOutputStream();
+            outputStream.writeByte(VoldemortOpCode.GET_MIGRATION_CHECKPOINT_OP_CODE);
+            outputStream.writeUTF(storeName);
+            outputStream.writeInt(donorNodeId);
+            outputStream.writeUTF(migrationId);
+            outputStream.flush();
+
+            DataInputStream inputStream = sands.getInputStream();
+            checkException(inputStream);
+            int size = inputStream.readInt();
+            Set<Integer> partitions = new HashSet<Integer>(size);
+            for(int i = 0; i < size; i++)
+                partitions.add(inputStream.readInt());
+            return partitions;
+        } catch(IOException e) {
+            close(sands.getSocket());
+            throw new VoldemortException(e);
+        } finally {
+            pool.checkin(destination, sands);
+        }
+    }
+
+    /**
+     * Record on the stealer node that a partition of a store has been copied
+     * to it from the donor node by the given migration
+     */
+    public void markPartitionCompleted(int stealerNodeId,
+                                       String storeName,
+                                       int donorNodeId,
+                                       String migrationId,
+                                       int partition) {
+        Node node = metadata.getCurrentCluster().getNodeById(stealerNodeId);
+        SocketDestination destination = new SocketDestination(node.getHost(), node.getAdminPort());
+        SocketAndStreams sands = pool.checkout(destination);
+        try {
+            DataOutputStream outputStream = sands.getOutputStream();
+            outputStream.writeByte(VoldemortOpCode.UPDATE_MIGRATION_CHECKPOINT_OP_CODE);
+            outputStream.writeUTF(storeName);
+            outputStream.writeInt(donorNodeId);
+            outputStream.writeUTF(migrationId);
+            outputStream.writeInt(partition);
+            outputStream.flush();
+
+            DataInputStream inputStream = sands.getInputStream();
+            checkException(inputStream);
+        } catch(IOException e) {
+            close(sands.getSocket());
+            throw new VoldemortException(e);
+        } finally {
+            pool.checkin(destination, sands);
+        }
+    }
+
+    /**
+     * Clear the stealer node's record of the partitions of a store copied to
+     * it from the donor node
+     */
+    public void clearCompletedPartitions(int stealerNodeId, String storeName, int donorNodeId) {
+        Node node = metadata.getCurrentCluster().getNodeById(stealerNodeId);
+        SocketDestination destination = new SocketDestination(node.getHost(), node.getAdminPort());
+        SocketAndStreams sands = pool.checkout(destination);
+        try {
+            DataOutputStream outputStream = sands.getOutputStream();
+            outputStream.writeByte(VoldemortOpCode.CLEAR_MIGRATION_CHECKPOINT_OP_CODE);
+            outputStream.writeUTF(storeName);
+            outputStream.writeInt(donorNodeId);
+            outputStream.flush();
+
+            DataInputStream inputStream = sands.getInputStream();
+            checkException(inputStream);
+        } catch(IOException e) {
+            close(sands.getSocket());
+            throw new VoldemortException(e);
+        } finally {
+            pool.checkin(destination, sands);
+        }
     }
 
     private void checkException(DataInputStream inputStream) throws IOException {
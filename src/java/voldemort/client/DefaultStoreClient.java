@@ -159,10 +159,29 @@ public class DefaultStoreClient<K, V> implements StoreClient<K, V> {
     }
 
     public void put(K key, V value) {
+        put(key, value, 0);
+    }
+
+    /**
+     * Associated the given value to the key, clobbering any existing values
+     * stored for the key, and expire it the given time after it is written.
+     * Expired values are no longer returned by gets.
+     * 
+     * The servers refuse values with a time-to-live unless "ttl.enable" is
+     * set on them, since clients and servers from before time-to-lives were
+     * added cannot read such values.
+     * 
+     * @param key The key
+     * @param value The value
+     * @param timeToLiveMs The time in ms after which the value expires, or 0
+     *        for it never to expire
+     */
+    public void put(K key, V value, long timeToLiveMs) {
         Versioned<V> versioned = get(key, NOT_FOUND);
         if(versioned == NOT_FOUND)
             versioned = new Versioned<V>(value, new VectorClock());
         versioned.setObject(value);
+        versioned.setTimeToLive(timeToLiveMs);
         put(key, versioned);
     }
 
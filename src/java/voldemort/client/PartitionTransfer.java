@@ -0,0 +1,99 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.client;
+
+import java.util.List;
+
+import voldemort.utils.Time;
+
+/**
+ * The outcome of copying partitions of a store from a donor node to a stealer
+ * node in one stream.
+ */
+public class PartitionTransfer {
+
+    private final String storeName;
+    private final int donorNodeId;
+    private final int stealerNodeId;
+    private final List<Integer> partitions;
+    private final long entries;
+    private final long bytes;
+    private final long elapsedMs;
+
+    public PartitionTransfer(String storeName,
+                             int donorNodeId,
+                             int stealerNodeId,
+                             List<Integer> partitions,
+                             long entries,
+                             long bytes,
+                             long elapsedMs) {
+        this.storeName = storeName;
+        this.donorNodeId = donorNodeId;
+        this.stealerNodeId = stealerNodeId;
+        this.partitions = partitions;
+        this.entries = entries;
+        this.bytes = bytes;
+        this.elapsedMs = elapsedMs;
+    }
+
+    public String getStoreName() {
+        return storeName;
+    }
+
+    public int getDonorNodeId() {
+        return donorNodeId;
+    }
+
+    public int getStealerNodeId() {
+        return stealerNodeId;
+    }
+
+    public List<Integer> getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @return The number of versioned values copied
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return The bytes of keys, versions and values copied
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+
+    public double getBytesPerSecond() {
+        return bytes * (double) Time.MS_PER_SECOND / Math.max(1, elapsedMs);
+    }
+
+    @Override
+    public String toString() {
+        return "Partitions " + partitions + " of store " + storeName + " from node " + donorNodeId
+               + " to node " + stealerNodeId + ": " + entries + " entries, " + bytes
+               + " bytes in " + elapsedMs + " ms (" + (long) getBytesPerSecond()
+               + " bytes/sec)";
+    }
+
+}
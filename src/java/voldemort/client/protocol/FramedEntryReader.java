@@ -0,0 +1,149 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.client.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.concurrency.NotThreadsafe;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ByteUtils;
+import voldemort.utils.Pair;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+/**
+ * Reads the frames of entries written by a {@link FramedEntryWriter},
+ * checking each frame's checksum
+ */
+@NotThreadsafe
+public class FramedEntryReader {
+
+    private final DataInputStream input;
+    private final CRC32 checksum;
+    private final Inflater inflater;
+    private byte[] body;
+    private byte[] payload;
+
+    public FramedEntryReader(DataInputStream input) {
+        this.input = input;
+        this.checksum = new CRC32();
+        this.inflater = new Inflater();
+        this.body = new byte[0];
+        this.payload = new byte[0];
+    }
+
+    /**
+     * Read the next frame
+     * 
+     * @return The frame's entries, or null at the end of the stream
+     * @throws VoldemortException If the frame is corrupt
+     */
+    public List<Pair<ByteArray, Versioned<byte[]>>> readFrame() throws IOException {
+        int bodyLength = input.readInt();
+        if(bodyLength == FramedEntryWriter.END_OF_STREAM)
+            return null;
+        byte flags = input.readByte();
+        int entries = input.readInt();
+        int length = input.readInt();
+        int crc = input.readInt();
+        // check the header before trusting it to size any buffers
+        if(bodyLength < 0 || bodyLength > FramedEntryWriter.MAX_FRAME_BYTES || length < 0
+           || length > FramedEntryWriter.MAX_FRAME_BYTES)
+            throw new VoldemortException("Invalid frame length " + bodyLength
+                                         + " or uncompressed length " + length + ".");
+        // every entry takes at least its two lengths
+        if(entries < 0 || entries > length / 8)
+            throw new VoldemortException("Invalid entry count " + entries + " in frame of "
+                                         + length + " bytes.");
+        if(body.length < bodyLength)
+            body = new byte[bodyLength];
+        input.readFully(body, 0, bodyLength);
+
+        byte[] data = body;
+        if((flags & FramedEntryWriter.FLAG_COMPRESSED) != 0) {
+            if(payload.length < length)
+                payload = new byte[length];
+            inflate(bodyLength, length);
+            data = payload;
+        } else if(bodyLength != length) {
+            throw new VoldemortException("Frame length " + bodyLength
+                                         + " does not match its uncompressed length " + length
+                                         + ".");
+        }
+        checksum.reset();
+        FramedEntryWriter.updateHeader(checksum, bodyLength, flags, entries, length);
+        checksum.update(data, 0, length);
+        if((int) checksum.getValue() != crc)
+            throw new VoldemortException("Checksum mismatch in frame of " + entries + " entries.");
+
+        DataInputStream frame = new DataInputStream(new ByteArrayInputStream(data, 0, length));
+        List<Pair<ByteArray, Versioned<byte[]>>> result = new ArrayList<Pair<ByteArray, Versioned<byte[]>>>(entries);
+        for(int i = 0; i < entries; i++) {
+            byte[] key = new byte[readLength(frame)];
+            frame.readFully(key);
+            byte[] value = new byte[readLength(frame)];
+            frame.readFully(value);
+            VectorClock clock = new VectorClock(value);
+            result.add(Pair.create(new ByteArray(key),
+                                   new Versioned<byte[]>(ByteUtils.copy(value,
+                                                                        clock.sizeInBytes(),
+                                                                        value.length), clock)));
+        }
+        return result;
+    }
+
+    private int readLength(DataInputStream frame) throws IOException {
+        int length = frame.readInt();
+        if(length < 0 || length > frame.available())
+            throw new VoldemortException("Invalid entry length " + length + " in frame.");
+        return length;
+    }
+
+    private void inflate(int bodyLength, int length) {
+        inflater.reset();
+        inflater.setInput(body, 0, bodyLength);
+        try {
+            int inflated = 0;
+            while(inflated < length && !inflater.finished()) {
+                int n = inflater.inflate(payload, inflated, length - inflated);
+                if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                inflated += n;
+            }
+            if(inflated != length || !inflater.finished())
+                throw new VoldemortException("Frame inflated to " + inflated
+                                             + " bytes, expected " + length + ".");
+        } catch(DataFormatException e) {
+            throw new VoldemortException("Corrupt compressed frame.", e);
+        }
+    }
+
+    /**
+     * Release the decompressor
+     */
+    public void close() {
+        inflater.end();
+    }
+}
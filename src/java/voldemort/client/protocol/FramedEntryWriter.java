@@ -0,0 +1,227 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.client.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.concurrency.NotThreadsafe;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ByteUtils;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+/**
+ * Writes a stream of entries packed many to a frame, as the admin service
+ * streams partitions. Each frame is
+ * <p>
+ * <code>length(int32) flags(int8) entries(int32) uncompressedLength(int32)
+ * crc32(int32) bytes(length)</code>
+ * <p>
+ * where the bytes are the entries, each
+ * <code>keyLength(int32) key valueLength(int32) clock value</code>, deflated
+ * if the {@link #FLAG_COMPRESSED} flag is set, and the checksum is of the
+ * header fields before it followed by the uncompressed entries. A frame is
+ * only compressed if that makes it smaller, and never holds more than
+ * {@link #MAX_FRAME_BYTES}. The stream ends with a length of
+ * {@link #END_OF_STREAM}.
+ * <p>
+ * When writing a response each frame and the end of the stream are preceded
+ * by a zero status code, so that the reader can check for an error first.
+ */
+@NotThreadsafe
+public class FramedEntryWriter {
+
+    public static final int END_OF_STREAM = -1;
+    public static final byte FLAG_COMPRESSED = 1;
+    public static final int DEFAULT_MAX_FRAME_BYTES = 256 * 1024;
+    public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private final DataOutputStream output;
+    private final boolean compress;
+    private final boolean writeStatus;
+    private final int maxFrameBytes;
+    private final FrameBuffer frameBuffer;
+    private final DataOutputStream frame;
+    private final CRC32 checksum;
+    private final Deflater deflater;
+    private byte[] compressed;
+    private int entries;
+    private long bytesWritten;
+
+    /**
+     * @param output The stream to write to
+     * @param compress Whether to deflate frames
+     * @param writeStatus Whether to precede each frame with a status code
+     * @param maxFrameBytes The uncompressed size after which a frame is
+     *        written
+     */
+    public FramedEntryWriter(DataOutputStream output,
+                             boolean compress,
+                             boolean writeStatus,
+                             int maxFrameBytes) {
+        if(maxFrameBytes <= 0 || maxFrameBytes > MAX_FRAME_BYTES)
+            throw new IllegalArgumentException("maxFrameBytes must be between 1 and "
+                                               + MAX_FRAME_BYTES + ".");
+        this.output = output;
+        this.compress = compress;
+        this.writeStatus = writeStatus;
+        this.maxFrameBytes = maxFrameBytes;
+        this.frameBuffer = new FrameBuffer(maxFrameBytes);
+        this.frame = new DataOutputStream(frameBuffer);
+        this.checksum = new CRC32();
+        this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        this.compressed = new byte[0];
+    }
+
+    /**
+     * Add an entry to the current frame, writing the frame if it is full
+     * 
+     * @return The uncompressed size of the entry
+     */
+    public int write(ByteArray key, Versioned<byte[]> versioned) throws IOException {
+        byte[] clock = ((VectorClock) versioned.getVersion()).toBytes();
+        byte[] value = versioned.getValue();
+        long size = 8L + key.length() + clock.length + value.length;
+        if(size > MAX_FRAME_BYTES)
+            throw new VoldemortException("Entry of " + size + " bytes is larger than the "
+                                         + MAX_FRAME_BYTES + " bytes allowed in a frame.");
+        if(frameBuffer.size() + size > MAX_FRAME_BYTES)
+            flush();
+        frame.writeInt(key.length());
+        frame.write(key.get());
+        frame.writeInt(clock.length + value.length);
+        frame.write(clock);
+        frame.write(value);
+        entries++;
+        if(frameBuffer.size() >= maxFrameBytes)
+            flush();
+        return key.length() + clock.length + value.length;
+    }
+
+    /**
+     * Write the current frame, if it has any entries
+     */
+    public void flush() throws IOException {
+        if(entries == 0)
+            return;
+        byte[] payload = frameBuffer.getBuffer();
+        int length = frameBuffer.size();
+
+        byte flags = 0;
+        byte[] body = payload;
+        int bodyLength = length;
+        if(compress) {
+            int deflated = deflate(payload, length);
+            if(deflated >= 0) {
+                flags |= FLAG_COMPRESSED;
+                body = compressed;
+                bodyLength = deflated;
+            }
+        }
+        checksum.reset();
+        updateHeader(checksum, bodyLength, flags, entries, length);
+        checksum.update(payload, 0, length);
+        int crc = (int) checksum.getValue();
+
+        if(writeStatus)
+            output.writeShort(0);
+        output.writeInt(bodyLength);
+        output.writeByte(flags);
+        output.writeInt(entries);
+        output.writeInt(length);
+        output.writeInt(crc);
+        output.write(body, 0, bodyLength);
+        bytesWritten += bodyLength;
+
+        frameBuffer.reset();
+        entries = 0;
+    }
+
+    /*
+     * Add the header fields of a frame, as they are written, to its checksum
+     */
+    static void updateHeader(CRC32 checksum, int bodyLength, byte flags, int entries, int length) {
+        byte[] header = new byte[13];
+        ByteUtils.writeInt(header, bodyLength, 0);
+        header[4] = flags;
+        ByteUtils.writeInt(header, entries, 5);
+        ByteUtils.writeInt(header, length, 9);
+        checksum.update(header);
+    }
+
+    /*
+     * Deflate the payload into the compressed buffer, returning the compressed
+     * length or -1 if it didn't come out smaller
+     */
+    private int deflate(byte[] payload, int length) {
+        if(compressed.length < length)
+            compressed = new byte[length];
+        deflater.reset();
+        deflater.setInput(payload, 0, length);
+        deflater.finish();
+        int deflated = 0;
+        while(!deflater.finished() && deflated < length)
+            deflated += deflater.deflate(compressed, deflated, length - deflated);
+        return deflater.finished() && deflated < length ? deflated : -1;
+    }
+
+    /**
+     * Write any remaining entries and the end of the stream, and flush the
+     * underlying stream
+     */
+    public void finish() throws IOException {
+        flush();
+        if(writeStatus)
+            output.writeShort(0);
+        output.writeInt(END_OF_STREAM);
+        output.flush();
+    }
+
+    /**
+     * @return The bytes of entries written so far, after compression
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Release the compressor
+     */
+    public void close() {
+        if(deflater != null)
+            deflater.end();
+    }
+
+    /*
+     * Lets the frame be checksummed and compressed without copying it
+     */
+    private static final class FrameBuffer extends ByteArrayOutputStream {
+
+        FrameBuffer(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
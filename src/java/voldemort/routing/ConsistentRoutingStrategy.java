@@ -114,8 +114,12 @@ public class ConsistentRoutingStrategy implements RoutingStrategy {
     }
 
     public List<Integer> getPartitionList(byte[] key) {
+        return getReplicatingPartitionList(Math.abs(hash.hash(key)) % this.partitionToNode.length);
+    }
+
+    public List<Integer> getReplicatingPartitionList(int masterPartition) {
         List<Integer> preferenceList = new ArrayList<Integer>(numReplicas);
-        int index = Math.abs(hash.hash(key)) % this.partitionToNode.length;
+        int index = masterPartition;
         for(int i = 0; i < partitionToNode.length; i++) {
             // add this one if we haven't already
             if(!preferenceList.contains(index))
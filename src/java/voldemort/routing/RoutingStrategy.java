@@ -48,6 +48,15 @@ public interface RoutingStrategy {
      */
     public List<Integer> getPartitionList(byte[] key);
 
+    /**
+     * Get the partitions that hold the keys whose master partition, the first
+     * in their partition list, is the given one.
+     * 
+     * @param masterPartition The master partition
+     * @return The partition list of the keys in the master partition
+     */
+    public List<Integer> getReplicatingPartitionList(int masterPartition);
+
     /**
      * Get the collection of nodes that are candidates for routing.
      * 
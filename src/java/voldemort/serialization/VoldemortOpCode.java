@@ -27,4 +27,11 @@ public class VoldemortOpCode {
     public static final byte UPDATE_METADATA_OP_CODE = 6;
     public static final byte SERVER_STATE_CHANGE_OP_CODE = 8;
     public static final byte REDIRECT_GET_OP_CODE = 9;
+    public static final byte GET_MIGRATION_CHECKPOINT_OP_CODE = 10;
+    public static final byte UPDATE_MIGRATION_CHECKPOINT_OP_CODE = 11;
+    public static final byte CLEAR_MIGRATION_CHECKPOINT_OP_CODE = 12;
+    public static final byte GET_PARTITION_AS_FRAMED_STREAM_OP_CODE = 13;
+    public static final byte PUT_ENTRIES_AS_FRAMED_STREAM_OP_CODE = 14;
+    public static final byte REDIRECT_GET_ALL_OP_CODE = 15;
+    public static final byte GET_PARTITION_AWARE_OP_CODE = 16;
 }
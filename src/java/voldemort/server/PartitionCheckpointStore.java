@@ -0,0 +1,157 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.concurrency.Threadsafe;
+import voldemort.utils.Utils;
+
+/**
+ * Records which partitions of some piece of work have been completed, so that
+ * work which fails or is interrupted part way through can carry on with the
+ * partitions that remain instead of starting over. A node uses one to resume
+ * partition migrations and another to resume retention cleanup.
+ * 
+ * The partitions completed for each key are kept in a file named by the key,
+ * one partition id per line, which is replaced atomically on each update. A
+ * checkpoint may also name the piece of work it belongs to, on a first line
+ * starting with '#', so that a checkpoint left behind by work that was
+ * abandoned is not mistaken for progress by later, unrelated work under the
+ * same key.
+ */
+@Threadsafe
+public class PartitionCheckpointStore {
+
+    private final File directory;
+
+    public PartitionCheckpointStore(File directory) {
+        this.directory = Utils.notNull(directory);
+    }
+
+    private File getFile(String key) {
+        // keys are made from store names that come off the wire, so keep
+        // them inside the directory
+        if(key == null || key.length() == 0 || key.startsWith(".") || key.indexOf('/') >= 0
+           || key.indexOf('\\') >= 0 || key.indexOf(File.separatorChar) >= 0)
+            throw new VoldemortException("Invalid partition checkpoint key: '" + key + "'");
+        return new File(directory, key);
+    }
+
+    /**
+     * @return The partitions recorded as completed for the key
+     */
+    public synchronized Set<Integer> getCompletedPartitions(String key) {
+        return getCompletedPartitions(key, null);
+    }
+
+    /**
+     * Get the partitions recorded as completed for the key by the given piece
+     * of work. A checkpoint recorded under the key by any other piece of work
+     * is stale and is cleared.
+     * 
+     * @param key The key of the checkpoint
+     * @param workId The id of the piece of work, or null if the key is only
+     *        ever used by one
+     * @return The partitions completed by the piece of work
+     */
+    public synchronized Set<Integer> getCompletedPartitions(String key, String workId) {
+        Set<Integer> partitions = new TreeSet<Integer>();
+        File file = getFile(key);
+        if(!file.exists())
+            return partitions;
+        String recordedId = null;
+        try {
+            for(Object line: FileUtils.readLines(file)) {
+                String partition = ((String) line).trim();
+                if(partition.startsWith("#"))
+                    recordedId = partition.substring(1);
+                else if(partition.length() > 0)
+                    partitions.add(Integer.parseInt(partition));
+            }
+        } catch(IOException e) {
+            throw new VoldemortException("Could not read partition checkpoint " + file, e);
+        }
+        if(!Utils.deepEquals(workId, recordedId)) {
+            clear(key);
+            partitions.clear();
+        }
+        return partitions;
+    }
+
+    /**
+     * Record that the given partition has been completed for the key
+     */
+    public synchronized void markCompleted(String key, int partition) {
+        markCompleted(key, null, partition);
+    }
+
+    /**
+     * Record that the given partition has been completed for the key by the
+     * given piece of work, replacing any checkpoint left under the key by
+     * other work
+     * 
+     * @param key The key of the checkpoint
+     * @param workId The id of the piece of work, or null if the key is only
+     *        ever used by one
+     * @param partition The partition completed
+     */
+    public synchronized void markCompleted(String key, String workId, int partition) {
+        // the id is kept on a line of its own, which is trimmed when read
+        if(workId != null && (workId.length() == 0 || !workId.equals(workId.trim())
+                              || workId.indexOf('\n') >= 0 || workId.indexOf('\r') >= 0))
+            throw new VoldemortException("Invalid partition checkpoint id: '" + workId + "'");
+        Set<Integer> partitions = getCompletedPartitions(key, workId);
+        if(!partitions.add(partition))
+            return;
+        File file = getFile(key);
+        File temp = new File(directory, file.getName() + ".temp");
+        try {
+            if(!directory.exists() && !directory.mkdirs())
+                throw new VoldemortException("Could not create directory " + directory);
+            List<String> lines = new ArrayList<String>(partitions.size() + 1);
+            if(workId != null)
+                lines.add("#" + workId);
+            for(int p: partitions)
+                lines.add(Integer.toString(p));
+            FileUtils.writeLines(temp, lines);
+        } catch(IOException e) {
+            throw new VoldemortException("Could not write partition checkpoint " + temp, e);
+        }
+        // rename replaces the old checkpoint atomically on unix
+        if(!temp.renameTo(file))
+            Utils.move(temp, file);
+    }
+
+    /**
+     * Forget the partitions completed for the key, once all the work is done
+     */
+    public synchronized void clear(String key) {
+        File file = getFile(key);
+        if(file.exists() && !file.delete())
+            throw new VoldemortException("Could not delete partition checkpoint " + file);
+    }
+
+}
@@ -12,6 +12,7 @@ public enum ServiceType {
     JMX("jmx-service"),
     SCHEDULER("scheduler-service"),
     STORAGE("storage-service"),
+    THROTTLING("throttling-service"),
     VOLDEMORT("voldemort-server");
 
     private final String display;
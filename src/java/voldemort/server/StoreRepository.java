@@ -10,7 +10,8 @@ import voldemort.VoldemortException;
 import voldemort.annotations.concurrency.Threadsafe;
 import voldemort.store.StorageEngine;
 import voldemort.store.Store;
-import voldemort.store.slop.Slop;
+import voldemort.store.cache.CachingStore;
+import voldemort.store.slop.SlopStorageEngine;
 import voldemort.utils.ByteArray;
 import voldemort.utils.Pair;
 
@@ -28,6 +29,9 @@ import voldemort.utils.Pair;
  * appropriate nodes.</li>
  * <li>Node Stores &ndash; These represent socket stores for writing to
  * individual nodes.</li>
+ * <li>Caches &ndash; These sit in front of the storage engines of the local
+ * stores that have a cache, and must be told of writes made to the storage
+ * engines directly.</li>
  * </ol>
  * 
  * @author jay
@@ -42,8 +46,8 @@ public class StoreRepository {
      * make the getLocal return a storage engine.
      */
 
-    /* The store used for storing slop for future handoff */
-    private volatile StorageEngine<ByteArray, Slop> slopStore;
+    /* The store used for storing slop for future handoff, by destination */
+    private volatile SlopStorageEngine slopStore;
 
     /*
      * Unrouted stores, local to this node
@@ -67,12 +71,19 @@ public class StoreRepository {
      */
     private final ConcurrentMap<Pair<String, Integer>, Store<ByteArray, byte[]>> nodeStores;
 
+    /*
+     * Caches of local stores, which writes made directly to the storage
+     * engines must invalidate
+     */
+    private final ConcurrentMap<String, CachingStore<ByteArray, byte[]>> caches;
+
     public StoreRepository() {
         super();
         this.localStores = new ConcurrentHashMap<String, Store<ByteArray, byte[]>>();
         this.storageEngines = new ConcurrentHashMap<String, StorageEngine<ByteArray, byte[]>>();
         this.routedStores = new ConcurrentHashMap<String, Store<ByteArray, byte[]>>();
         this.nodeStores = new ConcurrentHashMap<Pair<String, Integer>, Store<ByteArray, byte[]>>();
+        this.caches = new ConcurrentHashMap<String, CachingStore<ByteArray, byte[]>>();
     }
 
     public boolean hasLocalStore(String name) {
@@ -122,6 +133,31 @@ public class StoreRepository {
         return l;
     }
 
+    /**
+     * @return The cache in front of the storage engine of the store, or null
+     *         if it has none
+     */
+    public CachingStore<ByteArray, byte[]> getCache(String storeName) {
+        return this.caches.get(storeName);
+    }
+
+    public void addCache(CachingStore<ByteArray, byte[]> cache) {
+        CachingStore<ByteArray, byte[]> found = this.caches.putIfAbsent(cache.getName(), cache);
+        if(found != null)
+            throw new VoldemortException("Cache '" + cache.getName()
+                                         + "' has already been initialized.");
+    }
+
+    /**
+     * Invalidate the cached entry of a key written to the storage engine of a
+     * store directly, if the store has a cache
+     */
+    public void invalidateCached(String storeName, ByteArray key) {
+        CachingStore<ByteArray, byte[]> cache = this.caches.get(storeName);
+        if(cache != null)
+            cache.invalidate(key);
+    }
+
     public boolean hasRoutedStore(String name) {
         return this.routedStores.containsKey(name);
     }
@@ -164,13 +200,13 @@ public class StoreRepository {
         return vals;
     }
 
-    public StorageEngine<ByteArray, Slop> getSlopStore() {
+    public SlopStorageEngine getSlopStore() {
         if(this.slopStore == null)
             throw new IllegalStateException("Slop store has not been set!");
         return this.slopStore;
     }
 
-    public void setSlopStore(StorageEngine<ByteArray, Slop> slopStore) {
+    public void setSlopStore(SlopStorageEngine slopStore) {
         this.slopStore = slopStore;
     }
 
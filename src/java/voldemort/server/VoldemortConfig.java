@@ -24,8 +24,10 @@ import java.util.Properties;
 
 import voldemort.client.protocol.RequestFormatType;
 import voldemort.store.bdb.BdbStorageConfiguration;
+import voldemort.store.memory.BoundedCacheStorageConfiguration;
 import voldemort.store.memory.CacheStorageConfiguration;
 import voldemort.store.memory.InMemoryStorageConfiguration;
+import voldemort.store.memory.OffHeapStorageConfiguration;
 import voldemort.store.mysql.MysqlStorageConfiguration;
 import voldemort.store.readonly.ReadOnlyStorageConfiguration;
 import voldemort.utils.ConfigurationException;
@@ -62,6 +64,8 @@ public class VoldemortConfig implements Serializable {
     private boolean bdbFlushTransactions;
     private boolean bdbSortedDuplicates;
     private String bdbDataDirectory;
+    private String migrationCheckpointDirectory;
+    private String retentionCheckpointDirectory;
     private long bdbMaxLogFileSize;
     private int bdbBtreeFanout;
     private long bdbCheckpointBytes;
@@ -72,11 +76,29 @@ public class VoldemortConfig implements Serializable {
     private String mysqlDatabaseName;
     private String mysqlHost;
     private int mysqlPort;
+    private int mysqlMaxConnections;
+    private long mysqlMaxWaitMs;
+    private int mysqlStatementCacheSize;
+    private int mysqlGetAllBatchSize;
+    private int mysqlFetchSize;
+    private boolean mysqlPartitionColumnEnabled;
 
     private int readOnlyFileHandles;
     private long readOnlyFileWaitTimeoutMs;
     private int readOnlyBackups;
     private String readOnlyStorageDir;
+    private boolean readOnlyWarmUpEnabled;
+    private boolean readOnlyWarmUpBeforeSwap;
+    private long readOnlyWarmUpBytesPerSec;
+    private long readOnlyWarmUpDataBytes;
+    private long readOnlyDeleteBytesPerSec;
+
+    private long boundedCacheMaxBytes;
+    private int boundedCacheSegments;
+
+    private int offHeapSlabBytes;
+    private long offHeapMaxBytes;
+    private int offHeapSegments;
 
     private int coreThreads;
     private int maxThreads;
@@ -96,6 +118,15 @@ public class VoldemortConfig implements Serializable {
     private int schedulerThreads;
 
     private int numCleanupPermits;
+    private boolean enableRetentionIndex;
+    private long retentionIndexBucketMs;
+    private long retentionCleanupIntervalMs;
+    private int retentionCleanupMaxKeys;
+    private int retentionCleanupThreads;
+    private boolean enableTtl;
+    private int expiredDeleteQueueSize;
+    private boolean enableExpiredCleanup;
+    private long expiredCleanupIntervalMs;
 
     private RequestFormatType requestFormatType;
 
@@ -114,6 +145,9 @@ public class VoldemortConfig implements Serializable {
     private Props allProps;
 
     private final long pusherPollMs;
+    private int pusherThreads;
+    private int pusherBatchSize;
+    private long pusherMaxBackoffMs;
 
     private int adminCoreThreads;
     private int adminMaxThreads;
@@ -121,6 +155,12 @@ public class VoldemortConfig implements Serializable {
 
     private int streamMaxReadBytesPerSec;
     private int streamMaxWriteBytesPerSec;
+    private int streamPutBatchSize;
+    private long backgroundIoMaxBytesPerSec;
+    private long backgroundIoMinBytesPerSec;
+    private double backgroundIoTargetLatencyMs;
+    private long backgroundIoAdjustIntervalMs;
+    private boolean enableAdaptiveBackgroundIo;
 
     public VoldemortConfig(int nodeId, String voldemortHome) {
         this(new Props().with("node.id", nodeId).with("voldemort.home", voldemortHome));
@@ -142,6 +182,13 @@ public class VoldemortConfig implements Serializable {
         this.metadataDirectory = props.getString("metadata.directory", voldemortHome
                                                                        + File.separator + "config");
 
+        this.migrationCheckpointDirectory = props.getString("migration.checkpoint.directory",
+                                                            this.dataDirectory + File.separator
+                                                                    + "migration");
+        this.retentionCheckpointDirectory = props.getString("retention.checkpoint.directory",
+                                                            this.dataDirectory + File.separator
+                                                                    + "retention");
+
         this.bdbCacheSize = props.getBytes("bdb.cache.size", 200 * 1024 * 1024);
         this.bdbWriteTransactions = props.getBoolean("bdb.write.transactions", false);
         this.bdbFlushTransactions = props.getBoolean("bdb.flush.transactions", false);
@@ -159,6 +206,20 @@ public class VoldemortConfig implements Serializable {
         this.readOnlyStorageDir = props.getString("readonly.data.directory", this.dataDirectory
                                                                              + File.separator
                                                                              + "read-only");
+        this.readOnlyWarmUpEnabled = props.getBoolean("readonly.warmup.enable", false);
+        this.readOnlyWarmUpBeforeSwap = props.getBoolean("readonly.warmup.before.swap", true);
+        this.readOnlyWarmUpBytesPerSec = props.getBytes("readonly.warmup.bytes.per.sec",
+                                                        20 * 1000 * 1000);
+        this.readOnlyWarmUpDataBytes = props.getBytes("readonly.warmup.data.bytes", 0);
+        this.readOnlyDeleteBytesPerSec = props.getBytes("readonly.delete.bytes.per.sec",
+                                                        50 * 1000 * 1000);
+
+        this.boundedCacheMaxBytes = props.getBytes("bounded.cache.max.bytes", 64 * 1024 * 1024);
+        this.boundedCacheSegments = props.getInt("bounded.cache.segments", 16);
+
+        this.offHeapSlabBytes = (int) props.getBytes("offheap.slab.bytes", 1024 * 1024);
+        this.offHeapMaxBytes = props.getBytes("offheap.max.bytes", 1024 * 1024 * 1024);
+        this.offHeapSegments = props.getInt("offheap.segments", 16);
 
         this.slopStoreType = props.getString("slop.store.engine", BdbStorageConfiguration.TYPE_NAME);
 
@@ -167,6 +228,13 @@ public class VoldemortConfig implements Serializable {
         this.mysqlHost = props.getString("mysql.host", "localhost");
         this.mysqlPort = props.getInt("mysql.port", 3306);
         this.mysqlDatabaseName = props.getString("mysql.database", "voldemort");
+        this.mysqlMaxConnections = props.getInt("mysql.max.connections", 50);
+        this.mysqlMaxWaitMs = props.getLong("mysql.max.wait.ms", 5000);
+        this.mysqlStatementCacheSize = props.getInt("mysql.statement.cache.size", 32);
+        this.mysqlGetAllBatchSize = props.getInt("mysql.getall.batch.size", 128);
+        this.mysqlFetchSize = props.getInt("mysql.fetch.size", 1000);
+        this.mysqlPartitionColumnEnabled = props.getBoolean("mysql.partition.column.enable",
+                                                            false);
 
         this.maxThreads = props.getInt("max.threads", 100);
         this.coreThreads = props.getInt("core.threads", Math.max(1, maxThreads / 2));
@@ -178,6 +246,16 @@ public class VoldemortConfig implements Serializable {
 
         this.streamMaxReadBytesPerSec = props.getInt("stream.read.byte.per.sec", 1 * 1000 * 1000);
         this.streamMaxWriteBytesPerSec = props.getInt("stream.write.byte.per.sec", 1 * 1000 * 1000);
+        this.streamPutBatchSize = props.getInt("stream.put.batch.size", 1000);
+
+        this.backgroundIoMaxBytesPerSec = props.getBytes("background.io.max.bytes.per.sec",
+                                                         10 * 1000 * 1000);
+        this.backgroundIoMinBytesPerSec = props.getBytes("background.io.min.bytes.per.sec",
+                                                         256 * 1000);
+        this.backgroundIoTargetLatencyMs = props.getDouble("background.io.target.latency.ms", 10.0);
+        this.backgroundIoAdjustIntervalMs = props.getLong("background.io.adjust.interval.ms",
+                                                          5000);
+        this.enableAdaptiveBackgroundIo = props.getBoolean("background.io.adaptive.enable", true);
 
         this.socketTimeoutMs = props.getInt("socket.timeout.ms", 4000);
         this.socketBufferSize = (int) props.getBytes("socket.buffer.size", 32 * 1024);
@@ -201,16 +279,31 @@ public class VoldemortConfig implements Serializable {
         this.enableServerRouting = props.getBoolean("enable.server.routing", true);
 
         this.pusherPollMs = props.getInt("pusher.poll.ms", 2 * 60 * 1000);
+        this.pusherThreads = props.getInt("pusher.threads", 4);
+        this.pusherBatchSize = props.getInt("pusher.batch.size", 100);
+        this.pusherMaxBackoffMs = props.getLong("pusher.max.backoff.ms", 5 * 60 * 1000);
 
         this.schedulerThreads = props.getInt("scheduler.threads", 3);
 
         this.numCleanupPermits = props.getInt("num.cleanup.permits", 1);
+        this.enableRetentionIndex = props.getBoolean("retention.index.enable", true);
+        this.retentionIndexBucketMs = props.getLong("retention.index.bucket.ms", 60 * 60 * 1000);
+        this.retentionCleanupIntervalMs = props.getLong("retention.cleanup.interval.ms", 60 * 1000);
+        this.retentionCleanupMaxKeys = props.getInt("retention.cleanup.max.keys", 10000);
+        this.retentionCleanupThreads = props.getInt("retention.cleanup.threads", 2);
+        this.enableTtl = props.getBoolean("ttl.enable", false);
+        this.expiredDeleteQueueSize = props.getInt("expired.delete.queue.size", 10000);
+        this.enableExpiredCleanup = props.getBoolean("expired.cleanup.enable", false);
+        this.expiredCleanupIntervalMs = props.getLong("expired.cleanup.interval.ms",
+                                                      Time.MS_PER_DAY);
 
         this.storageConfigurations = props.getList("storage.configs",
                                                    ImmutableList.of(BdbStorageConfiguration.class.getName(),
                                                                     MysqlStorageConfiguration.class.getName(),
                                                                     InMemoryStorageConfiguration.class.getName(),
                                                                     CacheStorageConfiguration.class.getName(),
+                                                                    BoundedCacheStorageConfiguration.class.getName(),
+                                                                    OffHeapStorageConfiguration.class.getName(),
                                                                     ReadOnlyStorageConfiguration.class.getName()));
 
         // save props for access from plugins
@@ -232,6 +325,18 @@ public class VoldemortConfig implements Serializable {
             throw new ConfigurationException("max.threads cannot be less than 1.");
         if(pusherPollMs < 1)
             throw new ConfigurationException("pusher.poll.ms cannot be less than 1.");
+        if(numCleanupPermits < 1)
+            throw new ConfigurationException("num.cleanup.permits cannot be less than 1.");
+        if(retentionCleanupThreads < 1)
+            throw new ConfigurationException("retention.cleanup.threads cannot be less than 1.");
+        if(expiredDeleteQueueSize < 1)
+            throw new ConfigurationException("expired.delete.queue.size cannot be less than 1.");
+        if(expiredCleanupIntervalMs < 1)
+            throw new ConfigurationException("expired.cleanup.interval.ms cannot be less than 1.");
+        if(pusherThreads < 1)
+            throw new ConfigurationException("pusher.threads cannot be less than 1.");
+        if(pusherBatchSize < 1)
+            throw new ConfigurationException("pusher.batch.size cannot be less than 1.");
         if(socketTimeoutMs < 0)
             throw new ConfigurationException("socket.timeout.ms must be 0 or more ms.");
         if(clientRoutingTimeoutMs < 0)
@@ -359,6 +464,34 @@ public class VoldemortConfig implements Serializable {
         this.bdbFlushTransactions = bdbSyncTransactions;
     }
 
+    /**
+     * The directory where a node records the partitions it has been sent by
+     * other nodes, so that partition migrations can resume after a failure.
+     * Given by "migration.checkpoint.directory" default: data.directory +
+     * "/migration"
+     */
+    public String getMigrationCheckpointDirectory() {
+        return migrationCheckpointDirectory;
+    }
+
+    public void setMigrationCheckpointDirectory(String migrationCheckpointDirectory) {
+        this.migrationCheckpointDirectory = migrationCheckpointDirectory;
+    }
+
+    /**
+     * The directory where a node records the partitions retention cleanup has
+     * finished, so that an interrupted pass can resume after a restart. Given
+     * by "retention.checkpoint.directory" default: data.directory +
+     * "/retention"
+     */
+    public String getRetentionCheckpointDirectory() {
+        return retentionCheckpointDirectory;
+    }
+
+    public void setRetentionCheckpointDirectory(String retentionCheckpointDirectory) {
+        this.retentionCheckpointDirectory = retentionCheckpointDirectory;
+    }
+
     /**
      * The directory in which bdb data is stored. Given by "bdb.data.directory"
      * default: data.directory/bdb
@@ -477,6 +610,83 @@ public class VoldemortConfig implements Serializable {
         this.streamMaxWriteBytesPerSec = streamMaxWriteBytesPerSec;
     }
 
+    /**
+     * The number of entries streamed to a node by the admin service that are
+     * buffered and put together, in one transaction where the storage engine
+     * supports it. Given by "stream.put.batch.size" default: 1000
+     */
+    public int getStreamPutBatchSize() {
+        return streamPutBatchSize;
+    }
+
+    public void setStreamPutBatchSize(int streamPutBatchSize) {
+        this.streamPutBatchSize = streamPutBatchSize;
+    }
+
+    /**
+     * The most bytes per second that all the background I/O on the node
+     * together (admin streams, slop pushing, retention cleanup and read-only
+     * fetches) may use. Given by "background.io.max.bytes.per.sec" default:
+     * 10000000
+     */
+    public long getBackgroundIoMaxBytesPerSec() {
+        return backgroundIoMaxBytesPerSec;
+    }
+
+    public void setBackgroundIoMaxBytesPerSec(long backgroundIoMaxBytesPerSec) {
+        this.backgroundIoMaxBytesPerSec = backgroundIoMaxBytesPerSec;
+    }
+
+    /**
+     * The rate below which background I/O is never throttled, however slow
+     * foreground requests get. Given by "background.io.min.bytes.per.sec"
+     * default: 256000
+     */
+    public long getBackgroundIoMinBytesPerSec() {
+        return backgroundIoMinBytesPerSec;
+    }
+
+    public void setBackgroundIoMinBytesPerSec(long backgroundIoMinBytesPerSec) {
+        this.backgroundIoMinBytesPerSec = backgroundIoMinBytesPerSec;
+    }
+
+    /**
+     * The average foreground request latency above which background I/O is
+     * slowed down. Given by "background.io.target.latency.ms" default: 10
+     */
+    public double getBackgroundIoTargetLatencyMs() {
+        return backgroundIoTargetLatencyMs;
+    }
+
+    public void setBackgroundIoTargetLatencyMs(double backgroundIoTargetLatencyMs) {
+        this.backgroundIoTargetLatencyMs = backgroundIoTargetLatencyMs;
+    }
+
+    /**
+     * How often the background I/O rate is adjusted. Given by
+     * "background.io.adjust.interval.ms" default: 5000
+     */
+    public long getBackgroundIoAdjustIntervalMs() {
+        return backgroundIoAdjustIntervalMs;
+    }
+
+    public void setBackgroundIoAdjustIntervalMs(long backgroundIoAdjustIntervalMs) {
+        this.backgroundIoAdjustIntervalMs = backgroundIoAdjustIntervalMs;
+    }
+
+    /**
+     * If true the background I/O rate adapts to foreground latency, otherwise
+     * it stays at the maximum. Given by "background.io.adaptive.enable"
+     * default: true
+     */
+    public boolean isAdaptiveBackgroundIoEnabled() {
+        return enableAdaptiveBackgroundIo;
+    }
+
+    public void setEnableAdaptiveBackgroundIo(boolean enableAdaptiveBackgroundIo) {
+        this.enableAdaptiveBackgroundIo = enableAdaptiveBackgroundIo;
+    }
+
     public void setEnableAdminServer(boolean enableAdminServer) {
         this.enableAdminServer = enableAdminServer;
     }
@@ -493,6 +703,43 @@ public class VoldemortConfig implements Serializable {
         return pusherPollMs;
     }
 
+    /**
+     * The number of destination nodes slop is pushed to at once. Given by
+     * "pusher.threads" default: 4
+     */
+    public int getPusherThreads() {
+        return pusherThreads;
+    }
+
+    public void setPusherThreads(int pusherThreads) {
+        this.pusherThreads = pusherThreads;
+    }
+
+    /**
+     * The number of slops pushed to a node before their slop records are
+     * deleted. Given by "pusher.batch.size" default: 100
+     */
+    public int getPusherBatchSize() {
+        return pusherBatchSize;
+    }
+
+    public void setPusherBatchSize(int pusherBatchSize) {
+        this.pusherBatchSize = pusherBatchSize;
+    }
+
+    /**
+     * The longest a node that failed to take its slop is skipped by the
+     * pusher, backing off exponentially from one second. Given by
+     * "pusher.max.backoff.ms" default: 300000
+     */
+    public long getPusherMaxBackoffMs() {
+        return pusherMaxBackoffMs;
+    }
+
+    public void setPusherMaxBackoffMs(long pusherMaxBackoffMs) {
+        this.pusherMaxBackoffMs = pusherMaxBackoffMs;
+    }
+
     public boolean isGuiEnabled() {
         return enableGui;
     }
@@ -541,6 +788,81 @@ public class VoldemortConfig implements Serializable {
         this.mysqlPort = mysqlPort;
     }
 
+    /**
+     * The most connections to mysql to keep open, all of which are kept when
+     * idle. Given by "mysql.max.connections" default: 50
+     */
+    public int getMysqlMaxConnections() {
+        return mysqlMaxConnections;
+    }
+
+    public void setMysqlMaxConnections(int mysqlMaxConnections) {
+        this.mysqlMaxConnections = mysqlMaxConnections;
+    }
+
+    /**
+     * How long to wait for a free mysql connection before failing. Given by
+     * "mysql.max.wait.ms" default: 5000
+     */
+    public long getMysqlMaxWaitMs() {
+        return mysqlMaxWaitMs;
+    }
+
+    public void setMysqlMaxWaitMs(long mysqlMaxWaitMs) {
+        this.mysqlMaxWaitMs = mysqlMaxWaitMs;
+    }
+
+    /**
+     * The number of prepared statements to keep open on each mysql connection,
+     * or 0 to prepare them afresh every time. Given by
+     * "mysql.statement.cache.size" default: 32
+     */
+    public int getMysqlStatementCacheSize() {
+        return mysqlStatementCacheSize;
+    }
+
+    public void setMysqlStatementCacheSize(int mysqlStatementCacheSize) {
+        this.mysqlStatementCacheSize = mysqlStatementCacheSize;
+    }
+
+    /**
+     * The most keys a mysql store fetches in a single query for getAll. Given
+     * by "mysql.getall.batch.size" default: 128
+     */
+    public int getMysqlGetAllBatchSize() {
+        return mysqlGetAllBatchSize;
+    }
+
+    public void setMysqlGetAllBatchSize(int mysqlGetAllBatchSize) {
+        this.mysqlGetAllBatchSize = mysqlGetAllBatchSize;
+    }
+
+    /**
+     * The number of rows a mysql store reads at a time from its server side
+     * cursor when iterating over entries. Given by "mysql.fetch.size" default:
+     * 1000
+     */
+    public int getMysqlFetchSize() {
+        return mysqlFetchSize;
+    }
+
+    public void setMysqlFetchSize(int mysqlFetchSize) {
+        this.mysqlFetchSize = mysqlFetchSize;
+    }
+
+    /**
+     * Whether mysql stores keep the master partition of each key in an indexed
+     * column so partitions can be fetched without a table scan. Given by
+     * "mysql.partition.column.enable" default: false
+     */
+    public boolean isMysqlPartitionColumnEnabled() {
+        return mysqlPartitionColumnEnabled;
+    }
+
+    public void setMysqlPartitionColumnEnabled(boolean mysqlPartitionColumnEnabled) {
+        this.mysqlPartitionColumnEnabled = mysqlPartitionColumnEnabled;
+    }
+
     public String getSlopStoreType() {
         return slopStoreType;
     }
@@ -701,6 +1023,133 @@ public class VoldemortConfig implements Serializable {
         this.readOnlyBackups = readOnlyBackups;
     }
 
+    /**
+     * If true new read-only store versions are read into the page cache on
+     * swap. Given by "readonly.warmup.enable" default: false
+     */
+    public boolean isReadOnlyWarmUpEnabled() {
+        return readOnlyWarmUpEnabled;
+    }
+
+    public void setReadOnlyWarmUpEnabled(boolean readOnlyWarmUpEnabled) {
+        this.readOnlyWarmUpEnabled = readOnlyWarmUpEnabled;
+    }
+
+    /**
+     * If true the swap of a read-only store is delayed until the new version
+     * is warm, otherwise it is warmed in the background after the swap. Given
+     * by "readonly.warmup.before.swap" default: true
+     */
+    public boolean isReadOnlyWarmUpBeforeSwap() {
+        return readOnlyWarmUpBeforeSwap;
+    }
+
+    public void setReadOnlyWarmUpBeforeSwap(boolean readOnlyWarmUpBeforeSwap) {
+        this.readOnlyWarmUpBeforeSwap = readOnlyWarmUpBeforeSwap;
+    }
+
+    /**
+     * The maximum rate at which read-only files are read during warm-up.
+     * Given by "readonly.warmup.bytes.per.sec" default: 20MB
+     */
+    public long getReadOnlyWarmUpBytesPerSec() {
+        return readOnlyWarmUpBytesPerSec;
+    }
+
+    public void setReadOnlyWarmUpBytesPerSec(long readOnlyWarmUpBytesPerSec) {
+        this.readOnlyWarmUpBytesPerSec = readOnlyWarmUpBytesPerSec;
+    }
+
+    /**
+     * The number of bytes of data files (in addition to the index files) to
+     * warm for each store. Given by "readonly.warmup.data.bytes" default: 0
+     */
+    public long getReadOnlyWarmUpDataBytes() {
+        return readOnlyWarmUpDataBytes;
+    }
+
+    public void setReadOnlyWarmUpDataBytes(long readOnlyWarmUpDataBytes) {
+        this.readOnlyWarmUpDataBytes = readOnlyWarmUpDataBytes;
+    }
+
+    /**
+     * The rate at which old read-only store versions are deleted in the
+     * background, or 0 to delete them synchronously after each swap. Given by
+     * "readonly.delete.bytes.per.sec" default: 50MB
+     */
+    public long getReadOnlyDeleteBytesPerSec() {
+        return readOnlyDeleteBytesPerSec;
+    }
+
+    public void setReadOnlyDeleteBytesPerSec(long readOnlyDeleteBytesPerSec) {
+        this.readOnlyDeleteBytesPerSec = readOnlyDeleteBytesPerSec;
+    }
+
+    /**
+     * The maximum number of bytes of keys, values and bookkeeping each
+     * "bounded-cache" store holds. Given by "bounded.cache.max.bytes" default:
+     * 64MB
+     */
+    public long getBoundedCacheMaxBytes() {
+        return boundedCacheMaxBytes;
+    }
+
+    public void setBoundedCacheMaxBytes(long boundedCacheMaxBytes) {
+        this.boundedCacheMaxBytes = boundedCacheMaxBytes;
+    }
+
+    /**
+     * The number of independently locked segments each "bounded-cache" store
+     * is split into, rounded up to a power of two. Given by
+     * "bounded.cache.segments" default: 16
+     */
+    public int getBoundedCacheSegments() {
+        return boundedCacheSegments;
+    }
+
+    public void setBoundedCacheSegments(int boundedCacheSegments) {
+        this.boundedCacheSegments = boundedCacheSegments;
+    }
+
+    /**
+     * The size of the slabs "off-heap" stores allocate direct memory in.
+     * Records larger than a slab get a buffer of their own. Given by
+     * "offheap.slab.bytes" default: 1MB
+     */
+    public int getOffHeapSlabBytes() {
+        return offHeapSlabBytes;
+    }
+
+    public void setOffHeapSlabBytes(int offHeapSlabBytes) {
+        this.offHeapSlabBytes = offHeapSlabBytes;
+    }
+
+    /**
+     * The most direct memory each "off-heap" store may allocate, after which
+     * writes fail. The JVM's -XX:MaxDirectMemorySize must allow for it. Given by
+     * "offheap.max.bytes" default: 1GB
+     */
+    public long getOffHeapMaxBytes() {
+        return offHeapMaxBytes;
+    }
+
+    public void setOffHeapMaxBytes(long offHeapMaxBytes) {
+        this.offHeapMaxBytes = offHeapMaxBytes;
+    }
+
+    /**
+     * The number of independently locked segments each "off-heap" store is
+     * split into, rounded up to a power of two. Given by "offheap.segments"
+     * default: 16
+     */
+    public int getOffHeapSegments() {
+        return offHeapSegments;
+    }
+
+    public void setOffHeapSegments(int offHeapSegments) {
+        this.offHeapSegments = offHeapSegments;
+    }
+
     public boolean isBdbWriteTransactionsEnabled() {
         return bdbWriteTransactions;
     }
@@ -769,4 +1218,125 @@ public class VoldemortConfig implements Serializable {
         this.numCleanupPermits = numCleanupPermits;
     }
 
+    /**
+     * Whether stores with a retention period keep an index of when their keys
+     * were written, where the storage engine supports one, so that retention
+     * cleanup runs in small increments over only the expired keys instead of
+     * a daily scan of the whole store. Given by "retention.index.enable"
+     * default: true
+     */
+    public boolean isRetentionIndexEnabled() {
+        return enableRetentionIndex;
+    }
+
+    public void setEnableRetentionIndex(boolean enableRetentionIndex) {
+        this.enableRetentionIndex = enableRetentionIndex;
+    }
+
+    /**
+     * The width of the buckets of time the retention index groups keys in; a
+     * key is cleaned up once the whole bucket it is in has expired. Given by
+     * "retention.index.bucket.ms" default: 3600000
+     */
+    public long getRetentionIndexBucketMs() {
+        return retentionIndexBucketMs;
+    }
+
+    public void setRetentionIndexBucketMs(long retentionIndexBucketMs) {
+        this.retentionIndexBucketMs = retentionIndexBucketMs;
+    }
+
+    /**
+     * How often retention cleanup runs on a store with a retention index.
+     * Given by "retention.cleanup.interval.ms" default: 60000
+     */
+    public long getRetentionCleanupIntervalMs() {
+        return retentionCleanupIntervalMs;
+    }
+
+    public void setRetentionCleanupIntervalMs(long retentionCleanupIntervalMs) {
+        this.retentionCleanupIntervalMs = retentionCleanupIntervalMs;
+    }
+
+    /**
+     * The most keys one run of retention cleanup on a store with a retention
+     * index visits. Given by "retention.cleanup.max.keys" default: 10000
+     */
+    public int getRetentionCleanupMaxKeys() {
+        return retentionCleanupMaxKeys;
+    }
+
+    public void setRetentionCleanupMaxKeys(int retentionCleanupMaxKeys) {
+        this.retentionCleanupMaxKeys = retentionCleanupMaxKeys;
+    }
+
+    /**
+     * The number of threads deleting the expired entries retention cleanup
+     * finds in each store. Each store is still read by a single thread, only
+     * the deletes run in parallel. Given by "retention.cleanup.threads"
+     * default: 2
+     */
+    public int getRetentionCleanupThreads() {
+        return retentionCleanupThreads;
+    }
+
+    public void setRetentionCleanupThreads(int retentionCleanupThreads) {
+        this.retentionCleanupThreads = retentionCleanupThreads;
+    }
+
+    /**
+     * Whether to accept puts of values with a time-to-live. Such values are
+     * written in a format that servers and clients from before time-to-lives
+     * were added fail to read, so this must be turned on only once every
+     * server and every client of the cluster has been upgraded, and then on
+     * every server. Until then puts with a time-to-live are refused. Given by
+     * "ttl.enable" default: false
+     */
+    public boolean isTtlEnabled() {
+        return enableTtl;
+    }
+
+    public void setEnableTtl(boolean enableTtl) {
+        this.enableTtl = enableTtl;
+    }
+
+    /**
+     * The number of deletes of values found expired by gets that can wait to be
+     * made before more are skipped. Given by "expired.delete.queue.size"
+     * default: 10000
+     */
+    public int getExpiredDeleteQueueSize() {
+        return expiredDeleteQueueSize;
+    }
+
+    public void setExpiredDeleteQueueSize(int expiredDeleteQueueSize) {
+        this.expiredDeleteQueueSize = expiredDeleteQueueSize;
+    }
+
+    /**
+     * Whether to scan stores that have no retention period for values whose
+     * time-to-live has passed, so that expired values nobody reads are still
+     * deleted. Stores with a retention period are always cleaned up. Given by
+     * "expired.cleanup.enable" default: false
+     */
+    public boolean isExpiredCleanupEnabled() {
+        return enableExpiredCleanup;
+    }
+
+    public void setEnableExpiredCleanup(boolean enableExpiredCleanup) {
+        this.enableExpiredCleanup = enableExpiredCleanup;
+    }
+
+    /**
+     * How often stores without a retention period are scanned for expired
+     * values. Given by "expired.cleanup.interval.ms" default: 86400000
+     */
+    public long getExpiredCleanupIntervalMs() {
+        return expiredCleanupIntervalMs;
+    }
+
+    public void setExpiredCleanupIntervalMs(long expiredCleanupIntervalMs) {
+        this.expiredCleanupIntervalMs = expiredCleanupIntervalMs;
+    }
+
 }
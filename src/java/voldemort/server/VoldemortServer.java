@@ -34,6 +34,7 @@ import voldemort.server.protocol.RequestHandlerFactory;
 import voldemort.server.scheduler.SchedulerService;
 import voldemort.server.socket.SocketService;
 import voldemort.server.storage.StorageService;
+import voldemort.server.throttle.IoThrottlingService;
 import voldemort.store.metadata.MetadataStore;
 import voldemort.utils.ByteArray;
 import voldemort.utils.ByteUtils;
@@ -92,16 +93,29 @@ public class VoldemortServer extends AbstractService {
     }
 
     private List<VoldemortService> createServices() {
+        SchedulerService scheduler = new SchedulerService(voldemortConfig.getSchedulerThreads(),
+                                                          SystemTime.INSTANCE);
+        IoThrottlingService throttling = new IoThrottlingService(storeRepository,
+                                                                 scheduler,
+                                                                 voldemortConfig.getBackgroundIoMinBytesPerSec(),
+                                                                 voldemortConfig.getBackgroundIoMaxBytesPerSec(),
+                                                                 voldemortConfig.getBackgroundIoTargetLatencyMs(),
+                                                                 voldemortConfig.getBackgroundIoAdjustIntervalMs(),
+                                                                 voldemortConfig.isAdaptiveBackgroundIoEnabled());
         RequestHandlerFactory requestHandlerFactory = new RequestHandlerFactory(this.storeRepository,
                                                                                 this.metadata,
-                                                                                voldemortConfig);
+                                                                                voldemortConfig,
+                                                                                throttling.getThrottler());
 
         /* Services are given in the order they must be started */
         List<VoldemortService> services = new ArrayList<VoldemortService>();
-        SchedulerService scheduler = new SchedulerService(voldemortConfig.getSchedulerThreads(),
-                                                          SystemTime.INSTANCE);
-        services.add(new StorageService(storeRepository, metadata, scheduler, voldemortConfig));
+        services.add(new StorageService(storeRepository,
+                                        metadata,
+                                        scheduler,
+                                        voldemortConfig,
+                                        throttling.getThrottler()));
         services.add(scheduler);
+        services.add(throttling);
         if(voldemortConfig.isHttpServerEnabled())
             services.add(new HttpService(this,
                                          storeRepository,
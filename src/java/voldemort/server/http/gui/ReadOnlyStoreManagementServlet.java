@@ -33,8 +33,11 @@ import voldemort.server.ServiceType;
 import voldemort.server.VoldemortServer;
 import voldemort.server.http.VoldemortServletContextListener;
 import voldemort.server.storage.StorageService;
+import voldemort.server.throttle.IoThrottlingService;
 import voldemort.store.StorageEngine;
+import voldemort.store.readonly.DeltaFileFetcher;
 import voldemort.store.readonly.FileFetcher;
+import voldemort.store.readonly.ParallelFileFetcher;
 import voldemort.store.readonly.ReadOnlyStorageEngine;
 import voldemort.utils.ByteArray;
 import voldemort.utils.Props;
@@ -49,11 +52,18 @@ import com.google.common.collect.Maps;
  * stores. The operations are
  * <ol>
  * <li>FETCH. Fetch the given files to the local node. Parameters:
- * operation=fetch, index=index-file-url, data=data-file-url</li>
+ * operation=fetch, index=index-file-url, data=data-file-url, store=store-name
+ * (optional, allows the fetcher to reuse unchanged files of the current
+ * version)</li>
  * <li>SWAP. operation=swap, store=store-name, index=index-file-url,
  * data=data-file-url</li>
+ * <li>WARMUP. Read the files of a fetched (or, if no dir is given, the current)
+ * version into the page cache. Parameters: operation=warmup, store=store-name,
+ * dir=store-directory (optional)</li>
  * </ol>
  * 
+ * A GET shows the warm-up progress of each store.
+ * 
  * @author jay
  * 
  */
@@ -85,6 +95,10 @@ public class ReadOnlyStoreManagementServlet extends HttpServlet {
             } catch(Exception e) {
                 throw new VoldemortException("Error loading file fetcher class " + className, e);
             }
+            if(fileFetcher instanceof ParallelFileFetcher) {
+                IoThrottlingService throttling = (IoThrottlingService) server.getService(ServiceType.THROTTLING);
+                ((ParallelFileFetcher) fileFetcher).setSharedThrottler(throttling.getThrottler());
+            }
         }
     }
 
@@ -125,6 +139,8 @@ public class ReadOnlyStoreManagementServlet extends HttpServlet {
                 doFetch(req, resp);
             } else if("rollback".equals(operation)) {
                 doRollback(req);
+            } else if("warmup".equals(operation)) {
+                doWarmUp(req, resp);
             } else {
                 throw new IllegalArgumentException("Unknown operation parameter: "
                                                    + req.getParameter("operation"));
@@ -152,11 +168,19 @@ public class ReadOnlyStoreManagementServlet extends HttpServlet {
     private void doFetch(HttpServletRequest req, HttpServletResponse resp) throws IOException,
             ServletException {
         String fetchUrl = getRequired(req, "dir");
+        String storeName = req.getParameter("store");
 
         // fetch the files if necessary
         File fetchDir;
         if(fileFetcher == null) {
             fetchDir = new File(fetchUrl);
+        } else if(storeName != null && fileFetcher instanceof DeltaFileFetcher) {
+            File currentVersionDir = getStore(storeName).getCurrentVersionDir();
+            logger.info("Executing delta fetch of " + fetchUrl + " against " + currentVersionDir);
+            fetchDir = ((DeltaFileFetcher) fileFetcher).fetch(fetchUrl,
+                                                                   storeName,
+                                                                   currentVersionDir);
+            logger.info("Fetch complete.");
         } else {
             logger.info("Executing fetch of " + fetchUrl);
             fetchDir = fileFetcher.fetch(fetchUrl);
@@ -171,6 +195,20 @@ public class ReadOnlyStoreManagementServlet extends HttpServlet {
         store.rollback();
     }
 
+    private void doWarmUp(HttpServletRequest req, HttpServletResponse resp) throws IOException,
+            ServletException {
+        String storeName = getRequired(req, "store");
+        String dir = req.getParameter("dir");
+        ReadOnlyStorageEngine store = getStore(storeName);
+        if(!store.isWarmUpEnabled())
+            throw new ServletException("Warm-up is not enabled for store '" + storeName + "'.");
+        if(dir != null && !Utils.isReadableDir(dir))
+            throw new ServletException("Store directory '" + dir + "' is not a readable directory.");
+
+        store.warmUp(dir);
+        resp.getWriter().write("Warm-up completed.");
+    }
+
     private String getRequired(HttpServletRequest req, String name) throws ServletException {
         String val = req.getParameter(name);
         if(val == null)
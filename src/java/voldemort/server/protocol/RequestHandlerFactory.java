@@ -1,7 +1,10 @@
 package voldemort.server.protocol;
 
+import java.io.File;
+
 import voldemort.VoldemortException;
 import voldemort.client.protocol.RequestFormatType;
+import voldemort.server.PartitionCheckpointStore;
 import voldemort.server.StoreRepository;
 import voldemort.server.VoldemortConfig;
 import voldemort.server.VoldemortMetadata;
@@ -9,6 +12,7 @@ import voldemort.server.protocol.pb.ProtoBuffRequestHandler;
 import voldemort.server.protocol.vold.VoldemortNativeRequestHandler;
 import voldemort.server.socket.AdminServiceRequestHandler;
 import voldemort.store.ErrorCodeMapper;
+import voldemort.utils.IoThrottler;
 
 /**
  * A factory that gets the appropriate request handler for a given
@@ -22,13 +26,26 @@ public class RequestHandlerFactory {
     private final StoreRepository repository;
     private final VoldemortMetadata metadata;
     private final VoldemortConfig voldemortConfig;
+    private final IoThrottler backgroundThrottler;
 
     public RequestHandlerFactory(StoreRepository repository,
                                  VoldemortMetadata metadata,
                                  VoldemortConfig voldemortConfig) {
+        this(repository, metadata, voldemortConfig, null);
+    }
+
+    /**
+     * @param backgroundThrottler The throttler shared by all background I/O on
+     *        the node that admin streams also go through, or null for none
+     */
+    public RequestHandlerFactory(StoreRepository repository,
+                                 VoldemortMetadata metadata,
+                                 VoldemortConfig voldemortConfig,
+                                 IoThrottler backgroundThrottler) {
         this.repository = repository;
         this.metadata = metadata;
         this.voldemortConfig = voldemortConfig;
+        this.backgroundThrottler = backgroundThrottler;
     }
 
     public RequestHandler getRequestHandler(RequestFormatType type) {
@@ -43,7 +60,10 @@ public class RequestHandlerFactory {
                                                       metadata,
                                                       voldemortConfig.getMetadataDirectory(),
                                                       voldemortConfig.getStreamMaxReadBytesPerSec(),
-                                                      voldemortConfig.getStreamMaxWriteBytesPerSec());
+                                                      voldemortConfig.getStreamMaxWriteBytesPerSec(),
+                                                      voldemortConfig.getStreamPutBatchSize(),
+                                                      new PartitionCheckpointStore(new File(voldemortConfig.getMigrationCheckpointDirectory())),
+                                                      backgroundThrottler);
             default:
                 throw new VoldemortException("Unknown wire format " + type);
         }
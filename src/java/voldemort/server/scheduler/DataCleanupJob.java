@@ -16,12 +16,34 @@
 
 package voldemort.server.scheduler;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
+import voldemort.VoldemortException;
+import voldemort.annotations.jmx.JmxGetter;
+import voldemort.annotations.jmx.JmxManaged;
+import voldemort.routing.RoutingStrategy;
+import voldemort.server.PartitionCheckpointStore;
+import voldemort.store.PartitionAwareStorageEngine;
 import voldemort.store.StorageEngine;
+import voldemort.store.Store;
+import voldemort.store.TimeIndexedStorageEngine;
+import voldemort.utils.ByteArray;
 import voldemort.utils.ClosableIterator;
+import voldemort.utils.DaemonThreadFactory;
+import voldemort.utils.IoThrottler;
 import voldemort.utils.Pair;
 import voldemort.utils.Time;
 import voldemort.utils.Utils;
@@ -31,72 +53,368 @@ import voldemort.versioning.Versioned;
 /**
  * Expire old data
  * 
+ * An entry is deleted once it is older than the retention period of the store,
+ * or once the time-to-live it was written with has passed.
+ * 
+ * If the store keeps a time index the job only visits the keys in the expired
+ * buckets of the index, and stops after a fixed number of keys, so it can be
+ * run often to delete expired data a little at a time. Otherwise each run
+ * scans the whole store, one partition at a time if the engine knows the
+ * partitions of its keys, recording each partition finished so that a pass
+ * interrupted by a restart carries on where it stopped. The entries whose
+ * partition the engine does not know are scanned once, after the partitions.
+ * 
+ * A cleanup permit is held for each partition or batch of keys rather than for
+ * the whole store, so the cleanup of several stores interleaves. The store is
+ * read by a single thread; only the deletes of the expired entries it finds
+ * are run in parallel, by a pool of worker threads. Every entry read is
+ * charged to the throttler.
+ * 
  * @author jay
  * 
  */
+@JmxManaged(description = "Deletes the entries of a store older than its retention period.")
 public class DataCleanupJob<K, V> implements Runnable {
 
+    public static final int DEFAULT_MAX_KEYS_PER_RUN = 10000;
+
     private static final Logger logger = Logger.getLogger(DataCleanupJob.class);
 
+    /* Stands for the entries whose partition the engine does not know */
+    private static final int UNKNOWN_PARTITION = -1;
+
+    /* The number of keys read from the time index at a time */
+    private static final int INDEX_BATCH_SIZE = 100;
+
+    /* The number of expired entries handed to a worker at a time */
+    private static final int DELETE_BATCH_SIZE = 100;
+
     private final StorageEngine<K, V> store;
     private final Semaphore cleanupPermits;
     private final long maxAgeMs;
     private final Time time;
+    private final IoThrottler throttler;
+    private final int maxKeysPerRun;
+    private final int numThreads;
+    private final RoutingStrategy routingStrategy;
+    private final List<Integer> partitions;
+    private final PartitionCheckpointStore checkpoints;
+    private final Store<K, V> deleteStore;
+
+    private volatile boolean running;
+    private volatile int partitionsDone;
+    private volatile int partitionsTotal;
+    private volatile long lastRunStartMs;
+    private volatile long lastRunDurationMs;
+    private final AtomicLong entriesScanned;
+    private final AtomicLong entriesDeleted;
+    private final AtomicLong totalEntriesDeleted;
 
     public DataCleanupJob(StorageEngine<K, V> store,
                           Semaphore cleanupPermits,
                           long maxAgeMs,
                           Time time) {
+        this(store, cleanupPermits, maxAgeMs, time, null);
+    }
+
+    /**
+     * @param throttler The throttler to charge the bytes of each entry scanned
+     *        to, or null to run unthrottled
+     */
+    public DataCleanupJob(StorageEngine<K, V> store,
+                          Semaphore cleanupPermits,
+                          long maxAgeMs,
+                          Time time,
+                          IoThrottler throttler) {
+        this(store, cleanupPermits, maxAgeMs, time, throttler, DEFAULT_MAX_KEYS_PER_RUN);
+    }
+
+    /**
+     * @param throttler The throttler to charge the bytes of each entry scanned
+     *        to, or null to run unthrottled
+     * @param maxKeysPerRun The most keys from the time index to visit in one
+     *        run, if the store keeps one
+     */
+    public DataCleanupJob(StorageEngine<K, V> store,
+                          Semaphore cleanupPermits,
+                          long maxAgeMs,
+                          Time time,
+                          IoThrottler throttler,
+                          int maxKeysPerRun) {
+        this(store, cleanupPermits, maxAgeMs, time, throttler, maxKeysPerRun, 1, null, null, null);
+    }
+
+    public DataCleanupJob(StorageEngine<K, V> store,
+                          Semaphore cleanupPermits,
+                          long maxAgeMs,
+                          Time time,
+                          IoThrottler throttler,
+                          int maxKeysPerRun,
+                          int numThreads,
+                          RoutingStrategy routingStrategy,
+                          Collection<Integer> partitions,
+                          PartitionCheckpointStore checkpoints) {
+        this(store,
+             cleanupPermits,
+             maxAgeMs,
+             time,
+             throttler,
+             maxKeysPerRun,
+             numThreads,
+             routingStrategy,
+             partitions,
+             checkpoints,
+             null);
+    }
+
+    /**
+     * @param store The store to clean up
+     * @param cleanupPermits The permits shared by the cleanup of every store,
+     *        one of which is held for each partition or batch of keys
+     * @param maxAgeMs The age after which an entry is deleted
+     * @param time The time used to age entries
+     * @param throttler The throttler to charge the bytes of each entry scanned
+     *        to, or null to run unthrottled
+     * @param maxKeysPerRun The most keys from the time index to visit in one
+     *        run, if the store keeps one
+     * @param numThreads The number of threads deleting expired entries; the
+     *        store is always read by the calling thread
+     * @param routingStrategy The routing strategy of the store, used to scan
+     *        a partition aware engine one partition at a time, or null to scan
+     *        the whole store at once
+     * @param partitions The partitions to scan if a routing strategy is given
+     * @param checkpoints The store to record the partitions finished in, or
+     *        null to start each pass from the beginning
+     * @param deleteStore The store in front of the engine to delete expired
+     *        entries through, such as a cache that has to see the deletes, or
+     *        null to delete from the engine directly
+     */
+    public DataCleanupJob(StorageEngine<K, V> store,
+                          Semaphore cleanupPermits,
+                          long maxAgeMs,
+                          Time time,
+                          IoThrottler throttler,
+                          int maxKeysPerRun,
+                          int numThreads,
+                          RoutingStrategy routingStrategy,
+                          Collection<Integer> partitions,
+                          PartitionCheckpointStore checkpoints,
+                          Store<K, V> deleteStore) {
+        if(maxKeysPerRun < 1)
+            throw new IllegalArgumentException("maxKeysPerRun must be at least 1.");
+        if(numThreads < 1)
+            throw new IllegalArgumentException("numThreads must be at least 1.");
         this.store = Utils.notNull(store);
         this.cleanupPermits = Utils.notNull(cleanupPermits);
         this.maxAgeMs = maxAgeMs;
         this.time = time;
+        this.throttler = throttler;
+        this.maxKeysPerRun = maxKeysPerRun;
+        this.numThreads = numThreads;
+        this.routingStrategy = routingStrategy;
+        this.partitions = partitions == null ? null : new ArrayList<Integer>(partitions);
+        this.checkpoints = checkpoints;
+        this.deleteStore = deleteStore == null ? store : deleteStore;
+        this.entriesScanned = new AtomicLong(0);
+        this.entriesDeleted = new AtomicLong(0);
+        this.totalEntriesDeleted = new AtomicLong(0);
     }
 
+    @SuppressWarnings("unchecked")
     public void run() {
-        acquireCleanupPermit();
-        ClosableIterator<Pair<K, Versioned<V>>> iterator = null;
+        running = true;
+        lastRunStartMs = time.getMilliseconds();
+        entriesScanned.set(0);
+        entriesDeleted.set(0);
+        Deleter deleter = new Deleter();
         try {
-            logger.info("Starting data cleanup on store \"" + store.getName() + "\"...");
-            int deleted = 0;
-            long now = time.getMilliseconds();
-            iterator = store.entries();
+            if(store instanceof TimeIndexedStorageEngine
+               && ((TimeIndexedStorageEngine<K, V>) store).isTimeIndexEnabled())
+                runIncremental((TimeIndexedStorageEngine<K, V>) store, deleter);
+            else
+                runFullScan(deleter);
+        } catch(InterruptedException e) {
+            logger.info("Datacleanup job halted.");
+        } catch(Exception e) {
+            logger.error("Error in data cleanup job for store " + store.getName() + ": ", e);
+        } finally {
+            deleter.close();
+            lastRunDurationMs = time.getMilliseconds() - lastRunStartMs;
+            running = false;
+        }
+    }
+
+    /*
+     * Delete the expired versions of the keys in the expired buckets of the
+     * time index, which moves each key visited out of those buckets. The
+     * index buckets keys by when they expire, by age or time-to-live, so the
+     * buckets are read up to the time the run started.
+     */
+    private void runIncremental(TimeIndexedStorageEngine<K, V> indexed, Deleter deleter)
+            throws InterruptedException {
+        int visited = 0;
+        long now = lastRunStartMs;
+        long cutoff = now - maxAgeMs;
+        int reindexed = 0;
+        while(visited < maxKeysPerRun) {
+            long deletedBefore = entriesDeleted.get();
+            List<K> stale = new ArrayList<K>();
+            acquireCleanupPermit();
             try {
-                while(iterator.hasNext()) {
-                    // check if we have been interrupted
-                    if(Thread.currentThread().isInterrupted()) {
-                        logger.info("Datacleanup job halted.");
-                        return;
-                    }
-
-                    Pair<K, Versioned<V>> keyAndVal = iterator.next();
-                    VectorClock clock = (VectorClock) keyAndVal.getSecond().getVersion();
-                    if(now - clock.getTimestamp() > maxAgeMs) {
-                        store.delete(keyAndVal.getFirst(), clock);
-                        deleted++;
-                        if(deleted % 10000 == 0)
-                            logger.debug("Deleted item " + deleted);
-                    }
+                List<K> keys = indexed.getKeysExpiredBy(now, Math.min(INDEX_BATCH_SIZE,
+                                                                      maxKeysPerRun - visited));
+                if(keys.isEmpty())
+                    break;
+                for(K key: keys) {
+                    checkInterrupted();
+                    boolean expired = false;
+                    for(Versioned<V> versioned: indexed.get(key))
+                        expired |= scan(key, versioned, cutoff, deleter);
+                    if(!expired)
+                        stale.add(key);
+                }
+                visited += keys.size();
+                // the index has to reflect the deletes before it is read again
+                deleter.flush();
+                // keys with nothing expired are out of date in the index
+                if(!stale.isEmpty()) {
+                    indexed.reindex(stale, now);
+                    reindexed += stale.size();
                 }
-            } catch(RuntimeException e) {
-                iterator.close();
-                logger.error("Error during data cleanup", e);
-                throw e;
             } finally {
+                this.cleanupPermits.release();
+            }
+            // keys that can't be deleted stay in the index, don't spin on them
+            if(entriesDeleted.get() == deletedBefore && stale.isEmpty())
+                break;
+        }
+        if(entriesDeleted.get() > 0)
+            logger.info("Data cleanup on store \"" + store.getName() + "\" deleted "
+                        + entriesDeleted.get() + " items from the time index.");
+        if(reindexed > 0)
+            logger.info("Data cleanup on store \"" + store.getName() + "\" reindexed "
+                        + reindexed + " keys the time index had out of date.");
+    }
+
+    private void runFullScan(Deleter deleter) throws InterruptedException {
+        logger.info("Starting data cleanup on store \"" + store.getName() + "\"...");
+        long cutoff = time.getMilliseconds() - maxAgeMs;
+        if(isPartitioned()) {
+            Set<Integer> done = checkpoints == null ? Collections.<Integer> emptySet()
+                                                   : checkpoints.getCompletedPartitions(store.getName());
+            if(!done.isEmpty())
+                logger.info("Resuming data cleanup on store \"" + store.getName() + "\", "
+                            + done.size() + " partitions were already cleaned up.");
+            partitionsTotal = partitions.size();
+            partitionsDone = 0;
+            for(int partition: partitions) {
+                if(!done.contains(partition)) {
+                    scanPartition(partition, cutoff, deleter);
+                    if(checkpoints != null)
+                        checkpoints.markCompleted(store.getName(), partition);
+                }
+                partitionsDone++;
+            }
+            scanPartition(UNKNOWN_PARTITION, cutoff, deleter);
+            if(checkpoints != null)
+                checkpoints.clear(store.getName());
+        } else {
+            partitionsTotal = 1;
+            partitionsDone = 0;
+            scanPartition(null, cutoff, deleter);
+            partitionsDone = 1;
+        }
+        logger.info("Data cleanup on store \"" + store.getName() + "\" is complete; "
+                    + entriesDeleted.get() + " items deleted.");
+    }
+
+    private boolean isPartitioned() {
+        return routingStrategy != null && partitions != null
+               && store instanceof PartitionAwareStorageEngine
+               && ((PartitionAwareStorageEngine<K, V>) store).isPartitionAware();
+    }
+
+    /*
+     * Scan the entries whose master partition is the given one, those whose
+     * partition is not known if it is UNKNOWN_PARTITION, or every entry if it
+     * is null, holding a cleanup permit
+     */
+    private void scanPartition(Integer partition, long cutoff, Deleter deleter)
+            throws InterruptedException {
+        acquireCleanupPermit();
+        ClosableIterator<Pair<K, Versioned<V>>> iterator = null;
+        try {
+            if(partition == null)
+                iterator = store.entries();
+            else if(partition == UNKNOWN_PARTITION)
+                iterator = ((PartitionAwareStorageEngine<K, V>) store).entries(Collections.<Integer> emptySet(),
+                                                                              true);
+            else
+                iterator = ((PartitionAwareStorageEngine<K, V>) store).entries(Collections.singleton(partition),
+                                                                              false);
+            while(iterator.hasNext()) {
+                checkInterrupted();
+                Pair<K, Versioned<V>> keyAndVal = iterator.next();
+                scan(keyAndVal.getFirst(), keyAndVal.getSecond(), cutoff, deleter);
+            }
+            deleter.flush();
+        } catch(RuntimeException e) {
+            logger.error("Error during data cleanup", e);
+            throw e;
+        } finally {
+            try {
                 if(iterator != null)
                     iterator.close();
+            } finally {
+                this.cleanupPermits.release();
             }
-            logger.info("Data cleanup on store \"" + store.getName() + "\" is complete; " + deleted
-                        + " items deleted.");
-        } catch(Exception e) {
-            logger.error("Error in data cleanup job for store " + store.getName() + ": ", e);
-        } finally {
-            if(iterator != null)
-                iterator.close();
-            this.cleanupPermits.release();
         }
     }
 
+    /*
+     * Delete the version if it has expired, returning true if it has
+     */
+    private boolean scan(K key, Versioned<V> versioned, long cutoff, Deleter deleter)
+            throws InterruptedException {
+        VectorClock clock = (VectorClock) versioned.getVersion();
+        if(throttler != null)
+            throttler.maybeThrottle(sizeInBytes(key) + sizeInBytes(versioned.getValue())
+                                    + clock.sizeInBytes());
+        entriesScanned.incrementAndGet();
+        if(clock.getTimestamp() < cutoff || clock.isExpired(lastRunStartMs)) {
+            deleter.delete(key, clock);
+            return true;
+        }
+        return false;
+    }
+
+    private void checkInterrupted() throws InterruptedException {
+        if(Thread.currentThread().isInterrupted())
+            throw new InterruptedException();
+    }
+
+    private void deleteEntry(K key, VectorClock clock) {
+        if(deleteStore.delete(key, clock)) {
+            long deleted = entriesDeleted.incrementAndGet();
+            totalEntriesDeleted.incrementAndGet();
+            if(deleted % 10000 == 0)
+                logger.debug("Deleted item " + deleted);
+        }
+    }
+
+    /*
+     * The size of a key or value if it is raw bytes, which it is for every
+     * store on a server
+     */
+    private static int sizeInBytes(Object o) {
+        if(o instanceof ByteArray)
+            return ((ByteArray) o).length();
+        else if(o instanceof byte[])
+            return ((byte[]) o).length;
+        else
+            return 0;
+    }
+
     private void acquireCleanupPermit() {
         logger.debug("Acquiring lock to perform data cleanup on \"" + store.getName() + "\".");
         try {
@@ -107,4 +425,108 @@ public class DataCleanupJob<K, V> implements Runnable {
         }
     }
 
+    @JmxGetter(name = "running", description = "Whether a cleanup is in progress.")
+    public boolean isRunning() {
+        return running;
+    }
+
+    @JmxGetter(name = "progress", description = "The partitions the current or last full scan has finished.")
+    public String getProgress() {
+        return partitionsDone + " of " + partitionsTotal + " partitions";
+    }
+
+    @JmxGetter(name = "entriesScanned", description = "The entries read by the current or last run.")
+    public long getEntriesScanned() {
+        return entriesScanned.get();
+    }
+
+    @JmxGetter(name = "entriesDeleted", description = "The entries deleted by the current or last run.")
+    public long getEntriesDeleted() {
+        return entriesDeleted.get();
+    }
+
+    @JmxGetter(name = "totalEntriesDeleted", description = "The entries deleted since startup.")
+    public long getTotalEntriesDeleted() {
+        return totalEntriesDeleted.get();
+    }
+
+    @JmxGetter(name = "lastRunStart", description = "When the current or last run started.")
+    public String getLastRunStart() {
+        return lastRunStartMs == 0 ? "never" : new Date(lastRunStartMs).toString();
+    }
+
+    @JmxGetter(name = "lastRunDurationMs", description = "How long the last run took.")
+    public long getLastRunDurationMs() {
+        return lastRunDurationMs;
+    }
+
+    /*
+     * Deletes expired entries, in batches handed to a pool of threads unless
+     * there is only one thread, in which case the caller deletes them
+     */
+    private class Deleter {
+
+        private final ExecutorService executor;
+        private final List<Future<?>> pending;
+        private List<Pair<K, VectorClock>> batch;
+
+        Deleter() {
+            this.executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads,
+                                                                          new DaemonThreadFactory("data-cleanup-"))
+                                          : null;
+            this.pending = new ArrayList<Future<?>>();
+            this.batch = new ArrayList<Pair<K, VectorClock>>(DELETE_BATCH_SIZE);
+        }
+
+        void delete(K key, VectorClock clock) throws InterruptedException {
+            if(executor == null) {
+                deleteEntry(key, clock);
+                return;
+            }
+            batch.add(Pair.create(key, clock));
+            if(batch.size() >= DELETE_BATCH_SIZE)
+                submit();
+        }
+
+        private void submit() throws InterruptedException {
+            final List<Pair<K, VectorClock>> toDelete = batch;
+            batch = new ArrayList<Pair<K, VectorClock>>(DELETE_BATCH_SIZE);
+            pending.add(executor.submit(new Runnable() {
+
+                public void run() {
+                    for(Pair<K, VectorClock> entry: toDelete)
+                        deleteEntry(entry.getFirst(), entry.getSecond());
+                }
+            }));
+            // don't let the scan get far ahead of the deletes
+            while(pending.size() > 2 * numThreads)
+                waitFor(pending.remove(0));
+        }
+
+        /*
+         * Wait until every entry given so far has been deleted
+         */
+        void flush() throws InterruptedException {
+            if(executor == null)
+                return;
+            if(!batch.isEmpty())
+                submit();
+            while(!pending.isEmpty())
+                waitFor(pending.remove(0));
+        }
+
+        private void waitFor(Future<?> future) throws InterruptedException {
+            try {
+                future.get();
+            } catch(ExecutionException e) {
+                throw new VoldemortException("Data cleanup delete failed.", e.getCause());
+            }
+        }
+
+        void close() {
+            if(executor != null)
+                executor.shutdownNow();
+        }
+    }
+
 }
@@ -68,6 +68,7 @@ public class RebalancingJob implements Runnable {
                 if(needsRebalancing(keyAndVal.getFirst())) {
                     remote.put(keyAndVal.getFirst(), keyAndVal.getSecond());
                     engine.delete(keyAndVal.getFirst(), keyAndVal.getSecond().getVersion());
+                    storeRepository.invalidateCached(engine.getName(), keyAndVal.getFirst());
                     rebalanced++;
                 }
             }
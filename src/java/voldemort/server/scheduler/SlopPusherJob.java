@@ -16,17 +16,39 @@
 
 package voldemort.server.scheduler;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
+import voldemort.annotations.jmx.JmxGetter;
+import voldemort.annotations.jmx.JmxManaged;
+import voldemort.cluster.Cluster;
+import voldemort.cluster.Node;
 import voldemort.server.StoreRepository;
-import voldemort.store.StorageEngine;
 import voldemort.store.Store;
 import voldemort.store.slop.Slop;
 import voldemort.store.slop.Slop.Operation;
+import voldemort.store.slop.SlopStorageEngine;
 import voldemort.utils.ByteArray;
 import voldemort.utils.ClosableIterator;
+import voldemort.utils.DaemonThreadFactory;
+import voldemort.utils.IoThrottler;
 import voldemort.utils.Pair;
+import voldemort.utils.SystemTime;
+import voldemort.utils.Time;
 import voldemort.versioning.ObsoleteVersionException;
 import voldemort.versioning.Versioned;
 
@@ -34,17 +56,90 @@ import voldemort.versioning.Versioned;
  * A task which goes through the slop table and attempts to push out all the
  * slop to its rightful owner node
  * 
+ * The slop is kept by destination node, and only the slop for destinations
+ * that are not backed off is read. Each destination's slop is pushed by its
+ * own thread, in batches whose slop records are deleted once the batch is
+ * delivered. A destination that fails stops receiving slop for this run and is
+ * backed off, exponentially up to a limit, so that one dead node's backlog
+ * doesn't hold up the healthy ones. If a cluster is given the failed node is
+ * also marked unavailable, and nodes other parts of the server have marked
+ * unavailable are skipped.
+ * 
  * @author jay
  * 
  */
+@JmxManaged(description = "Pushes hinted handoff slop to the nodes it belongs to.")
 public class SlopPusherJob implements Runnable {
 
+    public static final int DEFAULT_NUM_THREADS = 4;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 5 * 60 * 1000;
+
     private static final Logger logger = Logger.getLogger(SlopPusherJob.class.getName());
 
+    /* The first backoff after a failure, doubled for each further failure */
+    private static final long INITIAL_BACKOFF_MS = 1000;
+
+    /* The most slop to hold in memory for one destination in a run */
+    private static final int MAX_SLOPS_PER_DESTINATION = 100000;
+
     private final StoreRepository storeRepo;
+    private final Cluster cluster;
+    private final IoThrottler throttler;
+    private final Time time;
+    private final int numThreads;
+    private final int batchSize;
+    private final long maxBackoffMs;
+    private final ConcurrentMap<Integer, Destination> destinations;
+    private final AtomicLong slopsPushed;
 
     public SlopPusherJob(StoreRepository storeRepo) {
+        this(storeRepo, null);
+    }
+
+    /**
+     * @param throttler The throttler to charge the bytes of each slop pushed
+     *        to, or null to run unthrottled
+     */
+    public SlopPusherJob(StoreRepository storeRepo, IoThrottler throttler) {
+        this(storeRepo,
+             null,
+             throttler,
+             SystemTime.INSTANCE,
+             DEFAULT_NUM_THREADS,
+             DEFAULT_BATCH_SIZE,
+             DEFAULT_MAX_BACKOFF_MS);
+    }
+
+    /**
+     * @param storeRepo The repository holding the slop store and node stores
+     * @param cluster The cluster whose node statuses to follow, or null
+     * @param throttler The throttler to charge the bytes of each slop pushed
+     *        to, or null to run unthrottled
+     * @param time The time used to back off failed destinations
+     * @param numThreads The most destinations to push to at once
+     * @param batchSize The number of slops pushed before their records are
+     *        deleted
+     * @param maxBackoffMs The longest a failed destination is backed off
+     */
+    public SlopPusherJob(StoreRepository storeRepo,
+                         Cluster cluster,
+                         IoThrottler throttler,
+                         Time time,
+                         int numThreads,
+                         int batchSize,
+                         long maxBackoffMs) {
+        if(numThreads < 1 || batchSize < 1)
+            throw new IllegalArgumentException("numThreads and batchSize must be at least 1.");
         this.storeRepo = storeRepo;
+        this.cluster = cluster;
+        this.throttler = throttler;
+        this.time = time;
+        this.numThreads = numThreads;
+        this.batchSize = batchSize;
+        this.maxBackoffMs = maxBackoffMs;
+        this.destinations = new ConcurrentHashMap<Integer, Destination>();
+        this.slopsPushed = new AtomicLong(0);
     }
 
     /**
@@ -53,57 +148,256 @@ public class SlopPusherJob implements Runnable {
      */
     public void run() {
         logger.debug("Pushing slop...");
-        int slopsPushed = 0;
-        int attemptedPushes = 0;
-        ClosableIterator<Pair<ByteArray, Versioned<Slop>>> iterator = null;
-        try {
-            StorageEngine<ByteArray, Slop> slopStore = storeRepo.getSlopStore();
-            iterator = slopStore.entries();
-            while(iterator.hasNext()) {
-                if(Thread.interrupted())
-                    throw new InterruptedException("Task cancelled!");
-                attemptedPushes++;
-
+        SlopStorageEngine slopStore = storeRepo.getSlopStore();
+        Map<Integer, List<Pair<ByteArray, Versioned<Slop>>>> groups = new HashMap<Integer, List<Pair<ByteArray, Versioned<Slop>>>>();
+        long now = time.getMilliseconds();
+        for(int nodeId: slopStore.getDestinations()) {
+            // only the slop for destinations we will push to is read
+            if(slopStore.getSize(nodeId) == 0 || !isReady(getDestination(nodeId), now))
+                continue;
+            List<Pair<ByteArray, Versioned<Slop>>> group = new ArrayList<Pair<ByteArray, Versioned<Slop>>>();
+            ClosableIterator<Pair<ByteArray, Versioned<Slop>>> iterator = null;
+            try {
+                iterator = slopStore.entries(nodeId);
+                while(iterator.hasNext() && group.size() < MAX_SLOPS_PER_DESTINATION) {
+                    if(Thread.interrupted())
+                        throw new InterruptedException("Task cancelled!");
+                    group.add(iterator.next());
+                }
+            } catch(Exception e) {
+                logger.error(e);
+                return;
+            } finally {
                 try {
-                    Pair<ByteArray, Versioned<Slop>> keyAndVal = iterator.next();
-                    Versioned<Slop> versioned = keyAndVal.getSecond();
-                    Slop slop = versioned.getValue();
-                    Store<ByteArray, byte[]> store = storeRepo.getNodeStore(slop.getStoreName(),
-                                                                            slop.getNodeId());
-                    try {
-                        if(slop.getOperation() == Operation.PUT)
-                            store.put(keyAndVal.getFirst(),
-                                      new Versioned<byte[]>(slop.getValue(), versioned.getVersion()));
-                        else if(slop.getOperation() == Operation.DELETE)
-                            store.delete(keyAndVal.getFirst(), versioned.getVersion());
-                        else
-                            logger.error("Unknown slop operation: " + slop.getOperation());
-                        slopStore.delete(slop.makeKey(), versioned.getVersion());
-                        slopsPushed++;
-                    } catch(ObsoleteVersionException e) {
-                        // okay it is old, just delete it
-                        slopStore.delete(slop.makeKey(), versioned.getVersion());
-                    }
+                    if(iterator != null)
+                        iterator.close();
                 } catch(Exception e) {
-                    logger.error(e);
+                    logger.error("Failed to close iterator.", e);
                 }
             }
-        } catch(Exception e) {
-            logger.error(e);
-        } finally {
+            if(!group.isEmpty())
+                groups.put(nodeId, group);
+        }
+
+        int attemptedPushes = 0;
+        int pushed = 0;
+        if(!groups.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads,
+                                                                             groups.size()),
+                                                                    new DaemonThreadFactory("slop-pusher-"));
             try {
-                if(iterator != null)
-                    iterator.close();
-            } catch(Exception e) {
-                logger.error("Failed to close iterator.", e);
+                List<Future<Integer>> results = new ArrayList<Future<Integer>>(groups.size());
+                for(final Map.Entry<Integer, List<Pair<ByteArray, Versioned<Slop>>>> group: groups.entrySet()) {
+                    attemptedPushes += group.getValue().size();
+                    results.add(executor.submit(new Callable<Integer>() {
+
+                        public Integer call() {
+                            return push(getDestination(group.getKey()), group.getValue());
+                        }
+                    }));
+                }
+                for(Future<Integer> result: results)
+                    pushed += result.get();
+            } catch(InterruptedException e) {
+                logger.info("Slop pusher interrupted.");
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            } catch(ExecutionException e) {
+                logger.error("Slop push failed:", e.getCause());
+            } finally {
+                executor.shutdown();
             }
         }
 
         // typically not useful to hear that 0 items were attempted so log as
         // debug
         logger.log(attemptedPushes > 0 ? Level.INFO : Level.DEBUG,
-                   "Attempted " + attemptedPushes + " hinted handoff pushes of which "
-                           + slopsPushed + " succeeded.");
+                   "Attempted " + attemptedPushes + " hinted handoff pushes to " + groups.size()
+                           + " nodes of which " + pushed + " succeeded.");
+    }
+
+    /*
+     * Push the slop for one destination in batches, stopping at the first
+     * failure, and return the number delivered
+     */
+    private int push(Destination destination,
+                     List<Pair<ByteArray, Versioned<Slop>>> slops) {
+        SlopStorageEngine slopStore = storeRepo.getSlopStore();
+        int pushed = 0;
+        for(int start = 0; start < slops.size(); start += batchSize) {
+            List<Pair<ByteArray, Versioned<Slop>>> batch = slops.subList(start,
+                                                                        Math.min(slops.size(),
+                                                                                 start + batchSize));
+            List<Pair<ByteArray, Versioned<Slop>>> delivered = new ArrayList<Pair<ByteArray, Versioned<Slop>>>(batch.size());
+            try {
+                for(Pair<ByteArray, Versioned<Slop>> keyAndVal: batch) {
+                    if(Thread.currentThread().isInterrupted())
+                        return pushed + delete(slopStore, destination, delivered);
+                    if(pushOne(destination.nodeId, keyAndVal))
+                        delivered.add(keyAndVal);
+                }
+            } catch(Exception e) {
+                logger.warn("Pushing slop to node " + destination.nodeId + " failed, backing off: "
+                            + e.getMessage());
+                pushed += delete(slopStore, destination, delivered);
+                destination.failed(time.getMilliseconds(), maxBackoffMs);
+                markUnavailable(destination.nodeId);
+                return pushed;
+            }
+            pushed += delete(slopStore, destination, delivered);
+        }
+        destination.succeeded();
+        return pushed;
+    }
+
+    /*
+     * Apply one slop to its node, returning false if it can't be delivered
+     * and should be left in the slop store
+     */
+    private boolean pushOne(int nodeId, Pair<ByteArray, Versioned<Slop>> keyAndVal) {
+        Versioned<Slop> versioned = keyAndVal.getSecond();
+        Slop slop = versioned.getValue();
+        Store<ByteArray, byte[]> store = storeRepo.getNodeStore(slop.getStoreName(), nodeId);
+        if(store == null) {
+            logger.error("No store '" + slop.getStoreName() + "' for node " + nodeId
+                         + ", cannot push slop.");
+            return false;
+        }
+        if(throttler != null)
+            throttler.maybeThrottle(slop.getKey().length()
+                                    + (slop.getValue() == null ? 0 : slop.getValue().length));
+        try {
+            if(slop.getOperation() == Operation.PUT) {
+                store.put(slop.getKey(),
+                          new Versioned<byte[]>(slop.getValue(), versioned.getVersion()));
+            } else if(slop.getOperation() == Operation.DELETE) {
+                store.delete(slop.getKey(), versioned.getVersion());
+            } else {
+                logger.error("Unknown slop operation: " + slop.getOperation());
+                return false;
+            }
+        } catch(ObsoleteVersionException e) {
+            // okay it is old, just delete it
+        }
+        return true;
     }
 
-}
\ No newline at end of file
+    private int delete(SlopStorageEngine slopStore,
+                       Destination destination,
+                       List<Pair<ByteArray, Versioned<Slop>>> delivered) {
+        int deleted = 0;
+        for(Pair<ByteArray, Versioned<Slop>> keyAndVal: delivered) {
+            try {
+                slopStore.delete(destination.nodeId,
+                                 keyAndVal.getFirst(),
+                                 keyAndVal.getSecond().getVersion());
+                deleted++;
+            } catch(Exception e) {
+                logger.error("Failed to delete delivered slop.", e);
+            }
+        }
+        slopsPushed.addAndGet(deleted);
+        return deleted;
+    }
+
+    private Destination getDestination(int nodeId) {
+        Destination destination = destinations.get(nodeId);
+        if(destination == null) {
+            destinations.putIfAbsent(nodeId, new Destination(nodeId));
+            destination = destinations.get(nodeId);
+        }
+        return destination;
+    }
+
+    private boolean isReady(Destination destination, long now) {
+        if(!destination.isReady(now))
+            return false;
+        Node node = getNode(destination.nodeId);
+        return node == null || !node.getStatus().isUnavailable(destination.getBackoffMs());
+    }
+
+    private void markUnavailable(int nodeId) {
+        Node node = getNode(nodeId);
+        if(node != null)
+            node.getStatus().setUnavailable();
+    }
+
+    private Node getNode(int nodeId) {
+        if(cluster == null)
+            return null;
+        try {
+            return cluster.getNodeById(nodeId);
+        } catch(RuntimeException e) {
+            return null;
+        }
+    }
+
+    @JmxGetter(name = "backlog", description = "The slop waiting to be pushed.")
+    public long getBacklog() {
+        return storeRepo.getSlopStore().getSize();
+    }
+
+    @JmxGetter(name = "backlogByDestination", description = "The slop waiting to be pushed to each node.")
+    public String getBacklogByDestination() {
+        return getBacklogs().toString();
+    }
+
+    /**
+     * @return The slop waiting to be pushed to each node
+     */
+    public Map<Integer, Long> getBacklogs() {
+        SlopStorageEngine slopStore = storeRepo.getSlopStore();
+        Map<Integer, Long> backlogs = new TreeMap<Integer, Long>();
+        for(int nodeId: slopStore.getDestinations())
+            backlogs.put(nodeId, slopStore.getSize(nodeId));
+        return backlogs;
+    }
+
+    @JmxGetter(name = "backedOffDestinations", description = "The nodes not being pushed to after failures.")
+    public String getBackedOffDestinations() {
+        List<Integer> backedOff = new ArrayList<Integer>();
+        long now = time.getMilliseconds();
+        for(Destination destination: destinations.values())
+            if(!destination.isReady(now))
+                backedOff.add(destination.nodeId);
+        return backedOff.toString();
+    }
+
+    @JmxGetter(name = "slopsPushed", description = "The number of slops delivered since startup.")
+    public long getSlopsPushed() {
+        return slopsPushed.get();
+    }
+
+    private static class Destination {
+
+        final int nodeId;
+        private int failures;
+        private long backoffMs;
+        private long retryAtMs;
+
+        Destination(int nodeId) {
+            this.nodeId = nodeId;
+            this.backoffMs = INITIAL_BACKOFF_MS;
+        }
+
+        synchronized boolean isReady(long now) {
+            return now >= retryAtMs;
+        }
+
+        synchronized long getBackoffMs() {
+            return backoffMs;
+        }
+
+        synchronized void failed(long now, long maxBackoffMs) {
+            backoffMs = Math.min(maxBackoffMs, INITIAL_BACKOFF_MS << Math.min(failures, 30));
+            failures++;
+            retryAtMs = now + backoffMs;
+        }
+
+        synchronized void succeeded() {
+            failures = 0;
+            backoffMs = INITIAL_BACKOFF_MS;
+            retryAtMs = 0;
+        }
+    }
+}
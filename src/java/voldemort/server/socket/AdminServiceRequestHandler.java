@@ -21,20 +21,28 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
 import voldemort.VoldemortException;
+import voldemort.client.protocol.FramedEntryReader;
+import voldemort.client.protocol.FramedEntryWriter;
 import voldemort.cluster.Cluster;
 import voldemort.routing.RoutingStrategy;
 import voldemort.routing.RoutingStrategyFactory;
 import voldemort.serialization.VoldemortOpCode;
+import voldemort.server.PartitionCheckpointStore;
 import voldemort.server.StoreRepository;
 import voldemort.server.UnableUpdateMetadataException;
 import voldemort.server.VoldemortMetadata;
 import voldemort.server.protocol.RequestHandler;
+import voldemort.store.BulkLoadStorageEngine;
 import voldemort.store.ErrorCodeMapper;
+import voldemort.store.PartitionAwareStorageEngine;
 import voldemort.store.StorageEngine;
 import voldemort.store.StoreDefinition;
 import voldemort.store.metadata.MetadataStore;
@@ -43,6 +51,7 @@ import voldemort.utils.ByteUtils;
 import voldemort.utils.ClosableIterator;
 import voldemort.utils.IoThrottler;
 import voldemort.utils.Pair;
+import voldemort.versioning.ObsoleteVersionException;
 import voldemort.versioning.VectorClock;
 import voldemort.versioning.Versioned;
 import voldemort.xml.ClusterMapper;
@@ -58,6 +67,9 @@ public class AdminServiceRequestHandler implements RequestHandler {
 
     private final Logger logger = Logger.getLogger(AdminServiceRequestHandler.class);
 
+    /* The most bytes of keys and values to buffer before putting them */
+    private static final long MAX_PUT_BATCH_BYTES = 8 * 1024 * 1024;
+
     private final StoreRepository storeRepository;
     private final VoldemortMetadata metadata;
     private final MetadataStore metadataStore;
@@ -65,19 +77,38 @@ public class AdminServiceRequestHandler implements RequestHandler {
     private final ErrorCodeMapper errorMapper;
     private final int streamMaxBytesReadPerSec;
     private final int streamMaxBytesWritesPerSec;
+    private final int streamPutBatchSize;
+    private final PartitionCheckpointStore checkpoints;
+    private final IoThrottler backgroundThrottler;
 
     public AdminServiceRequestHandler(ErrorCodeMapper errorMapper,
                                       StoreRepository storeRepository,
                                       VoldemortMetadata metadata,
                                       String metadataDir,
                                       int streamMaxBytesReadPerSec,
-                                      int streamMaxBytesWritesPerSec) {
+                                      int streamMaxBytesWritesPerSec,
+                                      int streamPutBatchSize,
+                                      PartitionCheckpointStore checkpoints,
+                                      IoThrottler backgroundThrottler) {
         this.storeRepository = storeRepository;
         this.metadata = metadata;
         this.errorMapper = errorMapper;
         this.metadataStore = MetadataStore.readFromDirectory(new File(metadataDir));
         this.streamMaxBytesReadPerSec = streamMaxBytesReadPerSec;
         this.streamMaxBytesWritesPerSec = streamMaxBytesWritesPerSec;
+        this.streamPutBatchSize = streamPutBatchSize;
+        this.checkpoints = checkpoints;
+        this.backgroundThrottler = backgroundThrottler;
+    }
+
+    /*
+     * Charge the bytes to both the stream's own limit and the node-wide budget
+     * for background I/O
+     */
+    private void throttle(IoThrottler streamThrottler, int bytes) {
+        streamThrottler.maybeThrottle(bytes);
+        if(backgroundThrottler != null)
+            backgroundThrottler.maybeThrottle(bytes);
     }
 
     public void handleRequest(DataInputStream inputStream, DataOutputStream outputStream)
@@ -95,6 +126,16 @@ public class AdminServiceRequestHandler implements RequestHandler {
                 if(engine != null)
                     handleUpdateEntries(engine, inputStream, outputStream);
                 break;
+            case VoldemortOpCode.GET_PARTITION_AS_FRAMED_STREAM_OP_CODE:
+                engine = readStorageEngine(inputStream, outputStream);
+                if(engine != null)
+                    handleGetPartitionsAsFramedStream(engine, inputStream, outputStream);
+                break;
+            case VoldemortOpCode.PUT_ENTRIES_AS_FRAMED_STREAM_OP_CODE:
+                engine = readStorageEngine(inputStream, outputStream);
+                if(engine != null)
+                    handleUpdateFramedEntries(engine, inputStream, outputStream);
+                break;
             case VoldemortOpCode.UPDATE_METADATA_OP_CODE:
                 String keyString = inputStream.readUTF();
                 handleUpdateMetadataRequest(keyString, inputStream, outputStream);
@@ -108,6 +149,31 @@ public class AdminServiceRequestHandler implements RequestHandler {
                 byte[] key = readKey(inputStream);
                 handleRedirectGetRequest(engine, key, outputStream);
                 break;
+            case VoldemortOpCode.REDIRECT_GET_ALL_OP_CODE:
+                engine = readStorageEngine(inputStream, outputStream);
+                int numKeys = inputStream.readInt();
+                List<ByteArray> keys = new ArrayList<ByteArray>(numKeys);
+                for(int i = 0; i < numKeys; i++)
+                    keys.add(new ByteArray(readKey(inputStream)));
+                if(engine != null)
+                    handleRedirectGetAllRequest(engine, keys, outputStream);
+                break;
+            case VoldemortOpCode.GET_MIGRATION_CHECKPOINT_OP_CODE:
+                handleGetMigrationCheckpoint(inputStream, outputStream);
+                break;
+            case VoldemortOpCode.UPDATE_MIGRATION_CHECKPOINT_OP_CODE:
+                handleUpdateMigrationCheckpoint(inputStream, outputStream);
+                break;
+            case VoldemortOpCode.CLEAR_MIGRATION_CHECKPOINT_OP_CODE:
+                handleClearMigrationCheckpoint(inputStream, outputStream);
+                break;
+            case VoldemortOpCode.GET_PARTITION_AWARE_OP_CODE:
+                engine = readStorageEngine(inputStream, outputStream);
+                if(engine != null) {
+                    outputStream.writeShort(0);
+                    outputStream.writeBoolean(isPartitionAware(engine));
+                }
+                break;
             default:
                 throw new IOException("Unknown op code : " + opCode + " at Node:"
                                       + metadata.getIdentityNode().getId());
@@ -146,6 +212,9 @@ public class AdminServiceRequestHandler implements RequestHandler {
      * <p>
      * <strong> Reads entries unless see a keyLength value of -1</strong>.
      * <p>
+     * Entries are put in batches, in bulk if the engine supports it. Entries
+     * whose version is obsolete are skipped.
+     * <p>
      * Possible usecases
      * <ul>
      * <li>data grandfathering</li>
@@ -162,6 +231,7 @@ public class AdminServiceRequestHandler implements RequestHandler {
         IoThrottler throttler = new IoThrottler(streamMaxBytesWritesPerSec);
 
         try {
+            PutBatch batch = new PutBatch(engine);
             int keySize = inputStream.readInt();
             while(keySize != -1) {
                 byte[] key = new byte[keySize];
@@ -177,14 +247,13 @@ public class AdminServiceRequestHandler implements RequestHandler {
                                                                                         value.length),
                                                                          clock);
 
-                engine.put(new ByteArray(key), versionedValue);
+                batch.add(Pair.create(new ByteArray(key), versionedValue), key.length + value.length);
 
-                if(throttler != null) {
-                    throttler.maybeThrottle(key.length + clock.sizeInBytes() + value.length);
-                }
+                throttle(throttler, key.length + clock.sizeInBytes() + value.length);
 
                 keySize = inputStream.readInt(); // read next KeySize
             }
+            batch.finish();
             // all puts are handled.
             outputStream.writeShort(0);
         } catch(VoldemortException e) {
@@ -192,6 +261,94 @@ public class AdminServiceRequestHandler implements RequestHandler {
         }
     }
 
+    /**
+     * Like {@link #handleUpdateEntries} but reads the entries in frames, as
+     * written by a {@link FramedEntryWriter}, checking each frame's checksum
+     * and decompressing it if needed.
+     */
+    private void handleUpdateFramedEntries(StorageEngine<ByteArray, byte[]> engine,
+                                           DataInputStream inputStream,
+                                           DataOutputStream outputStream) throws IOException {
+        IoThrottler throttler = new IoThrottler(streamMaxBytesWritesPerSec);
+        FramedEntryReader reader = new FramedEntryReader(inputStream);
+        try {
+            PutBatch batch = new PutBatch(engine);
+            List<Pair<ByteArray, Versioned<byte[]>>> frame = reader.readFrame();
+            while(frame != null) {
+                for(Pair<ByteArray, Versioned<byte[]>> entry: frame) {
+                    int size = entry.getFirst().length()
+                               + ((VectorClock) entry.getSecond().getVersion()).sizeInBytes()
+                               + entry.getSecond().getValue().length;
+                    batch.add(entry, size);
+                    throttle(throttler, size);
+                }
+                frame = reader.readFrame();
+            }
+            batch.finish();
+            outputStream.writeShort(0);
+        } catch(VoldemortException e) {
+            writeException(outputStream, e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Buffers streamed entries and puts them in batches, in bulk where the
+     * engine supports it, counting the entries skipped as obsolete. The keys
+     * written are invalidated in the store's cache, if it has one.
+     */
+    private class PutBatch {
+
+        private final StorageEngine<ByteArray, byte[]> engine;
+        private final List<Pair<ByteArray, Versioned<byte[]>>> entries;
+        private long bytes;
+        private int obsolete;
+
+        PutBatch(StorageEngine<ByteArray, byte[]> engine) {
+            this.engine = engine;
+            this.entries = new ArrayList<Pair<ByteArray, Versioned<byte[]>>>(streamPutBatchSize);
+        }
+
+        void add(Pair<ByteArray, Versioned<byte[]>> entry, int size) {
+            entries.add(entry);
+            bytes += size;
+            if(entries.size() >= streamPutBatchSize || bytes >= MAX_PUT_BATCH_BYTES)
+                put();
+        }
+
+        void finish() {
+            put();
+            if(obsolete > 0)
+                logger.debug("Skipped " + obsolete + " obsolete entries streamed to store "
+                             + engine.getName() + ".");
+        }
+
+        private void put() {
+            if(entries.isEmpty())
+                return;
+            try {
+                if(engine instanceof BulkLoadStorageEngine) {
+                    obsolete += ((BulkLoadStorageEngine<ByteArray, byte[]>) engine).bulkPut(entries);
+                } else {
+                    for(Pair<ByteArray, Versioned<byte[]>> entry: entries) {
+                        try {
+                            engine.put(entry.getFirst(), entry.getSecond());
+                        } catch(ObsoleteVersionException e) {
+                            obsolete++;
+                        }
+                    }
+                }
+            } finally {
+                // a failure may still have written some of the entries
+                for(Pair<ByteArray, Versioned<byte[]>> entry: entries)
+                    storeRepository.invalidateCached(engine.getName(), entry.getFirst());
+            }
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
     /**
      * provides a way to read batch entries from a storageEngine. expects an
      * integer list of partitions requested. writes back to dataStream in format
@@ -222,15 +379,12 @@ public class AdminServiceRequestHandler implements RequestHandler {
             partitionList[i] = inputStream.readInt();
         }
 
-        RoutingStrategy routingStrategy = new RoutingStrategyFactory(metadata.getCurrentCluster()).getRoutingStrategy(metadata.getStoreDef(engine.getName()));
+        RoutingStrategy routingStrategy = getRoutingStrategy(engine);
         IoThrottler throttler = new IoThrottler(streamMaxBytesReadPerSec);
         try {
-            /**
-             * TODO HIGH: This way to iterate over all keys is not optimal
-             * stores should be made routing aware to fix this problem
-             */
-            ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> iterator = engine.entries();
-
+            ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> iterator = partitionEntries(engine,
+                                                                                             partitionList,
+                                                                                             routingStrategy);
             while(iterator.hasNext()) {
                 Pair<ByteArray, Versioned<byte[]>> entry = iterator.next();
 
@@ -249,9 +403,7 @@ public class AdminServiceRequestHandler implements RequestHandler {
                     outputStream.write(clock);
                     outputStream.write(value);
 
-                    if(throttler != null) {
-                        throttler.maybeThrottle(key.length + clock.length + value.length);
-                    }
+                    throttle(throttler, key.length + clock.length + value.length);
                 }
             }
             // close the iterator here
@@ -267,6 +419,70 @@ public class AdminServiceRequestHandler implements RequestHandler {
         }
     }
 
+    /**
+     * Like {@link #handleGetPartitionsAsStream} but writes the entries many to
+     * a frame with a {@link FramedEntryWriter}, each frame preceded by a
+     * status code. The partition list is followed by a boolean saying whether
+     * to compress the frames.
+     */
+    private void handleGetPartitionsAsFramedStream(StorageEngine<ByteArray, byte[]> engine,
+                                                   DataInputStream inputStream,
+                                                   DataOutputStream outputStream)
+            throws IOException {
+        int partitionSize = inputStream.readInt();
+        int[] partitionList = new int[partitionSize];
+        for(int i = 0; i < partitionSize; i++)
+            partitionList[i] = inputStream.readInt();
+        boolean compress = inputStream.readBoolean();
+
+        RoutingStrategy routingStrategy = getRoutingStrategy(engine);
+        IoThrottler throttler = new IoThrottler(streamMaxBytesReadPerSec);
+        FramedEntryWriter writer = new FramedEntryWriter(outputStream,
+                                                         compress,
+                                                         true,
+                                                         FramedEntryWriter.DEFAULT_MAX_FRAME_BYTES);
+        ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> iterator = null;
+        try {
+            iterator = partitionEntries(engine, partitionList, routingStrategy);
+            while(iterator.hasNext()) {
+                Pair<ByteArray, Versioned<byte[]>> entry = iterator.next();
+                if(validPartition(entry.getFirst().get(), partitionList, routingStrategy))
+                    throttle(throttler, writer.write(entry.getFirst(), entry.getSecond()));
+            }
+            writer.finish();
+        } catch(VoldemortException e) {
+            writeException(outputStream, e);
+        } finally {
+            if(iterator != null)
+                iterator.close();
+            writer.close();
+        }
+    }
+
+    private RoutingStrategy getRoutingStrategy(StorageEngine<ByteArray, byte[]> engine) {
+        return new RoutingStrategyFactory(metadata.getCurrentCluster()).getRoutingStrategy(metadata.getStoreDef(engine.getName()));
+    }
+
+    /*
+     * The entries to stream for the given partitions, which for a partition
+     * aware engine need only be those of the partitions' master partitions
+     */
+    private ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> partitionEntries(StorageEngine<ByteArray, byte[]> engine,
+                                                                                  int[] partitionList,
+                                                                                  RoutingStrategy routingStrategy) {
+        if(isPartitionAware(engine))
+            return ((PartitionAwareStorageEngine<ByteArray, byte[]>) engine).entries(getMasterPartitions(partitionList,
+                                                                                                         routingStrategy),
+                                                                                     true);
+        else
+            return engine.entries();
+    }
+
+    private boolean isPartitionAware(StorageEngine<ByteArray, byte[]> engine) {
+        return engine instanceof PartitionAwareStorageEngine
+               && ((PartitionAwareStorageEngine<ByteArray, byte[]>) engine).isPartitionAware();
+    }
+
     private void handleUpdateMetadataRequest(String keyString,
                                              DataInputStream inputStream,
                                              DataOutputStream outputStream) throws IOException {
@@ -381,6 +597,70 @@ public class AdminServiceRequestHandler implements RequestHandler {
 
     }
 
+    /**
+     * Writes back the partitions of a store recorded as copied to this node
+     * from a donor node by the given migration, as
+     * <code>count(int32) partition(int32)...</code>. Partitions recorded by
+     * any other migration are forgotten.
+     */
+    private void handleGetMigrationCheckpoint(DataInputStream inputStream,
+                                              DataOutputStream outputStream) throws IOException {
+        String storeName = inputStream.readUTF();
+        int donorNodeId = inputStream.readInt();
+        String migrationId = inputStream.readUTF();
+        Set<Integer> partitions;
+        try {
+            partitions = checkpoints.getCompletedPartitions(getCheckpointKey(storeName, donorNodeId),
+                                                            migrationId);
+        } catch(VoldemortException e) {
+            writeException(outputStream, e);
+            return;
+        }
+        outputStream.writeShort(0);
+        outputStream.writeInt(partitions.size());
+        for(int partition: partitions)
+            outputStream.writeInt(partition);
+    }
+
+    /**
+     * Records a partition of a store as copied to this node from a donor node
+     * by the given migration
+     */
+    private void handleUpdateMigrationCheckpoint(DataInputStream inputStream,
+                                                 DataOutputStream outputStream) throws IOException {
+        String storeName = inputStream.readUTF();
+        int donorNodeId = inputStream.readInt();
+        String migrationId = inputStream.readUTF();
+        int partition = inputStream.readInt();
+        try {
+            checkpoints.markCompleted(getCheckpointKey(storeName, donorNodeId),
+                                      migrationId,
+                                      partition);
+            outputStream.writeShort(0);
+        } catch(VoldemortException e) {
+            writeException(outputStream, e);
+        }
+    }
+
+    /**
+     * Forgets the partitions of a store copied to this node from a donor node
+     */
+    private void handleClearMigrationCheckpoint(DataInputStream inputStream,
+                                                DataOutputStream outputStream) throws IOException {
+        String storeName = inputStream.readUTF();
+        int donorNodeId = inputStream.readInt();
+        try {
+            checkpoints.clear(getCheckpointKey(storeName, donorNodeId));
+            outputStream.writeShort(0);
+        } catch(VoldemortException e) {
+            writeException(outputStream, e);
+        }
+    }
+
+    private static String getCheckpointKey(String storeName, int donorNodeId) {
+        return storeName + "." + donorNodeId;
+    }
+
     /**
      * By pass store level consistency checks needed to handle redirect gets
      * while rebalancing
@@ -411,12 +691,62 @@ public class AdminServiceRequestHandler implements RequestHandler {
         }
     }
 
+    /*
+     * Writes the versions of each key, in the order the keys were requested
+     */
+    private void handleRedirectGetAllRequest(StorageEngine<ByteArray, byte[]> engine,
+                                             List<ByteArray> keys,
+                                             DataOutputStream outputStream) throws IOException {
+        Map<ByteArray, List<Versioned<byte[]>>> results;
+        try {
+            results = engine.getAll(keys);
+            outputStream.writeShort(0);
+        } catch(VoldemortException e) {
+            writeException(outputStream, e);
+            return;
+        }
+        for(ByteArray key: keys) {
+            List<Versioned<byte[]>> values = results.get(key);
+            if(values == null) {
+                outputStream.writeInt(0);
+                continue;
+            }
+            outputStream.writeInt(values.size());
+            for(Versioned<byte[]> v: values) {
+                byte[] clock = ((VectorClock) v.getVersion()).toBytes();
+                byte[] value = v.getValue();
+                outputStream.writeInt(clock.length + value.length);
+                outputStream.write(clock);
+                outputStream.write(value);
+            }
+        }
+    }
+
     private void writeException(DataOutputStream stream, VoldemortException e) throws IOException {
         short code = errorMapper.getCode(e);
         stream.writeShort(code);
         stream.writeUTF(e.getMessage());
     }
 
+    /*
+     * The master partitions of the keys that are replicated to any of the
+     * given partitions
+     */
+    private List<Integer> getMasterPartitions(int[] partitionList, RoutingStrategy routingStrategy) {
+        List<Integer> masters = new ArrayList<Integer>();
+        int numPartitions = metadata.getCurrentCluster().getNumberOfPartitions();
+        for(int master = 0; master < numPartitions; master++) {
+            List<Integer> replicas = routingStrategy.getReplicatingPartitionList(master);
+            for(int p: partitionList) {
+                if(replicas.contains(p)) {
+                    masters.add(master);
+                    break;
+                }
+            }
+        }
+        return masters;
+    }
+
     private boolean validPartition(byte[] key, int[] partitionList, RoutingStrategy routingStrategy) {
         List<Integer> keyPartitions = routingStrategy.getPartitionList(key);
         for(int p: partitionList) {
@@ -24,9 +24,13 @@ import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.lang.management.ManagementFactory;
 
 import org.apache.log4j.Logger;
@@ -40,26 +44,37 @@ import voldemort.cluster.Node;
 import voldemort.serialization.ByteArraySerializer;
 import voldemort.serialization.SlopSerializer;
 import voldemort.server.AbstractService;
+import voldemort.server.PartitionCheckpointStore;
 import voldemort.server.ServiceType;
 import voldemort.server.StoreRepository;
 import voldemort.server.VoldemortConfig;
 import voldemort.server.VoldemortMetadata;
 import voldemort.server.scheduler.DataCleanupJob;
 import voldemort.server.scheduler.SchedulerService;
+import voldemort.server.scheduler.SlopPusherJob;
+import voldemort.store.PartitionAwareStorageEngine;
 import voldemort.store.StorageConfiguration;
 import voldemort.store.StorageEngine;
 import voldemort.store.Store;
 import voldemort.store.StoreDefinition;
+import voldemort.store.TimeIndexedStorageEngine;
+import voldemort.store.cache.CachingStore;
 import voldemort.store.logging.LoggingStore;
+import voldemort.store.memory.BoundedCacheStorageEngine;
 import voldemort.store.metadata.MetadataStore;
+import voldemort.store.readonly.ReadOnlyStorageConfiguration;
 import voldemort.store.routed.RoutedStore;
 import voldemort.store.serialized.SerializingStorageEngine;
 import voldemort.store.slop.Slop;
+import voldemort.store.slop.SlopStorageEngine;
 import voldemort.store.socket.SocketPool;
 import voldemort.store.socket.SocketStore;
 import voldemort.store.stats.StatTrackingStore;
+import voldemort.store.versioned.ExpiringStore;
 import voldemort.utils.ByteArray;
 import voldemort.utils.ConfigurationException;
+import voldemort.utils.DaemonThreadFactory;
+import voldemort.utils.IoThrottler;
 import voldemort.utils.ReflectUtils;
 import voldemort.utils.SystemTime;
 import voldemort.utils.Time;
@@ -84,21 +99,47 @@ public class StorageService extends AbstractService {
     private final SchedulerService scheduler;
     private final VoldemortMetadata metadata;
     private final Semaphore cleanupPermits;
+    private final PartitionCheckpointStore retentionCheckpoints;
     private final SocketPool socketPool;
     private final ConcurrentMap<String, StorageConfiguration> storageConfigs;
     private final ClientThreadPool clientThreadPool;
+    private final IoThrottler backgroundThrottler;
+    private final ExecutorService expiredDeleter;
 
     public StorageService(StoreRepository storeRepository,
                           VoldemortMetadata metadata,
                           SchedulerService scheduler,
                           VoldemortConfig config) {
+        this(storeRepository, metadata, scheduler, config, null);
+    }
+
+    /**
+     * @param backgroundThrottler The throttler shared by all background I/O on
+     *        the node that retention cleanup goes through, or null for none
+     */
+    public StorageService(StoreRepository storeRepository,
+                          VoldemortMetadata metadata,
+                          SchedulerService scheduler,
+                          VoldemortConfig config,
+                          IoThrottler backgroundThrottler) {
         super(ServiceType.STORAGE);
+        this.backgroundThrottler = backgroundThrottler;
         this.voldemortConfig = config;
         this.scheduler = scheduler;
         this.storeRepository = storeRepository;
         this.metadata = metadata;
-        this.cleanupPermits = new Semaphore(1);
+        this.cleanupPermits = new Semaphore(config.getNumCleanupPermits());
+        this.retentionCheckpoints = new PartitionCheckpointStore(new File(config.getRetentionCheckpointDirectory()));
         this.storageConfigs = new ConcurrentHashMap<String, StorageConfiguration>();
+        // deletes of expired values are skipped rather than queued without
+        // bound, the next read or cleanup finds them again
+        this.expiredDeleter = new ThreadPoolExecutor(1,
+                                                     1,
+                                                     0,
+                                                     TimeUnit.MILLISECONDS,
+                                                     new ArrayBlockingQueue<Runnable>(config.getExpiredDeleteQueueSize()),
+                                                     new DaemonThreadFactory("expired-value-deleter-"),
+                                                     new ThreadPoolExecutor.DiscardPolicy());
         this.clientThreadPool = new ClientThreadPool(config.getClientMaxThreads(),
                                                      config.getClientThreadIdleMs(),
                                                      config.getClientMaxQueuedRequests());
@@ -136,12 +177,29 @@ public class StorageService extends AbstractService {
 
         /* Register slop stores */
         if(voldemortConfig.isSlopEnabled()) {
-            StorageEngine<ByteArray, byte[]> slopEngine = getStorageEngine("slop",
-                                                                           voldemortConfig.getSlopStoreType());
-            registerEngine(slopEngine);
-            storeRepository.setSlopStore(new SerializingStorageEngine<ByteArray, Slop>(slopEngine,
-                                                                                       new ByteArraySerializer(),
-                                                                                       new SlopSerializer()));
+            StorageConfiguration slopConfig = getStorageConfiguration(SlopStorageEngine.NAME,
+                                                                      voldemortConfig.getSlopStoreType());
+            SlopStorageEngine slopStore = new SlopStorageEngine(slopConfig);
+            List<Integer> nodeIds = new ArrayList<Integer>();
+            for(Node node: metadata.getCurrentCluster().getNodes())
+                nodeIds.add(node.getId());
+            slopStore.openDestinations(nodeIds);
+
+            // pick up slop stored before it was split by destination
+            StorageEngine<ByteArray, byte[]> legacy = slopConfig.getStore(SlopStorageEngine.NAME);
+            slopStore.migrate(new SerializingStorageEngine<ByteArray, Slop>(legacy,
+                                                                            new ByteArraySerializer(),
+                                                                            new SlopSerializer()));
+            legacy.close();
+            storeRepository.setSlopStore(slopStore);
+            if(voldemortConfig.isJmxEnabled()) {
+                MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = JmxUtils.createObjectName(JmxUtils.getPackageName(SlopStorageEngine.class),
+                                                            slopStore.getName());
+                if(mbeanServer.isRegistered(name))
+                    JmxUtils.unregisterMbean(mbeanServer, name);
+                JmxUtils.registerMbean(mbeanServer, JmxUtils.createModelMBean(slopStore), name);
+            }
         }
         List<StoreDefinition> storeDefs = new ArrayList<StoreDefinition>(this.metadata.getStoreDefs()
                                                                                       .values());
@@ -150,19 +208,42 @@ public class StorageService extends AbstractService {
             openStore(def);
         }
         logger.info("All stores initialized.");
+
+        if(voldemortConfig.isSlopEnabled() && voldemortConfig.isServerRoutingEnabled())
+            scheduleSlopPusherJob();
     }
 
     public void openStore(StoreDefinition storeDef) {
         logger.info("Opening store '" + storeDef.getName() + "' (" + storeDef.getType() + ").");
         StorageEngine<ByteArray, byte[]> engine = getStorageEngine(storeDef.getName(),
                                                                    storeDef.getType());
-        registerEngine(engine);
+        if(engine instanceof PartitionAwareStorageEngine)
+            ((PartitionAwareStorageEngine<ByteArray, byte[]>) engine).setRoutingStrategy(metadata.getRoutingStrategy(storeDef.getName()));
+
+        // the index has to be built before the store takes writes
+        boolean timeIndexed = storeDef.hasRetentionPeriod()
+                              && voldemortConfig.isRetentionIndexEnabled()
+                              && engine instanceof TimeIndexedStorageEngine;
+        if(timeIndexed)
+            ((TimeIndexedStorageEngine<ByteArray, byte[]>) engine).enableTimeIndex(voldemortConfig.getRetentionIndexBucketMs(),
+                                                                                   storeDef.getRetentionDays()
+                                                                                           * Time.MS_PER_DAY);
+        else if(engine instanceof TimeIndexedStorageEngine)
+            ((TimeIndexedStorageEngine<ByteArray, byte[]>) engine).disableTimeIndex();
+        registerEngine(engine, storeDef);
 
         if(voldemortConfig.isServerRoutingEnabled())
             registerNodeStores(storeDef, metadata.getCurrentCluster(), voldemortConfig.getNodeId());
 
-        if(storeDef.hasRetentionPeriod())
-            scheduleCleanupJob(storeDef, engine);
+        if(storeDef.hasRetentionPeriod()) {
+            if(timeIndexed)
+                scheduleIncrementalCleanupJob(storeDef, engine);
+            else
+                scheduleCleanupJob(storeDef, engine);
+        } else if(voldemortConfig.isExpiredCleanupEnabled()
+                  && !ReadOnlyStorageConfiguration.TYPE_NAME.equals(storeDef.getType())) {
+            scheduleExpiredCleanupJob(storeDef, engine);
+        }
     }
 
     /**
@@ -171,11 +252,43 @@ public class StorageService extends AbstractService {
      * @param engine Register the storage engine
      */
     public void registerEngine(StorageEngine<ByteArray, byte[]> engine) {
+        registerEngine(engine, null);
+    }
+
+    /**
+     * Register the given engine with the storage repository, wrapping it as
+     * the store definition asks
+     * 
+     * @param engine Register the storage engine
+     * @param storeDef The definition of the store, or null if it has none
+     */
+    public void registerEngine(StorageEngine<ByteArray, byte[]> engine, StoreDefinition storeDef) {
         Cluster cluster = this.metadata.getCurrentCluster();
         storeRepository.addStorageEngine(engine);
 
         /* Now add any store wrappers that are enabled */
         Store<ByteArray, byte[]> store = engine;
+        if(storeDef != null && storeDef.hasCache()) {
+            BoundedCacheStorageEngine cache = new BoundedCacheStorageEngine(engine.getName(),
+                                                                            storeDef.getCacheBytes(),
+                                                                            voldemortConfig.getBoundedCacheSegments());
+            CachingStore<ByteArray, byte[]> cachingStore = new CachingStore<ByteArray, byte[]>(store,
+                                                                                               cache);
+            storeRepository.addCache(cachingStore);
+            store = cachingStore;
+            if(voldemortConfig.isJmxEnabled()) {
+                MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = JmxUtils.createObjectName(JmxUtils.getPackageName(CachingStore.class),
+                                                            engine.getName());
+                if(mbeanServer.isRegistered(name))
+                    JmxUtils.unregisterMbean(mbeanServer, name);
+                JmxUtils.registerMbean(mbeanServer, JmxUtils.createModelMBean(cache), name);
+            }
+        }
+        store = new ExpiringStore<ByteArray, byte[]>(store,
+                                                     expiredDeleter,
+                                                     SystemTime.INSTANCE,
+                                                     voldemortConfig.isTtlEnabled());
         if(voldemortConfig.isVerboseLoggingEnabled())
             store = new LoggingStore<ByteArray, byte[]>(store,
                                                         cluster.getName(),
@@ -226,6 +339,98 @@ public class StorageService extends AbstractService {
         this.storeRepository.addRoutedStore(routedStore);
     }
 
+    /**
+     * Schedule the job that pushes slop to the nodes it was meant for
+     */
+    private void scheduleSlopPusherJob() {
+        SlopPusherJob pusher = new SlopPusherJob(storeRepository,
+                                                 metadata.getCurrentCluster(),
+                                                 backgroundThrottler,
+                                                 SystemTime.INSTANCE,
+                                                 voldemortConfig.getPusherThreads(),
+                                                 voldemortConfig.getPusherBatchSize(),
+                                                 voldemortConfig.getPusherMaxBackoffMs());
+        long pollMs = voldemortConfig.getPusherPollMs();
+        logger.info("Scheduling slop pusher job every " + pollMs + " ms.");
+        this.scheduler.schedule(pusher, new Date(System.currentTimeMillis() + pollMs), pollMs);
+        if(voldemortConfig.isJmxEnabled()) {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = JmxUtils.createObjectName(JmxUtils.getPackageName(SlopPusherJob.class),
+                                                        "slop-pusher");
+            if(mbeanServer.isRegistered(name))
+                JmxUtils.unregisterMbean(mbeanServer, name);
+            JmxUtils.registerMbean(mbeanServer, JmxUtils.createModelMBean(pusher), name);
+        }
+    }
+
+    private void scheduleIncrementalCleanupJob(StoreDefinition storeDef,
+                                               StorageEngine<ByteArray, byte[]> engine) {
+        long intervalMs = voldemortConfig.getRetentionCleanupIntervalMs();
+        logger.info("Scheduling incremental data retention cleanup job for store '"
+                    + storeDef.getName() + "' every " + intervalMs + " ms.");
+        DataCleanupJob<ByteArray, byte[]> cleanupJob = createCleanupJob(storeDef, engine);
+        this.scheduler.schedule(cleanupJob,
+                                new Date(System.currentTimeMillis() + intervalMs),
+                                intervalMs);
+    }
+
+    /**
+     * Schedule a job that deletes the values whose time-to-live has passed
+     * from a store with no retention period
+     * 
+     * @param storeDef The store definition
+     * @param engine The storage engine to do cleanup on
+     */
+    private void scheduleExpiredCleanupJob(StoreDefinition storeDef,
+                                           StorageEngine<ByteArray, byte[]> engine) {
+        long intervalMs = voldemortConfig.getExpiredCleanupIntervalMs();
+        logger.info("Scheduling expired value cleanup job for store '" + storeDef.getName()
+                    + "' every " + intervalMs + " ms.");
+        DataCleanupJob<ByteArray, byte[]> cleanupJob = createCleanupJob(storeDef,
+                                                                        engine,
+                                                                        Long.MAX_VALUE);
+        this.scheduler.schedule(cleanupJob,
+                                new Date(System.currentTimeMillis() + intervalMs),
+                                intervalMs);
+    }
+
+    private DataCleanupJob<ByteArray, byte[]> createCleanupJob(StoreDefinition storeDef,
+                                                               StorageEngine<ByteArray, byte[]> engine) {
+        return createCleanupJob(storeDef, engine, storeDef.getRetentionDays() * Time.MS_PER_DAY);
+    }
+
+    /*
+     * Create a cleanup job that deletes entries older than the given age, as
+     * well as those whose time-to-live has passed
+     */
+    private DataCleanupJob<ByteArray, byte[]> createCleanupJob(StoreDefinition storeDef,
+                                                               StorageEngine<ByteArray, byte[]> engine,
+                                                               long maxAgeMs) {
+        List<Integer> partitions = new ArrayList<Integer>();
+        for(int p = 0; p < metadata.getCurrentCluster().getNumberOfPartitions(); p++)
+            partitions.add(p);
+        DataCleanupJob<ByteArray, byte[]> cleanupJob = new DataCleanupJob<ByteArray, byte[]>(engine,
+                                                                                             cleanupPermits,
+                                                                                             maxAgeMs,
+                                                                                             SystemTime.INSTANCE,
+                                                                                             backgroundThrottler,
+                                                                                             voldemortConfig.getRetentionCleanupMaxKeys(),
+                                                                                             voldemortConfig.getRetentionCleanupThreads(),
+                                                                                             metadata.getRoutingStrategy(storeDef.getName()),
+                                                                                             partitions,
+                                                                                             retentionCheckpoints,
+                                                                                             storeRepository.getCache(storeDef.getName()));
+        if(voldemortConfig.isJmxEnabled()) {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = JmxUtils.createObjectName(JmxUtils.getPackageName(DataCleanupJob.class),
+                                                        storeDef.getName());
+            if(mbeanServer.isRegistered(name))
+                JmxUtils.unregisterMbean(mbeanServer, name);
+            JmxUtils.registerMbean(mbeanServer, JmxUtils.createModelMBean(cleanupJob), name);
+        }
+        return cleanupJob;
+    }
+
     /**
      * Schedule a data retention cleanup job for the given store
      * 
@@ -246,21 +451,21 @@ public class StorageService extends AbstractService {
         Date startTime = cal.getTime();
         logger.info("Scheduling data retention cleanup job for store '" + storeDef.getName()
                     + "' at " + startTime + ".");
-        Runnable cleanupJob = new DataCleanupJob<ByteArray, byte[]>(engine,
-                                                                    cleanupPermits,
-                                                                    storeDef.getRetentionDays()
-                                                                            * Time.MS_PER_DAY,
-                                                                    SystemTime.INSTANCE);
+        Runnable cleanupJob = createCleanupJob(storeDef, engine);
         this.scheduler.schedule(cleanupJob, startTime, Time.MS_PER_DAY);
     }
 
     private StorageEngine<ByteArray, byte[]> getStorageEngine(String name, String type) {
+        return getStorageConfiguration(name, type).getStore(name);
+    }
+
+    private StorageConfiguration getStorageConfiguration(String name, String type) {
         StorageConfiguration config = storageConfigs.get(type);
         if(config == null)
             throw new ConfigurationException("Attempt to open store " + name + " but " + type
                                              + " storage engine of type " + type
                                              + " has not been enabled.");
-        return config.getStore(name);
+        return config;
     }
 
     @Override
@@ -271,6 +476,7 @@ public class StorageService extends AbstractService {
          */
 
         Exception lastException = null;
+        this.expiredDeleter.shutdownNow();
         logger.info("Closing all stores.");
         /* This will also close the node stores including local stores */
         for(Store<ByteArray, byte[]> store: this.storeRepository.getAllRoutedStores()) {
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.server.throttle;
+
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import voldemort.annotations.jmx.JmxGetter;
+import voldemort.annotations.jmx.JmxManaged;
+import voldemort.annotations.jmx.JmxSetter;
+import voldemort.server.AbstractService;
+import voldemort.server.ServiceType;
+import voldemort.server.StoreRepository;
+import voldemort.server.scheduler.SchedulerService;
+import voldemort.store.Store;
+import voldemort.store.stats.RequestCounter;
+import voldemort.store.stats.StatTrackingStore;
+import voldemort.store.stats.Tracked;
+import voldemort.utils.ByteArray;
+import voldemort.utils.IoThrottler;
+
+/**
+ * Holds the one {@link IoThrottler} that all background I/O on the node (admin
+ * streams, slop pushing, retention cleanup and read-only fetches) shares, so
+ * that together they stay within a single budget.
+ * 
+ * The budget adapts to how the node is serving its clients. Every interval the
+ * average latency of the gets, puts and deletes recorded by the
+ * {@link StatTrackingStore}s since the last interval is compared with a
+ * target: while it is above the target the rate is halved, and while it is
+ * below the rate grows back in fixed steps, always staying between the
+ * configured minimum and maximum.
+ */
+@JmxManaged(description = "Shares and adapts one I/O rate among all the background work on the node.")
+public class IoThrottlingService extends AbstractService {
+
+    private static final Logger logger = Logger.getLogger(IoThrottlingService.class);
+
+    /* The number of steps in which the rate grows back from the min to the max */
+    private static final int INCREASE_STEPS = 10;
+
+    private static final Tracked[] FOREGROUND_OPERATIONS = { Tracked.GET, Tracked.GET_ALL,
+            Tracked.PUT, Tracked.DELETE };
+
+    private final StoreRepository storeRepository;
+    private final SchedulerService scheduler;
+    private final IoThrottler throttler;
+    private final long adjustIntervalMs;
+    private volatile long minBytesPerSec;
+    private volatile long maxBytesPerSec;
+    private volatile double targetLatencyMs;
+    private volatile boolean adaptive;
+    private volatile double observedLatencyMs;
+    private Map<RequestCounter, Sample> lastSamples;
+
+    /**
+     * @param storeRepository The stores whose latency to follow
+     * @param scheduler The scheduler to run the adjustments on
+     * @param minBytesPerSec The lowest rate to throttle to
+     * @param maxBytesPerSec The highest rate to allow
+     * @param targetLatencyMs The average foreground latency to stay under
+     * @param adjustIntervalMs How often to adjust the rate
+     * @param adaptive If false the rate stays at the maximum until enabled
+     */
+    public IoThrottlingService(StoreRepository storeRepository,
+                               SchedulerService scheduler,
+                               long minBytesPerSec,
+                               long maxBytesPerSec,
+                               double targetLatencyMs,
+                               long adjustIntervalMs,
+                               boolean adaptive) {
+        super(ServiceType.THROTTLING);
+        if(minBytesPerSec <= 0 || maxBytesPerSec < minBytesPerSec)
+            throw new IllegalArgumentException("Invalid background I/O rates, min = "
+                                               + minBytesPerSec + ", max = " + maxBytesPerSec
+                                               + ".");
+        this.storeRepository = storeRepository;
+        this.scheduler = scheduler;
+        this.minBytesPerSec = minBytesPerSec;
+        this.maxBytesPerSec = maxBytesPerSec;
+        this.targetLatencyMs = targetLatencyMs;
+        this.adjustIntervalMs = adjustIntervalMs;
+        this.adaptive = adaptive;
+        this.observedLatencyMs = -1;
+        this.throttler = new IoThrottler(maxBytesPerSec);
+        this.lastSamples = new IdentityHashMap<RequestCounter, Sample>();
+    }
+
+    @Override
+    protected void startInner() {
+        scheduler.schedule(new Runnable() {
+
+            public void run() {
+                if(isStarted() && adaptive)
+                    adjust();
+            }
+        }, new Date(System.currentTimeMillis() + adjustIntervalMs), adjustIntervalMs);
+    }
+
+    @Override
+    protected void stopInner() {}
+
+    /**
+     * @return The throttler all background I/O should go through
+     */
+    public IoThrottler getThrottler() {
+        return throttler;
+    }
+
+    /**
+     * Measure the foreground latency since the last adjustment and change the
+     * rate accordingly
+     */
+    public synchronized void adjust() {
+        double latencyMs = sampleLatencyMs();
+        observedLatencyMs = latencyMs;
+        adjust(latencyMs);
+    }
+
+    /**
+     * Change the rate given the foreground latency observed, or a negative
+     * value if there were no foreground requests
+     */
+    synchronized void adjust(double latencyMs) {
+        long current = throttler.getMaxBytesPerSecond();
+        long updated;
+        if(latencyMs > targetLatencyMs)
+            updated = Math.max(minBytesPerSec, current / 2);
+        else
+            updated = Math.min(maxBytesPerSec,
+                               current + Math.max(1, (maxBytesPerSec - minBytesPerSec)
+                                                     / INCREASE_STEPS));
+        if(updated != current) {
+            if(logger.isDebugEnabled())
+                logger.debug("Foreground latency is " + latencyMs
+                             + " ms, changing background I/O rate from " + current + " to "
+                             + updated + " bytes/sec.");
+            throttler.setMaxBytesPerSecond(updated);
+        }
+    }
+
+    /*
+     * The average latency of the foreground requests completed since the last
+     * sample. Counters only cover a window, so a count lower than last time
+     * means the window rolled over and everything in it is new.
+     */
+    private double sampleLatencyMs() {
+        Map<RequestCounter, Sample> samples = new IdentityHashMap<RequestCounter, Sample>();
+        long count = 0;
+        double totalMs = 0;
+        for(Store<ByteArray, byte[]> store: storeRepository.getAllLocalStores()) {
+            if(!(store instanceof StatTrackingStore<?, ?>))
+                continue;
+            Map<Tracked, RequestCounter> counters = ((StatTrackingStore<?, ?>) store).getCounters();
+            for(Tracked op: FOREGROUND_OPERATIONS) {
+                RequestCounter counter = counters.get(op);
+                if(counter == null)
+                    continue;
+                Sample sample = new Sample(counter.getCount(), counter.getAverageTimeInMs()
+                                                               * counter.getCount());
+                Sample last = lastSamples.get(counter);
+                if(last == null || sample.count < last.count) {
+                    count += sample.count;
+                    totalMs += sample.totalMs;
+                } else {
+                    count += sample.count - last.count;
+                    totalMs += Math.max(0, sample.totalMs - last.totalMs);
+                }
+                samples.put(counter, sample);
+            }
+        }
+        lastSamples = samples;
+        return count > 0 ? totalMs / count : -1;
+    }
+
+    @JmxGetter(name = "currentBytesPerSec", description = "The rate background I/O is currently throttled to.")
+    public long getCurrentBytesPerSec() {
+        return throttler.getMaxBytesPerSecond();
+    }
+
+    @JmxGetter(name = "maxBytesPerSec", description = "The highest rate background I/O may use.")
+    public long getMaxBytesPerSec() {
+        return maxBytesPerSec;
+    }
+
+    @JmxSetter(name = "maxBytesPerSec", description = "The highest rate background I/O may use.")
+    public synchronized void setMaxBytesPerSec(long maxBytesPerSec) {
+        if(maxBytesPerSec < minBytesPerSec)
+            throw new IllegalArgumentException("The maximum rate cannot be less than the minimum.");
+        this.maxBytesPerSec = maxBytesPerSec;
+        if(!adaptive || throttler.getMaxBytesPerSecond() > maxBytesPerSec)
+            throttler.setMaxBytesPerSecond(maxBytesPerSec);
+    }
+
+    @JmxGetter(name = "minBytesPerSec", description = "The lowest rate background I/O is throttled to.")
+    public long getMinBytesPerSec() {
+        return minBytesPerSec;
+    }
+
+    @JmxSetter(name = "minBytesPerSec", description = "The lowest rate background I/O is throttled to.")
+    public synchronized void setMinBytesPerSec(long minBytesPerSec) {
+        if(minBytesPerSec <= 0 || minBytesPerSec > maxBytesPerSec)
+            throw new IllegalArgumentException("The minimum rate must be positive and no more than the maximum.");
+        this.minBytesPerSec = minBytesPerSec;
+        if(throttler.getMaxBytesPerSecond() < minBytesPerSec)
+            throttler.setMaxBytesPerSecond(minBytesPerSec);
+    }
+
+    @JmxGetter(name = "targetLatencyMs", description = "The average foreground latency above which background I/O is slowed down.")
+    public double getTargetLatencyMs() {
+        return targetLatencyMs;
+    }
+
+    @JmxSetter(name = "targetLatencyMs", description = "The average foreground latency above which background I/O is slowed down.")
+    public void setTargetLatencyMs(double targetLatencyMs) {
+        this.targetLatencyMs = targetLatencyMs;
+    }
+
+    @JmxGetter(name = "observedLatencyMs", description = "The average foreground latency at the last adjustment, or -1 if there were no requests.")
+    public double getObservedLatencyMs() {
+        return observedLatencyMs;
+    }
+
+    @JmxGetter(name = "adaptive", description = "Whether the rate adapts to foreground latency.")
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    @JmxSetter(name = "adaptive", description = "Whether the rate adapts to foreground latency.")
+    public synchronized void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+        if(!adaptive)
+            throttler.setMaxBytesPerSecond(maxBytesPerSec);
+    }
+
+    private static class Sample {
+
+        final long count;
+        final double totalMs;
+
+        Sample(long count, double totalMs) {
+            this.count = count;
+            this.totalMs = totalMs;
+        }
+    }
+}
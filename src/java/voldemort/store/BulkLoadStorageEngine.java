@@ -0,0 +1,47 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store;
+
+import java.util.List;
+
+import voldemort.VoldemortException;
+import voldemort.utils.Pair;
+import voldemort.versioning.Versioned;
+
+/**
+ * A storage engine that can apply many puts at once, for loading large
+ * amounts of data such as a partition streamed from another node.
+ * 
+ * @param <K> The type of the key being stored
+ * @param <V> The type of the value being stored
+ */
+public interface BulkLoadStorageEngine<K, V> extends StorageEngine<K, V> {
+
+    /**
+     * Put each of the given entries, in order, as {@link #put(Object, Versioned)}
+     * would, but in as few transactions and round trips as the engine can.
+     * Entries whose version is obsolete are skipped instead of failing the
+     * batch. If an exception is thrown some of the entries may have been
+     * applied.
+     * 
+     * @param entries The keys and versioned values to put
+     * @return The number of entries skipped because their version was obsolete
+     * @throws VoldemortException If the entries could not be applied
+     */
+    public int bulkPut(List<Pair<K, Versioned<V>>> entries) throws VoldemortException;
+
+}
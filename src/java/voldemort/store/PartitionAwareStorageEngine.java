@@ -0,0 +1,69 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store;
+
+import java.util.Collection;
+
+import voldemort.routing.RoutingStrategy;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.Pair;
+import voldemort.versioning.Versioned;
+
+/**
+ * A storage engine that records the master partition of each key it stores so
+ * that the entries of a few partitions can be found without iterating over
+ * the whole store.
+ * 
+ * @param <K> The type of the key being stored
+ * @param <V> The type of the value being stored
+ */
+public interface PartitionAwareStorageEngine<K, V> extends StorageEngine<K, V> {
+
+    /**
+     * Set the routing strategy used to find the master partition of keys as
+     * they are written. Entries written before it is set have no known
+     * partition.
+     * 
+     * @param routingStrategy The routing strategy of the store
+     */
+    public void setRoutingStrategy(RoutingStrategy routingStrategy);
+
+    /**
+     * @return true if the engine is recording partitions, if not
+     *         {@link #entries(Collection, boolean)} iterates over every entry
+     */
+    public boolean isPartitionAware();
+
+    /**
+     * Get an iterator over the entries whose master partition is one of the
+     * given ones, and optionally those whose partition is not known. Callers
+     * that ask for the entries of unknown partition must check the partition
+     * of each key they are given, and should ask for them once rather than
+     * with every few partitions, since finding them may mean a scan of all
+     * the entries written before the engine recorded partitions.
+     * 
+     * As with {@link #entries()} the iterator must be closed after use.
+     * 
+     * @param masterPartitions The master partitions to fetch
+     * @param includeUnknown Whether to include the entries whose partition is
+     *        not known
+     * @return An iterator over the entries of the partitions
+     */
+    public ClosableIterator<Pair<K, Versioned<V>>> entries(Collection<Integer> masterPartitions,
+                                                           boolean includeUnknown);
+
+}
@@ -46,6 +46,7 @@ public class StoreDefinition implements Serializable {
     private final int requiredReads;
     private final Integer retentionPeriodDays;
     private final String routingStrategyType;
+    private final Long cacheBytes;
 
     public StoreDefinition(String name,
                            String type,
@@ -59,6 +60,34 @@ public class StoreDefinition implements Serializable {
                            Integer preferredWrites,
                            int requiredWrites,
                            Integer retentionDays) {
+        this(name,
+             type,
+             keySerializer,
+             valueSerializer,
+             routingPolicy,
+             routingStrategyType,
+             replicationFactor,
+             preferredReads,
+             requiredReads,
+             preferredWrites,
+             requiredWrites,
+             retentionDays,
+             null);
+    }
+
+    public StoreDefinition(String name,
+                           String type,
+                           SerializerDefinition keySerializer,
+                           SerializerDefinition valueSerializer,
+                           RoutingTier routingPolicy,
+                           String routingStrategyType,
+                           int replicationFactor,
+                           Integer preferredReads,
+                           int requiredReads,
+                           Integer preferredWrites,
+                           int requiredWrites,
+                           Integer retentionDays,
+                           Long cacheBytes) {
         this.name = Utils.notNull(name);
         this.type = Utils.notNull(type);
         this.replicationFactor = replicationFactor;
@@ -71,6 +100,7 @@ public class StoreDefinition implements Serializable {
         this.valueSerializer = Utils.notNull(valueSerializer);
         this.retentionPeriodDays = retentionDays;
         this.routingStrategyType = routingStrategyType;
+        this.cacheBytes = cacheBytes;
         checkParameterLegality();
     }
 
@@ -100,6 +130,9 @@ public class StoreDefinition implements Serializable {
 
         if(retentionPeriodDays != null && retentionPeriodDays < 0)
             throw new IllegalArgumentException("Retention days must be non-negative.");
+
+        if(cacheBytes != null && cacheBytes <= 0)
+            throw new IllegalArgumentException("Cache size must be positive.");
     }
 
     public String getName() {
@@ -162,6 +195,18 @@ public class StoreDefinition implements Serializable {
         return this.retentionPeriodDays;
     }
 
+    /**
+     * @return true if gets should be served from a memory cache in front of the
+     *         storage engine
+     */
+    public boolean hasCache() {
+        return this.cacheBytes != null;
+    }
+
+    public Long getCacheBytes() {
+        return this.cacheBytes;
+    }
+
     @Override
     public boolean equals(Object o) {
         if(this == o)
@@ -181,7 +226,8 @@ public class StoreDefinition implements Serializable {
                && getKeySerializer().equals(def.getKeySerializer())
                && getValueSerializer().equals(def.getValueSerializer())
                && getRoutingPolicy() == def.getRoutingPolicy()
-               && Objects.equal(getRetentionDays(), def.getRetentionDays());
+               && Objects.equal(getRetentionDays(), def.getRetentionDays())
+               && Objects.equal(getCacheBytes(), def.getCacheBytes());
     }
 
     @Override
@@ -196,6 +242,7 @@ public class StoreDefinition implements Serializable {
                                 getRequiredWrites(),
                                 getPreferredReads(),
                                 getPreferredWrites(),
-                                getRetentionDays());
+                                getRetentionDays(),
+                                getCacheBytes());
     }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store;
+
+import java.util.List;
+
+import voldemort.VoldemortException;
+
+/**
+ * A storage engine that can keep an index of when its keys expire, so that the
+ * entries older than a retention period, or whose time-to-live has passed, can
+ * be found without scanning the whole store.
+ * 
+ * A version expires at the earlier of its timestamp plus the retention period
+ * and the end of its time-to-live. Keys are indexed in fixed width buckets of
+ * time by the earliest expiry among their versions, so a key stays in the
+ * index until its last expired version is gone.
+ * 
+ * @param <K> The type of the key being stored
+ * @param <V> The type of the value being stored
+ */
+public interface TimeIndexedStorageEngine<K, V> extends StorageEngine<K, V> {
+
+    /**
+     * Start maintaining the time index, building it from the stored entries
+     * unless it was built with the same bucket width and retention period
+     * before. This must be called before the engine takes writes.
+     * 
+     * @param bucketMs The width of the buckets of time keys are indexed in
+     * @param retentionMs The retention period of the store
+     * @throws VoldemortException If the index could not be opened or built
+     */
+    public void enableTimeIndex(long bucketMs, long retentionMs) throws VoldemortException;
+
+    /**
+     * Stop maintaining the time index and remove any index kept before, so
+     * that it is rebuilt when next enabled. Writes made without the index
+     * leave it out of date, so an engine opened without the index must call
+     * this before it takes writes.
+     * 
+     * @throws VoldemortException If the index could not be removed
+     */
+    public void disableTimeIndex() throws VoldemortException;
+
+    /**
+     * @return true if the time index is being maintained
+     */
+    public boolean isTimeIndexEnabled();
+
+    /**
+     * Get keys from the buckets that end at or before the given time, earliest
+     * first. Every key returned has a version that has expired by that time,
+     * so once those versions are deleted the key leaves the buckets and the
+     * next call returns the keys after it.
+     * 
+     * @param timestampMs The time the buckets must end by
+     * @param maxKeys The most keys to return
+     * @return The keys, an empty list if there are none
+     */
+    public List<K> getKeysExpiredBy(long timestampMs, int maxKeys);
+
+    /**
+     * Put keys returned by {@link #getKeysExpiredBy(long, int)} back in
+     * the buckets of the versions stored for them now, removing them from the
+     * index if they have none. This is for keys the index has out of date,
+     * which would otherwise be returned by every call.
+     * 
+     * @param keys The keys to index again
+     * @param timestampMs The time the keys were returned for
+     */
+    public void reindex(List<K> keys, long timestampMs);
+
+}
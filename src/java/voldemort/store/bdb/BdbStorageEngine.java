@@ -19,8 +19,10 @@ package voldemort.store.bdb;
 import static voldemort.utils.Utils.assertNotNull;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.codec.binary.Hex;
@@ -29,12 +31,13 @@ import org.apache.log4j.Logger;
 import voldemort.VoldemortException;
 import voldemort.serialization.IdentitySerializer;
 import voldemort.serialization.VersionedSerializer;
+import voldemort.store.BulkLoadStorageEngine;
 import voldemort.store.NoSuchCapabilityException;
 import voldemort.store.PersistenceFailureException;
-import voldemort.store.StorageEngine;
 import voldemort.store.Store;
 import voldemort.store.StoreCapabilityType;
 import voldemort.store.StoreUtils;
+import voldemort.store.TimeIndexedStorageEngine;
 import voldemort.utils.ByteArray;
 import voldemort.utils.ByteUtils;
 import voldemort.utils.ClosableIterator;
@@ -47,6 +50,7 @@ import voldemort.versioning.Versioned;
 
 import com.sleepycat.je.Cursor;
 import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
 import com.sleepycat.je.Environment;
@@ -57,19 +61,36 @@ import com.sleepycat.je.Transaction;
 /**
  * A store that uses BDB for persistence
  * 
+ * A bulk put applies the whole batch in a single transaction, so that loading
+ * a large amount of data pays for one commit per batch rather than per key.
+ * 
+ * The time index, when enabled, is a second database in the same environment
+ * whose keys are the 8 byte bucket number followed by the key. It is updated
+ * in the transaction of each write, so it stays consistent with the store
+ * across crashes. A record holding the bucket width and retention period
+ * marks an index that has been built.
+ * 
  * @author jay
  * 
  */
-public class BdbStorageEngine implements StorageEngine<ByteArray, byte[]> {
+public class BdbStorageEngine implements BulkLoadStorageEngine<ByteArray, byte[]>,
+        TimeIndexedStorageEngine<ByteArray, byte[]> {
 
     private static final Logger logger = Logger.getLogger(BdbStorageEngine.class);
     private static final Hex hexCodec = new Hex();
 
+    /* Sorts after every bucket record since buckets are never negative */
+    private static final byte[] TIME_INDEX_MARKER = new byte[] { (byte) 0xFF };
+    private static final long NO_VERSIONS = Long.MIN_VALUE;
+
     private final String name;
     private final Database bdbDatabase;
     private final Environment environment;
     private final VersionedSerializer<byte[]> serializer;
     private final AtomicBoolean isOpen;
+    private volatile Database timeIndex;
+    private volatile long bucketMs;
+    private volatile long retentionMs;
 
     public BdbStorageEngine(String name, Environment environment, Database database) {
         assertNotNull("The store name cannot be null.", name);
@@ -212,12 +233,15 @@ public class BdbStorageEngine implements StorageEngine<ByteArray, byte[]> {
             // if there is a version obsoleted by this value delete it
             // if there is a version later than this one, throw an exception
             DatabaseEntry valueEntry = new DatabaseEntry();
+            long expiryBefore = NO_VERSIONS;
+            long expiryAfter = expiry(value.getVersion());
             cursor = bdbDatabase.openCursor(transaction, null);
             for(OperationStatus status = cursor.getSearchKey(keyEntry, valueEntry, LockMode.RMW); status == OperationStatus.SUCCESS; status = cursor.getNextDup(keyEntry,
                                                                                                                                                                 valueEntry,
                                                                                                                                                                 LockMode.RMW)) {
                 VectorClock clock = new VectorClock(valueEntry.getData());
                 Occured occured = value.getVersion().compare(clock);
+                expiryBefore = earliest(expiryBefore, expiry(clock));
                 if(occured == Occured.BEFORE)
                     throw new ObsoleteVersionException("Key '"
                                                        + new String(hexCodec.encode(key.get()))
@@ -227,6 +251,8 @@ public class BdbStorageEngine implements StorageEngine<ByteArray, byte[]> {
                 else if(occured == Occured.AFTER)
                     // best effort delete of obsolete previous value!
                     cursor.delete();
+                else
+                    expiryAfter = earliest(expiryAfter, expiry(clock));
             }
 
             // Okay so we cleaned up all the prior stuff, so now we are good to
@@ -235,6 +261,7 @@ public class BdbStorageEngine implements StorageEngine<ByteArray, byte[]> {
             OperationStatus status = cursor.put(keyEntry, valueEntry);
             if(status != OperationStatus.SUCCESS)
                 throw new PersistenceFailureException("Put operation failed with status: " + status);
+            updateTimeIndex(transaction, key.get(), expiryBefore, expiryAfter);
             succeeded = true;
 
         } catch(DatabaseException e) {
@@ -248,6 +275,81 @@ public class BdbStorageEngine implements StorageEngine<ByteArray, byte[]> {
         }
     }
 
+    public int bulkPut(List<Pair<ByteArray, Versioned<byte[]>>> entries)
+            throws PersistenceFailureException {
+        for(Pair<ByteArray, Versioned<byte[]>> entry: entries)
+            StoreUtils.assertValidKey(entry.getFirst());
+        int obsolete = 0;
+        boolean succeeded = false;
+        Transaction transaction = null;
+        Cursor cursor = null;
+        try {
+            transaction = this.environment.beginTransaction(null, null);
+            cursor = bdbDatabase.openCursor(transaction, null);
+            for(Pair<ByteArray, Versioned<byte[]>> entry: entries) {
+                if(!put(transaction, cursor, entry.getFirst(), entry.getSecond()))
+                    obsolete++;
+            }
+            succeeded = true;
+        } catch(DatabaseException e) {
+            throw new PersistenceFailureException(e);
+        } finally {
+            attemptClose(cursor);
+            if(succeeded)
+                attemptCommit(transaction);
+            else
+                attemptAbort(transaction);
+        }
+        return obsolete;
+    }
+
+    /*
+     * Put the value with the given cursor, returning false without changing
+     * anything if its version is obsolete
+     */
+    private boolean put(Transaction transaction,
+                        Cursor cursor,
+                        ByteArray key,
+                        Versioned<byte[]> value) throws DatabaseException {
+        DatabaseEntry keyEntry = new DatabaseEntry(key.get());
+        DatabaseEntry valueEntry = new DatabaseEntry();
+        boolean obsoletesOthers = false;
+        long expiryBefore = NO_VERSIONS;
+        long expiryAfter = expiry(value.getVersion());
+        for(OperationStatus status = cursor.getSearchKey(keyEntry, valueEntry, LockMode.RMW); status == OperationStatus.SUCCESS; status = cursor.getNextDup(keyEntry,
+                                                                                                                                                            valueEntry,
+                                                                                                                                                            LockMode.RMW)) {
+            VectorClock clock = new VectorClock(valueEntry.getData());
+            Occured occured = value.getVersion().compare(clock);
+            expiryBefore = earliest(expiryBefore, expiry(clock));
+            if(occured == Occured.BEFORE)
+                return false;
+            else if(occured == Occured.AFTER)
+                obsoletesOthers = true;
+            else
+                expiryAfter = earliest(expiryAfter, expiry(clock));
+        }
+
+        // only delete once we know the value will be put
+        if(obsoletesOthers) {
+            for(OperationStatus status = cursor.getSearchKey(keyEntry, valueEntry, LockMode.RMW); status == OperationStatus.SUCCESS; status = cursor.getNextDup(keyEntry,
+                                                                                                                                                                valueEntry,
+                                                                                                                                                                LockMode.RMW)) {
+                if(value.getVersion().compare(new VectorClock(valueEntry.getData())) == Occured.AFTER)
+                    cursor.delete();
+            }
+        }
+
+        OperationStatus status = cursor.put(keyEntry,
+                                            new DatabaseEntry(serializer.toBytes(value)));
+        if(status == OperationStatus.KEYEXIST)
+            return false;
+        else if(status != OperationStatus.SUCCESS)
+            throw new PersistenceFailureException("Put operation failed with status: " + status);
+        updateTimeIndex(transaction, key.get(), expiryBefore, expiryAfter);
+        return true;
+    }
+
     public boolean delete(ByteArray key, Version version) throws PersistenceFailureException {
         StoreUtils.assertValidKey(key);
         boolean deletedSomething = false;
@@ -261,14 +363,22 @@ public class BdbStorageEngine implements StorageEngine<ByteArray, byte[]> {
             OperationStatus status = cursor.getSearchKey(keyEntry,
                                                          valueEntry,
                                                          LockMode.READ_UNCOMMITTED);
+            long expiryBefore = NO_VERSIONS;
+            long expiryAfter = NO_VERSIONS;
             while(status == OperationStatus.SUCCESS) {
+                VectorClock clock = new VectorClock(valueEntry.getData());
+                expiryBefore = earliest(expiryBefore, expiry(clock));
                 // if version is null no comparison is necessary
-                if(new VectorClock(valueEntry.getData()).compare(version) == Occured.BEFORE) {
+                if(clock.compare(version) == Occured.BEFORE) {
                     cursor.delete();
                     deletedSomething = true;
+                } else {
+                    expiryAfter = earliest(expiryAfter, expiry(clock));
                 }
                 status = cursor.getNextDup(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED);
             }
+            if(deletedSomething)
+                updateTimeIndex(transaction, key.get(), expiryBefore, expiryAfter);
             return deletedSomething;
         } catch(DatabaseException e) {
             throw new PersistenceFailureException(e);
@@ -281,6 +391,248 @@ public class BdbStorageEngine implements StorageEngine<ByteArray, byte[]> {
         }
     }
 
+    /*
+     * The time the version is due to be deleted, when the retention period
+     * ends or its time-to-live runs out, whichever is sooner
+     */
+    private long expiry(Version version) {
+        VectorClock clock = (VectorClock) version;
+        long retainedUntil = clock.getTimestamp() + retentionMs;
+        if(retainedUntil < clock.getTimestamp())
+            retainedUntil = Long.MAX_VALUE;
+        return Math.min(retainedUntil, clock.getExpiryTime());
+    }
+
+    private static long earliest(long earliest, long expiry) {
+        return earliest == NO_VERSIONS ? expiry : Math.min(earliest, expiry);
+    }
+
+    private long bucket(long expiry) {
+        return Math.max(0, expiry) / bucketMs;
+    }
+
+    private static byte[] makeIndexKey(long bucket, byte[] key) {
+        byte[] indexKey = new byte[8 + key.length];
+        ByteUtils.writeLong(indexKey, bucket, 0);
+        System.arraycopy(key, 0, indexKey, 8, key.length);
+        return indexKey;
+    }
+
+    /*
+     * Move the key to the bucket of its earliest expiry now, removing it from
+     * the index if it has no versions left
+     */
+    private void updateTimeIndex(Transaction transaction,
+                                 byte[] key,
+                                 long expiryBefore,
+                                 long expiryAfter) throws DatabaseException {
+        Database index = timeIndex;
+        if(index == null)
+            return;
+        if(expiryBefore != NO_VERSIONS && expiryAfter != NO_VERSIONS
+           && bucket(expiryBefore) == bucket(expiryAfter))
+            return;
+        if(expiryBefore != NO_VERSIONS)
+            index.delete(transaction, new DatabaseEntry(makeIndexKey(bucket(expiryBefore), key)));
+        if(expiryAfter != NO_VERSIONS)
+            index.put(transaction,
+                      new DatabaseEntry(makeIndexKey(bucket(expiryAfter), key)),
+                      new DatabaseEntry(new byte[0]));
+    }
+
+    public synchronized void enableTimeIndex(long bucketMs, long retentionMs)
+            throws PersistenceFailureException {
+        if(bucketMs <= 0)
+            throw new IllegalArgumentException("bucketMs must be positive.");
+        if(retentionMs < 0)
+            throw new IllegalArgumentException("retentionMs cannot be negative.");
+        if(timeIndex != null) {
+            if(this.bucketMs != bucketMs || this.retentionMs != retentionMs)
+                throw new IllegalStateException("The time index of store " + name
+                                                + " is already enabled with " + this.bucketMs
+                                                + " ms buckets and a retention of "
+                                                + this.retentionMs + " ms.");
+            return;
+        }
+        try {
+            DatabaseConfig config = new DatabaseConfig();
+            config.setAllowCreate(true);
+            config.setTransactional(true);
+            Database index = environment.openDatabase(null, getTimeIndexName(), config);
+            DatabaseEntry marker = new DatabaseEntry(TIME_INDEX_MARKER);
+            DatabaseEntry built = new DatabaseEntry();
+            this.bucketMs = bucketMs;
+            this.retentionMs = retentionMs;
+            if(index.get(null, marker, built, LockMode.READ_UNCOMMITTED) != OperationStatus.SUCCESS
+               || built.getData().length != 16 || ByteUtils.readLong(built.getData(), 0) != bucketMs
+               || ByteUtils.readLong(built.getData(), 8) != retentionMs) {
+                // start from an empty index, whatever was kept before
+                index.close();
+                environment.removeDatabase(null, getTimeIndexName());
+                index = environment.openDatabase(null, getTimeIndexName(), config);
+                buildTimeIndex(index);
+                byte[] settings = new byte[16];
+                ByteUtils.writeLong(settings, bucketMs, 0);
+                ByteUtils.writeLong(settings, retentionMs, 8);
+                index.put(null, marker, new DatabaseEntry(settings));
+            }
+            this.timeIndex = index;
+        } catch(DatabaseException e) {
+            throw new PersistenceFailureException(e);
+        }
+    }
+
+    public synchronized void disableTimeIndex() throws PersistenceFailureException {
+        try {
+            if(timeIndex != null) {
+                timeIndex.close();
+                timeIndex = null;
+            }
+            if(environment.getDatabaseNames().contains(getTimeIndexName())) {
+                logger.info("Removing the time index of store " + name + ".");
+                environment.removeDatabase(null, getTimeIndexName());
+            }
+        } catch(DatabaseException e) {
+            throw new PersistenceFailureException(e);
+        }
+    }
+
+    private String getTimeIndexName() {
+        return name + ".time-index";
+    }
+
+    private void buildTimeIndex(Database index) throws DatabaseException {
+        logger.info("Building the time index of store " + name + " with " + bucketMs
+                    + " ms buckets and a retention of " + retentionMs + " ms.");
+        int indexed = 0;
+        ByteArray key = null;
+        long keyExpiry = NO_VERSIONS;
+        ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> iterator = entries();
+        try {
+            // the versions of a key come out together
+            while(iterator.hasNext()) {
+                Pair<ByteArray, Versioned<byte[]>> entry = iterator.next();
+                if(!entry.getFirst().equals(key)) {
+                    if(key != null) {
+                        indexExpiry(index, key, keyExpiry);
+                        indexed++;
+                    }
+                    key = entry.getFirst();
+                    keyExpiry = NO_VERSIONS;
+                }
+                keyExpiry = earliest(keyExpiry, expiry(entry.getSecond().getVersion()));
+            }
+            if(key != null) {
+                indexExpiry(index, key, keyExpiry);
+                indexed++;
+            }
+        } finally {
+            iterator.close();
+        }
+        logger.info("Indexed " + indexed + " keys of store " + name + ".");
+    }
+
+    private void indexExpiry(Database index, ByteArray key, long expiry)
+            throws DatabaseException {
+        index.put(null,
+                  new DatabaseEntry(makeIndexKey(bucket(expiry), key.get())),
+                  new DatabaseEntry(new byte[0]));
+    }
+
+    public boolean isTimeIndexEnabled() {
+        return timeIndex != null;
+    }
+
+    public List<ByteArray> getKeysExpiredBy(long timestampMs, int maxKeys) {
+        Database index = timeIndex;
+        if(index == null)
+            throw new IllegalStateException("The time index of store " + name
+                                            + " is not enabled.");
+        List<ByteArray> keys = new ArrayList<ByteArray>();
+        long endBucket = Math.max(0, timestampMs) / bucketMs;
+        Cursor cursor = null;
+        try {
+            cursor = index.openCursor(null, null);
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            while(keys.size() < maxKeys
+                  && cursor.getNext(keyEntry, valueEntry, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+                byte[] indexKey = keyEntry.getData();
+                if(indexKey.length < 8 || ByteUtils.readLong(indexKey, 0) >= endBucket)
+                    break;
+                keys.add(new ByteArray(ByteUtils.copy(indexKey, 8, indexKey.length)));
+            }
+        } catch(DatabaseException e) {
+            throw new PersistenceFailureException(e);
+        } finally {
+            attemptClose(cursor);
+        }
+        return keys;
+    }
+
+    public void reindex(List<ByteArray> keys, long timestampMs) {
+        Database index = timeIndex;
+        if(index == null)
+            throw new IllegalStateException("The time index of store " + name
+                                            + " is not enabled.");
+        if(keys.isEmpty())
+            return;
+        long endBucket = Math.max(0, timestampMs) / bucketMs;
+        boolean succeeded = false;
+        Transaction transaction = null;
+        Cursor cursor = null;
+        try {
+            transaction = this.environment.beginTransaction(null, null);
+            // lock the keys' versions first, in the same order puts do
+            long[] expiries = new long[keys.size()];
+            cursor = bdbDatabase.openCursor(transaction, null);
+            for(int i = 0; i < keys.size(); i++) {
+                expiries[i] = NO_VERSIONS;
+                DatabaseEntry keyEntry = new DatabaseEntry(keys.get(i).get());
+                DatabaseEntry valueEntry = new DatabaseEntry();
+                OperationStatus status = cursor.getSearchKey(keyEntry, valueEntry, LockMode.RMW);
+                while(status == OperationStatus.SUCCESS) {
+                    expiries[i] = earliest(expiries[i], expiry(new VectorClock(valueEntry.getData())));
+                    status = cursor.getNextDup(keyEntry, valueEntry, LockMode.RMW);
+                }
+            }
+            attemptClose(cursor);
+            cursor = null;
+
+            // the keys were returned from the front of the index
+            Set<ByteArray> remaining = new HashSet<ByteArray>(keys);
+            cursor = index.openCursor(transaction, null);
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            DatabaseEntry valueEntry = new DatabaseEntry();
+            while(!remaining.isEmpty()
+                  && cursor.getNext(keyEntry, valueEntry, LockMode.RMW) == OperationStatus.SUCCESS) {
+                byte[] indexKey = keyEntry.getData();
+                if(indexKey.length < 8 || ByteUtils.readLong(indexKey, 0) >= endBucket)
+                    break;
+                if(remaining.remove(new ByteArray(ByteUtils.copy(indexKey, 8, indexKey.length))))
+                    cursor.delete();
+            }
+            attemptClose(cursor);
+            cursor = null;
+
+            for(int i = 0; i < keys.size(); i++) {
+                if(expiries[i] != NO_VERSIONS)
+                    index.put(transaction,
+                              new DatabaseEntry(makeIndexKey(bucket(expiries[i]), keys.get(i).get())),
+                              new DatabaseEntry(new byte[0]));
+            }
+            succeeded = true;
+        } catch(DatabaseException e) {
+            throw new PersistenceFailureException(e);
+        } finally {
+            attemptClose(cursor);
+            if(succeeded)
+                attemptCommit(transaction);
+            else
+                attemptAbort(transaction);
+        }
+    }
+
     public Object getCapability(StoreCapabilityType capability) {
         throw new NoSuchCapabilityException(capability, getName());
     }
@@ -300,8 +652,11 @@ public class BdbStorageEngine implements StorageEngine<ByteArray, byte[]> {
 
     public void close() throws PersistenceFailureException {
         try {
-            if(this.isOpen.compareAndSet(true, false))
+            if(this.isOpen.compareAndSet(true, false)) {
+                if(this.timeIndex != null)
+                    this.timeIndex.close();
                 this.bdbDatabase.close();
+            }
         } catch(DatabaseException e) {
             throw new PersistenceFailureException("Shutdown failed.", e);
         }
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.concurrency.Threadsafe;
+import voldemort.store.DelegatingStore;
+import voldemort.store.Store;
+import voldemort.store.StoreUtils;
+import voldemort.utils.Utils;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+/**
+ * A store wrapper that serves gets from an in-memory cache in front of the
+ * inner store, loading the cache from the inner store on a miss.
+ *
+ * A cached key always holds every version the inner store had when it was
+ * loaded, so a put or delete can't simply be applied to the cache: the cache
+ * may have evicted the key, or never have held the other concurrent versions
+ * the inner store keeps. Instead successful writes invalidate the key and the
+ * next get reloads it. To stop a get that read the inner store before a write
+ * from caching the value the write replaced, each key maps to one of a fixed
+ * set of stripes whose generation writes increment; a loaded value is only
+ * cached if its stripe's generation hasn't changed since the load started.
+ *
+ * Writes that go directly to the storage engine underneath, such as the
+ * entries streamed in by the admin service and the deletes of the retention
+ * cleanup, must call {@link #invalidate(Object)} for each key they write, or
+ * gets will go on serving what the cache held before.
+ */
+@Threadsafe
+public class CachingStore<K, V> extends DelegatingStore<K, V> {
+
+    private static final int NUM_STRIPES = 64;
+
+    private final Store<K, V> cache;
+    private final Object[] locks;
+    private final long[] generations;
+
+    /**
+     * @param innerStore The store to cache
+     * @param cache The store to cache values in, which may drop entries at any
+     *        time
+     */
+    public CachingStore(Store<K, V> innerStore, Store<K, V> cache) {
+        super(innerStore);
+        this.cache = Utils.notNull(cache);
+        this.locks = new Object[NUM_STRIPES];
+        for(int i = 0; i < NUM_STRIPES; i++)
+            locks[i] = new Object();
+        this.generations = new long[NUM_STRIPES];
+    }
+
+    public Store<K, V> getCache() {
+        return cache;
+    }
+
+    private static int stripe(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (NUM_STRIPES - 1);
+    }
+
+    private long generation(int stripe) {
+        synchronized(locks[stripe]) {
+            return generations[stripe];
+        }
+    }
+
+    /*
+     * Cache the versions loaded for the key unless a write to the stripe has
+     * happened since the load began
+     */
+    private void populate(K key, int stripe, long generation, List<Versioned<V>> values) {
+        synchronized(locks[stripe]) {
+            if(generations[stripe] != generation)
+                return;
+            for(Versioned<V> versioned: values) {
+                try {
+                    cache.put(key, versioned);
+                } catch(ObsoleteVersionException e) {
+                    // already cached by a concurrent load
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the key from the cache, and stop any get in flight from caching
+     * what it read. For writes made to the inner store without going through
+     * this store.
+     * 
+     * @param key The key written
+     */
+    public void invalidate(K key) {
+        int stripe = stripe(key);
+        synchronized(locks[stripe]) {
+            generations[stripe]++;
+            cache.delete(key, null);
+        }
+    }
+
+    @Override
+    public List<Versioned<V>> get(K key) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        List<Versioned<V>> cached = cache.get(key);
+        if(!cached.isEmpty())
+            return cached;
+        int stripe = stripe(key);
+        long generation = generation(stripe);
+        List<Versioned<V>> values = getInnerStore().get(key);
+        if(!values.isEmpty())
+            populate(key, stripe, generation, values);
+        return values;
+    }
+
+    @Override
+    public Map<K, List<Versioned<V>>> getAll(Iterable<K> keys) throws VoldemortException {
+        StoreUtils.assertValidKeys(keys);
+        Map<K, List<Versioned<V>>> result = StoreUtils.newEmptyHashMap(keys);
+        List<K> missing = new ArrayList<K>();
+        for(K key: keys) {
+            List<Versioned<V>> cached = cache.get(key);
+            if(cached.isEmpty())
+                missing.add(key);
+            else
+                result.put(key, cached);
+        }
+        if(missing.isEmpty())
+            return result;
+
+        long[] missingGenerations = new long[missing.size()];
+        for(int i = 0; i < missing.size(); i++)
+            missingGenerations[i] = generation(stripe(missing.get(i)));
+        Map<K, List<Versioned<V>>> loaded = getInnerStore().getAll(missing);
+        for(int i = 0; i < missing.size(); i++) {
+            K key = missing.get(i);
+            List<Versioned<V>> values = loaded.get(key);
+            if(values != null && !values.isEmpty()) {
+                populate(key, stripe(key), missingGenerations[i], values);
+                result.put(key, values);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void put(K key, Versioned<V> value) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        try {
+            getInnerStore().put(key, value);
+        } finally {
+            // a failure may still have written the value
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public boolean delete(K key, Version version) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        try {
+            return getInnerStore().delete(key, version);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public void close() throws VoldemortException {
+        try {
+            super.close();
+        } finally {
+            cache.close();
+        }
+    }
+
+}
@@ -0,0 +1,564 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.concurrency.NotThreadsafe;
+import voldemort.annotations.concurrency.Threadsafe;
+import voldemort.annotations.jmx.JmxGetter;
+import voldemort.annotations.jmx.JmxOperation;
+import voldemort.store.NoSuchCapabilityException;
+import voldemort.store.StorageEngine;
+import voldemort.store.StoreCapabilityType;
+import voldemort.store.StoreUtils;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.Pair;
+import voldemort.utils.Utils;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Occured;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+/**
+ * A non-persistent store that holds at most a fixed number of bytes, evicting
+ * entries by a policy that favours frequently used keys over recently seen
+ * ones.
+ * 
+ * The store is split into independently locked segments, each of which keeps
+ * its entries in two LRU lists: new entries go on probation, and an entry that
+ * is read or written again is promoted to the protected list, which may take up
+ * to {@link #PROTECTED_FRACTION} of the segment. Evictions come from the
+ * probationary list first, so a scan of keys that are each touched once can
+ * only displace other probationary entries. Among the few least recently used
+ * probationary entries the one with the lowest estimated access frequency is
+ * evicted, where frequencies come from a small counting sketch that is halved
+ * periodically so that old popularity fades.
+ * 
+ * Sizes are estimates of the heap used by the keys, values and vector clocks
+ * plus a fixed overhead per entry; the sketches are not counted.
+ */
+@Threadsafe
+public class BoundedCacheStorageEngine implements StorageEngine<ByteArray, byte[]> {
+
+    /* The estimated heap cost of an entry beyond the bytes it holds */
+    static final int ENTRY_OVERHEAD = 96;
+    static final int VERSION_OVERHEAD = 48;
+
+    private static final double PROTECTED_FRACTION = 0.8;
+    private static final int EVICTION_SAMPLE_SIZE = 4;
+    private static final int AVERAGE_ENTRY_SIZE = 256;
+    private static final int MAX_SKETCH_WIDTH = 1 << 16;
+
+    private final String name;
+    private final long maxBytes;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    /**
+     * @param name The name of the store
+     * @param maxBytes The maximum number of bytes to hold
+     * @param numSegments The number of segments to lock independently, rounded
+     *        up to a power of two
+     */
+    public BoundedCacheStorageEngine(String name, long maxBytes, int numSegments) {
+        if(maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive.");
+        if(numSegments <= 0)
+            throw new IllegalArgumentException("numSegments must be positive.");
+        this.name = Utils.notNull(name);
+        this.maxBytes = maxBytes;
+        int bits = 0;
+        while((1 << bits) < numSegments)
+            bits++;
+        this.segmentShift = 32 - bits;
+        this.segments = new Segment[1 << bits];
+        long segmentBytes = Math.max(1, maxBytes / segments.length);
+        long expectedEntries = Math.min(MAX_SKETCH_WIDTH, segmentBytes / AVERAGE_ENTRY_SIZE);
+        for(int i = 0; i < segments.length; i++)
+            segments[i] = new Segment(segmentBytes, (int) expectedEntries);
+        this.hits = new AtomicLong(0);
+        this.misses = new AtomicLong(0);
+        this.evictions = new AtomicLong(0);
+    }
+
+    private static int hash(ByteArray key) {
+        // spread the bits of Arrays.hashCode, which is weak for short keys
+        int h = key.hashCode();
+        h += (h << 15) ^ 0xffffcd7d;
+        h ^= (h >>> 10);
+        h += (h << 3);
+        h ^= (h >>> 6);
+        h += (h << 2) + (h << 14);
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void close() {}
+
+    public Object getCapability(StoreCapabilityType capability) {
+        throw new NoSuchCapabilityException(capability, getName());
+    }
+
+    public List<Versioned<byte[]>> get(ByteArray key) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        int hash = hash(key);
+        return segmentFor(hash).get(key, hash);
+    }
+
+    public Map<ByteArray, List<Versioned<byte[]>>> getAll(Iterable<ByteArray> keys)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(keys);
+        return StoreUtils.getAll(this, keys);
+    }
+
+    public void put(ByteArray key, Versioned<byte[]> value) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        int hash = hash(key);
+        segmentFor(hash).put(key, hash, value);
+    }
+
+    public boolean delete(ByteArray key, Version version) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        int hash = hash(key);
+        return segmentFor(hash).delete(key, version);
+    }
+
+    /**
+     * Iterate over a snapshot of the entries, taken one segment at a time
+     */
+    public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries() {
+        return new SnapshotIterator();
+    }
+
+    @JmxOperation(description = "Remove all entries from the cache.")
+    public void deleteAll() {
+        for(Segment segment: segments)
+            segment.clear();
+    }
+
+    @JmxGetter(name = "hits", description = "The number of gets that found the key.")
+    public long getHits() {
+        return hits.get();
+    }
+
+    @JmxGetter(name = "misses", description = "The number of gets that did not find the key.")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @JmxGetter(name = "hitRate", description = "The fraction of gets that found the key.")
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0.0 : hits / (double) total;
+    }
+
+    @JmxGetter(name = "evictions", description = "The number of entries evicted to make room.")
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @JmxGetter(name = "bytesUsed", description = "The estimated bytes held by the cache.")
+    public long getBytesUsed() {
+        long bytes = 0;
+        for(Segment segment: segments)
+            bytes += segment.bytes;
+        return bytes;
+    }
+
+    @JmxGetter(name = "maxBytes", description = "The capacity of the cache in bytes.")
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @JmxGetter(name = "numEntries", description = "The number of keys in the cache.")
+    public int getNumEntries() {
+        int count = 0;
+        for(Segment segment: segments)
+            count += segment.count;
+        return count;
+    }
+
+    private static int sizeOf(Versioned<byte[]> versioned) {
+        int size = VERSION_OVERHEAD + versioned.getValue().length;
+        if(versioned.getVersion() instanceof VectorClock)
+            size += ((VectorClock) versioned.getVersion()).sizeInBytes();
+        return size;
+    }
+
+    private static final class Entry {
+
+        private final ByteArray key;
+        private final List<Versioned<byte[]>> values;
+        private int size;
+        private boolean isProtected;
+        private Entry prev;
+        private Entry next;
+
+        /* Create a list head */
+        Entry() {
+            this.key = null;
+            this.values = null;
+            this.prev = this;
+            this.next = this;
+        }
+
+        Entry(ByteArray key, Versioned<byte[]> value) {
+            this.key = key;
+            this.values = new ArrayList<Versioned<byte[]>>(1);
+            this.values.add(value);
+            this.size = computeSize();
+        }
+
+        int computeSize() {
+            int size = ENTRY_OVERHEAD + key.length();
+            for(Versioned<byte[]> versioned: values)
+                size += sizeOf(versioned);
+            return size;
+        }
+
+        void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+
+        /* Link the entry as the most recently used of the list with this head */
+        void linkFirst(Entry entry) {
+            entry.prev = this;
+            entry.next = next;
+            next.prev = entry;
+            next = entry;
+        }
+
+        boolean isEmptyList() {
+            return next == this;
+        }
+    }
+
+    /**
+     * A hash table with its own lock, LRU lists and frequency sketch
+     */
+    private final class Segment {
+
+        private final ReentrantLock lock;
+        private final Map<ByteArray, Entry> entries;
+        private final Entry probation;
+        private final Entry protectedEntries;
+        private final FrequencySketch sketch;
+        private final long capacity;
+        private final long maxProtectedBytes;
+        private long protectedBytes;
+        private volatile long bytes;
+        private volatile int count;
+
+        Segment(long capacity, int expectedEntries) {
+            this.lock = new ReentrantLock();
+            this.entries = new HashMap<ByteArray, Entry>();
+            this.probation = new Entry();
+            this.protectedEntries = new Entry();
+            this.sketch = new FrequencySketch(expectedEntries);
+            this.capacity = capacity;
+            this.maxProtectedBytes = (long) (capacity * PROTECTED_FRACTION);
+        }
+
+        List<Versioned<byte[]>> get(ByteArray key, int hash) {
+            lock.lock();
+            try {
+                sketch.increment(hash);
+                Entry entry = entries.get(key);
+                if(entry == null) {
+                    misses.incrementAndGet();
+                    return new ArrayList<Versioned<byte[]>>(0);
+                }
+                hits.incrementAndGet();
+                promote(entry);
+                return new ArrayList<Versioned<byte[]>>(entry.values);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(ByteArray key, int hash, Versioned<byte[]> value) {
+            lock.lock();
+            try {
+                sketch.increment(hash);
+                Entry entry = entries.get(key);
+                if(entry == null) {
+                    entry = new Entry(key, value);
+                    if(entry.size > capacity)
+                        return;
+                    entries.put(key, entry);
+                    probation.linkFirst(entry);
+                    bytes += entry.size;
+                    count++;
+                } else {
+                    Version version = value.getVersion();
+                    for(Versioned<byte[]> versioned: entry.values) {
+                        if(version.compare(versioned.getVersion()) == Occured.BEFORE)
+                            throw new ObsoleteVersionException("Obsolete version for key '" + key
+                                                               + "': " + version);
+                    }
+                    Iterator<Versioned<byte[]>> iterator = entry.values.iterator();
+                    while(iterator.hasNext()) {
+                        if(version.compare(iterator.next().getVersion()) == Occured.AFTER)
+                            iterator.remove();
+                    }
+                    entry.values.add(value);
+                    resize(entry);
+                    promote(entry);
+                }
+                evict();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean delete(ByteArray key, Version version) {
+            lock.lock();
+            try {
+                Entry entry = entries.get(key);
+                if(entry == null)
+                    return false;
+                if(version == null) {
+                    remove(entry);
+                    return true;
+                }
+                boolean deletedSomething = false;
+                Iterator<Versioned<byte[]>> iterator = entry.values.iterator();
+                while(iterator.hasNext()) {
+                    if(iterator.next().getVersion().compare(version) == Occured.BEFORE) {
+                        iterator.remove();
+                        deletedSomething = true;
+                    }
+                }
+                if(entry.values.isEmpty())
+                    remove(entry);
+                else if(deletedSomething)
+                    resize(entry);
+                return deletedSomething;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear() {
+            lock.lock();
+            try {
+                entries.clear();
+                probation.prev = probation.next = probation;
+                protectedEntries.prev = protectedEntries.next = protectedEntries;
+                protectedBytes = 0;
+                bytes = 0;
+                count = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<Pair<ByteArray, Versioned<byte[]>>> snapshot() {
+            lock.lock();
+            try {
+                List<Pair<ByteArray, Versioned<byte[]>>> pairs = new ArrayList<Pair<ByteArray, Versioned<byte[]>>>(count);
+                for(Entry entry: entries.values())
+                    for(Versioned<byte[]> versioned: entry.values)
+                        pairs.add(Pair.create(entry.key, versioned));
+                return pairs;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /*
+         * Move an entry that has been used again to the front of the protected
+         * list, demoting the least recently used protected entries back to
+         * probation if that list is now too big
+         */
+        private void promote(Entry entry) {
+            entry.unlink();
+            if(!entry.isProtected) {
+                entry.isProtected = true;
+                protectedBytes += entry.size;
+            }
+            protectedEntries.linkFirst(entry);
+            while(protectedBytes > maxProtectedBytes) {
+                Entry demoted = protectedEntries.prev;
+                if(demoted == entry)
+                    break;
+                demoted.unlink();
+                demoted.isProtected = false;
+                protectedBytes -= demoted.size;
+                probation.linkFirst(demoted);
+            }
+        }
+
+        private void resize(Entry entry) {
+            int size = entry.computeSize();
+            bytes += size - entry.size;
+            if(entry.isProtected)
+                protectedBytes += size - entry.size;
+            entry.size = size;
+        }
+
+        private void remove(Entry entry) {
+            entries.remove(entry.key);
+            entry.unlink();
+            bytes -= entry.size;
+            if(entry.isProtected)
+                protectedBytes -= entry.size;
+            count--;
+        }
+
+        private void evict() {
+            while(bytes > capacity) {
+                remove(selectVictim());
+                evictions.incrementAndGet();
+            }
+        }
+
+        /*
+         * Pick the least frequently used of the last few probationary entries,
+         * preferring the least recently used on ties, or the least recently
+         * used protected entry if nothing is on probation
+         */
+        private Entry selectVictim() {
+            if(probation.isEmptyList())
+                return protectedEntries.prev;
+            Entry victim = probation.prev;
+            int victimFrequency = sketch.frequency(hash(victim.key));
+            Entry candidate = victim.prev;
+            for(int i = 1; i < EVICTION_SAMPLE_SIZE && candidate != probation; i++) {
+                int frequency = sketch.frequency(hash(candidate.key));
+                if(frequency < victimFrequency) {
+                    victim = candidate;
+                    victimFrequency = frequency;
+                }
+                candidate = candidate.prev;
+            }
+            return victim;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters estimating how often each hash has
+     * been seen recently. All counters are halved after a number of increments
+     * proportional to the width, so the estimates track recent popularity.
+     */
+    @NotThreadsafe
+    static final class FrequencySketch {
+
+        private static final int[] SEEDS = { 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f };
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] counts;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = 16;
+            while(width < expectedEntries)
+                width <<= 1;
+            this.counts = new byte[SEEDS.length][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 17)) & mask;
+        }
+
+        void increment(int hash) {
+            boolean incremented = false;
+            for(int row = 0; row < counts.length; row++) {
+                int i = index(hash, row);
+                if(counts[row][i] < MAX_COUNT) {
+                    counts[row][i]++;
+                    incremented = true;
+                }
+            }
+            if(incremented && ++additions >= sampleSize)
+                age();
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for(int row = 0; row < counts.length; row++)
+                frequency = Math.min(frequency, counts[row][index(hash, row)]);
+            return frequency;
+        }
+
+        private void age() {
+            for(byte[] row: counts)
+                for(int i = 0; i < row.length; i++)
+                    row[i] >>= 1;
+            additions /= 2;
+        }
+    }
+
+    @NotThreadsafe
+    private class SnapshotIterator implements ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> {
+
+        private int nextSegment = 0;
+        private Iterator<Pair<ByteArray, Versioned<byte[]>>> current = null;
+
+        public boolean hasNext() {
+            while(current == null || !current.hasNext()) {
+                if(nextSegment >= segments.length)
+                    return false;
+                current = segments[nextSegment++].snapshot().iterator();
+            }
+            return true;
+        }
+
+        public Pair<ByteArray, Versioned<byte[]>> next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("No removal y'all.");
+        }
+
+        public void close() {}
+    }
+
+}
@@ -16,7 +16,6 @@
 
 package voldemort.store.memory;
 
-import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 
 import voldemort.server.VoldemortConfig;
@@ -47,8 +46,8 @@ public class CacheStorageConfiguration implements StorageConfiguration {
     public void close() {}
 
     public StorageEngine<ByteArray, byte[]> getStore(String name) {
-        ConcurrentMap<ByteArray, List<Versioned<byte[]>>> backingMap = new MapMaker().softValues()
-                                                                                     .makeMap();
+        ConcurrentMap<ByteArray, Versioned<byte[]>[]> backingMap = new MapMaker().softValues()
+                                                                                 .makeMap();
         return new InMemoryStorageEngine<ByteArray, byte[]>(name, backingMap);
     }
 
@@ -16,14 +16,10 @@
 
 package voldemort.store.memory;
 
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-
 import voldemort.server.VoldemortConfig;
 import voldemort.store.StorageConfiguration;
 import voldemort.store.StorageEngine;
 import voldemort.utils.ByteArray;
-import voldemort.versioning.Versioned;
 
 /**
  * A storage engine that uses a java.util.ConcurrentHashMap to hold the entries
@@ -41,8 +37,7 @@ public class InMemoryStorageConfiguration implements StorageConfiguration {
     public InMemoryStorageConfiguration(VoldemortConfig config) {}
 
     public StorageEngine<ByteArray, byte[]> getStore(String name) {
-        return new InMemoryStorageEngine<ByteArray, byte[]>(name,
-                                                            new ConcurrentHashMap<ByteArray, List<Versioned<byte[]>>>());
+        return new InMemoryStorageEngine<ByteArray, byte[]>(name);
     }
 
     public String getType() {
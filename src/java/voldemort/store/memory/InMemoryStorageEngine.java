@@ -17,6 +17,7 @@
 package voldemort.store.memory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -41,25 +42,35 @@ import voldemort.versioning.Versioned;
 /**
  * A simple non-persistent, in-memory store. Useful for unit testing.
  * 
+ * The versions of each key are kept in an immutable array that writes replace
+ * with a compare-and-swap on the map, so reads take no locks. Reads return a
+ * new modifiable list of the versions, since callers such as the
+ * inconsistency resolvers sort and add to the lists they are given.
+ * 
  * @author jay
  * @author dain
  * 
  */
 public class InMemoryStorageEngine<K, V> implements StorageEngine<K, V> {
 
-    private final ConcurrentMap<K, List<Versioned<V>>> map;
+    private final ConcurrentMap<K, Versioned<V>[]> map;
     private final String name;
 
     public InMemoryStorageEngine(String name) {
         this.name = Utils.notNull(name);
-        this.map = new ConcurrentHashMap<K, List<Versioned<V>>>();
+        this.map = new ConcurrentHashMap<K, Versioned<V>[]>();
     }
 
-    public InMemoryStorageEngine(String name, ConcurrentMap<K, List<Versioned<V>>> map) {
+    public InMemoryStorageEngine(String name, ConcurrentMap<K, Versioned<V>[]> map) {
         this.name = Utils.notNull(name);
         this.map = Utils.notNull(map);
     }
 
+    @SuppressWarnings("unchecked")
+    private static <V> Versioned<V>[] newArray(int size) {
+        return new Versioned[size];
+    }
+
     public void close() {}
 
     public void deleteAll() {
@@ -76,40 +87,46 @@ public class InMemoryStorageEngine<K, V> implements StorageEngine<K, V> {
         if(version == null)
             return map.remove(key) != null;
 
-        List<Versioned<V>> values = map.get(key);
-        if(values == null) {
-            return false;
-        }
-        synchronized(values) {
-            boolean deletedSomething = false;
-            Iterator<Versioned<V>> iterator = values.iterator();
-            while(iterator.hasNext()) {
-                Versioned<V> item = iterator.next();
-                if(item.getVersion().compare(version) == Occured.BEFORE) {
-                    iterator.remove();
-                    deletedSomething = true;
-                }
-            }
-            if(values.size() == 0) {
-                // If this remove fails, then another delete operation got
-                // there before this one
-                if(!map.remove(key, values))
-                    return false;
+        while(true) {
+            Versioned<V>[] items = map.get(key);
+            if(items == null)
+                return false;
+
+            int kept = 0;
+            for(Versioned<V> item: items)
+                if(item.getVersion().compare(version) != Occured.BEFORE)
+                    kept++;
+            if(kept == items.length)
+                return false;
+
+            // if either of these fails another write got there first, so retry
+            if(kept == 0) {
+                if(map.remove(key, items))
+                    return true;
+            } else {
+                Versioned<V>[] remaining = newArray(kept);
+                int i = 0;
+                for(Versioned<V> item: items)
+                    if(item.getVersion().compare(version) != Occured.BEFORE)
+                        remaining[i++] = item;
+                if(map.replace(key, items, remaining))
+                    return true;
             }
-
-            return deletedSomething;
         }
     }
 
     public List<Versioned<V>> get(K key) throws VoldemortException {
         StoreUtils.assertValidKey(key);
-        List<Versioned<V>> results = map.get(key);
-        if(results == null) {
+        return toList(map.get(key));
+    }
+
+    /*
+     * Callers may modify the list, so it is always a fresh ArrayList
+     */
+    private static <V> List<Versioned<V>> toList(Versioned<V>[] items) {
+        if(items == null)
             return new ArrayList<Versioned<V>>(0);
-        }
-        synchronized(results) {
-            return new ArrayList<Versioned<V>>(results);
-        }
+        return new ArrayList<Versioned<V>>(Arrays.asList(items));
     }
 
     public Map<K, List<Versioned<V>>> getAll(Iterable<K> keys) throws VoldemortException {
@@ -121,38 +138,40 @@ public class InMemoryStorageEngine<K, V> implements StorageEngine<K, V> {
         StoreUtils.assertValidKey(key);
 
         Version version = value.getVersion();
-        boolean success = false;
-        while(!success) {
-            List<Versioned<V>> items = map.get(key);
+        while(true) {
+            Versioned<V>[] items = map.get(key);
             // If we have no value, optimistically try to add one
             if(items == null) {
-                items = new ArrayList<Versioned<V>>();
-                items.add(new Versioned<V>(value.getValue(), version));
-                success = map.putIfAbsent(key, items) == null;
-            } else {
-                synchronized(items) {
-                    // if this check fails, items has been removed from the map
-                    // by delete, so we try again.
-                    if(map.get(key) != items)
-                        continue;
-
-                    // Check for existing versions - remember which items to
-                    // remove in case of success
-                    List<Versioned<V>> itemsToRemove = new ArrayList<Versioned<V>>(items.size());
-                    for(Versioned<V> versioned: items) {
-                        Occured occured = value.getVersion().compare(versioned.getVersion());
-                        if(occured == Occured.BEFORE) {
-                            throw new ObsoleteVersionException("Obsolete version for key '" + key
-                                                               + "': " + value.getVersion());
-                        } else if(occured == Occured.AFTER) {
-                            itemsToRemove.add(versioned);
-                        }
-                    }
-                    items.removeAll(itemsToRemove);
-                    items.add(value);
-                }
-                success = true;
+                Versioned<V>[] added = newArray(1);
+                added[0] = value;
+                if(map.putIfAbsent(key, added) == null)
+                    return;
+                continue;
+            }
+
+            // Check for existing versions, counting those this one doesn't
+            // supersede
+            int kept = 0;
+            for(Versioned<V> versioned: items) {
+                Occured occured = version.compare(versioned.getVersion());
+                if(occured == Occured.BEFORE)
+                    throw new ObsoleteVersionException("Obsolete version for key '" + key + "': "
+                                                       + version);
+                else if(occured != Occured.AFTER)
+                    kept++;
+            }
+            Versioned<V>[] updated = newArray(kept + 1);
+            if(kept > 0) {
+                int i = 0;
+                for(Versioned<V> versioned: items)
+                    if(version.compare(versioned.getVersion()) != Occured.AFTER)
+                        updated[i++] = versioned;
             }
+            updated[kept] = value;
+
+            // if this fails another write got there first, so retry
+            if(map.replace(key, items, updated))
+                return;
         }
     }
 
@@ -177,15 +196,16 @@ public class InMemoryStorageEngine<K, V> implements StorageEngine<K, V> {
         StringBuilder builder = new StringBuilder();
         builder.append("{");
         int count = 0;
-        for(Entry<K, List<Versioned<V>>> entry: map.entrySet()) {
+        for(Entry<K, Versioned<V>[]> entry: map.entrySet()) {
             if(count > size) {
                 builder.append("...");
                 break;
             }
             builder.append(entry.getKey());
             builder.append(':');
-            builder.append(entry.getValue());
+            builder.append(Arrays.toString(entry.getValue()));
             builder.append(',');
+            count++;
         }
         builder.append('}');
         return builder.toString();
@@ -194,11 +214,12 @@ public class InMemoryStorageEngine<K, V> implements StorageEngine<K, V> {
     @NotThreadsafe
     private static class InMemoryIterator<K, V> implements ClosableIterator<Pair<K, Versioned<V>>> {
 
-        private final Iterator<Entry<K, List<Versioned<V>>>> iterator;
+        private final Iterator<Entry<K, Versioned<V>[]>> iterator;
         private K currentKey;
-        private Iterator<Versioned<V>> currentValues;
+        private Versioned<V>[] currentValues;
+        private int currentIndex;
 
-        public InMemoryIterator(ConcurrentMap<K, List<Versioned<V>>> map) {
+        public InMemoryIterator(ConcurrentMap<K, Versioned<V>[]> map) {
             this.iterator = map.entrySet().iterator();
         }
 
@@ -207,38 +228,18 @@ public class InMemoryStorageEngine<K, V> implements StorageEngine<K, V> {
         }
 
         private boolean hasNextInCurrentValues() {
-            return currentValues != null && currentValues.hasNext();
-        }
-
-        private Pair<K, Versioned<V>> nextInCurrentValues() {
-            Versioned<V> item = currentValues.next();
-            return Pair.create(currentKey, item);
+            return currentValues != null && currentIndex < currentValues.length;
         }
 
         public Pair<K, Versioned<V>> next() {
-            if(hasNextInCurrentValues()) {
-                return nextInCurrentValues();
-            } else {
-                // keep trying to get a next, until we find one (they could get
-                // removed)
-                while(true) {
-                    Entry<K, List<Versioned<V>>> entry = iterator.next();
-
-                    List<Versioned<V>> list = entry.getValue();
-                    synchronized(list) {
-                        // okay we may have gotten an empty list, if so try
-                        // again
-                        if(list.size() == 0)
-                            continue;
-
-                        // grab a snapshot of the list while we have exclusive
-                        // access
-                        currentValues = new ArrayList<Versioned<V>>(list).iterator();
-                    }
-                    currentKey = entry.getKey();
-                    return nextInCurrentValues();
-                }
+            if(!hasNextInCurrentValues()) {
+                // the arrays are never modified, so no snapshot is needed
+                Entry<K, Versioned<V>[]> entry = iterator.next();
+                currentKey = entry.getKey();
+                currentValues = entry.getValue();
+                currentIndex = 0;
             }
+            return Pair.create(currentKey, currentValues[currentIndex++]);
         }
 
         public void remove() {
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import voldemort.server.VoldemortConfig;
+import voldemort.store.StorageConfiguration;
+import voldemort.store.StorageEngine;
+import voldemort.utils.ByteArray;
+import voldemort.utils.JmxUtils;
+
+/**
+ * Creates {@link OffHeapStorageEngine}s, in-memory stores that keep their data
+ * in direct memory outside the java heap.
+ */
+public class OffHeapStorageConfiguration implements StorageConfiguration {
+
+    public static final String TYPE_NAME = "off-heap";
+
+    private final int slabSize;
+    private final long maxBytes;
+    private final int numSegments;
+    private final int nodeId;
+    private final Set<ObjectName> registeredBeans;
+
+    public OffHeapStorageConfiguration(VoldemortConfig config) {
+        this.slabSize = config.getOffHeapSlabBytes();
+        this.maxBytes = config.getOffHeapMaxBytes();
+        this.numSegments = config.getOffHeapSegments();
+        this.nodeId = config.getNodeId();
+        this.registeredBeans = Collections.synchronizedSet(new HashSet<ObjectName>());
+    }
+
+    public void close() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName name: registeredBeans)
+            JmxUtils.unregisterMbean(server, name);
+    }
+
+    public StorageEngine<ByteArray, byte[]> getStore(String name) {
+        OffHeapStorageEngine store = new OffHeapStorageEngine(name,
+                                                              slabSize,
+                                                              maxBytes,
+                                                              numSegments);
+        ObjectName objName = JmxUtils.createObjectName(JmxUtils.getPackageName(store.getClass()),
+                                                       name + nodeId);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if(server.isRegistered(objName))
+            JmxUtils.unregisterMbean(server, objName);
+        JmxUtils.registerMbean(server, JmxUtils.createModelMBean(store), objName);
+        registeredBeans.add(objName);
+        return store;
+    }
+
+    public String getType() {
+        return TYPE_NAME;
+    }
+
+}
@@ -0,0 +1,526 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.concurrency.NotThreadsafe;
+import voldemort.annotations.concurrency.Threadsafe;
+import voldemort.annotations.jmx.JmxGetter;
+import voldemort.store.NoSuchCapabilityException;
+import voldemort.store.StorageEngine;
+import voldemort.store.StoreCapabilityType;
+import voldemort.store.StoreUtils;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.Pair;
+import voldemort.utils.Utils;
+import voldemort.versioning.ObsoleteVersionException;
+import voldemort.versioning.Occured;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+/**
+ * A non-persistent store that keeps its keys, vector clocks and values outside
+ * the java heap, so that holding tens of millions of entries adds nothing to
+ * the work of the garbage collector.
+ * 
+ * Each key's record lives in a chunk of direct memory handed out by a
+ * {@link SlabAllocator}:
+ * 
+ * <pre>
+ * key length (int), versions length (int), key bytes,
+ * then for each version: vector clock bytes, value length (int), value bytes
+ * </pre>
+ * 
+ * The keys are hashed into segments, each with a read-write lock and an open
+ * addressing (linear probing) hash table made of two primitive arrays, the hash
+ * of each key and the address of its record, so the index costs 12 bytes per
+ * slot and no objects per entry.
+ */
+@Threadsafe
+public class OffHeapStorageEngine implements StorageEngine<ByteArray, byte[]> {
+
+    private static final int INITIAL_SEGMENT_CAPACITY = 64;
+    private static final float MAX_LOAD_FACTOR = 0.75f;
+    private static final int ITERATOR_BATCH_SIZE = 1000;
+    private static final int HEADER_SIZE = 8;
+
+    private final String name;
+    private final int slabSize;
+    private final long maxBytes;
+    private final Segment[] segments;
+    private final int segmentShift;
+    private volatile SlabAllocator allocator;
+
+    /**
+     * @param name The name of the store
+     * @param slabSize The size of the slabs to allocate direct memory in
+     * @param maxBytes The most direct memory the store may allocate
+     * @param numSegments The number of segments to lock independently, rounded
+     *        up to a power of two
+     */
+    public OffHeapStorageEngine(String name, int slabSize, long maxBytes, int numSegments) {
+        if(numSegments <= 0)
+            throw new IllegalArgumentException("numSegments must be positive.");
+        this.name = Utils.notNull(name);
+        this.slabSize = slabSize;
+        this.maxBytes = maxBytes;
+        this.allocator = new SlabAllocator(slabSize, maxBytes);
+        int bits = 0;
+        while((1 << bits) < numSegments)
+            bits++;
+        this.segmentShift = 32 - bits;
+        this.segments = new Segment[1 << bits];
+        for(int i = 0; i < segments.length; i++)
+            segments[i] = new Segment();
+    }
+
+    private static int hash(ByteArray key) {
+        // finalize Arrays.hashCode so the low bits depend on the whole key
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int hash) {
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void close() {}
+
+    public Object getCapability(StoreCapabilityType capability) {
+        throw new NoSuchCapabilityException(capability, getName());
+    }
+
+    public List<Versioned<byte[]>> get(ByteArray key) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        int hash = hash(key);
+        return segmentFor(hash).get(key.get(), hash);
+    }
+
+    public Map<ByteArray, List<Versioned<byte[]>>> getAll(Iterable<ByteArray> keys)
+            throws VoldemortException {
+        StoreUtils.assertValidKeys(keys);
+        return StoreUtils.getAll(this, keys);
+    }
+
+    public void put(ByteArray key, Versioned<byte[]> value) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        int hash = hash(key);
+        segmentFor(hash).put(key.get(), hash, value);
+    }
+
+    public boolean delete(ByteArray key, Version version) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        int hash = hash(key);
+        return segmentFor(hash).delete(key.get(), hash, version);
+    }
+
+    /**
+     * Iterate over the entries a batch at a time. The iteration is weakly
+     * consistent: entries written during it may or may not be seen, and an
+     * entry moved in its segment's table by a concurrent resize or delete may
+     * be skipped or returned twice.
+     */
+    public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries() {
+        return new OffHeapIterator();
+    }
+
+    /**
+     * Remove all entries and release the direct memory
+     */
+    public void deleteAll() {
+        for(Segment segment: segments)
+            segment.lock.writeLock().lock();
+        try {
+            for(Segment segment: segments)
+                segment.clear();
+            allocator = new SlabAllocator(slabSize, maxBytes);
+        } finally {
+            for(Segment segment: segments)
+                segment.lock.writeLock().unlock();
+        }
+    }
+
+    @JmxGetter(name = "numEntries", description = "The number of keys in the store.")
+    public long getNumEntries() {
+        long count = 0;
+        for(Segment segment: segments)
+            count += segment.size;
+        return count;
+    }
+
+    @JmxGetter(name = "bytesAllocated", description = "The bytes of direct memory allocated.")
+    public long getBytesAllocated() {
+        return allocator.getBytesAllocated();
+    }
+
+    @JmxGetter(name = "bytesInUse", description = "The bytes of direct memory holding records.")
+    public long getBytesInUse() {
+        return allocator.getBytesInUse();
+    }
+
+    @JmxGetter(name = "indexBytes", description = "The bytes of heap used by the hash tables.")
+    public long getIndexBytes() {
+        long bytes = 0;
+        for(Segment segment: segments)
+            bytes += 12L * segment.capacity;
+        return bytes;
+    }
+
+    /*
+     * Record encoding, using absolute reads so that concurrent readers of a
+     * buffer don't interfere with each other
+     */
+
+    private static int recordSize(byte[] key, List<Versioned<byte[]>> values) {
+        int size = HEADER_SIZE + key.length;
+        for(Versioned<byte[]> versioned: values)
+            size += ((VectorClock) versioned.getVersion()).sizeInBytes() + 4
+                    + versioned.getValue().length;
+        return size;
+    }
+
+    private static void writeRecord(ByteBuffer buffer,
+                                    int offset,
+                                    byte[] key,
+                                    List<Versioned<byte[]>> values,
+                                    int size) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+        record.putInt(key.length);
+        record.putInt(size - HEADER_SIZE - key.length);
+        record.put(key);
+        for(Versioned<byte[]> versioned: values) {
+            record.put(((VectorClock) versioned.getVersion()).toBytes());
+            record.putInt(versioned.getValue().length);
+            record.put(versioned.getValue());
+        }
+    }
+
+    private static boolean keyEquals(ByteBuffer buffer, int offset, byte[] key) {
+        if(buffer.getInt(offset) != key.length)
+            return false;
+        int start = offset + HEADER_SIZE;
+        for(int i = 0; i < key.length; i++)
+            if(buffer.get(start + i) != key[i])
+                return false;
+        return true;
+    }
+
+    private static byte[] readKey(ByteBuffer buffer, int offset) {
+        byte[] key = new byte[buffer.getInt(offset)];
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + HEADER_SIZE);
+        record.get(key);
+        return key;
+    }
+
+    private static List<Versioned<byte[]>> readValues(ByteBuffer buffer, int offset) {
+        int keyLength = buffer.getInt(offset);
+        byte[] bytes = new byte[buffer.getInt(offset + 4)];
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + HEADER_SIZE + keyLength);
+        record.get(bytes);
+
+        List<Versioned<byte[]>> values = new ArrayList<Versioned<byte[]>>(1);
+        int position = 0;
+        while(position < bytes.length) {
+            VectorClock clock = new VectorClock(bytes, position);
+            position += clock.sizeInBytes();
+            int length = ((bytes[position] & 0xff) << 24) | ((bytes[position + 1] & 0xff) << 16)
+                         | ((bytes[position + 2] & 0xff) << 8) | (bytes[position + 3] & 0xff);
+            position += 4;
+            byte[] value = new byte[length];
+            System.arraycopy(bytes, position, value, 0, length);
+            position += length;
+            values.add(new Versioned<byte[]>(value, clock));
+        }
+        return values;
+    }
+
+    /**
+     * An open addressing hash table from key hash to record address
+     */
+    private final class Segment {
+
+        private final ReadWriteLock lock;
+        private int[] hashes;
+        private long[] addresses;
+        private int capacity;
+        private volatile int size;
+
+        Segment() {
+            this.lock = new ReentrantReadWriteLock();
+            clear();
+        }
+
+        void clear() {
+            this.capacity = INITIAL_SEGMENT_CAPACITY;
+            this.hashes = new int[capacity];
+            this.addresses = new long[capacity];
+            this.size = 0;
+        }
+
+        /* Find the slot holding the key, or -1 */
+        private int find(byte[] key, int hash) {
+            SlabAllocator allocator = OffHeapStorageEngine.this.allocator;
+            int mask = capacity - 1;
+            for(int slot = hash & mask;; slot = (slot + 1) & mask) {
+                long address = addresses[slot];
+                if(address == 0)
+                    return -1;
+                if(hashes[slot] == hash
+                   && keyEquals(allocator.getBuffer(address),
+                                SlabAllocator.getOffset(address),
+                                key))
+                    return slot;
+            }
+        }
+
+        List<Versioned<byte[]>> get(byte[] key, int hash) {
+            lock.readLock().lock();
+            try {
+                int slot = find(key, hash);
+                if(slot < 0)
+                    return new ArrayList<Versioned<byte[]>>(0);
+                return read(addresses[slot]);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void put(byte[] key, int hash, Versioned<byte[]> value) {
+            lock.writeLock().lock();
+            try {
+                int slot = find(key, hash);
+                List<Versioned<byte[]>> values;
+                if(slot < 0) {
+                    values = new ArrayList<Versioned<byte[]>>(1);
+                } else {
+                    values = read(addresses[slot]);
+                    Version version = value.getVersion();
+                    Iterator<Versioned<byte[]>> iterator = values.iterator();
+                    while(iterator.hasNext()) {
+                        Occured occured = version.compare(iterator.next().getVersion());
+                        if(occured == Occured.BEFORE)
+                            throw new ObsoleteVersionException("Obsolete version for key '"
+                                                               + new ByteArray(key) + "': "
+                                                               + version);
+                        else if(occured == Occured.AFTER)
+                            iterator.remove();
+                    }
+                }
+                values.add(value);
+                write(slot, key, hash, values);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        boolean delete(byte[] key, int hash, Version version) {
+            lock.writeLock().lock();
+            try {
+                int slot = find(key, hash);
+                if(slot < 0)
+                    return false;
+                if(version == null) {
+                    remove(slot);
+                    return true;
+                }
+                List<Versioned<byte[]>> values = read(addresses[slot]);
+                boolean deletedSomething = false;
+                Iterator<Versioned<byte[]>> iterator = values.iterator();
+                while(iterator.hasNext()) {
+                    if(iterator.next().getVersion().compare(version) == Occured.BEFORE) {
+                        iterator.remove();
+                        deletedSomething = true;
+                    }
+                }
+                if(values.isEmpty())
+                    remove(slot);
+                else if(deletedSomething)
+                    write(slot, key, hash, values);
+                return deletedSomething;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private List<Versioned<byte[]>> read(long address) {
+            return readValues(allocator.getBuffer(address), SlabAllocator.getOffset(address));
+        }
+
+        /*
+         * Write the record for the key into the given slot, or a new one if the
+         * slot is negative, reusing the old chunk if the record still fits
+         */
+        private void write(int slot, byte[] key, int hash, List<Versioned<byte[]>> values) {
+            int recordSize = recordSize(key, values);
+            long address;
+            if(slot >= 0 && allocator.fits(addresses[slot], recordSize)) {
+                address = addresses[slot];
+            } else {
+                address = allocator.allocate(recordSize);
+                if(slot >= 0)
+                    allocator.free(addresses[slot]);
+            }
+            writeRecord(allocator.getBuffer(address),
+                        SlabAllocator.getOffset(address),
+                        key,
+                        values,
+                        recordSize);
+            if(slot >= 0) {
+                addresses[slot] = address;
+            } else {
+                if(size + 1 > capacity * MAX_LOAD_FACTOR)
+                    resize();
+                insert(hash, address);
+                size++;
+            }
+        }
+
+        private void insert(int hash, long address) {
+            int mask = capacity - 1;
+            int slot = hash & mask;
+            while(addresses[slot] != 0)
+                slot = (slot + 1) & mask;
+            hashes[slot] = hash;
+            addresses[slot] = address;
+        }
+
+        private void resize() {
+            int[] oldHashes = hashes;
+            long[] oldAddresses = addresses;
+            capacity *= 2;
+            hashes = new int[capacity];
+            addresses = new long[capacity];
+            for(int i = 0; i < oldAddresses.length; i++)
+                if(oldAddresses[i] != 0)
+                    insert(oldHashes[i], oldAddresses[i]);
+        }
+
+        /*
+         * Free the record in the slot and shift back any following entries
+         * that would no longer be reachable from their home slot
+         */
+        private void remove(int slot) {
+            allocator.free(addresses[slot]);
+            int mask = capacity - 1;
+            int empty = slot;
+            int next = slot;
+            while(true) {
+                next = (next + 1) & mask;
+                if(addresses[next] == 0)
+                    break;
+                int home = hashes[next] & mask;
+                boolean reachable = empty <= next ? empty < home && home <= next : empty < home
+                                                                                 || home <= next;
+                if(reachable)
+                    continue;
+                hashes[empty] = hashes[next];
+                addresses[empty] = addresses[next];
+                empty = next;
+            }
+            hashes[empty] = 0;
+            addresses[empty] = 0;
+            size--;
+        }
+
+        /*
+         * Read the entries in up to a batch of slots starting at the given one
+         * 
+         * @return The slot to continue from, or -1 when the table is done
+         */
+        int readBatch(int start, List<Pair<ByteArray, Versioned<byte[]>>> batch) {
+            lock.readLock().lock();
+            try {
+                SlabAllocator allocator = OffHeapStorageEngine.this.allocator;
+                int slot = start;
+                int count = 0;
+                for(; slot < capacity && count < ITERATOR_BATCH_SIZE; slot++) {
+                    long address = addresses[slot];
+                    if(address == 0)
+                        continue;
+                    ByteBuffer buffer = allocator.getBuffer(address);
+                    int offset = SlabAllocator.getOffset(address);
+                    ByteArray key = new ByteArray(readKey(buffer, offset));
+                    for(Versioned<byte[]> versioned: readValues(buffer, offset))
+                        batch.add(Pair.create(key, versioned));
+                    count++;
+                }
+                return slot < capacity ? slot : -1;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    @NotThreadsafe
+    private class OffHeapIterator implements ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> {
+
+        private final List<Pair<ByteArray, Versioned<byte[]>>> batch = new ArrayList<Pair<ByteArray, Versioned<byte[]>>>();
+        private int segment = 0;
+        private int slot = 0;
+        private int position = 0;
+
+        public boolean hasNext() {
+            while(position >= batch.size()) {
+                if(segment >= segments.length)
+                    return false;
+                batch.clear();
+                position = 0;
+                slot = segments[segment].readBatch(slot, batch);
+                if(slot < 0) {
+                    segment++;
+                    slot = 0;
+                }
+            }
+            return true;
+        }
+
+        public Pair<ByteArray, Versioned<byte[]>> next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return batch.get(position++);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("No removal y'all.");
+        }
+
+        public void close() {}
+    }
+
+}
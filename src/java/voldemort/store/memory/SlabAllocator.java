@@ -0,0 +1,241 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import java.nio.ByteBuffer;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.concurrency.Threadsafe;
+
+/**
+ * Hands out chunks of direct (off-heap) memory. Memory is allocated from the
+ * operating system in slabs of a fixed size, each of which is carved into
+ * equal chunks of one size class; freed chunks go on a free list for their
+ * class and are reused. Requests bigger than a slab get a buffer of their own
+ * that is released when freed.
+ * 
+ * A chunk is identified by an address: the slab id in the high 32 bits and the
+ * offset in the slab in the low 32 bits. Address 0 is never used, so it can
+ * mark an empty slot.
+ * 
+ * The buffers of slabs that have been handed out never change, so readers can
+ * look them up without taking the allocator's lock.
+ */
+@Threadsafe
+public class SlabAllocator {
+
+    private static final int MIN_CHUNK_SIZE = 32;
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final int LARGE = -1;
+
+    private final int slabSize;
+    private final long maxBytes;
+    private final int[] chunkSizes;
+    private final long[][] freeLists;
+    private final int[] freeCounts;
+    private final int[] nextOffsets;
+    private final int[] currentSlabs;
+    private volatile ByteBuffer[] slabs;
+    private int[] slabClasses;
+    private int numSlabs;
+    private int[] freeSlabIds;
+    private int numFreeSlabIds;
+    private long bytesAllocated;
+    private long bytesInUse;
+
+    /**
+     * @param slabSize The size of each slab
+     * @param maxBytes The most direct memory to allocate, after which
+     *        allocations fail
+     */
+    public SlabAllocator(int slabSize, long maxBytes) {
+        if(slabSize < MIN_CHUNK_SIZE)
+            throw new IllegalArgumentException("Slab size must be at least " + MIN_CHUNK_SIZE
+                                               + " bytes.");
+        this.slabSize = slabSize;
+        this.maxBytes = maxBytes;
+        this.chunkSizes = computeChunkSizes(slabSize);
+        this.freeLists = new long[chunkSizes.length][16];
+        this.freeCounts = new int[chunkSizes.length];
+        this.nextOffsets = new int[chunkSizes.length];
+        this.currentSlabs = new int[chunkSizes.length];
+        this.slabs = new ByteBuffer[16];
+        this.slabClasses = new int[16];
+        // slab id 0 is reserved so that no address is 0
+        this.numSlabs = 1;
+        this.freeSlabIds = new int[16];
+    }
+
+    private static int[] computeChunkSizes(int slabSize) {
+        int count = 0;
+        int[] sizes = new int[64];
+        int size = MIN_CHUNK_SIZE;
+        while(size < slabSize) {
+            if(count == sizes.length) {
+                int[] bigger = new int[2 * count];
+                System.arraycopy(sizes, 0, bigger, 0, count);
+                sizes = bigger;
+            }
+            sizes[count++] = size;
+            // keep chunks 8 byte aligned
+            size = ((int) (size * GROWTH_FACTOR) + 7) & ~7;
+        }
+        int[] result = new int[count + 1];
+        System.arraycopy(sizes, 0, result, 0, count);
+        result[count] = slabSize;
+        return result;
+    }
+
+    private int sizeClassFor(int size) {
+        for(int i = 0; i < chunkSizes.length; i++)
+            if(chunkSizes[i] >= size)
+                return i;
+        return LARGE;
+    }
+
+    /**
+     * Allocate a chunk of at least the given size
+     * 
+     * @return The address of the chunk
+     * @throws VoldemortException If the memory limit has been reached
+     */
+    public synchronized long allocate(int size) {
+        int sizeClass = sizeClassFor(size);
+        long address;
+        int chunkSize;
+        if(sizeClass == LARGE) {
+            chunkSize = size;
+            address = toAddress(addSlab(size, LARGE), 0);
+        } else {
+            chunkSize = chunkSizes[sizeClass];
+            if(freeCounts[sizeClass] > 0) {
+                address = freeLists[sizeClass][--freeCounts[sizeClass]];
+            } else {
+                if(currentSlabs[sizeClass] == 0 || nextOffsets[sizeClass] + chunkSize > slabSize) {
+                    currentSlabs[sizeClass] = addSlab(slabSize, sizeClass);
+                    nextOffsets[sizeClass] = 0;
+                }
+                address = toAddress(currentSlabs[sizeClass], nextOffsets[sizeClass]);
+                nextOffsets[sizeClass] += chunkSize;
+            }
+        }
+        bytesInUse += chunkSize;
+        return address;
+    }
+
+    private int addSlab(int size, int sizeClass) {
+        if(bytesAllocated + size > maxBytes)
+            throw new VoldemortException("Cannot allocate " + size + " bytes, " + bytesAllocated
+                                         + " of the maximum " + maxBytes
+                                         + " bytes are already allocated.");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        int id;
+        if(numFreeSlabIds > 0) {
+            id = freeSlabIds[--numFreeSlabIds];
+        } else {
+            id = numSlabs++;
+            if(id == slabs.length) {
+                ByteBuffer[] biggerSlabs = new ByteBuffer[2 * id];
+                System.arraycopy(slabs, 0, biggerSlabs, 0, id);
+                int[] biggerClasses = new int[2 * id];
+                System.arraycopy(slabClasses, 0, biggerClasses, 0, id);
+                slabClasses = biggerClasses;
+                // publish the new array only once it is complete
+                slabs = biggerSlabs;
+            }
+        }
+        slabs[id] = buffer;
+        slabClasses[id] = sizeClass;
+        bytesAllocated += size;
+        return id;
+    }
+
+    /**
+     * Return the chunk at the given address for reuse
+     */
+    public synchronized void free(long address) {
+        int id = slabId(address);
+        int sizeClass = slabClasses[id];
+        if(sizeClass == LARGE) {
+            int size = slabs[id].capacity();
+            slabs[id] = null;
+            bytesAllocated -= size;
+            bytesInUse -= size;
+            if(numFreeSlabIds == freeSlabIds.length) {
+                int[] bigger = new int[2 * numFreeSlabIds];
+                System.arraycopy(freeSlabIds, 0, bigger, 0, numFreeSlabIds);
+                freeSlabIds = bigger;
+            }
+            freeSlabIds[numFreeSlabIds++] = id;
+        } else {
+            long[] freeList = freeLists[sizeClass];
+            if(freeCounts[sizeClass] == freeList.length) {
+                long[] bigger = new long[2 * freeList.length];
+                System.arraycopy(freeList, 0, bigger, 0, freeList.length);
+                freeLists[sizeClass] = freeList = bigger;
+            }
+            freeList[freeCounts[sizeClass]++] = address;
+            bytesInUse -= chunkSizes[sizeClass];
+        }
+    }
+
+    /**
+     * @return true if data of the given size can be stored in the chunk at the
+     *         given address without wasting more space than a fresh allocation
+     *         would
+     */
+    public synchronized boolean fits(long address, int size) {
+        int sizeClass = slabClasses[slabId(address)];
+        if(sizeClass == LARGE)
+            return size == slabs[slabId(address)].capacity();
+        return sizeClass == sizeClassFor(size);
+    }
+
+    /**
+     * @return The buffer holding the chunk at the given address
+     */
+    public ByteBuffer getBuffer(long address) {
+        return slabs[slabId(address)];
+    }
+
+    public static int getOffset(long address) {
+        return (int) address;
+    }
+
+    private static int slabId(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static long toAddress(int slabId, int offset) {
+        return ((long) slabId << 32) | offset;
+    }
+
+    /**
+     * @return The bytes of direct memory allocated
+     */
+    public synchronized long getBytesAllocated() {
+        return bytesAllocated;
+    }
+
+    /**
+     * @return The bytes in chunks that are currently handed out
+     */
+    public synchronized long getBytesInUse() {
+        return bytesInUse;
+    }
+
+}
@@ -31,19 +31,70 @@ public class MysqlStorageConfiguration implements StorageConfiguration {
     public static final String TYPE_NAME = "mysql";
 
     private BasicDataSource dataSource;
+    private final int getAllBatchSize;
+    private final int fetchSize;
+    private final boolean partitionColumn;
 
     public MysqlStorageConfiguration(VoldemortConfig config) {
+        this.dataSource = createDataSource("jdbc:mysql://" + config.getMysqlHost() + ":"
+                                                   + config.getMysqlPort() + "/"
+                                                   + config.getMysqlDatabaseName(),
+                                           config.getMysqlUsername(),
+                                           config.getMysqlPassword(),
+                                           config.getMysqlMaxConnections(),
+                                           config.getMysqlMaxWaitMs(),
+                                           config.getMysqlStatementCacheSize());
+        this.getAllBatchSize = config.getMysqlGetAllBatchSize();
+        this.fetchSize = config.getMysqlFetchSize();
+        this.partitionColumn = config.isMysqlPartitionColumnEnabled();
+    }
+
+    /**
+     * Create a connection pool for the stores
+     * 
+     * @param url The JDBC url of the database
+     * @param username The user to connect as
+     * @param password The user's password
+     * @param maxConnections The most connections to open, all of which are kept
+     *        open when idle since opening connections is slow
+     * @param maxWaitMs How long to wait for a connection when all are in use
+     * @param statementCacheSize The number of prepared statements to keep open
+     *        per connection, or 0 for none
+     * @return The pool
+     */
+    public static BasicDataSource createDataSource(String url,
+                                                   String username,
+                                                   String password,
+                                                   int maxConnections,
+                                                   long maxWaitMs,
+                                                   int statementCacheSize) {
         BasicDataSource ds = new BasicDataSource();
-        ds.setUrl("jdbc:mysql://" + config.getMysqlHost() + ":" + config.getMysqlPort() + "/"
-                  + config.getMysqlDatabaseName());
-        ds.setUsername(config.getMysqlUsername());
-        ds.setPassword(config.getMysqlPassword());
+        ds.setUrl(url);
+        ds.setUsername(username);
+        ds.setPassword(password);
         ds.setDriverClassName("com.mysql.jdbc.Driver");
-        this.dataSource = ds;
+        ds.setMaxActive(maxConnections);
+        ds.setMaxIdle(maxConnections);
+        ds.setMaxWait(maxWaitMs);
+        ds.setDefaultAutoCommit(true);
+        if(statementCacheSize > 0) {
+            ds.setPoolPreparedStatements(true);
+            ds.setMaxOpenPreparedStatements(statementCacheSize);
+        }
+        // send each batch of deletes as a single multi-row statement
+        ds.addConnectionProperty("rewriteBatchedStatements", "true");
+        // read large results through a server side cursor, a fetch size at a
+        // time, instead of buffering them all in memory
+        ds.addConnectionProperty("useCursorFetch", "true");
+        return ds;
     }
 
     public StorageEngine<ByteArray, byte[]> getStore(String name) {
-        return new MysqlStorageEngine(name, dataSource);
+        return new MysqlStorageEngine(name,
+                                      dataSource,
+                                      getAllBatchSize,
+                                      fetchSize,
+                                      partitionColumn);
     }
 
     public String getType() {
@@ -20,17 +20,27 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.sql.DataSource;
 
 import org.apache.log4j.Logger;
 
 import voldemort.VoldemortException;
+import voldemort.routing.RoutingStrategy;
+import voldemort.store.BulkLoadStorageEngine;
 import voldemort.store.NoSuchCapabilityException;
+import voldemort.store.PartitionAwareStorageEngine;
 import voldemort.store.PersistenceFailureException;
-import voldemort.store.StorageEngine;
 import voldemort.store.StoreCapabilityType;
 import voldemort.store.StoreUtils;
 import voldemort.utils.ByteArray;
@@ -47,10 +57,30 @@ import com.google.common.collect.Lists;
 /**
  * A StorageEngine that uses Mysql for persistence
  * 
+ * The SQL for each operation is built once so that a datasource that pools
+ * prepared statements, as the one made by {@link MysqlStorageConfiguration}
+ * does, can reuse them. getAll fetches many keys per query with a
+ * "key_ in (...)" clause whose number of parameters is rounded up to a power of
+ * two, so that only a handful of distinct statements are ever prepared.
+ * 
+ * Iteration reads the table through a server side cursor, fetching a bounded
+ * number of rows at a time, rather than having the driver buffer the whole
+ * table in memory. The store can optionally keep the master partition of each
+ * key in an indexed partition_ column so that the entries of a few partitions
+ * are fetched with an index lookup rather than a scan of the table.
+ * 
+ * A bulk put locks the existing versions of a batch of keys with one query,
+ * resolves the new versions against them in memory, and sends the deletes and
+ * inserts as JDBC batches in a single transaction.
+ * 
  * @author jay
  * 
  */
-public class MysqlStorageEngine implements StorageEngine<ByteArray, byte[]> {
+public class MysqlStorageEngine implements PartitionAwareStorageEngine<ByteArray, byte[]>,
+        BulkLoadStorageEngine<ByteArray, byte[]> {
+
+    public static final int DEFAULT_GET_ALL_BATCH_SIZE = 128;
+    public static final int DEFAULT_FETCH_SIZE = 1000;
 
     private static final Logger logger = Logger.getLogger(MysqlStorageEngine.class);
     private static int MYSQL_ERR_DUP_KEY = 1022;
@@ -58,21 +88,92 @@ public class MysqlStorageEngine implements StorageEngine<ByteArray, byte[]> {
 
     private final String name;
     private final DataSource datasource;
+    private final int getAllBatchSize;
+    private final int fetchSize;
+    private final boolean partitionColumn;
+    private volatile RoutingStrategy routingStrategy;
+
+    private final String selectSql;
+    private final String selectForUpdateSql;
+    private final String insertSql;
+    private final String deleteSql;
+    private final String[] selectInSql;
+    private final String[] selectVersionsInForUpdateSql;
 
     public MysqlStorageEngine(String name, DataSource datasource) {
+        this(name, datasource, DEFAULT_GET_ALL_BATCH_SIZE, DEFAULT_FETCH_SIZE, false);
+    }
+
+    /**
+     * @param name The name of the store, which is also the table name
+     * @param datasource The datasource to get connections from
+     * @param getAllBatchSize The most keys to fetch in one query
+     * @param fetchSize The number of rows to fetch at a time when iterating,
+     *        which only bounds memory if the connection has useCursorFetch set
+     * @param partitionColumn Keep the master partition of each key in an
+     *        indexed column, adding it to an existing table if needed
+     */
+    public MysqlStorageEngine(String name,
+                              DataSource datasource,
+                              int getAllBatchSize,
+                              int fetchSize,
+                              boolean partitionColumn) {
+        if(getAllBatchSize < 1)
+            throw new IllegalArgumentException("getAllBatchSize must be positive.");
+        if(fetchSize < 1)
+            throw new IllegalArgumentException("fetchSize must be positive.");
         this.name = name;
         this.datasource = datasource;
+        this.getAllBatchSize = getAllBatchSize;
+        this.fetchSize = fetchSize;
+        this.partitionColumn = partitionColumn;
+
+        this.selectSql = "select version_, value_ from " + name + " where key_ = ?";
+        this.selectForUpdateSql = "select version_ from " + name + " where key_ = ? for update";
+        if(partitionColumn)
+            this.insertSql = "insert into " + name
+                             + " (key_, version_, value_, partition_) values (?, ?, ?, ?)";
+        else
+            this.insertSql = "insert into " + name + " (key_, version_, value_) values (?, ?, ?)";
+        this.deleteSql = "delete from " + name + " where key_ = ? and version_ = ?";
+        // one statement for each power of two number of keys up to the batch
+        int numSizes = 1;
+        while((1 << (numSizes - 1)) < getAllBatchSize)
+            numSizes++;
+        this.selectInSql = new String[numSizes];
+        this.selectVersionsInForUpdateSql = new String[numSizes];
+        for(int i = 0; i < numSizes; i++) {
+            StringBuilder params = new StringBuilder("(?");
+            for(int j = 1; j < (1 << i); j++)
+                params.append(", ?");
+            params.append(")");
+            selectInSql[i] = "select key_, version_, value_ from " + name + " where key_ in "
+                             + params;
+            selectVersionsInForUpdateSql[i] = "select key_, version_ from " + name
+                                              + " where key_ in " + params + " for update";
+        }
 
         if(!tableExists()) {
             create();
+        } else if(partitionColumn && !partitionColumnExists()) {
+            logger.info("Adding partition column to table " + name + ".");
+            execute("alter table " + name + " add column partition_ int, add index "
+                    + "partition_idx (partition_)");
         }
     }
 
     private boolean tableExists() {
+        return exists("show tables like '" + getName() + "'");
+    }
+
+    private boolean partitionColumnExists() {
+        return exists("show columns from " + getName() + " like 'partition_'");
+    }
+
+    private boolean exists(String select) {
         Connection conn = null;
         PreparedStatement stmt = null;
         ResultSet rs = null;
-        String select = "show tables like '" + getName() + "'";
         try {
             conn = this.datasource.getConnection();
             stmt = conn.prepareStatement(select);
@@ -93,9 +194,15 @@ public class MysqlStorageEngine implements StorageEngine<ByteArray, byte[]> {
     }
 
     public void create() {
-        execute("create table " + getName()
-                + " (key_ varbinary(200) not null, version_ varbinary(200) not null, "
-                + " value_ blob, primary key(key_, version_)) engine = InnoDB");
+        if(partitionColumn)
+            execute("create table " + getName()
+                    + " (key_ varbinary(200) not null, version_ varbinary(200) not null, "
+                    + " value_ blob, partition_ int, primary key(key_, version_), "
+                    + " index partition_idx (partition_)) engine = InnoDB");
+        else
+            execute("create table " + getName()
+                    + " (key_ varbinary(200) not null, version_ varbinary(200) not null, "
+                    + " value_ blob, primary key(key_, version_)) engine = InnoDB");
     }
 
     public void execute(String query) {
@@ -114,16 +221,58 @@ public class MysqlStorageEngine implements StorageEngine<ByteArray, byte[]> {
     }
 
     public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries() {
+        return iterate("select key_, version_, value_ from " + name, new int[0]);
+    }
+
+    public void setRoutingStrategy(RoutingStrategy routingStrategy) {
+        this.routingStrategy = routingStrategy;
+    }
+
+    public boolean isPartitionAware() {
+        return partitionColumn;
+    }
+
+    public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries(Collection<Integer> masterPartitions,
+                                                                        boolean includeUnknown) {
+        if(!partitionColumn)
+            return entries();
+        int[] partitions = new int[masterPartitions.size()];
+        StringBuilder select = new StringBuilder("select key_, version_, value_ from " + name
+                                                 + " where partition_ in (");
+        int i = 0;
+        for(int partition: masterPartitions) {
+            select.append(i == 0 ? "?" : ", ?");
+            partitions[i++] = partition;
+        }
+        if(partitions.length == 0)
+            select.append("null");
+        select.append(")");
+        // separate selects so that each can use the index
+        if(includeUnknown)
+            select.append(" union all select key_, version_, value_ from " + name
+                          + " where partition_ is null");
+        return iterate(select.toString(), partitions);
+    }
+
+    private ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> iterate(String select,
+                                                                         int[] params) {
         Connection conn = null;
         PreparedStatement stmt = null;
         ResultSet rs = null;
-        String select = "select key_, version_, value_ from " + name;
         try {
             conn = datasource.getConnection();
-            stmt = conn.prepareStatement(select);
+            stmt = conn.prepareStatement(select,
+                                         ResultSet.TYPE_FORWARD_ONLY,
+                                         ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(fetchSize);
+            for(int i = 0; i < params.length; i++)
+                stmt.setInt(i + 1, params[i]);
             rs = stmt.executeQuery();
             return new MysqlClosableIterator(conn, stmt, rs);
         } catch(SQLException e) {
+            tryClose(rs);
+            tryClose(stmt);
+            tryClose(conn);
             throw new PersistenceFailureException("Fix me!", e);
         }
     }
@@ -138,72 +287,96 @@ public class MysqlStorageEngine implements StorageEngine<ByteArray, byte[]> {
 
     public boolean delete(ByteArray key, Version maxVersion) throws PersistenceFailureException {
         StoreUtils.assertValidKey(key);
+        boolean doCommit = false;
         Connection conn = null;
         PreparedStatement selectStmt = null;
+        PreparedStatement deleteStmt = null;
         ResultSet rs = null;
-        String select = "select key_, version_ from " + name + " where key_ = ? for update";
 
         try {
             conn = datasource.getConnection();
-            selectStmt = conn.prepareStatement(select);
+            conn.setAutoCommit(false);
+            selectStmt = conn.prepareStatement(selectForUpdateSql);
             selectStmt.setBytes(1, key.get());
             rs = selectStmt.executeQuery();
+            deleteStmt = conn.prepareStatement(deleteSql);
             boolean deletedSomething = false;
             while(rs.next()) {
-                byte[] theKey = rs.getBytes("key_");
                 byte[] version = rs.getBytes("version_");
                 if(new VectorClock(version).compare(maxVersion) == Occured.BEFORE) {
-                    delete(conn, theKey, version);
+                    addDelete(deleteStmt, key.get(), version);
                     deletedSomething = true;
                 }
             }
-
+            if(deletedSomething)
+                deleteStmt.executeBatch();
+            doCommit = true;
             return deletedSomething;
         } catch(SQLException e) {
             throw new PersistenceFailureException("Fix me!", e);
         } finally {
+            endTransaction(conn, doCommit);
             tryClose(rs);
+            tryClose(deleteStmt);
             tryClose(selectStmt);
             tryClose(conn);
         }
     }
 
-    private void delete(Connection connection, byte[] key, byte[] version) throws SQLException {
-        String delete = "delete from " + name + " where key_ = ? and version_ = ?";
-        PreparedStatement deleteStmt = null;
-        try {
+    private void addDelete(PreparedStatement deleteStmt, byte[] key, byte[] version)
+            throws SQLException {
+        deleteStmt.setBytes(1, key);
+        deleteStmt.setBytes(2, version);
+        deleteStmt.addBatch();
+    }
 
-            deleteStmt = connection.prepareStatement(delete);
-            deleteStmt.setBytes(1, key);
-            deleteStmt.setBytes(2, version);
-            deleteStmt.executeUpdate();
-        } finally {
-            tryClose(deleteStmt);
+    private void endTransaction(Connection conn, boolean doCommit) {
+        if(conn != null) {
+            try {
+                if(doCommit)
+                    conn.commit();
+                else
+                    conn.rollback();
+                // pooled connections are shared, so put it back as we found it
+                conn.setAutoCommit(true);
+            } catch(SQLException e) {}
         }
     }
 
     public Map<ByteArray, List<Versioned<byte[]>>> getAll(Iterable<ByteArray> keys)
             throws VoldemortException {
         StoreUtils.assertValidKeys(keys);
+        Set<ByteArray> unique = new LinkedHashSet<ByteArray>();
+        for(ByteArray key: keys)
+            unique.add(key);
+        List<ByteArray> keyList = new ArrayList<ByteArray>(unique);
         Connection conn = null;
         PreparedStatement stmt = null;
         ResultSet rs = null;
-        String select = "select version_, value_ from " + name + " where key_ = ?";
         try {
             conn = datasource.getConnection();
-            stmt = conn.prepareStatement(select);
-            Map<ByteArray, List<Versioned<byte[]>>> result = StoreUtils.newEmptyHashMap(keys);
-            for(ByteArray key: keys) {
-                stmt.setBytes(1, key.get());
+            Map<ByteArray, List<Versioned<byte[]>>> result = StoreUtils.newEmptyHashMap(keyList);
+            for(int start = 0; start < keyList.size(); start += getAllBatchSize) {
+                int end = Math.min(keyList.size(), start + getAllBatchSize);
+                int sizeIndex = sizeIndex(end - start);
+                stmt = conn.prepareStatement(selectInSql[sizeIndex]);
+                setKeys(stmt, sizeIndex, keyList, start, end);
                 rs = stmt.executeQuery();
-                List<Versioned<byte[]>> found = Lists.newArrayList();
                 while(rs.next()) {
+                    ByteArray key = new ByteArray(rs.getBytes("key_"));
                     byte[] version = rs.getBytes("version_");
                     byte[] value = rs.getBytes("value_");
+                    List<Versioned<byte[]>> found = result.get(key);
+                    if(found == null) {
+                        found = Lists.newArrayListWithExpectedSize(1);
+                        result.put(key, found);
+                    }
                     found.add(new Versioned<byte[]>(value, new VectorClock(version)));
                 }
-                if(found.size() > 0)
-                    result.put(key, found);
+                tryClose(rs);
+                rs = null;
+                tryClose(stmt);
+                stmt = null;
             }
             return result;
         } catch(SQLException e) {
@@ -215,9 +388,51 @@ public class MysqlStorageEngine implements StorageEngine<ByteArray, byte[]> {
         }
     }
 
+    /*
+     * The index of the "in (...)" statement with enough parameters for the
+     * given number of keys
+     */
+    private int sizeIndex(int numKeys) {
+        int sizeIndex = 0;
+        while((1 << sizeIndex) < numKeys)
+            sizeIndex++;
+        return sizeIndex;
+    }
+
+    private void setKeys(PreparedStatement stmt,
+                         int sizeIndex,
+                         List<ByteArray> keys,
+                         int start,
+                         int end) throws SQLException {
+        // fill the unused parameters by repeating the last key
+        for(int i = 0; i < (1 << sizeIndex); i++)
+            stmt.setBytes(i + 1, keys.get(Math.min(start + i, end - 1)).get());
+    }
+
     public List<Versioned<byte[]>> get(ByteArray key) throws PersistenceFailureException {
         StoreUtils.assertValidKey(key);
-        return StoreUtils.get(this, key);
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = datasource.getConnection();
+            stmt = conn.prepareStatement(selectSql);
+            stmt.setBytes(1, key.get());
+            rs = stmt.executeQuery();
+            List<Versioned<byte[]>> found = Lists.newArrayListWithExpectedSize(1);
+            while(rs.next()) {
+                byte[] version = rs.getBytes("version_");
+                byte[] value = rs.getBytes("value_");
+                found.add(new Versioned<byte[]>(value, new VectorClock(version)));
+            }
+            return found;
+        } catch(SQLException e) {
+            throw new PersistenceFailureException("Fix me!", e);
+        } finally {
+            tryClose(rs);
+            tryClose(stmt);
+            tryClose(conn);
+        }
     }
 
     public String getName() {
@@ -230,36 +445,38 @@ public class MysqlStorageEngine implements StorageEngine<ByteArray, byte[]> {
         Connection conn = null;
         PreparedStatement insert = null;
         PreparedStatement select = null;
+        PreparedStatement delete = null;
         ResultSet results = null;
-        String insertSql = "insert into " + name + " (key_, version_, value_) values (?, ?, ?)";
-        String selectSql = "select key_, version_ from " + name + " where key_ = ?";
         try {
             conn = datasource.getConnection();
             conn.setAutoCommit(false);
 
-            // check for superior versions
-            select = conn.prepareStatement(selectSql);
+            // check for superior versions, locking the rows we may delete
+            select = conn.prepareStatement(selectForUpdateSql);
             select.setBytes(1, key.get());
             results = select.executeQuery();
+            delete = conn.prepareStatement(deleteSql);
+            boolean hasDeletes = false;
             while(results.next()) {
-                byte[] thisKey = results.getBytes("key_");
-                VectorClock version = new VectorClock(results.getBytes("version_"));
+                byte[] versionBytes = results.getBytes("version_");
+                VectorClock version = new VectorClock(versionBytes);
                 Occured occured = value.getVersion().compare(version);
-                if(occured == Occured.BEFORE)
+                if(occured == Occured.BEFORE) {
                     throw new ObsoleteVersionException("Attempt to put version "
                                                        + value.getVersion()
                                                        + " which is superceeded by " + version
                                                        + ".");
-                else if(occured == Occured.AFTER)
-                    delete(conn, thisKey, version.toBytes());
+                } else if(occured == Occured.AFTER) {
+                    addDelete(delete, key.get(), versionBytes);
+                    hasDeletes = true;
+                }
             }
+            if(hasDeletes)
+                delete.executeBatch();
 
             // Okay, cool, now put the value
             insert = conn.prepareStatement(insertSql);
-            insert.setBytes(1, key.get());
-            VectorClock clock = (VectorClock) value.getVersion();
-            insert.setBytes(2, clock.toBytes());
-            insert.setBytes(3, value.getValue());
+            setInsertParameters(insert, key, value);
             insert.executeUpdate();
             doCommit = true;
         } catch(SQLException e) {
@@ -269,21 +486,153 @@ public class MysqlStorageEngine implements StorageEngine<ByteArray, byte[]> {
                 throw new PersistenceFailureException("Fix me!", e);
             }
         } finally {
-            if(conn != null) {
-                try {
-                    if(doCommit)
-                        conn.commit();
-                    else
-                        conn.rollback();
-                } catch(SQLException e) {}
-            }
+            endTransaction(conn, doCommit);
             tryClose(results);
             tryClose(insert);
+            tryClose(delete);
             tryClose(select);
             tryClose(conn);
         }
     }
 
+    private void setInsertParameters(PreparedStatement insert, ByteArray key, Versioned<byte[]> value)
+            throws SQLException {
+        insert.setBytes(1, key.get());
+        insert.setBytes(2, ((VectorClock) value.getVersion()).toBytes());
+        insert.setBytes(3, value.getValue());
+        if(partitionColumn) {
+            RoutingStrategy strategy = routingStrategy;
+            if(strategy == null)
+                insert.setNull(4, Types.INTEGER);
+            else
+                insert.setInt(4, strategy.getPartitionList(key.get()).get(0));
+        }
+    }
+
+    public int bulkPut(List<Pair<ByteArray, Versioned<byte[]>>> entries)
+            throws PersistenceFailureException {
+        Map<ByteArray, List<Versioned<byte[]>>> byKey = new LinkedHashMap<ByteArray, List<Versioned<byte[]>>>();
+        for(Pair<ByteArray, Versioned<byte[]>> entry: entries) {
+            StoreUtils.assertValidKey(entry.getFirst());
+            List<Versioned<byte[]>> values = byKey.get(entry.getFirst());
+            if(values == null) {
+                values = Lists.newArrayListWithExpectedSize(1);
+                byKey.put(entry.getFirst(), values);
+            }
+            values.add(entry.getSecond());
+        }
+        List<ByteArray> keys = new ArrayList<ByteArray>(byKey.keySet());
+
+        int obsolete = 0;
+        boolean doCommit = false;
+        Connection conn = null;
+        PreparedStatement select = null;
+        PreparedStatement delete = null;
+        PreparedStatement insert = null;
+        ResultSet rs = null;
+        try {
+            conn = datasource.getConnection();
+            conn.setAutoCommit(false);
+            delete = conn.prepareStatement(deleteSql);
+            insert = conn.prepareStatement(insertSql);
+            for(int start = 0; start < keys.size(); start += getAllBatchSize) {
+                int end = Math.min(keys.size(), start + getAllBatchSize);
+
+                // lock and read the versions the keys have now
+                int sizeIndex = sizeIndex(end - start);
+                select = conn.prepareStatement(selectVersionsInForUpdateSql[sizeIndex]);
+                setKeys(select, sizeIndex, keys, start, end);
+                rs = select.executeQuery();
+                Map<ByteArray, List<Pair<VectorClock, byte[]>>> stored = new HashMap<ByteArray, List<Pair<VectorClock, byte[]>>>();
+                while(rs.next()) {
+                    ByteArray key = new ByteArray(rs.getBytes("key_"));
+                    byte[] version = rs.getBytes("version_");
+                    List<Pair<VectorClock, byte[]>> versions = stored.get(key);
+                    if(versions == null) {
+                        versions = Lists.newArrayListWithExpectedSize(1);
+                        stored.put(key, versions);
+                    }
+                    versions.add(Pair.create(new VectorClock(version), version));
+                }
+                tryClose(rs);
+                rs = null;
+                tryClose(select);
+                select = null;
+
+                boolean hasDeletes = false;
+                boolean hasInserts = false;
+                for(int i = start; i < end; i++) {
+                    ByteArray key = keys.get(i);
+                    List<Pair<VectorClock, byte[]>> versions = stored.get(key);
+                    List<Versioned<byte[]>> puts = new ArrayList<Versioned<byte[]>>(1);
+                    for(Versioned<byte[]> value: byKey.get(key)) {
+                        if(isObsolete(value, versions, puts)) {
+                            obsolete++;
+                            continue;
+                        }
+                        if(versions != null) {
+                            for(Iterator<Pair<VectorClock, byte[]>> iter = versions.iterator(); iter.hasNext();) {
+                                Pair<VectorClock, byte[]> version = iter.next();
+                                if(value.getVersion().compare(version.getFirst()) == Occured.AFTER) {
+                                    addDelete(delete, key.get(), version.getSecond());
+                                    hasDeletes = true;
+                                    iter.remove();
+                                }
+                            }
+                        }
+                        for(Iterator<Versioned<byte[]>> iter = puts.iterator(); iter.hasNext();)
+                            if(value.getVersion().compare(iter.next().getVersion()) == Occured.AFTER)
+                                iter.remove();
+                        puts.add(value);
+                    }
+                    for(Versioned<byte[]> value: puts) {
+                        setInsertParameters(insert, key, value);
+                        insert.addBatch();
+                        hasInserts = true;
+                    }
+                }
+                if(hasDeletes)
+                    delete.executeBatch();
+                if(hasInserts)
+                    insert.executeBatch();
+            }
+            doCommit = true;
+            return obsolete;
+        } catch(SQLException e) {
+            throw new PersistenceFailureException("Bulk put of " + entries.size()
+                                                  + " entries failed.", e);
+        } finally {
+            endTransaction(conn, doCommit);
+            tryClose(rs);
+            tryClose(select);
+            tryClose(insert);
+            tryClose(delete);
+            tryClose(conn);
+        }
+    }
+
+    /*
+     * A value is obsolete if a version stored or already accepted in the batch
+     * is after or the same as it
+     */
+    private boolean isObsolete(Versioned<byte[]> value,
+                               List<Pair<VectorClock, byte[]>> stored,
+                               List<Versioned<byte[]>> puts) {
+        if(stored != null) {
+            for(Pair<VectorClock, byte[]> version: stored)
+                if(isObsolete(value.getVersion(), version.getFirst()))
+                    return true;
+        }
+        for(Versioned<byte[]> put: puts)
+            if(isObsolete(value.getVersion(), put.getVersion()))
+                return true;
+        return false;
+    }
+
+    private boolean isObsolete(Version version, Version existing) {
+        return version.compare(existing) == Occured.BEFORE || version.equals(existing);
+    }
+
     private void tryClose(ResultSet rs) {
         try {
             if(rs != null)
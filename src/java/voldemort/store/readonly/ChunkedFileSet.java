@@ -10,12 +10,26 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import voldemort.VoldemortException;
 import voldemort.store.PersistenceFailureException;
 import voldemort.utils.Utils;
 
+/**
+ * The mapped index and data files of one version of a read-only store.
+ * 
+ * Readers {@link #acquire()} the set before using it and {@link #release()} it
+ * afterwards. Closing the set drops the owner's reference; the buffers are
+ * only let go once the last reader has released it, so a new version can be
+ * swapped in without blocking reads of the old one.
+ * 
+ * @author jay
+ * 
+ */
 public class ChunkedFileSet {
 
     private final int numChunks;
@@ -26,6 +40,9 @@ public class ChunkedFileSet {
     private final List<Integer> dataFileSizes;
     private final List<BlockingQueue<MappedByteBuffer>> indexFiles;
     private final List<BlockingQueue<MappedByteBuffer>> dataFiles;
+    private final AtomicInteger references;
+    private final AtomicBoolean isClosed;
+    private final CountDownLatch released;
 
     public ChunkedFileSet(File directory, int numBuffersPerChunk, long bufferWaitTimeoutMs) {
         this.baseDir = directory;
@@ -77,6 +94,10 @@ public class ChunkedFileSet {
         if(chunkId == 0)
             throw new VoldemortException("No data chunks found in directory " + baseDir.toString());
         this.numChunks = chunkId;
+        // the creator holds the first reference until close()
+        this.references = new AtomicInteger(1);
+        this.isClosed = new AtomicBoolean(false);
+        this.released = new CountDownLatch(1);
     }
 
     public void validateFileSizes(long indexLength, long dataLength) {
@@ -94,15 +115,69 @@ public class ChunkedFileSet {
                                          + dataLength + " bytes.");
     }
 
-    public void close() {
-        for(int chunk = 0; chunk < this.numChunks; chunk++) {
-            for(int i = 0; i < this.numBuffersPerChunk; i++) {
-                checkoutIndexFile(chunk);
-                checkoutDataFile(chunk);
-            }
+    /**
+     * Take a reference to this file set for the duration of a read
+     * 
+     * @return true if the reference was taken, false if the set has already
+     *         been closed and released
+     */
+    public boolean acquire() {
+        while(true) {
+            int current = references.get();
+            if(current <= 0)
+                return false;
+            if(references.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Give back a reference taken by {@link #acquire()}
+     */
+    public void release() {
+        int remaining = references.decrementAndGet();
+        if(remaining == 0) {
+            // nobody can use the buffers anymore, drop them so they can be
+            // unmapped
+            for(BlockingQueue<MappedByteBuffer> queue: indexFiles)
+                queue.clear();
+            for(BlockingQueue<MappedByteBuffer> queue: dataFiles)
+                queue.clear();
+            released.countDown();
+        } else if(remaining < 0) {
+            throw new IllegalStateException("File set released more times than acquired.");
         }
     }
 
+    /**
+     * Close the file set. Readers that have already acquired it can continue
+     * to use it, the files are released when the last of them is done.
+     */
+    public void close() {
+        if(isClosed.compareAndSet(false, true))
+            release();
+    }
+
+    public boolean isClosed() {
+        return isClosed.get();
+    }
+
+    /**
+     * @return true if the set is closed and all readers have released it
+     */
+    public boolean isReleased() {
+        return released.getCount() == 0;
+    }
+
+    /**
+     * Wait for all readers to release a closed file set
+     * 
+     * @return true if the set was released before the timeout
+     */
+    public boolean awaitRelease(long timeout, TimeUnit unit) throws InterruptedException {
+        return released.await(timeout, unit);
+    }
+
     private MappedByteBuffer mapFile(File file) {
         try {
             FileChannel channel = new FileInputStream(file).getChannel();
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.readonly;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A {@link FileFetcher} that can transfer only the chunk files that differ
+ * from the version a node already has. Unchanged files, as determined by
+ * comparing the {@link StoreManifest} of the remote and current versions, are
+ * hard linked from the current version instead of copied.
+ */
+public interface DeltaFileFetcher extends FileFetcher {
+
+    /**
+     * Fetch the given store version, reusing any identical files in the
+     * current version
+     * 
+     * @param fileUrl The url of the version to fetch
+     * @param storeName The store the version is of
+     * @param currentVersionDir The directory of the version currently being
+     *        served, which may be null or not exist
+     * @return The local directory the version was fetched to
+     */
+    public File fetch(String fileUrl, String storeName, File currentVersionDir)
+            throws IOException;
+
+}
@@ -203,8 +203,8 @@ public class ExternalSorter<V> {
         try {
             executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
             // create iterator over sorted values
-            return new DefaultIterable<V>(new ExternalSorterIterator(tempFiles, bufferSize
-                                                                                / tempFiles.size()));
+            int readBufferSize = bufferSize / Math.max(1, tempFiles.size());
+            return new DefaultIterable<V>(new ExternalSorterIterator(tempFiles, readBufferSize));
         } catch(InterruptedException e) {
             throw new RuntimeException(e);
         }
@@ -24,9 +24,21 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -42,11 +54,13 @@ import voldemort.serialization.json.EndOfFileException;
 import voldemort.serialization.json.JsonReader;
 import voldemort.store.StoreDefinition;
 import voldemort.utils.ByteUtils;
+import voldemort.utils.DaemonThreadFactory;
 import voldemort.utils.Utils;
 import voldemort.xml.ClusterMapper;
 import voldemort.xml.StoreDefinitionsMapper;
 
 import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
 
 /**
  * Build a read-only store from given input.
@@ -58,33 +72,46 @@ public class JsonStoreBuilder {
 
     private static final Logger logger = Logger.getLogger(JsonStoreBuilder.class);
 
+    /*
+     * The smallest sort buffer main accepts, so that an old command line that
+     * gives a number of objects instead of bytes fails instead of spilling
+     * constantly
+     */
+    private static final long MIN_SORT_BUFFER_BYTES = 1024 * 1024;
+
     private final JsonReader reader;
     private final Cluster cluster;
     private final StoreDefinition storeDefinition;
     private final RoutingStrategy routingStrategy;
     private final File outputDir;
-    private final int internalSortSize;
+    private final long sortBufferBytes;
     private final int numThreads;
     private final int numChunks;
 
+    /**
+     * @param sortBufferBytes The memory, in bytes, the sort may use across all
+     *        threads before it spills sorted runs to disk
+     */
     public JsonStoreBuilder(JsonReader reader,
                             Cluster cluster,
                             StoreDefinition storeDefinition,
                             RoutingStrategy routingStrategy,
                             File outputDir,
-                            int internalSortSize,
+                            long sortBufferBytes,
                             int numThreads,
                             int numChunks) {
         if(cluster.getNumberOfNodes() < storeDefinition.getReplicationFactor())
             throw new IllegalStateException("Number of nodes is " + cluster.getNumberOfNodes()
                                             + " but the replication factor is "
                                             + storeDefinition.getReplicationFactor() + ".");
+        if(numThreads < 1)
+            throw new IllegalArgumentException("Must have at least one thread.");
         this.reader = reader;
         this.cluster = cluster;
         this.storeDefinition = storeDefinition;
         this.outputDir = outputDir;
         this.routingStrategy = routingStrategy;
-        this.internalSortSize = internalSortSize;
+        this.sortBufferBytes = sortBufferBytes;
         this.numThreads = numThreads;
         this.numChunks = numChunks;
     }
@@ -99,11 +126,14 @@ public class JsonStoreBuilder {
         if(args.length != 8)
             Utils.croak("USAGE: java "
                         + JsonStoreBuilder.class.getName()
-                        + " cluster.xml store_definitions.xml store_name sort_obj_buffer_size input_data output_dir num_threads num_chunks");
+                        + " cluster.xml store_definitions.xml store_name sort_buffer_bytes input_data output_dir num_threads num_chunks");
         String clusterFile = args[0];
         String storeDefFile = args[1];
         String storeName = args[2];
-        int sortBufferSize = Integer.parseInt(args[3]);
+        long sortBufferBytes = Long.parseLong(args[3]);
+        if(sortBufferBytes < MIN_SORT_BUFFER_BYTES)
+            Utils.croak("sort_buffer_bytes is the size of the sort buffer in bytes, not a number of objects, and must be at least "
+                        + MIN_SORT_BUFFER_BYTES + ", but was " + sortBufferBytes + ".");
         String inputFile = args[4];
         File outputDir = new File(args[5]);
         int numThreads = Integer.parseInt(args[6]);
@@ -133,7 +163,7 @@ public class JsonStoreBuilder {
                                  storeDef,
                                  routingStrategy,
                                  outputDir,
-                                 sortBufferSize,
+                                 sortBufferBytes,
                                  numThreads,
                                  numChunks).build();
         } catch(FileNotFoundException e) {
@@ -141,13 +171,25 @@ public class JsonStoreBuilder {
         }
     }
 
+    /**
+     * Build the store. The work is done by a pipeline of stages that overlap:
+     * <ol>
+     * <li>The calling thread parses the JSON input and hands batches of
+     * objects to a thread pool which serializes and hashes them</li>
+     * <li>The external sorter sorts and spills runs on numThreads threads</li>
+     * <li>The calling thread merges the sorted runs and routes each entry to
+     * one of numThreads writers, each of which owns a fixed set of the node
+     * and chunk files</li>
+     * </ol>
+     */
     @SuppressWarnings("unchecked")
     public void build() throws IOException {
         // initialize nodes
         int numNodes = cluster.getNumberOfNodes();
         DataOutputStream[][] indexes = new DataOutputStream[numNodes][numChunks];
         DataOutputStream[][] datas = new DataOutputStream[numNodes][numChunks];
-        int[][] positions = new int[numNodes][numChunks];
+        MessageDigest[][] indexDigests = new MessageDigest[numNodes][numChunks];
+        MessageDigest[][] dataDigests = new MessageDigest[numNodes][numChunks];
         for(Node node: cluster.getNodes()) {
             int nodeId = node.getId();
             File nodeDir = new File(outputDir, "node-" + Integer.toString(nodeId));
@@ -155,10 +197,14 @@ public class JsonStoreBuilder {
             for(int chunk = 0; chunk < numChunks; chunk++) {
                 File indexFile = new File(nodeDir, chunk + ".index");
                 File dataFile = new File(nodeDir, chunk + ".data");
-                positions[nodeId][chunk] = 0;
-                indexes[nodeId][chunk] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile),
+                // checksum each file as it is written for the manifest
+                indexDigests[nodeId][chunk] = ByteUtils.getDigest("MD5");
+                dataDigests[nodeId][chunk] = ByteUtils.getDigest("MD5");
+                indexes[nodeId][chunk] = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(new FileOutputStream(indexFile),
+                                                                                                              indexDigests[nodeId][chunk]),
                                                                                        1000000));
-                datas[nodeId][chunk] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile),
+                datas[nodeId][chunk] = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(new FileOutputStream(dataFile),
+                                                                                                            dataDigests[nodeId][chunk]),
                                                                                      1000000));
             }
         }
@@ -167,33 +213,49 @@ public class JsonStoreBuilder {
         Serializer keySerializer = factory.getSerializer(storeDefinition.getKeySerializer());
         Serializer valueSerializer = factory.getSerializer(storeDefinition.getValueSerializer());
 
+        ExecutorService executor = Executors.newFixedThreadPool(2 * numThreads,
+                                                                new DaemonThreadFactory("json-store-builder-"));
+        int numWriters = Math.min(numThreads, numNodes * numChunks);
+        ChunkWriter[] writers = new ChunkWriter[numWriters];
+        for(int i = 0; i < numWriters; i++) {
+            writers[i] = new ChunkWriter(indexes, datas);
+            writers[i].start(executor);
+        }
+
         logger.info("Reading items...");
         int count = 0;
-        ExternalSorter<KeyValuePair> sorter = new ExternalSorter<KeyValuePair>(new KeyValuePairSerializer(),
-                                                                               new KeyMd5Comparator(),
-                                                                               internalSortSize,
-                                                                               numThreads);
-        JsonObjectIterator iter = new JsonObjectIterator(reader, keySerializer, valueSerializer);
-        for(KeyValuePair pair: sorter.sorted(iter)) {
-            List<Node> nodes = this.routingStrategy.routeRequest(pair.getKey());
-            byte[] keyMd5 = pair.getKeyMd5();
-            for(int i = 0; i < this.storeDefinition.getReplicationFactor(); i++) {
-                int nodeId = nodes.get(i).getId();
-                int chunk = ReadOnlyUtils.chunk(keyMd5, numChunks);
-                int numBytes = pair.getValue().length;
-                datas[nodeId][chunk].writeInt(numBytes);
-                datas[nodeId][chunk].write(pair.getValue());
-                indexes[nodeId][chunk].write(keyMd5);
-                indexes[nodeId][chunk].writeInt(positions[nodeId][chunk]);
-                positions[nodeId][chunk] += numBytes + 4;
-                checkOverFlow(chunk, positions[nodeId][chunk]);
+        try {
+            // compressing the runs costs more cpu than the disk time it saves
+            PackedExternalSorter<KeyValuePair> sorter = new PackedExternalSorter<KeyValuePair>(new KeyValuePairSerializer(),
+                                                                                               sortBufferBytes,
+                                                                                               numThreads,
+                                                                                               System.getProperty("java.io.tmpdir"),
+                                                                                               PackedExternalSorter.DEFAULT_READ_BUFFER_SIZE,
+                                                                                               PackedExternalSorter.DEFAULT_MERGE_FAN_IN,
+                                                                                               false);
+            JsonObjectIterator iter = new JsonObjectIterator(reader,
+                                                             keySerializer,
+                                                             valueSerializer,
+                                                             executor,
+                                                             numThreads);
+            for(KeyValuePair pair: sorter.sorted(iter)) {
+                List<Node> nodes = this.routingStrategy.routeRequest(pair.getKey());
+                int chunk = ReadOnlyUtils.chunk(pair.getKeyMd5(), numChunks);
+                for(int i = 0; i < this.storeDefinition.getReplicationFactor(); i++) {
+                    int nodeId = nodes.get(i).getId();
+                    writers[(nodeId * numChunks + chunk) % numWriters].add(nodeId, chunk, pair);
+                }
+                count++;
             }
-            count++;
-        }
+            logger.info(count + " items read.");
 
-        logger.info(count + " items read.");
+            // wait for the writers to drain
+            for(ChunkWriter writer: writers)
+                writer.finish();
+        } finally {
+            executor.shutdownNow();
+        }
 
-        // sort and write out
         logger.info("Closing all store files.");
         for(int node = 0; node < numNodes; node++) {
             for(int chunk = 0; chunk < numChunks; chunk++) {
@@ -201,6 +263,24 @@ public class JsonStoreBuilder {
                 datas[node][chunk].close();
             }
         }
+
+        logger.info("Writing manifests.");
+        for(Node node: cluster.getNodes()) {
+            int nodeId = node.getId();
+            File nodeDir = new File(outputDir, "node-" + Integer.toString(nodeId));
+            StoreManifest manifest = new StoreManifest();
+            for(int chunk = 0; chunk < numChunks; chunk++) {
+                String indexName = chunk + ".index";
+                String dataName = chunk + ".data";
+                manifest.add(indexName,
+                             new File(nodeDir, indexName).length(),
+                             indexDigests[nodeId][chunk].digest());
+                manifest.add(dataName,
+                             new File(nodeDir, dataName).length(),
+                             dataDigests[nodeId][chunk].digest());
+            }
+            manifest.write(nodeDir);
+        }
     }
 
     /* Check if the position has exceeded Integer.MAX_VALUE */
@@ -210,82 +290,244 @@ public class JsonStoreBuilder {
                                          + Integer.MAX_VALUE + " bytes.");
     }
 
+    /**
+     * Writes the md5 of the key first, so the sorter's byte order is the order
+     * of the key md5s, and keeps it so that it isn't computed again when the
+     * sorted pairs are read back
+     */
     private static class KeyValuePairSerializer implements Serializer<KeyValuePair> {
 
-        private final MessageDigest digest = ByteUtils.getDigest("MD5");
+        private static final int MD5_SIZE = 16;
+        private static final int HEADER_SIZE = MD5_SIZE + 8;
 
         public byte[] toBytes(KeyValuePair pair) {
+            byte[] md5 = pair.getKeyMd5();
             byte[] key = pair.getKey();
             byte[] value = pair.getValue();
-            byte[] bytes = new byte[key.length + value.length + 8];
-            ByteUtils.writeInt(bytes, key.length, 0);
-            ByteUtils.writeInt(bytes, value.length, 4);
-            System.arraycopy(key, 0, bytes, 8, key.length);
-            System.arraycopy(value, 0, bytes, 8 + key.length, value.length);
+            byte[] bytes = new byte[HEADER_SIZE + key.length + value.length];
+            System.arraycopy(md5, 0, bytes, 0, MD5_SIZE);
+            ByteUtils.writeInt(bytes, key.length, MD5_SIZE);
+            ByteUtils.writeInt(bytes, value.length, MD5_SIZE + 4);
+            System.arraycopy(key, 0, bytes, HEADER_SIZE, key.length);
+            System.arraycopy(value, 0, bytes, HEADER_SIZE + key.length, value.length);
             return bytes;
         }
 
         public KeyValuePair toObject(byte[] bytes) {
-            int keySize = ByteUtils.readInt(bytes, 0);
-            int valueSize = ByteUtils.readInt(bytes, 4);
+            int keySize = ByteUtils.readInt(bytes, MD5_SIZE);
+            int valueSize = ByteUtils.readInt(bytes, MD5_SIZE + 4);
+            byte[] md5 = new byte[MD5_SIZE];
             byte[] key = new byte[keySize];
             byte[] value = new byte[valueSize];
-            System.arraycopy(bytes, 8, key, 0, keySize);
-            System.arraycopy(bytes, 8 + keySize, value, 0, valueSize);
-            byte[] md5 = digest.digest(key);
-            digest.reset();
-
+            System.arraycopy(bytes, 0, md5, 0, MD5_SIZE);
+            System.arraycopy(bytes, HEADER_SIZE, key, 0, keySize);
+            System.arraycopy(bytes, HEADER_SIZE + keySize, value, 0, valueSize);
             return new KeyValuePair(key, md5, value);
         }
 
     }
 
+    /**
+     * Reads key/value objects from the JSON input in the calling thread and
+     * serializes and hashes them in batches on the given executor. Up to two
+     * batches per thread are kept in flight, and batches are consumed in the
+     * order they were read.
+     */
     private static class JsonObjectIterator extends AbstractIterator<KeyValuePair> {
 
+        private static final int BATCH_SIZE = 1000;
+
         private final JsonReader reader;
         private final Serializer<Object> keySerializer;
         private final Serializer<Object> valueSerializer;
-        private final MessageDigest digest;
+        private final ExecutorService executor;
+        private final int maxBatchesInFlight;
+        private final Queue<Future<List<KeyValuePair>>> batches;
+        private Iterator<KeyValuePair> current;
+        private boolean endOfInput;
 
         public JsonObjectIterator(JsonReader reader,
                                   Serializer<Object> keySerializer,
-                                  Serializer<Object> valueSerializer) {
+                                  Serializer<Object> valueSerializer,
+                                  ExecutorService executor,
+                                  int numThreads) {
             this.reader = reader;
             this.keySerializer = keySerializer;
             this.valueSerializer = valueSerializer;
-            this.digest = ByteUtils.getDigest("MD5");
+            this.executor = executor;
+            this.maxBatchesInFlight = 2 * numThreads;
+            this.batches = new LinkedList<Future<List<KeyValuePair>>>();
+            this.current = Iterators.emptyIterator();
+            this.endOfInput = false;
         }
 
         @Override
         protected KeyValuePair computeNext() {
-            try {
-                Object key = reader.read();
-                Object value = null;
+            while(!current.hasNext()) {
+                while(!endOfInput && batches.size() < maxBatchesInFlight)
+                    readBatch();
+                Future<List<KeyValuePair>> batch = batches.poll();
+                if(batch == null)
+                    return endOfData();
                 try {
-                    value = reader.read();
-                } catch(EndOfFileException e) {
-                    throw new VoldemortException("Invalid file: reached end of file with key but no matching value.",
-                                                 e);
+                    current = batch.get().iterator();
+                } catch(ExecutionException e) {
+                    if(e.getCause() instanceof VoldemortException)
+                        throw (VoldemortException) e.getCause();
+                    throw new VoldemortException(e.getCause());
+                } catch(InterruptedException e) {
+                    throw new VoldemortException(e);
                 }
-                byte[] keyBytes = keySerializer.toBytes(key);
-                byte[] keyMd5 = digest.digest(keyBytes);
-                digest.reset();
-                byte[] valueBytes = valueSerializer.toBytes(value);
+            }
+            return current.next();
+        }
 
-                return new KeyValuePair(keyBytes, keyMd5, valueBytes);
+        private void readBatch() {
+            final List<Object> objects = new ArrayList<Object>(2 * BATCH_SIZE);
+            try {
+                for(int i = 0; i < BATCH_SIZE; i++) {
+                    Object key = reader.read();
+                    try {
+                        objects.add(key);
+                        objects.add(reader.read());
+                    } catch(EndOfFileException e) {
+                        throw new VoldemortException("Invalid file: reached end of file with key but no matching value.",
+                                                     e);
+                    }
+                }
             } catch(EndOfFileException e) {
-                return endOfData();
+                endOfInput = true;
             }
+            if(objects.size() == 0)
+                return;
+
+            batches.add(executor.submit(new Callable<List<KeyValuePair>>() {
+
+                public List<KeyValuePair> call() {
+                    MessageDigest digest = ByteUtils.getDigest("MD5");
+                    List<KeyValuePair> pairs = new ArrayList<KeyValuePair>(objects.size() / 2);
+                    for(int i = 0; i < objects.size(); i += 2) {
+                        byte[] keyBytes = keySerializer.toBytes(objects.get(i));
+                        byte[] keyMd5 = digest.digest(keyBytes);
+                        digest.reset();
+                        byte[] valueBytes = valueSerializer.toBytes(objects.get(i + 1));
+                        pairs.add(new KeyValuePair(keyBytes, keyMd5, valueBytes));
+                    }
+                    return pairs;
+                }
+            }));
         }
 
     }
 
-    public static class KeyMd5Comparator implements Comparator<KeyValuePair> {
+    /**
+     * Writes the entries for a fixed subset of the node/chunk files on its own
+     * thread. Each file is owned by exactly one writer, so entries for a given
+     * file are still written in sorted order. Entries are handed over in
+     * batches to keep queue overhead low.
+     */
+    private class ChunkWriter implements Callable<Void> {
+
+        private static final int BATCH_SIZE = 1000;
+        private static final int MAX_QUEUED_BATCHES = 10;
+
+        private final DataOutputStream[][] indexes;
+        private final DataOutputStream[][] datas;
+        private final int[][] positions;
+        private final BlockingQueue<List<ChunkEntry>> queue;
+        private List<ChunkEntry> batch;
+        private Future<Void> future;
+
+        public ChunkWriter(DataOutputStream[][] indexes, DataOutputStream[][] datas) {
+            this.indexes = indexes;
+            this.datas = datas;
+            this.positions = new int[indexes.length][numChunks];
+            this.queue = new ArrayBlockingQueue<List<ChunkEntry>>(MAX_QUEUED_BATCHES);
+            this.batch = new ArrayList<ChunkEntry>(BATCH_SIZE);
+        }
+
+        public void start(ExecutorService executor) {
+            this.future = executor.submit(this);
+        }
+
+        public void add(int nodeId, int chunk, KeyValuePair pair) {
+            batch.add(new ChunkEntry(nodeId, chunk, pair));
+            if(batch.size() >= BATCH_SIZE) {
+                enqueue(batch);
+                batch = new ArrayList<ChunkEntry>(BATCH_SIZE);
+            }
+        }
+
+        /**
+         * Flush any pending entries and wait for them to be written
+         */
+        public void finish() throws IOException {
+            if(batch.size() > 0)
+                enqueue(batch);
+            // an empty batch signals the end of the input
+            enqueue(new ArrayList<ChunkEntry>(0));
+            getResult();
+        }
+
+        private void enqueue(List<ChunkEntry> entries) {
+            try {
+                // don't block forever if the writer has died
+                while(!queue.offer(entries, 100, TimeUnit.MILLISECONDS)) {
+                    if(future.isDone())
+                        getResult();
+                }
+            } catch(InterruptedException e) {
+                throw new VoldemortException(e);
+            } catch(IOException e) {
+                throw new VoldemortException(e);
+            }
+        }
+
+        private void getResult() throws IOException {
+            try {
+                future.get();
+            } catch(ExecutionException e) {
+                if(e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                else if(e.getCause() instanceof VoldemortException)
+                    throw (VoldemortException) e.getCause();
+                throw new VoldemortException(e.getCause());
+            } catch(InterruptedException e) {
+                throw new VoldemortException(e);
+            }
+        }
 
-        public int compare(KeyValuePair kv1, KeyValuePair kv2) {
-            return ByteUtils.compare(kv1.getKeyMd5(), kv2.getKeyMd5());
+        public Void call() throws IOException, InterruptedException {
+            while(true) {
+                List<ChunkEntry> entries = queue.take();
+                if(entries.size() == 0)
+                    return null;
+                for(ChunkEntry entry: entries) {
+                    int nodeId = entry.nodeId;
+                    int chunk = entry.chunk;
+                    byte[] value = entry.pair.getValue();
+                    datas[nodeId][chunk].writeInt(value.length);
+                    datas[nodeId][chunk].write(value);
+                    indexes[nodeId][chunk].write(entry.pair.getKeyMd5());
+                    indexes[nodeId][chunk].writeInt(positions[nodeId][chunk]);
+                    positions[nodeId][chunk] += value.length + 4;
+                    checkOverFlow(chunk, positions[nodeId][chunk]);
+                }
+            }
         }
+    }
 
+    private static class ChunkEntry {
+
+        private final int nodeId;
+        private final int chunk;
+        private final KeyValuePair pair;
+
+        public ChunkEntry(int nodeId, int chunk, KeyValuePair pair) {
+            this.nodeId = nodeId;
+            this.chunk = chunk;
+            this.pair = pair;
+        }
     }
 
     private static class KeyValuePair {
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.readonly;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import voldemort.utils.Props;
+
+/**
+ * A fetcher that copies the store files from a locally mounted filesystem,
+ * such as NFS
+ */
+public class LocalFileFetcher extends ParallelFileFetcher {
+
+    private static final String FILE_PREFIX = "file://";
+    private static final String DEFAULT_TEMP_DIR = new File(System.getProperty("java.io.tmpdir"),
+                                                            "local-fetcher").getAbsolutePath();
+
+    public LocalFileFetcher(Props props) {
+        this(new File(props.getString("local.fetcher.tmp.dir", DEFAULT_TEMP_DIR)),
+             getNumThreads(props),
+             getMaxRetries(props),
+             getMaxBytesPerSecond(props));
+    }
+
+    public LocalFileFetcher(File tempDir, int numThreads, int maxRetries, Long maxBytesPerSecond) {
+        super(tempDir, numThreads, maxRetries, maxBytesPerSecond);
+    }
+
+    @Override
+    protected SourceFile getSourceFile(String url) throws IOException {
+        String path = url.startsWith(FILE_PREFIX) ? url.substring(FILE_PREFIX.length()) : url;
+        File file = new File(path);
+        if(!file.exists())
+            throw new FileNotFoundException(file.getAbsolutePath() + " does not exist.");
+        return toSourceFile(file);
+    }
+
+    @Override
+    protected List<SourceFile> listSourceFiles(SourceFile dir) throws IOException {
+        File[] files = new File(dir.getUrl()).listFiles();
+        if(files == null)
+            throw new IOException(dir.getUrl() + " is not a readable directory.");
+        List<SourceFile> sourceFiles = new ArrayList<SourceFile>(files.length);
+        for(File file: files)
+            sourceFiles.add(toSourceFile(file));
+        return sourceFiles;
+    }
+
+    @Override
+    protected InputStream openSourceFile(SourceFile file, long offset) throws IOException {
+        FileInputStream input = new FileInputStream(file.getUrl());
+        if(offset > 0)
+            input.getChannel().position(offset);
+        return input;
+    }
+
+    private SourceFile toSourceFile(File file) {
+        return new SourceFile(file.getAbsolutePath(),
+                              file.getName(),
+                              file.length(),
+                              file.isDirectory());
+    }
+}
@@ -0,0 +1,691 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.readonly;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.log4j.Logger;
+
+import voldemort.VoldemortException;
+import voldemort.serialization.Serializer;
+import voldemort.utils.ByteUtils;
+import voldemort.utils.DaemonThreadFactory;
+import voldemort.utils.DefaultIterable;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * An external sort that works on the serialized form of the values.
+ *
+ * Values are ordered by the unsigned lexicographic order of the bytes produced
+ * by the serializer, so the serializer must put the sort key first. Serialized
+ * values are packed into large byte arrays (one per thread) with a primitive
+ * index entry per record, so the in-memory sort creates no per-record objects
+ * and the total memory used is bounded by the given budget rather than by a
+ * record count.
+ *
+ * Sorted runs are spilled to (optionally compressed) temp files and merged with
+ * a k-way heap. If there are more runs than the merge fan-in, groups of runs
+ * are merged into larger runs in parallel until few enough remain for the
+ * final streaming merge.
+ *
+ *
+ * @param <V> The type of value being sorted
+ */
+public class PackedExternalSorter<V> {
+
+    public static final Logger logger = Logger.getLogger(PackedExternalSorter.class);
+
+    public static final int DEFAULT_READ_BUFFER_SIZE = 256 * 1024;
+    public static final int DEFAULT_MERGE_FAN_IN = 64;
+
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+    private static final int MIN_SORT_BUFFER_SIZE = 1024;
+
+    private final Serializer<V> serializer;
+    private final int sortBufferSize;
+    private final int numThreads;
+    private final File tempDir;
+    private final int readBufferSize;
+    private final int mergeFanIn;
+    private final boolean compress;
+
+    private final AtomicLong recordsRead;
+    private final AtomicLong recordsMerged;
+    private final AtomicLong runsWritten;
+    private final AtomicLong bytesSpilled;
+    private volatile int mergePasses;
+
+    /**
+     * Create a sorter that uses the system temp dir, compressed spills, and
+     * default buffer sizes
+     *
+     * @param serializer The serializer used to produce the sortable bytes
+     * @param memoryBudgetBytes The total number of bytes to use for sort
+     *        buffers across all threads
+     * @param numThreads The number of threads used to sort and spill runs
+     */
+    public PackedExternalSorter(Serializer<V> serializer, long memoryBudgetBytes, int numThreads) {
+        this(serializer,
+             memoryBudgetBytes,
+             numThreads,
+             System.getProperty("java.io.tmpdir"),
+             DEFAULT_READ_BUFFER_SIZE,
+             DEFAULT_MERGE_FAN_IN,
+             true);
+    }
+
+    /**
+     * Create a sorter
+     *
+     * @param serializer The serializer used to produce the sortable bytes
+     * @param memoryBudgetBytes The total number of bytes to use for sort
+     *        buffers across all threads
+     * @param numThreads The number of threads used to sort and spill runs
+     * @param tempDir The directory in which to write runs
+     * @param readBufferSize The read buffer size for each run during a merge
+     * @param mergeFanIn The maximum number of runs merged at once
+     * @param compress If true, runs are compressed on disk
+     */
+    public PackedExternalSorter(Serializer<V> serializer,
+                                long memoryBudgetBytes,
+                                int numThreads,
+                                String tempDir,
+                                int readBufferSize,
+                                int mergeFanIn,
+                                boolean compress) {
+        if(numThreads < 1)
+            throw new IllegalArgumentException("Must have at least one thread.");
+        if(mergeFanIn < 2)
+            throw new IllegalArgumentException("Merge fan-in must be at least 2.");
+        long bufferSize = memoryBudgetBytes / numThreads;
+        if(bufferSize < MIN_SORT_BUFFER_SIZE)
+            throw new IllegalArgumentException("Memory budget must be at least "
+                                               + MIN_SORT_BUFFER_SIZE + " bytes per thread.");
+        this.serializer = serializer;
+        this.sortBufferSize = (int) Math.min(Integer.MAX_VALUE - 8, bufferSize);
+        this.numThreads = numThreads;
+        this.tempDir = new File(tempDir);
+        this.readBufferSize = readBufferSize;
+        this.mergeFanIn = mergeFanIn;
+        this.compress = compress;
+        this.recordsRead = new AtomicLong(0);
+        this.recordsMerged = new AtomicLong(0);
+        this.runsWritten = new AtomicLong(0);
+        this.bytesSpilled = new AtomicLong(0);
+        this.mergePasses = 0;
+    }
+
+    /**
+     * Produce an iterator over the input values in sorted order. Sorting will
+     * occur in the memory budget configured in the constructor, data will be
+     * spilled to disk as necessary.
+     *
+     * @param input An iterator over the input values
+     * @return An iterator over the values
+     */
+    public Iterable<V> sorted(Iterator<V> input) {
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                                                                new DaemonThreadFactory("external-sorter-"));
+        try {
+            List<File> runs = Collections.synchronizedList(new ArrayList<File>());
+            SortBuffer last = writeRuns(input, executor, runs);
+            if(runs.size() == 0) {
+                // everything fit in memory, no need to touch the disk
+                logger.info("All " + last.size() + " records fit in memory.");
+                return toValues(last.iterator());
+            }
+            List<File> merged = mergeRuns(new ArrayList<File>(runs), executor);
+            logger.info("Final merge of " + merged.size() + " runs.");
+            return toValues(new MergeIterator(merged));
+        } catch(IOException e) {
+            throw new VoldemortException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * Fill sort buffers from the input and sort and spill each full buffer on
+     * the executor. Returns the final buffer, which is spilled too if any
+     * other runs exist.
+     */
+    private SortBuffer writeRuns(Iterator<V> input, ExecutorService executor, final List<File> runs) {
+        final BlockingQueue<SortBuffer> free = new ArrayBlockingQueue<SortBuffer>(numThreads);
+        List<Future<Object>> pending = new ArrayList<Future<Object>>();
+        int allocated = 1;
+        SortBuffer buffer = new SortBuffer(sortBufferSize);
+        try {
+            while(input.hasNext()) {
+                byte[] record = serializer.toBytes(input.next());
+                recordsRead.incrementAndGet();
+                if(!buffer.add(record)) {
+                    if(buffer.size() > 0) {
+                        pending.add(spill(buffer, executor, runs, free));
+                        if(allocated < numThreads) {
+                            buffer = new SortBuffer(sortBufferSize);
+                            allocated++;
+                        } else {
+                            buffer = free.take();
+                        }
+                    }
+                    if(!buffer.add(record))
+                        throw new VoldemortException("Record of " + record.length
+                                                     + " bytes does not fit in a sort buffer of "
+                                                     + sortBufferSize + " bytes.");
+                }
+            }
+            if(pending.size() > 0) {
+                pending.add(spill(buffer, executor, runs, free));
+            } else {
+                buffer.sort();
+            }
+            for(Future<Object> future: pending)
+                getResult(future);
+        } catch(InterruptedException e) {
+            throw new VoldemortException(e);
+        }
+        return buffer;
+    }
+
+    private Future<Object> spill(final SortBuffer buffer,
+                                 ExecutorService executor,
+                                 final List<File> runs,
+                                 final BlockingQueue<SortBuffer> free) {
+        final long runId = runsWritten.getAndIncrement();
+        return executor.submit(new Callable<Object>() {
+
+            public Object call() throws IOException {
+                try {
+                    long start = System.currentTimeMillis();
+                    buffer.sort();
+                    File run = newRunFile();
+                    RunWriter writer = new RunWriter(run, compress);
+                    try {
+                        buffer.writeTo(writer.getOutput());
+                    } finally {
+                        writer.close();
+                    }
+                    runs.add(run);
+                    bytesSpilled.addAndGet(run.length());
+                    logger.info("Run " + runId + ": sorted and wrote " + buffer.size()
+                                + " records (" + run.length() + " bytes on disk) in "
+                                + (System.currentTimeMillis() - start) + " ms.");
+                    return null;
+                } finally {
+                    buffer.clear();
+                    free.add(buffer);
+                }
+            }
+        });
+    }
+
+    /*
+     * Merge groups of runs in parallel until no more than mergeFanIn remain
+     */
+    private List<File> mergeRuns(List<File> runs, ExecutorService executor) {
+        while(runs.size() > mergeFanIn) {
+            mergePasses++;
+            logger.info("Merge pass " + mergePasses + ": merging " + runs.size()
+                        + " runs in groups of " + mergeFanIn + ".");
+            List<Future<File>> merges = new ArrayList<Future<File>>();
+            for(int i = 0; i < runs.size(); i += mergeFanIn) {
+                final List<File> group = new ArrayList<File>(runs.subList(i,
+                                                                          Math.min(i + mergeFanIn,
+                                                                                   runs.size())));
+                merges.add(executor.submit(new Callable<File>() {
+
+                    public File call() throws IOException {
+                        if(group.size() == 1)
+                            return group.get(0);
+                        File merged = newRunFile();
+                        RunWriter writer = new RunWriter(merged, compress);
+                        try {
+                            MergeIterator iter = new MergeIterator(group);
+                            while(iter.hasNext()) {
+                                byte[] record = iter.next();
+                                writer.getOutput().writeInt(record.length);
+                                writer.getOutput().write(record);
+                            }
+                        } finally {
+                            writer.close();
+                        }
+                        return merged;
+                    }
+                }));
+            }
+            List<File> next = new ArrayList<File>(merges.size());
+            for(Future<File> merge: merges)
+                next.add(getResult(merge));
+            runs = next;
+        }
+        return runs;
+    }
+
+    private <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof VoldemortException)
+                throw (VoldemortException) e.getCause();
+            throw new VoldemortException(e.getCause());
+        } catch(InterruptedException e) {
+            throw new VoldemortException(e);
+        }
+    }
+
+    private File newRunFile() throws IOException {
+        File file = File.createTempFile("run-", ".dat", tempDir);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private Iterable<V> toValues(final Iterator<byte[]> records) {
+        return new DefaultIterable<V>(new AbstractIterator<V>() {
+
+            @Override
+            protected V computeNext() {
+                if(!records.hasNext())
+                    return endOfData();
+                recordsMerged.incrementAndGet();
+                return serializer.toObject(records.next());
+            }
+        });
+    }
+
+    /**
+     * @return The number of records consumed from the input so far
+     */
+    public long getRecordsRead() {
+        return recordsRead.get();
+    }
+
+    /**
+     * @return The number of sorted records produced so far
+     */
+    public long getRecordsMerged() {
+        return recordsMerged.get();
+    }
+
+    /**
+     * @return The number of initial sorted runs spilled to disk
+     */
+    public long getRunsWritten() {
+        return runsWritten.get();
+    }
+
+    /**
+     * @return The on-disk size of the initial sorted runs
+     */
+    public long getBytesSpilled() {
+        return bytesSpilled.get();
+    }
+
+    /**
+     * @return The number of intermediate merge passes done
+     */
+    public int getMergePasses() {
+        return mergePasses;
+    }
+
+    /**
+     * A byte array of length-prefixed records plus a long per record holding
+     * the first four bytes of the record in the high word and its offset in the
+     * low word. Sorting only moves the index entries, and most comparisons are
+     * decided by the prefix without touching the records. Both arrays grow on
+     * demand so that together they never exceed the capacity.
+     */
+    private static final class SortBuffer {
+
+        private static final int INSERTION_SORT_THRESHOLD = 16;
+        private static final int INITIAL_INDEX_SIZE = 1024;
+
+        private final int capacity;
+        private byte[] bytes;
+        private long[] index;
+        private int position;
+        private int count;
+
+        public SortBuffer(int capacity) {
+            this.capacity = capacity;
+            this.index = new long[Math.min(INITIAL_INDEX_SIZE, capacity / 16)];
+            this.bytes = new byte[capacity / 16];
+            this.position = 0;
+            this.count = 0;
+        }
+
+        /**
+         * Add the record, returns false if it does not fit
+         */
+        public boolean add(byte[] record) {
+            if(!ensureCapacity(4 + record.length))
+                return false;
+            ByteUtils.writeInt(bytes, record.length, position);
+            System.arraycopy(record, 0, bytes, position + 4, record.length);
+            index[count] = ((long) prefix(record)) << 32 | position;
+            position += 4 + record.length;
+            count++;
+            return true;
+        }
+
+        private boolean ensureCapacity(int needed) {
+            if(position + needed > bytes.length) {
+                // leave room for the index in proportion to the average record
+                double average = count == 0 ? needed : position / (double) count;
+                long target = (long) (capacity * average / (average + 8));
+                long max = Math.min(capacity - 8L * index.length, Math.max(target, position
+                                                                                    + needed));
+                long size = Math.min(Math.max(2L * bytes.length, position + needed), max);
+                if(size < position + needed)
+                    return false;
+                byte[] newBytes = new byte[(int) size];
+                System.arraycopy(bytes, 0, newBytes, 0, position);
+                bytes = newBytes;
+            }
+            if(count == index.length) {
+                long max = (capacity - bytes.length) / 8;
+                long size = Math.min(2L * index.length, max);
+                if(size <= count)
+                    return false;
+                long[] newIndex = new long[(int) size];
+                System.arraycopy(index, 0, newIndex, 0, count);
+                index = newIndex;
+            }
+            return true;
+        }
+
+        /*
+         * The first four bytes as an int that orders the same way under signed
+         * comparison as the bytes do under unsigned comparison
+         */
+        private static int prefix(byte[] record) {
+            int prefix = 0;
+            for(int i = 0; i < 4; i++)
+                prefix = (prefix << 8) | (i < record.length ? record[i] & 0xff : 0);
+            return prefix ^ Integer.MIN_VALUE;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public void clear() {
+            position = 0;
+            count = 0;
+        }
+
+        public void sort() {
+            sort(0, count - 1);
+        }
+
+        public void writeTo(DataOutputStream output) throws IOException {
+            for(int i = 0; i < count; i++) {
+                int offset = (int) index[i];
+                int length = ByteUtils.readInt(bytes, offset);
+                output.writeInt(length);
+                output.write(bytes, offset + 4, length);
+            }
+        }
+
+        public Iterator<byte[]> iterator() {
+            return new AbstractIterator<byte[]>() {
+
+                private int i = 0;
+
+                @Override
+                protected byte[] computeNext() {
+                    if(i >= count)
+                        return endOfData();
+                    int offset = (int) index[i++];
+                    int length = ByteUtils.readInt(bytes, offset);
+                    return ByteUtils.copy(bytes, offset + 4, offset + 4 + length);
+                }
+            };
+        }
+
+        private int compare(long entry1, long entry2) {
+            int prefix1 = (int) (entry1 >>> 32);
+            int prefix2 = (int) (entry2 >>> 32);
+            if(prefix1 != prefix2)
+                return prefix1 < prefix2 ? -1 : 1;
+            int offset1 = (int) entry1;
+            int offset2 = (int) entry2;
+            return ByteUtils.compare(bytes,
+                                     offset1 + 4,
+                                     ByteUtils.readInt(bytes, offset1),
+                                     bytes,
+                                     offset2 + 4,
+                                     ByteUtils.readInt(bytes, offset2));
+        }
+
+        /*
+         * Quicksort on the index, recursing on the smaller partition to bound
+         * the stack depth
+         */
+        private void sort(int low, int high) {
+            while(high - low > INSERTION_SORT_THRESHOLD) {
+                long pivot = index[(low + high) >>> 1];
+                int i = low;
+                int j = high;
+                while(i <= j) {
+                    while(compare(index[i], pivot) < 0)
+                        i++;
+                    while(compare(index[j], pivot) > 0)
+                        j--;
+                    if(i <= j) {
+                        long tmp = index[i];
+                        index[i] = index[j];
+                        index[j] = tmp;
+                        i++;
+                        j--;
+                    }
+                }
+                if(j - low < high - i) {
+                    sort(low, j);
+                    low = i;
+                } else {
+                    sort(i, high);
+                    high = j;
+                }
+            }
+            insertionSort(low, high);
+        }
+
+        private void insertionSort(int low, int high) {
+            for(int i = low + 1; i <= high; i++) {
+                long entry = index[i];
+                int j = i - 1;
+                while(j >= low && compare(index[j], entry) > 0) {
+                    index[j + 1] = index[j];
+                    j--;
+                }
+                index[j + 1] = entry;
+            }
+        }
+    }
+
+    /**
+     * A k-way merge of sorted runs using a binary min-heap of run readers. Run
+     * files are deleted as they are exhausted.
+     */
+    private final class MergeIterator extends AbstractIterator<byte[]> {
+
+        private final RunReader[] heap;
+        private int heapSize;
+
+        public MergeIterator(List<File> runs) throws IOException {
+            this.heap = new RunReader[runs.size()];
+            this.heapSize = 0;
+            for(File run: runs) {
+                RunReader reader = new RunReader(run, readBufferSize, compress);
+                if(reader.advance())
+                    heap[heapSize++] = reader;
+            }
+            for(int i = heapSize / 2 - 1; i >= 0; i--)
+                siftDown(i);
+        }
+
+        @Override
+        protected byte[] computeNext() {
+            if(heapSize == 0)
+                return endOfData();
+            RunReader top = heap[0];
+            byte[] record = top.getCurrent();
+            if(!top.advance()) {
+                heapSize--;
+                heap[0] = heap[heapSize];
+                heap[heapSize] = null;
+            }
+            if(heapSize > 0)
+                siftDown(0);
+            return record;
+        }
+
+        private void siftDown(int i) {
+            RunReader reader = heap[i];
+            while(true) {
+                int child = 2 * i + 1;
+                if(child >= heapSize)
+                    break;
+                if(child + 1 < heapSize && compare(heap[child + 1], heap[child]) < 0)
+                    child++;
+                if(compare(reader, heap[child]) <= 0)
+                    break;
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = reader;
+        }
+
+        private int compare(RunReader r1, RunReader r2) {
+            return ByteUtils.compare(r1.getCurrent(), r2.getCurrent());
+        }
+    }
+
+    private static final class RunWriter {
+
+        private final DataOutputStream output;
+
+        public RunWriter(File file, boolean compress) throws IOException {
+            OutputStream stream = new FileOutputStream(file);
+            if(compress)
+                stream = new FastDeflaterOutputStream(stream, WRITE_BUFFER_SIZE);
+            this.output = new DataOutputStream(new BufferedOutputStream(stream, WRITE_BUFFER_SIZE));
+        }
+
+        public DataOutputStream getOutput() {
+            return output;
+        }
+
+        public void close() throws IOException {
+            output.close();
+        }
+    }
+
+    private static final class RunReader {
+
+        private final File file;
+        private final DataInputStream input;
+        private byte[] current;
+
+        public RunReader(File file, int bufferSize, boolean compress) throws IOException {
+            this.file = file;
+            InputStream stream = new BufferedInputStream(new FileInputStream(file), bufferSize);
+            if(compress)
+                stream = new InflaterInputStream(stream);
+            this.input = new DataInputStream(new BufferedInputStream(stream, bufferSize));
+        }
+
+        public byte[] getCurrent() {
+            return current;
+        }
+
+        /**
+         * Read the next record, or close and delete the run if there are none
+         */
+        public boolean advance() {
+            try {
+                int size = input.readInt();
+                current = new byte[size];
+                input.readFully(current);
+                return true;
+            } catch(EOFException e) {
+                closeAndDelete();
+                return false;
+            } catch(IOException e) {
+                closeAndDelete();
+                throw new VoldemortException("Error reading sorted run " + file, e);
+            }
+        }
+
+        private void closeAndDelete() {
+            current = null;
+            try {
+                input.close();
+            } catch(IOException e) {
+                throw new VoldemortException("Failed to close input stream.", e);
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Trades compression ratio for speed, and frees the native deflater on
+     * close
+     */
+    private static final class FastDeflaterOutputStream extends DeflaterOutputStream {
+
+        public FastDeflaterOutputStream(OutputStream output, int bufferSize) {
+            super(output, new Deflater(Deflater.BEST_SPEED), bufferSize);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.readonly;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import voldemort.VoldemortException;
+import voldemort.utils.ByteUtils;
+import voldemort.utils.DaemonThreadFactory;
+import voldemort.utils.IoThrottler;
+import voldemort.utils.Props;
+import voldemort.utils.Utils;
+
+/**
+ * The common logic for fetchers that copy a store directory file by file from
+ * some other filesystem. Subclasses only need to list and open source files.
+ * 
+ * <ul>
+ * <li>The files of a directory are copied concurrently by a pool of threads</li>
+ * <li>If the source directory has a {@link StoreManifest}, each file's MD5 is
+ * computed while it is copied and checked against it, and failed files are
+ * retried</li>
+ * <li>Files whose manifest entry matches the current version are hard linked
+ * from it rather than copied</li>
+ * <li>All copies made by one fetcher share a single {@link IoThrottler}, so
+ * the configured rate is a budget for the whole node rather than per file.
+ * Copies may also be charged to a throttler shared with the node's other
+ * background I/O, see {@link #setSharedThrottler(IoThrottler)}.</li>
+ * <li>Each fetch goes to a directory of its own, named for the store and the
+ * url fetched, so that fetches of different stores or versions at the same
+ * time never share files.</li>
+ * <li>If a fetch fails, the partially fetched directory is left in place and
+ * the next fetch of the same directory only copies what is missing. Partial
+ * files are only resumed when there is a manifest to verify them against.</li>
+ * <li>Files are copied under a name ending in {@link #PARTIAL_SUFFIX} and
+ * renamed once complete. A file already in the fetch directory may be a hard
+ * link to a file of a version being served, so it is never written to, only
+ * read or replaced.</li>
+ * </ul>
+ */
+public abstract class ParallelFileFetcher implements DeltaFileFetcher {
+
+    public static final String MAX_BYTES_PER_SEC_PROPERTY = "fetcher.max.bytes.per.sec";
+    public static final String NUM_THREADS_PROPERTY = "fetcher.num.threads";
+    public static final String MAX_RETRIES_PROPERTY = "fetcher.max.retries";
+
+    public static final int DEFAULT_NUM_THREADS = 4;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    public static final String PARTIAL_SUFFIX = ".partial";
+
+    private static final Logger logger = Logger.getLogger(ParallelFileFetcher.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long REPORTING_INTERVAL_BYTES = 100 * 1024 * 1024;
+
+    private final File tempDir;
+    private final int numThreads;
+    private final int maxRetries;
+    private final IoThrottler throttler;
+    private volatile IoThrottler sharedThrottler;
+
+    private final AtomicLong bytesCopied;
+    private final AtomicLong bytesSinceLastReport;
+    private final AtomicLong filesCopied;
+    private final AtomicLong filesLinked;
+    private final AtomicLong filesResumed;
+    private final AtomicLong checksumFailures;
+
+    /**
+     * Create a fetcher
+     * 
+     * @param tempDir The local directory to fetch into
+     * @param numThreads The number of files to copy concurrently
+     * @param maxRetries The number of times to retry a failed file copy
+     * @param maxBytesPerSecond The maximum total copy rate, or null for no
+     *        limit
+     */
+    protected ParallelFileFetcher(File tempDir,
+                                  int numThreads,
+                                  int maxRetries,
+                                  Long maxBytesPerSecond) {
+        if(numThreads < 1)
+            throw new IllegalArgumentException("numThreads must be at least 1.");
+        if(maxRetries < 0)
+            throw new IllegalArgumentException("maxRetries cannot be negative.");
+        this.tempDir = Utils.notNull(tempDir);
+        this.numThreads = numThreads;
+        this.maxRetries = maxRetries;
+        this.throttler = maxBytesPerSecond == null ? null : new IoThrottler(maxBytesPerSecond);
+        this.bytesCopied = new AtomicLong(0);
+        this.bytesSinceLastReport = new AtomicLong(0);
+        this.filesCopied = new AtomicLong(0);
+        this.filesLinked = new AtomicLong(0);
+        this.filesResumed = new AtomicLong(0);
+        this.checksumFailures = new AtomicLong(0);
+        this.tempDir.mkdirs();
+    }
+
+    protected static Long getMaxBytesPerSecond(Props props) {
+        return props.containsKey(MAX_BYTES_PER_SEC_PROPERTY) ? props.getBytes(MAX_BYTES_PER_SEC_PROPERTY)
+                                                             : null;
+    }
+
+    protected static int getNumThreads(Props props) {
+        return props.getInt(NUM_THREADS_PROPERTY, DEFAULT_NUM_THREADS);
+    }
+
+    protected static int getMaxRetries(Props props) {
+        return props.getInt(MAX_RETRIES_PROPERTY, DEFAULT_MAX_RETRIES);
+    }
+
+    /**
+     * Get the file or directory with the given url
+     */
+    protected abstract SourceFile getSourceFile(String url) throws IOException;
+
+    /**
+     * List the contents of the given source directory
+     */
+    protected abstract List<SourceFile> listSourceFiles(SourceFile dir) throws IOException;
+
+    /**
+     * Open the given source file positioned at the given offset
+     */
+    protected abstract InputStream openSourceFile(SourceFile file, long offset)
+            throws IOException;
+
+    public File fetch(String fileUrl) throws IOException {
+        return fetch(fileUrl, null, null);
+    }
+
+    public File fetch(String fileUrl, String storeName, File currentVersionDir)
+            throws IOException {
+        SourceFile source = getSourceFile(fileUrl);
+        File dest = getDestination(source, fileUrl, storeName);
+        long start = System.currentTimeMillis();
+        long bytesBefore = bytesCopied.get();
+        if(source.isDirectory()) {
+            ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+                                                                    new DaemonThreadFactory("file-fetcher-"));
+            try {
+                fetchDirectory(source, dest, currentVersionDir, executor);
+            } finally {
+                executor.shutdownNow();
+            }
+        } else {
+            copyWithRetries(source, dest, null);
+        }
+        logger.info("Fetch of " + fileUrl + " to " + dest + " copied "
+                    + (bytesCopied.get() - bytesBefore) + " bytes in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        return dest;
+    }
+
+    /*
+     * The directory under the temp directory to fetch the url to. Builds of
+     * every store name their output after the node, so the name alone is not
+     * unique: a hash of the url tells versions and stores apart.
+     */
+    private File getDestination(SourceFile source, String fileUrl, String storeName) {
+        File dir = tempDir;
+        if(storeName != null) {
+            if(storeName.length() == 0 || storeName.startsWith(".")
+               || storeName.indexOf('/') >= 0 || storeName.indexOf('\\') >= 0
+               || storeName.indexOf(File.separatorChar) >= 0)
+                throw new VoldemortException("Invalid store name for a fetch: '" + storeName
+                                             + "'");
+            dir = new File(tempDir, storeName);
+        }
+        String urlHash = ByteUtils.toHexString(ByteUtils.md5(ByteUtils.getBytes(fileUrl, "UTF-8")));
+        return new File(dir, source.getName() + "-" + urlHash.substring(0, 16));
+    }
+
+    private void fetchDirectory(SourceFile source,
+                                File dest,
+                                File currentVersionDir,
+                                ExecutorService executor) throws IOException {
+        if(dest.exists() && !dest.isDirectory())
+            Utils.rm(dest);
+        dest.mkdirs();
+
+        List<SourceFile> files = new ArrayList<SourceFile>();
+        StoreManifest manifest = null;
+        for(SourceFile file: listSourceFiles(source)) {
+            if(file.getName().startsWith("."))
+                continue;
+            files.add(file);
+            if(!file.isDirectory() && file.getName().equals(StoreManifest.FILE_NAME))
+                manifest = readManifest(file);
+        }
+
+        // remove anything left over from a fetch of a different version
+        Set<String> names = new HashSet<String>();
+        for(SourceFile file: files) {
+            names.add(file.getName());
+            names.add(file.getName() + PARTIAL_SUFFIX);
+        }
+        File[] existing = dest.listFiles();
+        if(existing != null) {
+            for(File file: existing)
+                if(!names.contains(file.getName()))
+                    Utils.rm(file);
+        }
+
+        StoreManifest current = null;
+        if(manifest != null && currentVersionDir != null && currentVersionDir.isDirectory())
+            current = StoreManifest.read(currentVersionDir);
+
+        List<Future<Void>> copies = new ArrayList<Future<Void>>();
+        for(final SourceFile file: files) {
+            final File destFile = new File(dest, file.getName());
+            if(file.isDirectory()) {
+                fetchDirectory(file, destFile, null, executor);
+            } else if(current != null && manifest.isUnchanged(file.getName(), current)
+                      && new File(currentVersionDir, file.getName()).length() == file.getLength()) {
+                link(new File(currentVersionDir, file.getName()), destFile);
+            } else {
+                final String checksum = manifest != null && manifest.contains(file.getName()) ? manifest.getChecksum(file.getName())
+                                                                                             : null;
+                copies.add(executor.submit(new Callable<Void>() {
+
+                    public Void call() throws IOException {
+                        copyWithRetries(file, destFile, checksum);
+                        return null;
+                    }
+                }));
+            }
+        }
+
+        try {
+            for(Future<Void> copy: copies)
+                copy.get();
+        } catch(ExecutionException e) {
+            for(Future<Void> copy: copies)
+                copy.cancel(true);
+            if(e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new VoldemortException("Fetch of " + source.getUrl() + " failed.", e.getCause());
+        } catch(InterruptedException e) {
+            for(Future<Void> copy: copies)
+                copy.cancel(true);
+            throw new VoldemortException("Interrupted while fetching " + source.getUrl(), e);
+        }
+    }
+
+    private StoreManifest readManifest(SourceFile file) throws IOException {
+        InputStream input = openSourceFile(file, 0);
+        try {
+            return StoreManifest.read(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    private void link(File source, File dest) throws IOException {
+        delete(dest);
+        delete(partialFile(dest));
+        try {
+            Utils.hardLink(source, dest);
+        } catch(VoldemortException e) {
+            logger.warn("Hard link of " + source + " failed, copying it instead.", e);
+            copyLocal(source, dest);
+        }
+        filesLinked.incrementAndGet();
+    }
+
+    private void copyWithRetries(SourceFile source, File dest, String checksum)
+            throws IOException {
+        for(int attempt = 0;; attempt++) {
+            try {
+                copy(source, dest, checksum);
+                return;
+            } catch(IOException e) {
+                if(attempt >= maxRetries || Thread.currentThread().isInterrupted())
+                    throw e;
+                logger.warn("Copy of " + source.getUrl() + " failed (attempt " + (attempt + 1)
+                            + " of " + (maxRetries + 1) + "), retrying.", e);
+            }
+        }
+    }
+
+    private void copy(SourceFile source, File dest, String checksum) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        MessageDigest digest = checksum == null ? null : ByteUtils.getDigest("MD5");
+        if(digest != null && dest.isFile() && dest.length() == source.getLength()) {
+            // keep a complete file from a previous attempt if it checks out
+            hash(dest, digest, buffer);
+            if(ByteUtils.toHexString(digest.digest()).equals(checksum)) {
+                if(dest.length() > 0)
+                    filesResumed.incrementAndGet();
+                filesCopied.incrementAndGet();
+                return;
+            }
+            digest.reset();
+        }
+        delete(dest);
+
+        File partial = partialFile(dest);
+        long offset = 0;
+        if(digest != null && partial.isFile() && partial.length() <= source.getLength()) {
+            // pick up where a previous attempt left off
+            offset = partial.length();
+            if(offset > 0) {
+                hash(partial, digest, buffer);
+                filesResumed.incrementAndGet();
+                logger.info("Resuming copy of " + source.getUrl() + " at byte " + offset);
+            }
+        }
+        if(offset == 0)
+            delete(partial);
+
+        if(offset < source.getLength() || !partial.exists()) {
+            InputStream input = null;
+            OutputStream output = null;
+            try {
+                input = openSourceFile(source, offset);
+                output = new FileOutputStream(partial, offset > 0);
+                while(true) {
+                    int read = input.read(buffer);
+                    if(read < 0)
+                        break;
+                    output.write(buffer, 0, read);
+                    if(digest != null)
+                        digest.update(buffer, 0, read);
+                    if(throttler != null)
+                        throttler.maybeThrottle(read);
+                    IoThrottler shared = sharedThrottler;
+                    if(shared != null)
+                        shared.maybeThrottle(read);
+                    recordBytes(read);
+                }
+            } finally {
+                if(output != null)
+                    output.close();
+                if(input != null)
+                    input.close();
+            }
+        }
+
+        if(partial.length() != source.getLength())
+            throw new IOException("Copy of " + source.getUrl() + " is " + partial.length()
+                                  + " bytes, but should be " + source.getLength() + " bytes.");
+        if(digest != null) {
+            String found = ByteUtils.toHexString(digest.digest());
+            if(!found.equals(checksum)) {
+                checksumFailures.incrementAndGet();
+                partial.delete();
+                throw new IOException("Checksum mismatch for " + source.getUrl() + ": expected "
+                                      + checksum + " but found " + found + ".");
+            }
+        }
+        if(!partial.renameTo(dest))
+            throw new IOException("Could not rename " + partial + " to " + dest);
+        filesCopied.incrementAndGet();
+    }
+
+    private static File partialFile(File dest) {
+        return new File(dest.getParentFile(), dest.getName() + PARTIAL_SUFFIX);
+    }
+
+    /*
+     * Remove the file's name, which leaves the data of any other hard link to
+     * it untouched
+     */
+    private static void delete(File file) throws IOException {
+        if(file.exists() && !file.delete())
+            throw new IOException("Could not delete " + file);
+    }
+
+    private void hash(File file, MessageDigest digest, byte[] buffer) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            while(true) {
+                int read = input.read(buffer);
+                if(read < 0)
+                    break;
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void copyLocal(File source, File dest) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream input = new FileInputStream(source);
+        try {
+            OutputStream output = new FileOutputStream(dest);
+            try {
+                while(true) {
+                    int read = input.read(buffer);
+                    if(read < 0)
+                        break;
+                    output.write(buffer, 0, read);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void recordBytes(int bytes) {
+        bytesCopied.addAndGet(bytes);
+        if(bytesSinceLastReport.addAndGet(bytes) > REPORTING_INTERVAL_BYTES) {
+            bytesSinceLastReport.set(0);
+            logger.info(bytesCopied.get() / (1024 * 1024) + " MB copied");
+        }
+    }
+
+    /**
+     * Charge all copies to the given throttler as well as to this fetcher's
+     * own limit
+     * 
+     * @param sharedThrottler The throttler, or null for none
+     */
+    public void setSharedThrottler(IoThrottler sharedThrottler) {
+        this.sharedThrottler = sharedThrottler;
+    }
+
+    public File getTempDir() {
+        return tempDir;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied.get();
+    }
+
+    public long getFilesCopied() {
+        return filesCopied.get();
+    }
+
+    public long getFilesLinked() {
+        return filesLinked.get();
+    }
+
+    public long getFilesResumed() {
+        return filesResumed.get();
+    }
+
+    public long getChecksumFailures() {
+        return checksumFailures.get();
+    }
+
+    /**
+     * A file or directory on the filesystem being fetched from
+     */
+    protected static class SourceFile {
+
+        private final String url;
+        private final String name;
+        private final long length;
+        private final boolean isDirectory;
+
+        public SourceFile(String url, String name, long length, boolean isDirectory) {
+            this.url = url;
+            this.name = name;
+            this.length = length;
+            this.isDirectory = isDirectory;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public boolean isDirectory() {
+            return isDirectory;
+        }
+    }
+}
@@ -41,6 +41,11 @@ public class ReadOnlyStorageConfiguration implements StorageConfiguration {
     private final File storageDir;
     private final Set<ObjectName> registeredBeans;
     private final int nodeId;
+    private final boolean warmUpEnabled;
+    private final boolean warmUpBeforeSwap;
+    private final long warmUpBytesPerSec;
+    private final long warmUpDataBytes;
+    private final VersionDeleter deleter;
 
     public ReadOnlyStorageConfiguration(VoldemortConfig config) {
         this.numFileHandles = config.getReadOnlyStorageFileHandles();
@@ -49,20 +54,37 @@ public class ReadOnlyStorageConfiguration implements StorageConfiguration {
         this.numBackups = config.getReadOnlyBackups();
         this.registeredBeans = Collections.synchronizedSet(new HashSet<ObjectName>());
         this.nodeId = config.getNodeId();
+        this.warmUpEnabled = config.isReadOnlyWarmUpEnabled();
+        this.warmUpBeforeSwap = config.isReadOnlyWarmUpBeforeSwap();
+        this.warmUpBytesPerSec = config.getReadOnlyWarmUpBytesPerSec();
+        this.warmUpDataBytes = config.getReadOnlyWarmUpDataBytes();
+        // one deleter for all stores so the delete rate is a node-wide limit
+        if(config.getReadOnlyDeleteBytesPerSec() > 0)
+            this.deleter = new VersionDeleter(config.getReadOnlyDeleteBytesPerSec());
+        else
+            this.deleter = null;
     }
 
     public void close() {
+        if(deleter != null)
+            deleter.close();
         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
         for(ObjectName name: registeredBeans)
             JmxUtils.unregisterMbean(server, name);
     }
 
     public StorageEngine<ByteArray, byte[]> getStore(String name) {
+        StoreWarmer warmer = null;
+        if(warmUpEnabled)
+            warmer = new StoreWarmer(warmUpBytesPerSec, warmUpDataBytes);
         ReadOnlyStorageEngine store = new ReadOnlyStorageEngine(name,
                                                                 new File(storageDir, name),
                                                                 numBackups,
                                                                 numFileHandles,
-                                                                fileAccessWaitTimeoutMs);
+                                                                fileAccessWaitTimeoutMs,
+                                                                warmer,
+                                                                warmUpBeforeSwap,
+                                                                deleter);
         ObjectName objName = JmxUtils.createObjectName(JmxUtils.getPackageName(store.getClass()),
                                                        name + nodeId);
         JmxUtils.registerMbean(ManagementFactory.getPlatformMBeanServer(),
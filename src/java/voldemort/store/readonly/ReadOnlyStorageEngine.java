@@ -22,11 +22,14 @@ import java.nio.MappedByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 
@@ -72,7 +75,10 @@ public class ReadOnlyStorageEngine implements StorageEngine<ByteArray, byte[]> {
     private final int numFileHandles;
     private final long bufferWaitTimeoutMs;
     private final File storeDir;
-    private final ReadWriteLock fileModificationLock;
+    private final Lock fileModificationLock;
+    private final StoreWarmer warmer;
+    private final boolean warmBeforeSwap;
+    private final VersionDeleter deleter;
     private volatile ChunkedFileSet fileSet;
     private volatile boolean isOpen;
 
@@ -96,6 +102,54 @@ public class ReadOnlyStorageEngine implements StorageEngine<ByteArray, byte[]> {
                                  int numBackups,
                                  int numFileHandles,
                                  long bufferWaitTimeoutMs) {
+        this(name, storeDir, numBackups, numFileHandles, bufferWaitTimeoutMs, null, false);
+    }
+
+    /**
+     * Create an instance of the store that warms the page cache for new
+     * versions
+     * 
+     * @param warmer The warmer used to pre-load swapped in files, or null to
+     *        disable warm-up
+     * @param warmBeforeSwap If true the swap waits until the new version is
+     *        warm, otherwise the new version is warmed in the background
+     *        after it is swapped in
+     */
+    public ReadOnlyStorageEngine(String name,
+                                 File storeDir,
+                                 int numBackups,
+                                 int numFileHandles,
+                                 long bufferWaitTimeoutMs,
+                                 StoreWarmer warmer,
+                                 boolean warmBeforeSwap) {
+        this(name,
+             storeDir,
+             numBackups,
+             numFileHandles,
+             bufferWaitTimeoutMs,
+             warmer,
+             warmBeforeSwap,
+             null);
+    }
+
+    /**
+     * Create an instance of the store that warms the page cache for new
+     * versions and deletes old versions in the background
+     * 
+     * @param deleter The deleter used to remove versions beyond the number of
+     *        backups, or null to delete them synchronously after the swap
+     */
+    public ReadOnlyStorageEngine(String name,
+                                 File storeDir,
+                                 int numBackups,
+                                 int numFileHandles,
+                                 long bufferWaitTimeoutMs,
+                                 StoreWarmer warmer,
+                                 boolean warmBeforeSwap,
+                                 VersionDeleter deleter) {
+        this.deleter = deleter;
+        this.warmer = warmer;
+        this.warmBeforeSwap = warmBeforeSwap;
         this.bufferWaitTimeoutMs = bufferWaitTimeoutMs;
         this.numFileHandles = numFileHandles;
         this.storeDir = storeDir;
@@ -103,12 +157,15 @@ public class ReadOnlyStorageEngine implements StorageEngine<ByteArray, byte[]> {
         this.name = Utils.notNull(name);
         this.fileSet = null;
         /*
-         * A lock that blocks reads during swap(), open(), and close()
-         * operations
+         * A lock that serializes swap(), rollback(), open(), and close()
+         * operations. Reads never take it, they hold a reference to the file
+         * set they are using instead.
          */
-        this.fileModificationLock = new ReentrantReadWriteLock();
+        this.fileModificationLock = new ReentrantLock();
         this.isOpen = false;
         open();
+        if(deleter != null)
+            deleter.scheduleRetired(storeDir);
     }
 
     /**
@@ -116,7 +173,7 @@ public class ReadOnlyStorageEngine implements StorageEngine<ByteArray, byte[]> {
      */
     public void open() {
         /* acquire modification lock */
-        fileModificationLock.writeLock().lock();
+        fileModificationLock.lock();
         try {
             /* check that the store is currently closed */
             if(isOpen)
@@ -129,34 +186,37 @@ public class ReadOnlyStorageEngine implements StorageEngine<ByteArray, byte[]> {
                                               this.bufferWaitTimeoutMs);
             isOpen = true;
         } finally {
-            fileModificationLock.writeLock().unlock();
+            fileModificationLock.unlock();
         }
     }
 
     /**
-     * Close the store.
+     * Close the store. Reads already in progress complete against the files
+     * they started with.
      */
     public void close() throws VoldemortException {
         logger.debug("Close called for read-only store.");
-        this.fileModificationLock.writeLock().lock();
-        if(!isOpen)
-            throw new IllegalStateException("Attempt to close non-open store.");
+        this.fileModificationLock.lock();
         try {
+            if(!isOpen)
+                throw new IllegalStateException("Attempt to close non-open store.");
             this.isOpen = false;
             fileSet.close();
         } finally {
-            this.fileModificationLock.writeLock().unlock();
+            this.fileModificationLock.unlock();
         }
     }
 
     /**
-     * Swap the current index and data files for a new pair
+     * Swap the current version of the store for a new one. The new files are
+     * opened and mapped before anything else is changed and then published
+     * all at once, so reads are never blocked; reads that are in progress
+     * finish against the old version, which is released when they are done.
      * 
-     * @param newIndexFile The path to the new index file
-     * @param newDataFile The path to the new data file
+     * @param newStoreDirectory The directory containing the new version
      */
-    @JmxOperation(description = "swapFiles(newIndexFile, newDataFile) changes this store "
-                                + " to use the given index and data file.")
+    @JmxOperation(description = "swapFiles(newStoreDirectory) changes this store "
+                                + " to use the index and data files in the given directory.")
     public void swapFiles(String newStoreDirectory) {
         logger.info("Swapping files for store '" + getName() + "' from " + newStoreDirectory);
         File newDataDir = new File(newStoreDirectory);
@@ -164,61 +224,291 @@ public class ReadOnlyStorageEngine implements StorageEngine<ByteArray, byte[]> {
             throw new VoldemortException("File " + newDataDir.getAbsolutePath()
                                          + " does not exist.");
 
-        logger.info("Acquiring write lock on '" + getName() + "':");
-        fileModificationLock.writeLock().lock();
+        // share the files that haven't changed with the current version and
+        // its backups
+        Set<String> linked = linkUnchangedFiles(newDataDir, new File(storeDir, "version-0"));
+
+        // warm the new files before we serve any reads from them
+        if(warmer != null && warmBeforeSwap)
+            warmer.warm(newDataDir);
+
+        // if this fails the current version is left untouched
+        logger.info("Opening new version of '" + getName() + "' in " + newDataDir);
+        ChunkedFileSet newFileSet = new ChunkedFileSet(newDataDir,
+                                                       this.numFileHandles,
+                                                       this.bufferWaitTimeoutMs);
+
+        fileModificationLock.lock();
         boolean success = false;
         try {
-            close();
+            if(!isOpen)
+                throw new VoldemortException("Attempt to swap files of closed store '"
+                                             + getName() + "'.");
+            // the mapped files remain valid while their directories are renamed
             logger.info("Renaming data and index files for '" + getName() + "':");
             shiftBackupsRight();
-            // copy in new files
             logger.info("Setting primary files for store '" + getName() + "' to "
                         + newStoreDirectory);
             success = newDataDir.renameTo(new File(storeDir, "version-0"));
-
-            // open the new store
             if(success) {
-                try {
-                    open();
-                } catch(Exception e) {
-                    logger.error(e);
-                    success = false;
-                }
+                publish(newFileSet);
+            } else {
+                logger.error("Rename of " + newDataDir + " failed, restoring previous version.");
+                shiftBackupsLeft(0);
             }
         } finally {
-            try {
-                // we failed to do the swap, attempt a rollback
-                if(!success)
-                    rollback();
-            } finally {
-                fileModificationLock.writeLock().unlock();
-                logger.info("Swap operation completed on '" + getName() + "', releasing lock.");
-            }
+            if(!success)
+                newFileSet.close();
+            fileModificationLock.unlock();
+            logger.info("Swap operation completed on '" + getName() + "', releasing lock.");
         }
+        if(!success)
+            throw new VoldemortException("Swap of " + newStoreDirectory + " into store '"
+                                         + getName() + "' failed.");
+        recordSharedFiles(new File(storeDir, "version-1"), linked);
+        if(warmer != null && !warmBeforeSwap)
+            warmInBackground(new File(storeDir, "version-0"));
+
         // okay we have released the lock and the store is now open again, it is
         // safe to do a potentially slow delete if we have one too many backups
         File extraBackup = new File(storeDir, "version-" + (numBackups + 1));
         if(extraBackup.exists()) {
-            logger.info("Deleting oldest backup file " + extraBackup);
-            Utils.rm(extraBackup);
-            logger.info("Delete completed successfully.");
+            if(deleter != null) {
+                deleter.retire(extraBackup);
+            } else {
+                logger.info("Deleting oldest backup file " + extraBackup);
+                Utils.rm(extraBackup);
+                logger.info("Delete completed successfully.");
+            }
+        }
+    }
+
+    /*
+     * Replace each file in the new version whose manifest entry matches the
+     * current version with a hard link to the current file. Since every swap
+     * does this, an unchanged file is stored once no matter how many backups
+     * contain it. Files the fetcher already linked are linked again, as Java
+     * can't tell whether two files are links to the same data.
+     * 
+     * Returns the names of the files linked.
+     */
+    private Set<String> linkUnchangedFiles(File newDataDir, File currentDir) {
+        Set<String> linked = new HashSet<String>();
+        try {
+            // the newest version shares nothing with a newer one
+            File shared = new File(newDataDir, ReadOnlyUtils.SHARED_FILES_NAME);
+            if(shared.exists())
+                Utils.rm(shared);
+            StoreManifest newManifest = StoreManifest.read(newDataDir);
+            StoreManifest currentManifest = currentDir.exists() ? StoreManifest.read(currentDir)
+                                                                : null;
+            if(newManifest == null || currentManifest == null)
+                return linked;
+            for(String fileName: newManifest.getFileNames()) {
+                File newFile = new File(newDataDir, fileName);
+                File currentFile = new File(currentDir, fileName);
+                if(!newManifest.isUnchanged(fileName, currentManifest) || !newFile.exists()
+                   || !currentFile.isFile())
+                    continue;
+                File link = new File(newDataDir, fileName + ".link");
+                Utils.hardLink(currentFile, link);
+                Utils.move(link, newFile);
+                linked.add(fileName);
+            }
+            logger.info("Linked " + linked.size() + " unchanged files of " + newDataDir + " to "
+                        + currentDir);
+        } catch(Exception e) {
+            logger.warn("Could not link unchanged files of " + newDataDir + " to " + currentDir
+                        + ", they will use extra disk space.", e);
         }
+        return linked;
+    }
+
+    /*
+     * Record which files of a backup are links to the data of the next newer
+     * version, so that they aren't counted twice and deleting them isn't
+     * charged as freeing space
+     */
+    private void recordSharedFiles(File versionDir, Set<String> linked) {
+        try {
+            ReadOnlyUtils.writeSharedFiles(versionDir, linked);
+        } catch(IOException e) {
+            logger.warn("Could not record the files " + versionDir
+                        + " shares with the current version.", e);
+        }
+    }
+
+    private static Set<String> getSharedFiles(File versionDir) {
+        try {
+            return ReadOnlyUtils.readSharedFiles(versionDir);
+        } catch(IOException e) {
+            logger.warn("Could not read the files " + versionDir + " shares with a newer version.",
+                        e);
+            return Collections.emptySet();
+        }
+    }
+
+    @JmxGetter(name = "versionDiskUsage", description = "The bytes in each version of the store, "
+                                                        + "and how many of them are shared with the next newer version.")
+    public String getVersionDiskUsage() {
+        StringBuilder builder = new StringBuilder();
+        for(int version = 0;; version++) {
+            File dir = new File(storeDir, "version-" + version);
+            if(!dir.isDirectory())
+                break;
+            Set<String> sharedFiles = getSharedFiles(dir);
+            long total = 0;
+            long shared = 0;
+            for(File file: listFiles(dir)) {
+                total += file.length();
+                if(sharedFiles.contains(file.getName()))
+                    shared += file.length();
+            }
+            if(version > 0)
+                builder.append(", ");
+            builder.append(dir.getName() + "=" + total + " bytes (" + shared + " shared)");
+        }
+        return builder.toString();
+    }
+
+    @JmxGetter(name = "diskUsageBytes", description = "An estimate of the disk space used by all versions "
+                                                      + "of the store, counting shared files once.")
+    public long getDiskUsageBytes() {
+        long total = 0;
+        for(int version = 0;; version++) {
+            File dir = new File(storeDir, "version-" + version);
+            if(!dir.isDirectory())
+                break;
+            Set<String> sharedFiles = getSharedFiles(dir);
+            for(File file: listFiles(dir))
+                if(!sharedFiles.contains(file.getName()))
+                    total += file.length();
+        }
+        return total;
+    }
+
+    @JmxGetter(name = "pendingDeletionBytes", description = "The bytes of retired versions waiting to be deleted on this node.")
+    public long getPendingDeletionBytes() {
+        return deleter == null ? 0L : deleter.getPendingBytes();
+    }
+
+    private static List<File> listFiles(File dir) {
+        List<File> files = Lists.newArrayList();
+        File[] children = dir.listFiles();
+        if(children != null) {
+            for(File child: children)
+                if(child.isFile())
+                    files.add(child);
+        }
+        return files;
+    }
+
+    /*
+     * Make the given file set the one used by new reads, and close the old
+     * one, which is released once the reads using it finish. Must hold the
+     * modification lock.
+     */
+    private void publish(ChunkedFileSet newFileSet) {
+        ChunkedFileSet oldFileSet = this.fileSet;
+        this.fileSet = newFileSet;
+        if(oldFileSet != null)
+            oldFileSet.close();
+    }
+
+    /*
+     * Get a reference to the current file set, the caller must release it
+     */
+    private ChunkedFileSet acquireFileSet() {
+        while(true) {
+            ChunkedFileSet current = this.fileSet;
+            if(!isOpen || current == null)
+                throw new VoldemortException("Read-only store '" + getName() + "' is not open.");
+            if(current.acquire())
+                return current;
+            // a swap closed this file set after we read it, try the new one
+        }
+    }
+
+    /**
+     * Pre-load the given store directory into the page cache, blocking until
+     * complete. Intended to be called on a fetched directory prior to swapping
+     * it in.
+     * 
+     * @param storeDirectory The directory to warm, or null for the version
+     *        currently being served
+     */
+    @JmxOperation(description = "warmUp(storeDirectory) reads the index (and optionally data) files "
+                                + "of the given directory into the page cache.")
+    public void warmUp(String storeDirectory) {
+        if(warmer == null)
+            throw new VoldemortException("Warm-up is not enabled for store '" + getName() + "'.");
+        if(storeDirectory == null)
+            warmer.warm(new File(storeDir, "version-0"));
+        else
+            warmer.warm(new File(storeDirectory));
+    }
+
+    private void warmInBackground(final File versionDir) {
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    warmer.warm(versionDir);
+                } catch(Exception e) {
+                    logger.error("Warm-up of " + versionDir + " failed:", e);
+                }
+            }
+        }, "read-only-warmer-" + getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The directory of the version currently being served
+     */
+    public File getCurrentVersionDir() {
+        return new File(storeDir, "version-0");
+    }
+
+    public boolean isWarmUpEnabled() {
+        return warmer != null;
+    }
+
+    @JmxGetter(name = "warming", description = "True if a warm-up is currently in progress.")
+    public boolean isWarming() {
+        return warmer != null && warmer.isWarming();
+    }
+
+    @JmxGetter(name = "warmUpProgress", description = "The fraction of the current or last warm-up that has completed.")
+    public double getWarmUpProgress() {
+        return warmer == null ? 0.0 : warmer.getProgress();
+    }
+
+    @JmxGetter(name = "warmUpBytes", description = "The number of bytes read by the current or last warm-up.")
+    public long getWarmUpBytes() {
+        return warmer == null ? 0L : warmer.getBytesWarmed();
     }
 
     @JmxOperation(description = "Rollback to the most recent backup of the current store.")
     public void rollback() {
         logger.info("Rolling back store '" + getName() + "' to version 1.");
-        fileModificationLock.writeLock().lock();
+        fileModificationLock.lock();
         try {
-            if(isOpen)
-                close();
             File backup = new File(storeDir, "version-1");
             if(!backup.exists())
                 throw new VoldemortException("Version 1 does not exists, nothing to roll back to.");
+            ChunkedFileSet backupFileSet = new ChunkedFileSet(backup,
+                                                              this.numFileHandles,
+                                                              this.bufferWaitTimeoutMs);
             shiftBackupsLeft();
-            open();
+            publish(backupFileSet);
+            isOpen = true;
+            // the version it shared files with is gone
+            File shared = new File(storeDir, "version-0/" + ReadOnlyUtils.SHARED_FILES_NAME);
+            if(shared.exists())
+                Utils.rm(shared);
         } finally {
-            fileModificationLock.writeLock().unlock();
+            fileModificationLock.unlock();
             logger.info("Rollback operation completed on '" + getName() + "', releasing lock.");
         }
     }
@@ -227,9 +517,6 @@ public class ReadOnlyStorageEngine implements StorageEngine<ByteArray, byte[]> {
      * Shift all store versions so that 1 becomes 0, 2 becomes 1, etc.
      */
     private void shiftBackupsLeft() {
-        if(isOpen)
-            throw new VoldemortException("Can't move backup files while store is open.");
-
         // Turn the current data into a .bak so we can take a look at it
         // manually if we want
         File primary = new File(storeDir, "version-0");
@@ -259,15 +546,10 @@ public class ReadOnlyStorageEngine implements StorageEngine<ByteArray, byte[]> {
      * Shift all store versions so that 0 becomes 1, 1 becomes 2, etc.
      */
     private void shiftBackupsRight() {
-        if(isOpen)
-            throw new VoldemortException("Can't move backup files while store is open.");
         shiftBackupsRight(0);
     }
 
     private void shiftBackupsRight(int beginShift) {
-        if(isOpen)
-            throw new VoldemortException("Can't move backup files while store is open.");
-
         File source = new File(storeDir, "version-" + Integer.toString(beginShift));
 
         // if the source file doesn't exist there is nothing to shift
@@ -291,44 +573,130 @@ public class ReadOnlyStorageEngine implements StorageEngine<ByteArray, byte[]> {
     public List<Versioned<byte[]>> get(ByteArray key) throws VoldemortException {
         StoreUtils.assertValidKey(key);
         byte[] keyMd5 = ByteUtils.md5(key.get());
-        int chunk = fileSet.getChunkForKey(keyMd5);
-        int location = getValueLocation(chunk, keyMd5);
-        if(location >= 0) {
-            byte[] value = readValue(chunk, location);
-            return Collections.singletonList(Versioned.value(value));
-        } else {
-            return Collections.emptyList();
+        ChunkedFileSet files = acquireFileSet();
+        try {
+            int chunk = files.getChunkForKey(keyMd5);
+            int location = getValueLocation(files, chunk, keyMd5);
+            if(location >= 0) {
+                byte[] value = readValue(files, chunk, location);
+                return Collections.singletonList(Versioned.value(value));
+            } else {
+                return Collections.emptyList();
+            }
+        } finally {
+            files.release();
         }
     }
 
+    /**
+     * Look up a batch of keys. The keys are hashed and grouped by chunk, and
+     * within a chunk sorted by md5 so that the index is searched in a single
+     * forward pass; the values found are then read in file order. Each chunk's
+     * index and data buffers are checked out once for the whole batch.
+     */
     public Map<ByteArray, List<Versioned<byte[]>>> getAll(Iterable<ByteArray> keys)
             throws VoldemortException {
         StoreUtils.assertValidKeys(keys);
         Map<ByteArray, List<Versioned<byte[]>>> results = StoreUtils.newEmptyHashMap(keys);
+        ChunkedFileSet files = acquireFileSet();
         try {
-            fileModificationLock.readLock().lock();
-            List<KeyValueLocation> keysAndValueLocations = Lists.newArrayList();
+            List<KeyLookup> lookups = Lists.newArrayList();
             for(ByteArray key: keys) {
                 byte[] keyMd5 = ByteUtils.md5(key.get());
-                int chunk = fileSet.getChunkForKey(keyMd5);
-                int valueLocation = getValueLocation(chunk, keyMd5);
-                if(valueLocation >= 0)
-                    keysAndValueLocations.add(new KeyValueLocation(chunk, key, valueLocation));
+                lookups.add(new KeyLookup(key, keyMd5, files.getChunkForKey(keyMd5)));
             }
-            Collections.sort(keysAndValueLocations);
-
-            for(KeyValueLocation keyVal: keysAndValueLocations) {
-                byte[] value = readValue(keyVal.getChunk(), keyVal.getValueLocation());
-                results.put(keyVal.getKey(), Collections.singletonList(Versioned.value(value)));
+            Collections.sort(lookups);
+
+            int start = 0;
+            while(start < lookups.size()) {
+                int chunk = lookups.get(start).getChunk();
+                int end = start + 1;
+                while(end < lookups.size() && lookups.get(end).getChunk() == chunk)
+                    end++;
+                List<KeyLookup> chunkLookups = lookups.subList(start, end);
+                findValueLocations(files, chunk, chunkLookups);
+                readValues(files, chunk, chunkLookups, results);
+                start = end;
             }
             return results;
         } finally {
-            fileModificationLock.readLock().unlock();
+            files.release();
         }
     }
 
-    private byte[] readValue(int chunk, int valueLocation) {
-        MappedByteBuffer data = fileSet.checkoutDataFile(chunk);
+    /*
+     * Search the index of the chunk for the given lookups, which must be
+     * sorted by md5. Since they are sorted, each search only needs to cover
+     * the part of the index after the previous key.
+     */
+    private void findValueLocations(ChunkedFileSet files, int chunk, List<KeyLookup> lookups) {
+        MappedByteBuffer index = files.checkoutIndexFile(chunk);
+        try {
+            byte[] keyBuffer = new byte[KEY_HASH_SIZE];
+            int numEntries = files.getIndexFileSize(chunk) / INDEX_ENTRY_SIZE;
+            int low = 0;
+            for(KeyLookup lookup: lookups) {
+                int high = numEntries - 1;
+                int found = -1;
+                while(low <= high) {
+                    int mid = (low + high) / 2;
+                    byte[] foundKey = readKey(index, mid * INDEX_ENTRY_SIZE, keyBuffer);
+                    int cmp = ByteUtils.compare(foundKey, lookup.getKeyMd5());
+                    if(cmp == 0) {
+                        found = mid;
+                        break;
+                    } else if(cmp > 0) {
+                        high = mid - 1;
+                    } else {
+                        low = mid + 1;
+                    }
+                }
+                if(found >= 0) {
+                    index.position(found * INDEX_ENTRY_SIZE + KEY_HASH_SIZE);
+                    lookup.setValueLocation(index.getInt());
+                    // the same key may be requested again
+                    low = found;
+                }
+                // otherwise low is where the key would be, which bounds the
+                // next, larger, key
+            }
+        } finally {
+            files.checkinIndexFile(index, chunk);
+        }
+    }
+
+    /*
+     * Read the values found for the given lookups in the order they appear in
+     * the data file
+     */
+    private void readValues(ChunkedFileSet files,
+                            int chunk,
+                            List<KeyLookup> lookups,
+                            Map<ByteArray, List<Versioned<byte[]>>> results) {
+        List<KeyLookup> found = Lists.newArrayListWithExpectedSize(lookups.size());
+        for(KeyLookup lookup: lookups)
+            if(lookup.getValueLocation() >= 0)
+                found.add(lookup);
+        if(found.isEmpty())
+            return;
+        Collections.sort(found, VALUE_LOCATION_COMPARATOR);
+
+        MappedByteBuffer data = files.checkoutDataFile(chunk);
+        try {
+            for(KeyLookup lookup: found) {
+                data.position(lookup.getValueLocation());
+                int size = data.getInt();
+                byte[] value = new byte[size];
+                data.get(value);
+                results.put(lookup.getKey(), Collections.singletonList(Versioned.value(value)));
+            }
+        } finally {
+            files.checkinDataFile(data, chunk);
+        }
+    }
+
+    private byte[] readValue(ChunkedFileSet files, int chunk, int valueLocation) {
+        MappedByteBuffer data = files.checkoutDataFile(chunk);
         try {
             data.position(valueLocation);
             int size = data.getInt();
@@ -336,22 +704,21 @@ public class ReadOnlyStorageEngine implements StorageEngine<ByteArray, byte[]> {
             data.get(value);
             return value;
         } finally {
-            fileSet.checkinDataFile(data, chunk);
+            files.checkinDataFile(data, chunk);
         }
     }
 
     /**
      * Get the byte offset in the data file at which the given key is stored
      * 
-     * @param index The index file
-     * @param key The key to lookup
-     * @return The offset into the file.
-     * @throws IOException
-     * @throws InterruptedException
+     * @param files The file set to search
+     * @param chunk The chunk the key belongs to
+     * @param keyMd5 The md5 of the key to lookup
+     * @return The offset into the file, or -1 if the key is not present
      */
-    private int getValueLocation(int chunk, byte[] keyMd5) {
-        MappedByteBuffer index = fileSet.checkoutIndexFile(chunk);
-        int indexFileSize = fileSet.getIndexFileSize(chunk);
+    private int getValueLocation(ChunkedFileSet files, int chunk, byte[] keyMd5) {
+        MappedByteBuffer index = files.checkoutIndexFile(chunk);
+        int indexFileSize = files.getIndexFileSize(chunk);
         try {
             byte[] keyBuffer = new byte[KEY_HASH_SIZE];
             int low = 0;
@@ -374,7 +741,7 @@ public class ReadOnlyStorageEngine implements StorageEngine<ByteArray, byte[]> {
             }
             return -1;
         } finally {
-            fileSet.checkinIndexFile(index, chunk);
+            files.checkinIndexFile(index, chunk);
         }
     }
 
@@ -418,40 +785,56 @@ public class ReadOnlyStorageEngine implements StorageEngine<ByteArray, byte[]> {
         throw new NoSuchCapabilityException(capability, getName());
     }
 
-    private final static class KeyValueLocation implements Comparable<KeyValueLocation> {
+    private static final Comparator<KeyLookup> VALUE_LOCATION_COMPARATOR = new Comparator<KeyLookup>() {
+
+        public int compare(KeyLookup l1, KeyLookup l2) {
+            return l1.getValueLocation() < l2.getValueLocation() ? -1
+                                                                : (l1.getValueLocation() == l2.getValueLocation() ? 0
+                                                                                                                 : 1);
+        }
+    };
+
+    /**
+     * A key being looked up by getAll, ordered by chunk and then key md5
+     */
+    private final static class KeyLookup implements Comparable<KeyLookup> {
 
-        private final int chunk;
         private final ByteArray key;
-        private final int valueLocation;
+        private final byte[] keyMd5;
+        private final int chunk;
+        private int valueLocation;
 
-        private KeyValueLocation(int chunk, ByteArray key, int valueLocation) {
-            super();
-            this.chunk = chunk;
+        private KeyLookup(ByteArray key, byte[] keyMd5, int chunk) {
             this.key = key;
-            this.valueLocation = valueLocation;
-        }
-
-        public int getChunk() {
-            return chunk;
+            this.keyMd5 = keyMd5;
+            this.chunk = chunk;
+            this.valueLocation = -1;
         }
 
         public ByteArray getKey() {
             return key;
         }
 
+        public byte[] getKeyMd5() {
+            return keyMd5;
+        }
+
+        public int getChunk() {
+            return chunk;
+        }
+
         public int getValueLocation() {
             return valueLocation;
         }
 
-        public int compareTo(KeyValueLocation kvl) {
-            if(chunk == kvl.getChunk()) {
-                if(valueLocation == kvl.getValueLocation())
-                    return ByteUtils.compare(getKey().get(), kvl.getKey().get());
-                else
-                    return Integer.signum(valueLocation - kvl.getValueLocation());
-            } else {
-                return getChunk() - kvl.getChunk();
-            }
+        public void setValueLocation(int valueLocation) {
+            this.valueLocation = valueLocation;
+        }
+
+        public int compareTo(KeyLookup lookup) {
+            if(chunk != lookup.getChunk())
+                return chunk < lookup.getChunk() ? -1 : 1;
+            return ByteUtils.compare(keyMd5, lookup.getKeyMd5());
         }
     }
 }
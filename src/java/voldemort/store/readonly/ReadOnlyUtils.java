@@ -1,11 +1,67 @@
 package voldemort.store.readonly;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
 import voldemort.utils.ByteUtils;
+import voldemort.utils.Utils;
 
 public class ReadOnlyUtils {
 
+    /**
+     * The file in a store version directory that lists the files that are hard
+     * links to the same data as the files of the next newer version
+     */
+    public static final String SHARED_FILES_NAME = "shared";
+
     public static int chunk(byte[] key, int numChunks) {
         return Math.abs(ByteUtils.readInt(key, 0)) % numChunks;
     }
 
+    /**
+     * @return The names of the files of the given version directory that share
+     *         their data with the next newer version, empty if none are
+     *         recorded
+     */
+    public static Set<String> readSharedFiles(File versionDir) throws IOException {
+        Set<String> names = new HashSet<String>();
+        File file = new File(versionDir, SHARED_FILES_NAME);
+        if(!file.exists())
+            return names;
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while((line = reader.readLine()) != null)
+                if(line.trim().length() > 0)
+                    names.add(line.trim());
+        } finally {
+            reader.close();
+        }
+        return names;
+    }
+
+    /**
+     * Record the names of the files of the given version directory that share
+     * their data with the next newer version, replacing any earlier record
+     */
+    public static void writeSharedFiles(File versionDir, Collection<String> names)
+            throws IOException {
+        File temp = new File(versionDir, SHARED_FILES_NAME + ".temp");
+        Writer writer = new FileWriter(temp);
+        try {
+            for(String name: names)
+                writer.write(name + "\n");
+        } finally {
+            writer.close();
+        }
+        Utils.move(temp, new File(versionDir, SHARED_FILES_NAME));
+    }
+
 }
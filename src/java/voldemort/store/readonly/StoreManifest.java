@@ -0,0 +1,232 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.readonly;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import voldemort.VoldemortException;
+import voldemort.utils.ByteUtils;
+
+/**
+ * The length and MD5 checksum of each chunk file in a read-only store version.
+ * Builders write it next to the chunk files so that a fetch can tell which
+ * files are identical to the version already on a node and skip transferring
+ * them.
+ * 
+ * The on-disk format is one line per file: "name length md5-hex". Several
+ * manifests can be concatenated to produce a manifest of all their files.
+ */
+public class StoreManifest {
+
+    public static final String FILE_NAME = "manifest";
+
+    private static final String ENCODING = "UTF-8";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SortedMap<String, Entry> entries;
+
+    public StoreManifest() {
+        this.entries = new TreeMap<String, Entry>();
+    }
+
+    public void add(String fileName, long length, byte[] md5) {
+        add(fileName, length, ByteUtils.toHexString(md5));
+    }
+
+    public void add(String fileName, long length, String md5Hex) {
+        if(fileName.indexOf(' ') >= 0)
+            throw new IllegalArgumentException("File names cannot contain spaces: " + fileName);
+        entries.put(fileName, new Entry(length, md5Hex));
+    }
+
+    public Set<String> getFileNames() {
+        return entries.keySet();
+    }
+
+    public boolean contains(String fileName) {
+        return entries.containsKey(fileName);
+    }
+
+    public long getLength(String fileName) {
+        return getEntry(fileName).length;
+    }
+
+    public String getChecksum(String fileName) {
+        return getEntry(fileName).md5Hex;
+    }
+
+    /**
+     * @return true if the given manifest has an entry for the file with the
+     *         same length and checksum as this one
+     */
+    public boolean isUnchanged(String fileName, StoreManifest other) {
+        if(other == null || !contains(fileName) || !other.contains(fileName))
+            return false;
+        return getEntry(fileName).equals(other.getEntry(fileName));
+    }
+
+    private Entry getEntry(String fileName) {
+        Entry entry = entries.get(fileName);
+        if(entry == null)
+            throw new IllegalArgumentException("No manifest entry for " + fileName + ".");
+        return entry;
+    }
+
+    public void write(OutputStream output) throws IOException {
+        Writer writer = new OutputStreamWriter(output, ENCODING);
+        for(Map.Entry<String, Entry> entry: entries.entrySet())
+            writer.write(entry.getKey() + " " + entry.getValue().length + " "
+                         + entry.getValue().md5Hex + "\n");
+        writer.flush();
+    }
+
+    /**
+     * Write the manifest into the given store version directory
+     */
+    public void write(File versionDir) throws IOException {
+        OutputStream output = new FileOutputStream(new File(versionDir, FILE_NAME));
+        try {
+            write(output);
+        } finally {
+            output.close();
+        }
+    }
+
+    public static StoreManifest read(InputStream input) throws IOException {
+        StoreManifest manifest = new StoreManifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, ENCODING));
+        String line;
+        while((line = reader.readLine()) != null) {
+            line = line.trim();
+            if(line.length() == 0)
+                continue;
+            String[] fields = line.split(" ");
+            if(fields.length != 3)
+                throw new VoldemortException("Invalid manifest line: '" + line + "'");
+            try {
+                manifest.add(fields[0], Long.parseLong(fields[1]), fields[2]);
+            } catch(NumberFormatException e) {
+                throw new VoldemortException("Invalid manifest line: '" + line + "'", e);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Read the manifest in the given store version directory
+     * 
+     * @return The manifest, or null if the directory has none
+     */
+    public static StoreManifest read(File versionDir) throws IOException {
+        File file = new File(versionDir, FILE_NAME);
+        if(!file.exists())
+            return null;
+        InputStream input = new FileInputStream(file);
+        try {
+            return read(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Compute the manifest of the chunk files in the given directory by reading
+     * them all
+     */
+    public static StoreManifest compute(File versionDir) throws IOException {
+        StoreManifest manifest = new StoreManifest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        MessageDigest digest = ByteUtils.getDigest("MD5");
+        File[] files = versionDir.listFiles();
+        if(files == null)
+            throw new VoldemortException(versionDir + " is not a readable directory.");
+        for(File file: files) {
+            if(!isChunkFile(file.getName()))
+                continue;
+            InputStream input = new FileInputStream(file);
+            try {
+                digest.reset();
+                while(true) {
+                    int read = input.read(buffer);
+                    if(read < 0)
+                        break;
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                input.close();
+            }
+            manifest.add(file.getName(), file.length(), digest.digest());
+        }
+        return manifest;
+    }
+
+    public static boolean isChunkFile(String fileName) {
+        return fileName.endsWith(".index") || fileName.endsWith(".data");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o)
+            return true;
+        if(!(o instanceof StoreManifest))
+            return false;
+        return entries.equals(((StoreManifest) o).entries);
+    }
+
+    @Override
+    public int hashCode() {
+        return entries.hashCode();
+    }
+
+    private static final class Entry {
+
+        private final long length;
+        private final String md5Hex;
+
+        public Entry(long length, String md5Hex) {
+            this.length = length;
+            this.md5Hex = md5Hex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Entry))
+                return false;
+            Entry e = (Entry) o;
+            return length == e.length && md5Hex.equals(e.md5Hex);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (length ^ (length >>> 32)) + md5Hex.hashCode();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.readonly;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.log4j.Logger;
+
+import voldemort.VoldemortException;
+import voldemort.utils.IoThrottler;
+import voldemort.utils.Utils;
+
+/**
+ * Pulls the files of a read-only store version into the OS page cache by
+ * reading them sequentially, so that the first requests after a swap don't pay
+ * for random disk seeks.
+ *
+ * All index files are always read in full, since every lookup binary searches
+ * the index. Data files are read from the beginning of each chunk up to an
+ * optional per-store byte budget that is split evenly across the chunks.
+ *
+ * Only one warm-up runs at a time; progress can be polled from other threads.
+ *
+ *
+ */
+public class StoreWarmer {
+
+    private static final Logger logger = Logger.getLogger(StoreWarmer.class);
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final long maxBytesPerSec;
+    private final long maxDataBytes;
+
+    private volatile String currentDirectory;
+    private volatile long totalBytes;
+    private volatile long bytesWarmed;
+    private volatile boolean isWarming;
+
+    /**
+     * Create a warmer
+     *
+     * @param maxBytesPerSec The maximum rate at which to read files
+     * @param maxDataBytes The number of bytes of data files to read in addition
+     *        to the index files, 0 to warm only the indexes
+     */
+    public StoreWarmer(long maxBytesPerSec, long maxDataBytes) {
+        if(maxBytesPerSec <= 0)
+            throw new IllegalArgumentException("maxBytesPerSec must be positive.");
+        if(maxDataBytes < 0)
+            throw new IllegalArgumentException("maxDataBytes cannot be negative.");
+        this.maxBytesPerSec = maxBytesPerSec;
+        this.maxDataBytes = maxDataBytes;
+        this.currentDirectory = null;
+        this.totalBytes = 0L;
+        this.bytesWarmed = 0L;
+        this.isWarming = false;
+    }
+
+    /**
+     * Read the chunk files in the given store version directory into the page
+     * cache, blocking until the warm-up is complete.
+     *
+     * @param versionDir The directory containing the .index and .data files
+     */
+    public synchronized void warm(File versionDir) {
+        if(!Utils.isReadableDir(versionDir))
+            throw new VoldemortException(versionDir.getAbsolutePath()
+                                         + " is not a readable directory.");
+        int numChunks = countChunks(versionDir);
+        long dataBytesPerChunk = numChunks > 0 ? maxDataBytes / numChunks : 0;
+
+        long total = 0;
+        for(int chunk = 0; chunk < numChunks; chunk++) {
+            total += indexFile(versionDir, chunk).length();
+            total += Math.min(dataBytesPerChunk, dataFile(versionDir, chunk).length());
+        }
+
+        this.currentDirectory = versionDir.getAbsolutePath();
+        this.totalBytes = total;
+        this.bytesWarmed = 0L;
+        this.isWarming = true;
+        logger.info("Warming " + total + " bytes in " + numChunks + " chunks of " + versionDir);
+        long start = System.currentTimeMillis();
+        try {
+            IoThrottler throttler = new IoThrottler(maxBytesPerSec);
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            // indexes first, they are needed by every request
+            for(int chunk = 0; chunk < numChunks; chunk++)
+                read(indexFile(versionDir, chunk), Long.MAX_VALUE, buffer, throttler);
+            if(dataBytesPerChunk > 0) {
+                for(int chunk = 0; chunk < numChunks; chunk++)
+                    read(dataFile(versionDir, chunk), dataBytesPerChunk, buffer, throttler);
+            }
+        } catch(IOException e) {
+            throw new VoldemortException("Error while warming " + versionDir, e);
+        } finally {
+            this.isWarming = false;
+        }
+        logger.info("Warm-up of " + versionDir + " completed in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    private void read(File file, long maxBytes, byte[] buffer, IoThrottler throttler)
+            throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            long remaining = maxBytes;
+            while(remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if(read < 0)
+                    break;
+                remaining -= read;
+                bytesWarmed += read;
+                throttler.maybeThrottle(read);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private int countChunks(File versionDir) {
+        int chunk = 0;
+        while(indexFile(versionDir, chunk).exists() && dataFile(versionDir, chunk).exists())
+            chunk++;
+        return chunk;
+    }
+
+    private File indexFile(File versionDir, int chunk) {
+        return new File(versionDir, Integer.toString(chunk) + ".index");
+    }
+
+    private File dataFile(File versionDir, int chunk) {
+        return new File(versionDir, Integer.toString(chunk) + ".data");
+    }
+
+    public boolean isWarming() {
+        return isWarming;
+    }
+
+    public String getCurrentDirectory() {
+        return currentDirectory;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getBytesWarmed() {
+        return bytesWarmed;
+    }
+
+    /**
+     * @return The fraction of the current (or last) warm-up that is complete,
+     *         between 0 and 1
+     */
+    public double getProgress() {
+        long total = totalBytes;
+        if(total == 0)
+            return isWarming ? 0.0 : 1.0;
+        return Math.min(1.0, bytesWarmed / (double) total);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.readonly;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import voldemort.VoldemortException;
+import voldemort.utils.DaemonThreadFactory;
+import voldemort.utils.Time;
+import voldemort.utils.Utils;
+
+/**
+ * Deletes retired read-only store versions in the background, one file at a
+ * time, pausing after each file in proportion to its size so that removing
+ * hundreds of gigabytes doesn't saturate the disks that are serving reads.
+ * 
+ * A version is first renamed to a name ending in {@link #RETIRED_SUFFIX}, so
+ * its directory is out of the way immediately and a deletion interrupted by a
+ * restart can be picked up again. One deleter is shared by all the read-only
+ * stores on a node, so the rate is a budget for the node.
+ * 
+ * Files a version lists as shared with a newer version are hard links to data
+ * that stays on disk, so removing them is neither counted nor paced.
+ */
+public class VersionDeleter {
+
+    public static final String RETIRED_SUFFIX = ".retired";
+
+    private static final Logger logger = Logger.getLogger(VersionDeleter.class);
+
+    private final long maxBytesPerSec;
+    private final ExecutorService executor;
+    private final AtomicLong pendingBytes;
+    private final AtomicLong bytesDeleted;
+
+    /**
+     * @param maxBytesPerSec The rate, in bytes of file deleted per second, at
+     *        which to delete
+     */
+    public VersionDeleter(long maxBytesPerSec) {
+        if(maxBytesPerSec <= 0)
+            throw new IllegalArgumentException("maxBytesPerSec must be positive.");
+        this.maxBytesPerSec = maxBytesPerSec;
+        this.executor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("read-only-version-deleter-"));
+        this.pendingBytes = new AtomicLong(0);
+        this.bytesDeleted = new AtomicLong(0);
+    }
+
+    /**
+     * Rename the given version directory out of the way and schedule it for
+     * deletion
+     * 
+     * @param versionDir The directory to delete
+     * @return The name it was renamed to
+     */
+    public File retire(File versionDir) {
+        long stamp = System.currentTimeMillis();
+        File retired;
+        do {
+            // never replace a version retired in the same ms
+            retired = new File(versionDir.getParentFile(), versionDir.getName() + "." + stamp++
+                                                           + RETIRED_SUFFIX);
+        } while(retired.exists());
+        Utils.move(versionDir, retired);
+        schedule(retired);
+        return retired;
+    }
+
+    /**
+     * Schedule deletion of any retired versions left in the given store
+     * directory by a previous run
+     */
+    public void scheduleRetired(File storeDir) {
+        File[] files = storeDir.listFiles();
+        if(files == null)
+            return;
+        for(File file: files) {
+            if(file.getName().endsWith(RETIRED_SUFFIX)) {
+                logger.info("Found unfinished deletion of " + file);
+                schedule(file);
+            }
+        }
+    }
+
+    private void schedule(final File dir) {
+        final Set<String> shared = getSharedFiles(dir);
+        final long size = sizeOf(dir, shared);
+        pendingBytes.addAndGet(size);
+        logger.info("Scheduling deletion of " + dir + " (" + size + " bytes).");
+        executor.submit(new Runnable() {
+
+            public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    deleteVersion(dir, shared);
+                    logger.info("Deletion of " + dir + " completed in "
+                                + (System.currentTimeMillis() - start) + " ms.");
+                } catch(InterruptedException e) {
+                    logger.info("Deletion of " + dir + " interrupted, it will be resumed on restart.");
+                } catch(Exception e) {
+                    logger.error("Deletion of " + dir + " failed:", e);
+                }
+            }
+        });
+    }
+
+    private void deleteVersion(File dir, Set<String> shared) throws InterruptedException {
+        File[] children = dir.listFiles();
+        if(children != null) {
+            for(File child: children) {
+                if(shared.contains(child.getName())) {
+                    if(!child.delete())
+                        logger.warn("Could not delete file " + child);
+                } else {
+                    delete(child);
+                }
+            }
+        }
+        if(!dir.delete())
+            logger.warn("Could not delete directory " + dir);
+    }
+
+    private void delete(File file) throws InterruptedException {
+        if(file.isDirectory()) {
+            File[] children = file.listFiles();
+            if(children != null) {
+                for(File child: children)
+                    delete(child);
+            }
+            if(!file.delete())
+                logger.warn("Could not delete directory " + file);
+        } else {
+            long length = file.length();
+            if(!file.delete()) {
+                logger.warn("Could not delete file " + file);
+                return;
+            }
+            pendingBytes.addAndGet(-length);
+            bytesDeleted.addAndGet(length);
+            long sleepMs = length * Time.MS_PER_SECOND / maxBytesPerSec;
+            if(sleepMs > 0)
+                Thread.sleep(sleepMs);
+        }
+    }
+
+    private long sizeOf(File dir, Set<String> shared) {
+        long size = 0;
+        File[] children = dir.listFiles();
+        if(children != null) {
+            for(File child: children)
+                if(!shared.contains(child.getName()))
+                    size += sizeOf(child);
+        }
+        return size;
+    }
+
+    private long sizeOf(File file) {
+        if(!file.isDirectory())
+            return file.length();
+        return sizeOf(file, Collections.<String> emptySet());
+    }
+
+    private Set<String> getSharedFiles(File dir) {
+        try {
+            return ReadOnlyUtils.readSharedFiles(dir);
+        } catch(IOException e) {
+            logger.warn("Could not read the shared files of " + dir + ", deleting all of it.", e);
+            return Collections.emptySet();
+        }
+    }
+
+    /**
+     * Wait for all the deletions scheduled so far to complete
+     * 
+     * @param timeoutMs The maximum time to wait
+     * @return true if they completed within the timeout
+     */
+    public boolean awaitCompletion(long timeoutMs) {
+        Future<?> marker = executor.submit(new Runnable() {
+
+            public void run() {}
+        });
+        try {
+            marker.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch(TimeoutException e) {
+            return false;
+        } catch(ExecutionException e) {
+            throw new VoldemortException(e);
+        } catch(InterruptedException e) {
+            throw new VoldemortException(e);
+        }
+    }
+
+    /**
+     * @return The bytes in scheduled deletions that have not been deleted yet
+     */
+    public long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    public long getBytesDeleted() {
+        return bytesDeleted.get();
+    }
+
+    /**
+     * Stop deleting, unfinished deletions resume when the retired directories
+     * are next scheduled
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -16,15 +16,27 @@
 
 package voldemort.store.rebalancing;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 
 import voldemort.VoldemortException;
+import voldemort.annotations.jmx.JmxGetter;
 import voldemort.client.AdminClient;
+import voldemort.cluster.Node;
 import voldemort.server.VoldemortMetadata;
 import voldemort.server.VoldemortMetadata.ServerState;
 import voldemort.store.DelegatingStore;
 import voldemort.store.Store;
+import voldemort.store.StoreUtils;
 import voldemort.store.socket.SocketPool;
+import voldemort.store.stats.RequestCounter;
 import voldemort.utils.ByteArray;
 import voldemort.versioning.ObsoleteVersionException;
 import voldemort.versioning.Versioned;
@@ -41,30 +53,96 @@ import voldemort.versioning.Versioned;
  * client put() request to have correct version handling ONLY for keys belonging
  * to {@link VoldemortMetadata#getCurrentPartitionStealList()}.</li>
  * </ul>
+ * <p>
+ * The versions fetched from the donor are written through to the inner store,
+ * and reads are then served from the inner store so that they also see puts
+ * already made here. A key fetched from the donor isn't fetched again until a
+ * short time has passed. Keys that need fetching at the same time, whether by
+ * one getAll or by concurrent gets, are fetched in one request: while a
+ * request to the donor is in flight the keys of new reads are gathered and
+ * sent together once it completes.
  * 
  * @author bbansal
  * 
  */
 public class RebalancingStore extends DelegatingStore<ByteArray, byte[]> {
 
+    public static final long DEFAULT_REDIRECT_CACHE_TTL_MS = 30 * 1000;
+    public static final int DEFAULT_REDIRECT_CACHE_SIZE = 100000;
+    public static final int DEFAULT_MAX_REDIRECT_BATCH_SIZE = 500;
+
+    private static final int STATS_WINDOW_MS = 60 * 1000;
+
     private final AdminClient adminClient;
     private final VoldemortMetadata metadata;
+    private final long cacheTtlMs;
+    private final int maxBatchSize;
+    private final Map<ByteArray, Redirected> redirected;
+    private final Object batchLock;
+    private final Object sendLock;
+    private RedirectBatch pendingBatch;
+    private final RequestCounter redirectRequests;
+    private final AtomicLong redirectedKeys;
+    private final AtomicLong cacheHits;
 
     public RebalancingStore(int node,
                             Store<ByteArray, byte[]> innerStore,
                             VoldemortMetadata metadata,
                             SocketPool socketPool) {
+        this(node,
+             innerStore,
+             metadata,
+             socketPool,
+             DEFAULT_REDIRECT_CACHE_TTL_MS,
+             DEFAULT_REDIRECT_CACHE_SIZE,
+             DEFAULT_MAX_REDIRECT_BATCH_SIZE);
+    }
+
+    /**
+     * @param cacheTtlMs How long after a key is fetched from the donor that
+     *        reads are served locally without fetching it again
+     * @param cacheSize The most keys to remember as fetched
+     * @param maxBatchSize The most keys to fetch from the donor in one request
+     */
+    public RebalancingStore(int node,
+                            Store<ByteArray, byte[]> innerStore,
+                            VoldemortMetadata metadata,
+                            SocketPool socketPool,
+                            long cacheTtlMs,
+                            final int cacheSize,
+                            int maxBatchSize) {
         super(innerStore);
+        if(maxBatchSize < 1)
+            throw new IllegalArgumentException("maxBatchSize must be at least 1.");
         this.adminClient = new AdminClient(metadata.getCurrentCluster().getNodeById(node),
                                            metadata,
                                            socketPool);
         this.metadata = metadata;
+        this.cacheTtlMs = cacheTtlMs;
+        this.maxBatchSize = maxBatchSize;
+        this.redirected = new LinkedHashMap<ByteArray, Redirected>() {
+
+            private static final long serialVersionUID = 1;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteArray, Redirected> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.batchLock = new Object();
+        this.sendLock = new Object();
+        this.redirectRequests = new RequestCounter(STATS_WINDOW_MS);
+        this.redirectedKeys = new AtomicLong(0);
+        this.cacheHits = new AtomicLong(0);
+    }
+
+    private boolean isStealing() {
+        return VoldemortMetadata.ServerState.REBALANCING_STEALER_STATE.equals(metadata.getServerState());
     }
 
     @Override
     public void put(ByteArray key, Versioned<byte[]> value) throws VoldemortException {
-        if(VoldemortMetadata.ServerState.REBALANCING_STEALER_STATE.equals(metadata.getServerState())
-           && checkKeyBelongsToStolenPartitions(key)) {
+        if(isStealing() && checkKeyBelongsToStolenPartitions(key)) {
             proxyPut(key, value);
         } else {
             getInnerStore().put(key, value);
@@ -73,14 +151,29 @@ public class RebalancingStore extends DelegatingStore<ByteArray, byte[]> {
 
     @Override
     public List<Versioned<byte[]>> get(ByteArray key) throws VoldemortException {
-        if(VoldemortMetadata.ServerState.REBALANCING_STEALER_STATE.equals(metadata.getServerState())
-           && checkKeyBelongsToStolenPartitions(key)) {
+        if(isStealing() && checkKeyBelongsToStolenPartitions(key)) {
             return proxyGet(key);
         } else {
             return getInnerStore().get(key);
         }
     }
 
+    @Override
+    public Map<ByteArray, List<Versioned<byte[]>>> getAll(Iterable<ByteArray> keys)
+            throws VoldemortException {
+        if(isStealing()) {
+            StoreUtils.assertValidKeys(keys);
+            Node donor = getDonorNode();
+            List<ByteArray> stolen = new ArrayList<ByteArray>();
+            for(ByteArray key: keys)
+                if(checkKeyBelongsToStolenPartitions(key) && !isRedirected(key, donor))
+                    stolen.add(key);
+            if(!stolen.isEmpty())
+                redirect(donor, stolen);
+        }
+        return getInnerStore().getAll(keys);
+    }
+
     protected boolean checkKeyBelongsToStolenPartitions(ByteArray key) {
         for(int partitionId: metadata.getRoutingStrategy(getName()).getPartitionList(key.get())) {
             if(metadata.getCurrentPartitionStealList().contains(partitionId)) {
@@ -90,19 +183,27 @@ public class RebalancingStore extends DelegatingStore<ByteArray, byte[]> {
         return false;
     }
 
+    private Node getDonorNode() {
+        Node donor = metadata.getDonorNode();
+        if(donor == null)
+            throw new VoldemortException("DonorNode not set for proxyGet() ");
+        return donor;
+    }
+
     /**
-     * performs back-door proxy get to {@link VoldemortMetadata#getDonorNode()}
+     * performs back-door proxy get to {@link VoldemortMetadata#getDonorNode()},
+     * unless the key was fetched recently, and then reads the key from the
+     * inner store, to which the donor's versions have been written
      * 
      * @param key
      * @return
      * @throws VoldemortException
      */
     protected List<Versioned<byte[]>> proxyGet(ByteArray key) throws VoldemortException {
-        if(metadata.getDonorNode() != null) {
-            return adminClient.redirectGet(metadata.getDonorNode().getId(), getName(), key);
-        }
-
-        throw new VoldemortException("DonorNode not set for proxyGet() ");
+        Node donor = getDonorNode();
+        if(!isRedirected(key, donor))
+            redirect(donor, Collections.singletonList(key));
+        return getInnerStore().get(key);
     }
 
     /**
@@ -120,17 +221,167 @@ public class RebalancingStore extends DelegatingStore<ByteArray, byte[]> {
      * @throws VoldemortException
      */
     protected void proxyPut(ByteArray key, Versioned<byte[]> value) throws VoldemortException {
-        List<Versioned<byte[]>> proxyValues = proxyGet(key);
+        Node donor = getDonorNode();
+        if(!isRedirected(key, donor))
+            redirect(donor, Collections.singletonList(key));
+
+        // finally put client value
+        getInnerStore().put(key, value);
+    }
 
-        try {
-            for(Versioned<byte[]> proxyValue: proxyValues) {
-                getInnerStore().put(key, proxyValue);
+    /*
+     * Whether the key's versions were fetched from the donor recently enough
+     * that the inner store can answer for it
+     */
+    private boolean isRedirected(ByteArray key, Node donor) {
+        synchronized(redirected) {
+            Redirected entry = redirected.get(key);
+            if(entry == null)
+                return false;
+            if(entry.donorId == donor.getId()
+               && entry.expiresMs > System.currentTimeMillis()) {
+                cacheHits.incrementAndGet();
+                return true;
             }
-        } catch(ObsoleteVersionException e) {
-            // ignore these
+            redirected.remove(key);
+            return false;
         }
+    }
 
-        // finally put client value
-        getInnerStore().put(key, value);
+    private void markRedirected(ByteArray key, int donorId) {
+        synchronized(redirected) {
+            redirected.put(key, new Redirected(donorId, System.currentTimeMillis() + cacheTtlMs));
+        }
+    }
+
+    /*
+     * Fetch the keys from the donor and write them through to the inner
+     * store, joining the batch of keys waiting to be sent if there is one
+     */
+    private void redirect(Node donor, List<ByteArray> keys) {
+        RedirectBatch batch;
+        boolean leader;
+        synchronized(batchLock) {
+            if(pendingBatch == null || pendingBatch.donorId != donor.getId())
+                pendingBatch = new RedirectBatch(donor.getId());
+            batch = pendingBatch;
+            batch.keys.addAll(keys);
+            leader = !batch.hasLeader;
+            batch.hasLeader = true;
+        }
+        if(leader) {
+            // one request to the donor at a time, the next batch fills up
+            // while this one is sent
+            synchronized(sendLock) {
+                synchronized(batchLock) {
+                    if(pendingBatch == batch)
+                        pendingBatch = null;
+                }
+                batch.send();
+            }
+        }
+        batch.await();
+    }
+
+    private void writeThrough(ByteArray key, List<Versioned<byte[]>> values) {
+        if(values == null)
+            return;
+        for(Versioned<byte[]> value: values) {
+            try {
+                getInnerStore().put(key, value);
+            } catch(ObsoleteVersionException e) {
+                // already have it or something newer
+            }
+        }
+    }
+
+    @JmxGetter(name = "redirectRequests", description = "The number of requests made to the donor node.")
+    public long getRedirectRequests() {
+        return redirectRequests.getTotalCount();
+    }
+
+    @JmxGetter(name = "redirectRequestRate", description = "Requests made to the donor node per second, over the last minute.")
+    public float getRedirectRequestRate() {
+        return redirectRequests.getThroughput();
+    }
+
+    @JmxGetter(name = "averageRedirectTimeMs", description = "The average time of a request to the donor node, over the last minute.")
+    public double getAverageRedirectTimeMs() {
+        return redirectRequests.getAverageTimeInMs();
+    }
+
+    @JmxGetter(name = "redirectedKeys", description = "The number of keys fetched from the donor node.")
+    public long getRedirectedKeys() {
+        return redirectedKeys.get();
+    }
+
+    @JmxGetter(name = "redirectCacheHits", description = "The number of reads of stolen keys served without going to the donor node.")
+    public long getRedirectCacheHits() {
+        return cacheHits.get();
+    }
+
+    private static class Redirected {
+
+        final int donorId;
+        final long expiresMs;
+
+        Redirected(int donorId, long expiresMs) {
+            this.donorId = donorId;
+            this.expiresMs = expiresMs;
+        }
+    }
+
+    /*
+     * Keys gathered to be fetched from the donor together. The first thread
+     * to add keys sends the batch, the others wait for it.
+     */
+    private class RedirectBatch {
+
+        final int donorId;
+        final Set<ByteArray> keys;
+        final CountDownLatch done;
+        boolean hasLeader;
+        volatile VoldemortException failure;
+
+        RedirectBatch(int donorId) {
+            this.donorId = donorId;
+            this.keys = new LinkedHashSet<ByteArray>();
+            this.done = new CountDownLatch(1);
+        }
+
+        void send() {
+            try {
+                List<ByteArray> all = new ArrayList<ByteArray>(keys);
+                for(int i = 0; i < all.size(); i += maxBatchSize) {
+                    List<ByteArray> chunk = all.subList(i, Math.min(all.size(), i + maxBatchSize));
+                    long start = System.nanoTime();
+                    Map<ByteArray, List<Versioned<byte[]>>> values = adminClient.redirectGetAll(donorId,
+                                                                                                getName(),
+                                                                                                chunk);
+                    redirectRequests.addRequest(System.nanoTime() - start);
+                    redirectedKeys.addAndGet(chunk.size());
+                    for(ByteArray key: chunk) {
+                        writeThrough(key, values.get(key));
+                        markRedirected(key, donorId);
+                    }
+                }
+            } catch(RuntimeException e) {
+                failure = e instanceof VoldemortException ? (VoldemortException) e
+                                                         : new VoldemortException(e);
+                throw e;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        void await() {
+            try {
+                done.await();
+            } catch(InterruptedException e) {
+                throw new VoldemortException("Interrupted waiting for redirected get.", e);
+            }
+            if(failure != null)
+                throw failure;
+        }
     }
 }
@@ -105,10 +105,14 @@ public class Slop {
         return storeName;
     }
 
+    /**
+     * The key the slop is stored under. It leaves out the operation, so every
+     * put and delete of a key made while its node is down is stored under one
+     * slop key and only the versions no later write supersedes are kept.
+     */
     public ByteArray makeKey() {
         byte[] storeName = ByteUtils.getBytes(getStoreName(), "UTF-8");
-        byte[] opCode = new byte[] { operation.getOpCode() };
-        return new ByteArray(ByteUtils.cat(opCode, spacer, storeName, spacer, key.get()));
+        return new ByteArray(ByteUtils.cat(storeName, spacer, key.get()));
     }
 
     @Override
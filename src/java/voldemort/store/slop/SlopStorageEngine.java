@@ -0,0 +1,379 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.slop;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import voldemort.VoldemortException;
+import voldemort.annotations.concurrency.Threadsafe;
+import voldemort.annotations.jmx.JmxGetter;
+import voldemort.annotations.jmx.JmxManaged;
+import voldemort.serialization.ByteArraySerializer;
+import voldemort.serialization.SlopSerializer;
+import voldemort.store.NoSuchCapabilityException;
+import voldemort.store.StorageConfiguration;
+import voldemort.store.StorageEngine;
+import voldemort.store.StoreCapabilityType;
+import voldemort.store.StoreUtils;
+import voldemort.store.serialized.SerializingStorageEngine;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.Pair;
+import voldemort.versioning.Occured;
+import voldemort.versioning.Version;
+import voldemort.versioning.Versioned;
+
+/**
+ * The slop of a node, kept in one storage engine per destination node so that
+ * the slop for a single destination can be scanned without reading the slop
+ * for every other node, and so the backlog of each destination is known
+ * without a scan.
+ * 
+ * The engine for a destination is named "slop-" followed by the node id and is
+ * created the first time slop for that node is put. The backlog counts are
+ * read from each engine when it is opened and kept up to date by puts and
+ * deletes made through this store.
+ * 
+ * Writes to a slop key are coalesced: a slop whose version is superseded by
+ * one already stored for the same destination, store and key is dropped, and
+ * a slop replaces the stored versions it supersedes, so only the concurrent
+ * versions of a key are ever pushed.
+ * 
+ * Slop keys don't include the destination, so the plain get and delete
+ * operations act on every destination; the pusher uses the per-destination
+ * operations instead.
+ */
+@Threadsafe
+@JmxManaged(description = "The slop waiting to be pushed to each node.")
+public class SlopStorageEngine implements StorageEngine<ByteArray, Slop> {
+
+    public static final String NAME = "slop";
+
+    private static final Logger logger = Logger.getLogger(SlopStorageEngine.class);
+
+    private final StorageConfiguration config;
+    private final ConcurrentMap<Integer, Destination> destinations;
+    private final AtomicLong slopWrites;
+    private final AtomicLong droppedSlops;
+    private final AtomicLong replacedSlops;
+
+    /**
+     * @param config The configuration to create each destination's storage
+     *        engine with
+     */
+    public SlopStorageEngine(StorageConfiguration config) {
+        this.config = config;
+        this.destinations = new ConcurrentHashMap<Integer, Destination>();
+        this.slopWrites = new AtomicLong(0);
+        this.droppedSlops = new AtomicLong(0);
+        this.replacedSlops = new AtomicLong(0);
+    }
+
+    /**
+     * Open the slop engine for each of the given nodes, so the slop left for
+     * them by a previous run is found
+     */
+    public void openDestinations(Iterable<Integer> nodeIds) {
+        for(int nodeId: nodeIds)
+            getDestination(nodeId);
+    }
+
+    private Destination getDestination(int nodeId) {
+        Destination destination = destinations.get(nodeId);
+        if(destination != null)
+            return destination;
+        synchronized(this) {
+            destination = destinations.get(nodeId);
+            if(destination == null) {
+                destination = new Destination(new SerializingStorageEngine<ByteArray, Slop>(config.getStore(NAME
+                                                                                                            + "-"
+                                                                                                            + nodeId),
+                                                                                            new ByteArraySerializer(),
+                                                                                            new SlopSerializer()));
+                destinations.put(nodeId, destination);
+            }
+            return destination;
+        }
+    }
+
+    /**
+     * @return The ids of the nodes slop has been stored for
+     */
+    public Set<Integer> getDestinations() {
+        return new TreeSet<Integer>(destinations.keySet());
+    }
+
+    /**
+     * @return The number of slops waiting to be delivered to the given node
+     */
+    public long getSize(int nodeId) {
+        Destination destination = destinations.get(nodeId);
+        return destination == null ? 0 : destination.size.get();
+    }
+
+    /**
+     * @return The number of slops waiting to be delivered to any node
+     */
+    @JmxGetter(name = "size", description = "The number of slop keys waiting to be pushed.")
+    public long getSize() {
+        long size = 0;
+        for(Destination destination: destinations.values())
+            size += destination.size.get();
+        return size;
+    }
+
+    /**
+     * Get an iterator over the slop for one destination node, which must be
+     * closed after use
+     */
+    public ClosableIterator<Pair<ByteArray, Versioned<Slop>>> entries(int nodeId) {
+        return getDestination(nodeId).engine.entries();
+    }
+
+    public ClosableIterator<Pair<ByteArray, Versioned<Slop>>> entries() {
+        List<StorageEngine<ByteArray, Slop>> engines = new ArrayList<StorageEngine<ByteArray, Slop>>();
+        for(int nodeId: getDestinations())
+            engines.add(destinations.get(nodeId).engine);
+        return new ConcatenatedIterator(engines.iterator());
+    }
+
+    /**
+     * Store the slop, unless a slop already stored for its destination and key
+     * supersedes it
+     */
+    public void put(ByteArray key, Versioned<Slop> value) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        slopWrites.incrementAndGet();
+        getDestination(value.getValue().getNodeId()).put(key, value);
+    }
+
+    /**
+     * Delete the slop for the given key and destination node
+     */
+    public boolean delete(int nodeId, ByteArray key, Version version) {
+        StoreUtils.assertValidKey(key);
+        Destination destination = destinations.get(nodeId);
+        return destination != null && destination.delete(key, version);
+    }
+
+    public boolean delete(ByteArray key, Version version) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        boolean deleted = false;
+        for(Destination destination: destinations.values())
+            deleted |= destination.delete(key, version);
+        return deleted;
+    }
+
+    public List<Versioned<Slop>> get(ByteArray key) throws VoldemortException {
+        StoreUtils.assertValidKey(key);
+        List<Versioned<Slop>> found = new ArrayList<Versioned<Slop>>();
+        for(int nodeId: getDestinations())
+            found.addAll(destinations.get(nodeId).engine.get(key));
+        return found;
+    }
+
+    public Map<ByteArray, List<Versioned<Slop>>> getAll(Iterable<ByteArray> keys)
+            throws VoldemortException {
+        return StoreUtils.getAll(this, keys);
+    }
+
+    /**
+     * Move the slop in the given engine, as kept before slop was split by
+     * destination, into this store and delete it from the given engine. The
+     * slop is stored under its current key, so it is coalesced with the slop
+     * written since
+     * 
+     * @return The number of slops moved
+     */
+    public int migrate(StorageEngine<ByteArray, Slop> legacy) {
+        List<Pair<ByteArray, Versioned<Slop>>> moved = new ArrayList<Pair<ByteArray, Versioned<Slop>>>();
+        ClosableIterator<Pair<ByteArray, Versioned<Slop>>> iterator = legacy.entries();
+        try {
+            while(iterator.hasNext()) {
+                Pair<ByteArray, Versioned<Slop>> entry = iterator.next();
+                Versioned<Slop> versioned = entry.getSecond();
+                put(versioned.getValue().makeKey(), versioned);
+                moved.add(entry);
+            }
+        } finally {
+            iterator.close();
+        }
+        for(Pair<ByteArray, Versioned<Slop>> entry: moved)
+            legacy.delete(entry.getFirst(), entry.getSecond().getVersion());
+        if(moved.size() > 0)
+            logger.info("Moved " + moved.size() + " slops into per-destination slop stores.");
+        return moved.size();
+    }
+
+    @JmxGetter(name = "sizeByDestination", description = "The number of slop keys waiting to be pushed to each node.")
+    public String getSizeByDestination() {
+        Map<Integer, Long> sizes = new TreeMap<Integer, Long>();
+        for(int nodeId: getDestinations())
+            sizes.put(nodeId, getSize(nodeId));
+        return sizes.toString();
+    }
+
+    @JmxGetter(name = "slopWrites", description = "The number of slops written since startup.")
+    public long getSlopWrites() {
+        return slopWrites.get();
+    }
+
+    @JmxGetter(name = "coalescedSlops", description = "The number of slops written since startup that were dropped or replaced by a later write to the same key.")
+    public long getCoalescedSlops() {
+        return droppedSlops.get() + replacedSlops.get();
+    }
+
+    @JmxGetter(name = "droppedSlops", description = "The number of slops written since startup that were superseded by a slop already stored.")
+    public long getDroppedSlops() {
+        return droppedSlops.get();
+    }
+
+    @JmxGetter(name = "replacedSlops", description = "The number of stored slops replaced by a later write to the same key since startup.")
+    public long getReplacedSlops() {
+        return replacedSlops.get();
+    }
+
+    public String getName() {
+        return NAME;
+    }
+
+    public Object getCapability(StoreCapabilityType capability) {
+        throw new NoSuchCapabilityException(capability, getName());
+    }
+
+    public void close() throws VoldemortException {
+        List<VoldemortException> errors = new ArrayList<VoldemortException>();
+        for(Destination destination: destinations.values()) {
+            try {
+                destination.engine.close();
+            } catch(VoldemortException e) {
+                errors.add(e);
+            }
+        }
+        if(errors.size() > 0)
+            throw errors.get(0);
+    }
+
+    private class Destination {
+
+        final StorageEngine<ByteArray, Slop> engine;
+        final AtomicLong size;
+
+        Destination(StorageEngine<ByteArray, Slop> engine) {
+            this.engine = engine;
+            this.size = new AtomicLong(count(engine));
+        }
+
+        private long count(StorageEngine<ByteArray, Slop> engine) {
+            long count = 0;
+            ByteArray last = null;
+            ClosableIterator<Pair<ByteArray, Versioned<Slop>>> iterator = engine.entries();
+            try {
+                while(iterator.hasNext()) {
+                    // concurrent versions of a key come out together
+                    ByteArray key = iterator.next().getFirst();
+                    if(!key.equals(last))
+                        count++;
+                    last = key;
+                }
+            } finally {
+                iterator.close();
+            }
+            return count;
+        }
+
+        /*
+         * Writes are made under the destination's lock so that the versions
+         * compared against are the ones replaced, and so the size is the
+         * number of keys with slop however many versions a key has
+         */
+        synchronized void put(ByteArray key, Versioned<Slop> value) {
+            List<Versioned<Slop>> existing = engine.get(key);
+            int replaced = 0;
+            for(Versioned<Slop> versioned: existing) {
+                Occured occured = value.getVersion().compare(versioned.getVersion());
+                if(occured == Occured.BEFORE) {
+                    droppedSlops.incrementAndGet();
+                    return;
+                } else if(occured == Occured.AFTER) {
+                    replaced++;
+                }
+            }
+            engine.put(key, value);
+            replacedSlops.addAndGet(replaced);
+            if(existing.isEmpty())
+                size.incrementAndGet();
+        }
+
+        synchronized boolean delete(ByteArray key, Version version) {
+            boolean deleted = engine.delete(key, version);
+            if(deleted && engine.get(key).isEmpty())
+                size.decrementAndGet();
+            return deleted;
+        }
+    }
+
+    private static class ConcatenatedIterator implements
+            ClosableIterator<Pair<ByteArray, Versioned<Slop>>> {
+
+        private final Iterator<StorageEngine<ByteArray, Slop>> engines;
+        private ClosableIterator<Pair<ByteArray, Versioned<Slop>>> current;
+
+        ConcatenatedIterator(Iterator<StorageEngine<ByteArray, Slop>> engines) {
+            this.engines = engines;
+        }
+
+        public boolean hasNext() {
+            while(current == null || !current.hasNext()) {
+                if(current != null)
+                    current.close();
+                current = null;
+                if(!engines.hasNext())
+                    return false;
+                current = engines.next().entries();
+            }
+            return true;
+        }
+
+        public Pair<ByteArray, Versioned<Slop>> next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("No removal y'all.");
+        }
+
+        public void close() {
+            if(current != null)
+                current.close();
+        }
+    }
+}
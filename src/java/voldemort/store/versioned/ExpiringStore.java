@@ -0,0 +1,144 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.versioned;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import voldemort.VoldemortException;
+import voldemort.store.DelegatingStore;
+import voldemort.store.Store;
+import voldemort.store.StoreOperationFailureException;
+import voldemort.utils.Time;
+import voldemort.utils.Utils;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+/**
+ * A wrapper that hides the versions whose time-to-live has passed from gets,
+ * and deletes them in the background so that a key that is read no longer
+ * holds its expired versions.
+ * 
+ * Deletes are handed to an executor that may refuse them when it is busy; an
+ * expired version that isn't deleted is simply hidden again on the next read,
+ * and removed by the retention cleanup if the store has a retention period.
+ * 
+ * Unless time-to-lives are enabled, puts of values with one are refused, as
+ * nodes and clients older than time-to-lives can't read them.
+ * 
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public class ExpiringStore<K, V> extends DelegatingStore<K, V> {
+
+    private static final Logger logger = Logger.getLogger(ExpiringStore.class);
+
+    private final Executor deleter;
+    private final Time time;
+    private final boolean allowTimeToLive;
+
+    /**
+     * @param innerStore The store to filter
+     * @param deleter The executor to delete expired versions on
+     * @param time The time used to expire versions
+     * @param allowTimeToLive Whether to accept puts of values with a
+     *        time-to-live
+     */
+    public ExpiringStore(Store<K, V> innerStore,
+                         Executor deleter,
+                         Time time,
+                         boolean allowTimeToLive) {
+        super(innerStore);
+        this.deleter = Utils.notNull(deleter);
+        this.time = Utils.notNull(time);
+        this.allowTimeToLive = allowTimeToLive;
+    }
+
+    @Override
+    public void put(K key, Versioned<V> value) throws VoldemortException {
+        if(!allowTimeToLive && value.getTimeToLive() > 0)
+            throw new StoreOperationFailureException("Store " + getName()
+                                                     + " does not accept values with a time-to-live until ttl.enable is set on every server.");
+        super.put(key, value);
+    }
+
+    @Override
+    public List<Versioned<V>> get(K key) throws VoldemortException {
+        return removeExpired(key, super.get(key), time.getMilliseconds());
+    }
+
+    @Override
+    public Map<K, List<Versioned<V>>> getAll(Iterable<K> keys) throws VoldemortException {
+        Map<K, List<Versioned<V>>> result = super.getAll(keys);
+        long now = time.getMilliseconds();
+        Iterator<Map.Entry<K, List<Versioned<V>>>> iter = result.entrySet().iterator();
+        while(iter.hasNext()) {
+            Map.Entry<K, List<Versioned<V>>> entry = iter.next();
+            List<Versioned<V>> unexpired = removeExpired(entry.getKey(), entry.getValue(), now);
+            if(unexpired.isEmpty())
+                iter.remove();
+            else
+                entry.setValue(unexpired);
+        }
+        return result;
+    }
+
+    /*
+     * The unexpired versions, the list itself if none have expired
+     */
+    private List<Versioned<V>> removeExpired(K key, List<Versioned<V>> values, long now) {
+        List<Versioned<V>> unexpired = null;
+        for(int i = 0; i < values.size(); i++) {
+            Versioned<V> versioned = values.get(i);
+            if(versioned.isExpired(now)) {
+                if(unexpired == null)
+                    unexpired = new ArrayList<Versioned<V>>(values.subList(0, i));
+                deleteExpired(key, (VectorClock) versioned.getVersion());
+            } else if(unexpired != null) {
+                unexpired.add(versioned);
+            }
+        }
+        return unexpired == null ? values : unexpired;
+    }
+
+    private void deleteExpired(final K key, final VectorClock clock) {
+        try {
+            deleter.execute(new Runnable() {
+
+                public void run() {
+                    try {
+                        // only removes the expired version and any before it
+                        getInnerStore().delete(key, clock);
+                    } catch(Exception e) {
+                        logger.warn("Failed to delete expired version " + clock + " from store "
+                                    + getName() + ": ", e);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            logger.debug("Skipped deleting expired version " + clock + " from store "
+                         + getName() + ".");
+        }
+    }
+
+}
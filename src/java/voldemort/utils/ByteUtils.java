@@ -411,4 +411,35 @@ public class ByteUtils {
         }
         return (b1.length - b2.length) / (Math.max(1, Math.abs(b1.length - b2.length)));
     }
+
+    /**
+     * Compare a range of one byte array to a range of another using the same
+     * unsigned lexicographic order as {@link #compare(byte[], byte[])}
+     * 
+     * @param b1 The first array
+     * @param offset1 The start of the range in the first array
+     * @param length1 The length of the range in the first array
+     * @param b2 The second array
+     * @param offset2 The start of the range in the second array
+     * @param length2 The length of the range in the second array
+     * @return -1, 0, or 1 as the first range is less than, equal to, or
+     *         greater than the second
+     */
+    public static int compare(byte[] b1,
+                              int offset1,
+                              int length1,
+                              byte[] b2,
+                              int offset2,
+                              int length2) {
+        int length = Math.min(length1, length2);
+        for(int i = 0; i < length; i++) {
+            int a = (b1[offset1 + i] & 0xff);
+            int b = (b2[offset2 + i] & 0xff);
+            if(a != b)
+                return a < b ? -1 : 1;
+        }
+        if(length1 == length2)
+            return 0;
+        return length1 < length2 ? -1 : 1;
+    }
 }
@@ -3,7 +3,7 @@ package voldemort.utils;
 import org.apache.log4j.Logger;
 
 import voldemort.VoldemortException;
-import voldemort.annotations.concurrency.NotThreadsafe;
+import voldemort.annotations.concurrency.Threadsafe;
 
 /**
  * A class to throttle IO to a certain rate
@@ -13,17 +13,22 @@ import voldemort.annotations.concurrency.NotThreadsafe;
  * ellapses, and if the IO rate exceeds the maximum, the call will block long
  * enough to equalize it.
  * 
+ * A single throttler may be shared by several threads to enforce one budget
+ * across all of them; a thread that is sleeping to equalize the rate holds the
+ * lock so the other threads wait too. The rate may be changed while the
+ * throttler is in use and takes effect at the next check.
+ * 
  * @author jay
  * 
  */
-@NotThreadsafe
+@Threadsafe
 public class IoThrottler {
 
     private final static Logger logger = Logger.getLogger(IoThrottler.class);
     private final static long DEFAULT_CHECK_INTERVAL_MS = 50;
 
     private final Time time;
-    private final long maxBytesPerSecond;
+    private volatile long maxBytesPerSecond;
     private final long intervalMs;
     private long startTime;
     private long bytesReadInInterval;
@@ -40,7 +45,17 @@ public class IoThrottler {
         this.startTime = 0L;
     }
 
-    public void maybeThrottle(int bytesRead) {
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        if(maxBytesPerSecond <= 0)
+            throw new IllegalArgumentException("maxBytesPerSecond must be positive.");
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    public synchronized void maybeThrottle(int bytesRead) {
         bytesReadInInterval += bytesRead;
         long now = time.getNanoseconds();
         long ellapsedNs = now - startTime;
@@ -48,6 +63,7 @@ public class IoThrottler {
         // we should take a little nap
         if(ellapsedNs > intervalMs * Time.NS_PER_MS && bytesReadInInterval > 0) {
             long bytesPerSec = (bytesReadInInterval * Time.NS_PER_SECOND) / ellapsedNs;
+            long maxBytesPerSecond = this.maxBytesPerSecond;
             if(bytesPerSec > maxBytesPerSecond) {
                 // solve for the amount of time to sleep to make us hit the
                 // correct i/o rate
@@ -17,6 +17,7 @@
 package voldemort.utils;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
@@ -114,6 +115,35 @@ public class Utils {
             throw new VoldemortException("Rename of " + source + " to " + dest + " failed.");
     }
 
+    /**
+     * Create a hard link at dest to the source file. Java has no API for this,
+     * so this runs ln, which limits it to unix-like systems and to links within
+     * a single filesystem.
+     * 
+     * @param source The existing file
+     * @param dest The name of the link to create
+     */
+    public static void hardLink(File source, File dest) {
+        if(!source.isFile())
+            throw new VoldemortException("File " + source.toString() + " does not exist.");
+        try {
+            Process process = Runtime.getRuntime().exec(new String[] { "ln",
+                    source.getAbsolutePath(), dest.getAbsolutePath() });
+            process.getOutputStream().close();
+            process.getInputStream().close();
+            process.getErrorStream().close();
+            int exitCode = process.waitFor();
+            if(exitCode != 0)
+                throw new VoldemortException("Link of " + source + " to " + dest
+                                             + " failed, ln exited with code " + exitCode + ".");
+        } catch(IOException e) {
+            throw new VoldemortException("Link of " + source + " to " + dest + " failed.", e);
+        } catch(InterruptedException e) {
+            throw new VoldemortException("Interrupted while linking " + source + " to " + dest
+                                         + ".", e);
+        }
+    }
+
     /**
      * @return true iff the argument is the name of a readable file
      */
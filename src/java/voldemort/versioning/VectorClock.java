@@ -31,6 +31,14 @@ import com.google.common.collect.Lists;
  * means implicitly all the versions are at zero, but we only actually store
  * those greater than zero.
  * 
+ * A clock may also carry a time-to-live, after which the value it versions
+ * has expired and is no longer returned by the server. The time-to-live is
+ * measured from the timestamp of the clock, so it restarts with every write
+ * made with an incremented copy of the clock. It takes no part in comparing
+ * clocks. A clock with a time-to-live is serialized in a format that releases
+ * from before time-to-lives cannot read, which is why servers refuse them
+ * until "ttl.enable" is set, after the whole cluster has been upgraded.
+ * 
  * @author jay
  * 
  */
@@ -41,6 +49,12 @@ public class VectorClock implements Version, Serializable {
 
     private static final int MAX_NUMBER_OF_VERSIONS = Short.MAX_VALUE;
 
+    /*
+     * Set in the version size byte if a time-to-live follows the timestamp,
+     * the size itself never needs more than the low 4 bits
+     */
+    private static final int TTL_FLAG = 0x40;
+
     /* A sorted list of live versions ordered from least to greatest */
     private final List<ClockEntry> versions;
 
@@ -50,6 +64,9 @@ public class VectorClock implements Version, Serializable {
      */
     private volatile long timestamp;
 
+    /* The time in ms after the timestamp that the value expires, 0 for never */
+    private volatile long timeToLiveMs;
+
     /**
      * Construct an empty VectorClock
      */
@@ -95,9 +112,12 @@ public class VectorClock implements Version, Serializable {
             throw new IllegalArgumentException("Invalid byte array for serialization--no bytes to read.");
         int numEntries = ByteUtils.readShort(bytes, offset);
         int versionSize = bytes[offset + 2];
+        boolean hasTimeToLive = (versionSize & TTL_FLAG) != 0;
+        versionSize &= ~TTL_FLAG;
         int entrySize = ByteUtils.SIZE_OF_SHORT + versionSize;
         int minimumBytes = offset + ByteUtils.SIZE_OF_SHORT + 1 + numEntries * entrySize
-                           + ByteUtils.SIZE_OF_LONG;
+                           + ByteUtils.SIZE_OF_LONG
+                           + (hasTimeToLive ? ByteUtils.SIZE_OF_LONG : 0);
         if(bytes.length < minimumBytes)
             throw new IllegalArgumentException("Too few bytes: expected at least " + minimumBytes
                                                + " but found only " + bytes.length + ".");
@@ -111,6 +131,8 @@ public class VectorClock implements Version, Serializable {
             index += entrySize;
         }
         this.timestamp = ByteUtils.readLong(bytes, index);
+        if(hasTimeToLive)
+            this.timeToLiveMs = ByteUtils.readLong(bytes, index + ByteUtils.SIZE_OF_LONG);
     }
 
     public byte[] toBytes() {
@@ -119,7 +141,7 @@ public class VectorClock implements Version, Serializable {
         ByteUtils.writeShort(serialized, (short) versions.size(), 0);
         // write the size of each version in bytes
         byte versionSize = ByteUtils.numberOfBytesRequired(getMaxVersion());
-        serialized[2] = versionSize;
+        serialized[2] = timeToLiveMs > 0 ? (byte) (versionSize | TTL_FLAG) : versionSize;
 
         int clockEntrySize = ByteUtils.SIZE_OF_SHORT + versionSize;
         int start = 3;
@@ -132,13 +154,16 @@ public class VectorClock implements Version, Serializable {
             start += clockEntrySize;
         }
         ByteUtils.writeLong(serialized, this.timestamp, start);
+        if(timeToLiveMs > 0)
+            ByteUtils.writeLong(serialized, this.timeToLiveMs, start + ByteUtils.SIZE_OF_LONG);
         return serialized;
     }
 
     public int sizeInBytes() {
         byte versionSize = ByteUtils.numberOfBytesRequired(getMaxVersion());
         return ByteUtils.SIZE_OF_SHORT + 1 + this.versions.size()
-               * (ByteUtils.SIZE_OF_SHORT + versionSize) + ByteUtils.SIZE_OF_LONG;
+               * (ByteUtils.SIZE_OF_SHORT + versionSize) + ByteUtils.SIZE_OF_LONG
+               + (timeToLiveMs > 0 ? ByteUtils.SIZE_OF_LONG : 0);
     }
 
     /**
@@ -194,7 +219,9 @@ public class VectorClock implements Version, Serializable {
 
     @Override
     public VectorClock clone() {
-        return new VectorClock(Lists.newArrayList(versions), this.timestamp);
+        VectorClock clock = new VectorClock(Lists.newArrayList(versions), this.timestamp);
+        clock.timeToLiveMs = this.timeToLiveMs;
+        return clock;
     }
 
     @Override
@@ -342,6 +369,44 @@ public class VectorClock implements Version, Serializable {
         return this.timestamp;
     }
 
+    /**
+     * @return The time in ms after the timestamp that the value expires, or 0
+     *         if it never expires
+     */
+    public long getTimeToLive() {
+        return this.timeToLiveMs;
+    }
+
+    /**
+     * Expire the value this clock versions the given time after the timestamp
+     * of the clock
+     * 
+     * @param timeToLiveMs The time to live in ms, or 0 to never expire
+     */
+    public void setTimeToLive(long timeToLiveMs) {
+        if(timeToLiveMs < 0)
+            throw new IllegalArgumentException("Time to live must not be negative.");
+        this.timeToLiveMs = timeToLiveMs;
+    }
+
+    /**
+     * @return The time at which the value expires, or Long.MAX_VALUE if it
+     *         never expires
+     */
+    public long getExpiryTime() {
+        if(timeToLiveMs == 0)
+            return Long.MAX_VALUE;
+        long expiry = timestamp + timeToLiveMs;
+        return expiry < timestamp ? Long.MAX_VALUE : expiry;
+    }
+
+    /**
+     * @return true if the value has expired at the given time
+     */
+    public boolean isExpired(long now) {
+        return now >= getExpiryTime();
+    }
+
     public List<ClockEntry> getEntries() {
         return this.versions;
     }
@@ -57,6 +57,30 @@ public final class Versioned<T> implements Serializable {
         this.object = object;
     }
 
+    /**
+     * @return The time in ms after the write that the value expires, or 0 if
+     *         it never expires
+     */
+    public long getTimeToLive() {
+        return version.getTimeToLive();
+    }
+
+    /**
+     * Expire the value the given time after it is written
+     * 
+     * @param timeToLiveMs The time to live in ms, or 0 to never expire
+     */
+    public void setTimeToLive(long timeToLiveMs) {
+        version.setTimeToLive(timeToLiveMs);
+    }
+
+    /**
+     * @return true if the value has expired at the given time
+     */
+    public boolean isExpired(long now) {
+        return version.isExpired(now);
+    }
+
     @Override
     public boolean equals(Object o) {
         if(o == this)
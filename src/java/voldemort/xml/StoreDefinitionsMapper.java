@@ -69,6 +69,7 @@ public class StoreDefinitionsMapper {
     public final static String STORE_REQUIRED_READS_ELMT = "required-reads";
     public final static String STORE_PREFERRED_READS_ELMT = "preferred-reads";
     public final static String STORE_RETENTION_POLICY_ELMT = "retention-days";
+    public final static String STORE_CACHE_BYTES_ELMT = "cache-bytes";
     public final static String STORE_ROUTING_STRATEGY = "routing-strategy";
     private final static String STORE_VERSION_ATTR = "version";
 
@@ -160,6 +161,11 @@ public class StoreDefinitionsMapper {
         if(retention != null)
             retentionPolicyDays = Integer.parseInt(retention.getText());
 
+        String cacheBytesStr = store.getChildText(STORE_CACHE_BYTES_ELMT);
+        Long cacheBytes = null;
+        if(cacheBytesStr != null)
+            cacheBytes = Long.parseLong(cacheBytesStr);
+
         return new StoreDefinition(name,
                                    storeType,
                                    keySerializer,
@@ -171,7 +177,8 @@ public class StoreDefinitionsMapper {
                                    requiredReads,
                                    preferredWrites,
                                    requiredWrites,
-                                   retentionPolicyDays);
+                                   retentionPolicyDays,
+                                   cacheBytes);
     }
 
     private SerializerDefinition readSerializer(Element elmt) {
@@ -240,6 +247,9 @@ public class StoreDefinitionsMapper {
         if(storeDefinition.hasRetentionPeriod())
             store.addContent(new Element(STORE_RETENTION_POLICY_ELMT).setText(Integer.toString(storeDefinition.getRetentionDays())));
 
+        if(storeDefinition.hasCache())
+            store.addContent(new Element(STORE_CACHE_BYTES_ELMT).setText(Long.toString(storeDefinition.getCacheBytes())));
+
         return store;
     }
 
@@ -302,7 +302,7 @@ public class TestUtils {
                                                              storeDef,
                                                              router,
                                                              dataDir,
-                                                             100,
+                                                             1024,
                                                              1,
                                                              2);
         storeBuilder.build();
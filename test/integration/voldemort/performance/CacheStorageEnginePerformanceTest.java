@@ -20,47 +20,70 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import voldemort.store.Store;
 import voldemort.store.memory.CacheStorageConfiguration;
+import voldemort.store.memory.InMemoryStorageEngine;
 import voldemort.utils.ByteArray;
 import voldemort.utils.Utils;
 import voldemort.versioning.ObsoleteVersionException;
 import voldemort.versioning.Versioned;
 
+/**
+ * Measure the throughput of the in-memory and cache storage engines with 1, 2,
+ * 4, ... up to the given number of threads to show how they scale across
+ * cores.
+ */
 public class CacheStorageEnginePerformanceTest {
 
     public static void main(String[] args) {
-        if(args.length != 3)
+        if(args.length != 3 && args.length != 4)
             Utils.croak("USAGE: java " + CacheStorageEnginePerformanceTest.class.getName()
-                        + " num-threads num-requests read-fraction");
-        int numThreads = Integer.parseInt(args[0]);
+                        + " max-threads num-requests read-fraction [memory|cache]");
+        int maxThreads = Integer.parseInt(args[0]);
         int numRequests = Integer.parseInt(args[1]);
         double readPercent = Double.parseDouble(args[2]);
+        String type = args.length > 3 ? args[3] : "cache";
         final int valueRange = numRequests / 10;
         final int mod = 100;
-        final int readMax = (int) readPercent * mod;
+        final int readMax = (int) (readPercent * mod);
 
-        final Store<ByteArray, byte[]> store = new CacheStorageConfiguration(null).getStore("test");
-        final AtomicInteger obsoletes = new AtomicInteger(0);
+        System.out.println(type + " storage engine performance test results:");
+        System.out.println("threads\tops/sec\tspeedup\tmedian ms\t99th ms\tobsolete puts");
+        double singleThreaded = 0;
+        for(int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+            final Store<ByteArray, byte[]> store;
+            if(type.equals("memory"))
+                store = new InMemoryStorageEngine<ByteArray, byte[]>("test");
+            else
+                store = new CacheStorageConfiguration(null).getStore("test");
+            final AtomicInteger obsoletes = new AtomicInteger(0);
 
-        PerformanceTest readWriteTest = new PerformanceTest() {
+            PerformanceTest readWriteTest = new PerformanceTest() {
 
-            @Override
-            public void doOperation(int index) throws Exception {
-                try {
-                    byte[] bytes = Integer.toString(index % valueRange).getBytes();
-                    ByteArray key = new ByteArray(bytes);
-                    if(index % mod < readMax)
-                        store.get(key);
-                    else
-                        store.put(key, new Versioned<byte[]>(bytes));
-                } catch(ObsoleteVersionException e) {
-                    obsoletes.incrementAndGet();
+                @Override
+                public void doOperation(int index) throws Exception {
+                    try {
+                        byte[] bytes = Integer.toString(index % valueRange).getBytes();
+                        ByteArray key = new ByteArray(bytes);
+                        if(index % mod < readMax)
+                            store.get(key);
+                        else
+                            store.put(key, new Versioned<byte[]>(bytes));
+                    } catch(ObsoleteVersionException e) {
+                        obsoletes.incrementAndGet();
+                    }
                 }
-            }
-        };
-        readWriteTest.run(numRequests, numThreads);
-        System.out.println("Cache storage engine performance test results:");
-        readWriteTest.printStats();
-        System.out.println("Number of obsolete puts: " + obsoletes.get());
+            };
+            // once to warm up, once to measure
+            readWriteTest.run(numRequests, numThreads);
+            readWriteTest.run(numRequests, numThreads);
+            double opsPerSec = readWriteTest.getOperationsPerSecond();
+            if(numThreads == 1)
+                singleThreaded = opsPerSec;
+            System.out.println(numThreads + "\t" + (long) opsPerSec + "\t"
+                               + String.format("%.2f", opsPerSec / singleThreaded) + "\t"
+                               + readWriteTest.getOperationTimeMsQuantile(0.5) + "\t"
+                               + readWriteTest.getOperationTimeMsQuantile(0.99) + "\t"
+                               + obsoletes.get());
+        }
     }
 
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.performance;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Random;
+
+import voldemort.serialization.IdentitySerializer;
+import voldemort.store.readonly.ExternalSorter;
+import voldemort.store.readonly.PackedExternalSorter;
+import voldemort.utils.ByteUtils;
+import voldemort.utils.Utils;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Compare {@link ExternalSorter} against {@link PackedExternalSorter} on the
+ * same random input with the same approximate memory budget.
+ */
+public class ExternalSorterPerformanceTest {
+
+    /*
+     * The approximate heap cost of each value held by ExternalSorter: the array
+     * header plus the reference to it
+     */
+    private static final int OBJECT_OVERHEAD = 16 + 8;
+    private static final int NUM_ITERATIONS = 3;
+
+    public static void main(String[] args) {
+        if(args.length != 4)
+            Utils.croak("USAGE: java " + ExternalSorterPerformanceTest.class.getName()
+                        + " num-values value-size memory-budget-bytes num-threads");
+        int numValues = Integer.parseInt(args[0]);
+        int valueSize = Integer.parseInt(args[1]);
+        long memoryBudget = Long.parseLong(args[2]);
+        int numThreads = Integer.parseInt(args[3]);
+
+        // the old sorter holds numThreads + 1 buffers of objects at once
+        int internalSortSize = (int) (memoryBudget / (numThreads + 1) / (valueSize + OBJECT_OVERHEAD));
+        ExternalSorter<byte[]> sorter = new ExternalSorter<byte[]>(new IdentitySerializer(),
+                                                                   new Comparator<byte[]>() {
+
+                                                                       public int compare(byte[] b1,
+                                                                                          byte[] b2) {
+                                                                           return ByteUtils.compare(b1,
+                                                                                                    b2);
+                                                                       }
+                                                                   },
+                                                                   internalSortSize,
+                                                                   numThreads);
+        PackedExternalSorter<byte[]> packedSorter = new PackedExternalSorter<byte[]>(new IdentitySerializer(),
+                                                                                     memoryBudget,
+                                                                                     numThreads);
+
+        // alternate the two so neither benefits from warm-up
+        for(int i = 0; i < NUM_ITERATIONS; i++) {
+            long start = System.currentTimeMillis();
+            long count = consume(sorter.sorted(randomValues(numValues, valueSize)));
+            long ellapsed = System.currentTimeMillis() - start;
+            System.out.println("ExternalSorter: sorted " + count + " values in " + ellapsed
+                               + " ms.");
+
+            start = System.currentTimeMillis();
+            count = consume(packedSorter.sorted(randomValues(numValues, valueSize)));
+            ellapsed = System.currentTimeMillis() - start;
+            System.out.println("PackedExternalSorter: sorted " + count + " values in " + ellapsed
+                               + " ms.");
+        }
+        System.out.println("Over all iterations PackedExternalSorter wrote "
+                           + packedSorter.getRunsWritten()
+                           + " runs (" + packedSorter.getBytesSpilled() + " bytes on disk) and did "
+                           + packedSorter.getMergePasses() + " intermediate merge passes.");
+    }
+
+    private static long consume(Iterable<byte[]> values) {
+        long count = 0;
+        byte[] prev = null;
+        for(byte[] value: values) {
+            if(prev != null && ByteUtils.compare(prev, value) > 0)
+                throw new IllegalStateException("Values are out of order!");
+            prev = value;
+            count++;
+        }
+        return count;
+    }
+
+    private static Iterator<byte[]> randomValues(final int numValues, final int valueSize) {
+        return new AbstractIterator<byte[]>() {
+
+            private final Random random = new Random(1234);
+            private int count = 0;
+
+            @Override
+            protected byte[] computeNext() {
+                if(count++ >= numValues)
+                    return endOfData();
+                byte[] value = new byte[valueSize];
+                // repeat a short random prefix so the values compress somewhat
+                random.nextBytes(value);
+                for(int i = 8; i < valueSize; i++)
+                    value[i] = value[i % 8];
+                return value;
+            }
+        };
+    }
+
+}
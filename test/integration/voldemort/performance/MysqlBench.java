@@ -19,49 +19,80 @@ package voldemort.performance;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.dbcp.BasicDataSource;
 
+import voldemort.store.StoreUtils;
+import voldemort.store.mysql.MysqlStorageConfiguration;
+import voldemort.store.mysql.MysqlStorageEngine;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
 /**
- * A simple MySQL benchmark
+ * A simple MySQL benchmark. After timing raw upserts and selects it times
+ * {@link MysqlStorageEngine} with and without prepared statement caching, and
+ * getAll with one query per key against batched queries.
  * 
  * @author jay
  * 
  */
 public class MysqlBench {
 
+    private static final int STATEMENT_CACHE_SIZE = 32;
+    private static final String ENGINE_TABLE = "mysql_bench_store";
+
     private final DataSource dataSource;
+    private final String connectionString;
+    private final String username;
+    private final String password;
     private final int numRequests;
     private final int numThreads;
+    private final int getAllSize;
 
     private static void croak(String message) {
         System.err.println(message);
-        System.err.println("USAGE: java MysqlBench jdbc-url db-user db-password num-requests num-threads");
+        System.err.println("USAGE: java MysqlBench jdbc-url db-user db-password num-requests num-threads [getall-size]");
         System.exit(1);
     }
 
     public static void main(String[] args) throws Exception {
-        if(args.length != 5)
-            croak("Invalid number of command line arguments: expected 5 but got " + args.length
-                  + ".");
+        if(args.length != 5 && args.length != 6)
+            croak("Invalid number of command line arguments: expected 5 or 6 but got "
+                  + args.length + ".");
         String jdbcUrl = args[0];
         String user = args[1];
         String password = args[2];
         int numRequests = Integer.parseInt(args[3]);
         int numThreads = Integer.parseInt(args[4]);
-        MysqlBench bench = new MysqlBench(numThreads, numRequests, jdbcUrl, user, password);
+        int getAllSize = args.length > 5 ? Integer.parseInt(args[5]) : 50;
+        MysqlBench bench = new MysqlBench(numThreads,
+                                          numRequests,
+                                          jdbcUrl,
+                                          user,
+                                          password,
+                                          getAllSize);
         bench.benchmark();
+        bench.benchmarkEngine(0);
+        bench.benchmarkEngine(STATEMENT_CACHE_SIZE);
     }
 
     public MysqlBench(int numThreads,
                       int numRequests,
                       String connectionString,
                       String username,
-                      String password) {
+                      String password,
+                      int getAllSize) {
         this.numThreads = numThreads;
         this.numRequests = numRequests;
+        this.connectionString = connectionString;
+        this.username = username;
+        this.password = password;
+        this.getAllSize = getAllSize;
         BasicDataSource ds = new BasicDataSource();
         ds.setDriverClassName("com.mysql.jdbc.Driver");
         ds.setUsername(username);
@@ -155,4 +186,88 @@ public class MysqlBench {
         deleteAll();
     }
 
-}
\ No newline at end of file
+    /**
+     * Time puts, gets and getAlls through the storage engine using a pool
+     * configured as the server configures it
+     * 
+     * @param statementCacheSize The prepared statements to cache per
+     *        connection, 0 for none
+     */
+    public void benchmarkEngine(int statementCacheSize) throws Exception {
+        BasicDataSource ds = MysqlStorageConfiguration.createDataSource(connectionString,
+                                                                        username,
+                                                                        password,
+                                                                        numThreads,
+                                                                        5000,
+                                                                        statementCacheSize);
+        final MysqlStorageEngine engine = new MysqlStorageEngine(ENGINE_TABLE, ds);
+        String label = statementCacheSize > 0 ? "with " + statementCacheSize
+                                                + " cached statements per connection"
+                                             : "without statement caching";
+        try {
+            System.out.println();
+            System.out.println("ENGINE PUT TEST " + label);
+            PerformanceTest putTest = new PerformanceTest() {
+
+                @Override
+                public void doOperation(int index) throws Exception {
+                    byte[] bytes = Integer.toString(index).getBytes();
+                    VectorClock clock = new VectorClock().incremented(0, index);
+                    engine.put(new ByteArray(bytes), new Versioned<byte[]>(bytes, clock));
+                }
+            };
+            putTest.run(numRequests, numThreads);
+            putTest.printStats();
+
+            System.out.println();
+            System.out.println("ENGINE GET TEST " + label);
+            PerformanceTest getTest = new PerformanceTest() {
+
+                @Override
+                public void doOperation(int index) throws Exception {
+                    engine.get(new ByteArray(Integer.toString(index).getBytes()));
+                }
+            };
+            getTest.run(numRequests, numThreads);
+            getTest.printStats();
+
+            int numGetAlls = Math.max(1, numRequests / getAllSize);
+            System.out.println();
+            System.out.println("ENGINE GETALL OF " + getAllSize + " KEYS, ONE QUERY PER KEY, "
+                               + label);
+            PerformanceTest perKeyTest = new PerformanceTest() {
+
+                @Override
+                public void doOperation(int index) throws Exception {
+                    StoreUtils.getAll(engine, keys(index));
+                }
+            };
+            perKeyTest.run(numGetAlls, numThreads);
+            perKeyTest.printStats();
+
+            System.out.println();
+            System.out.println("ENGINE GETALL OF " + getAllSize + " KEYS, BATCHED, " + label);
+            PerformanceTest batchedTest = new PerformanceTest() {
+
+                @Override
+                public void doOperation(int index) throws Exception {
+                    engine.getAll(keys(index));
+                }
+            };
+            batchedTest.run(numGetAlls, numThreads);
+            batchedTest.printStats();
+        } finally {
+            engine.destroy();
+            ds.close();
+        }
+    }
+
+    private List<ByteArray> keys(int index) {
+        List<ByteArray> keys = new ArrayList<ByteArray>(getAllSize);
+        for(int i = 0; i < getAllSize; i++)
+            keys.add(new ByteArray(Integer.toString((index * getAllSize + i) % numRequests)
+                                          .getBytes()));
+        return keys;
+    }
+
+}
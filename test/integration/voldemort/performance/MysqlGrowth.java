@@ -27,33 +27,44 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import javax.sql.DataSource;
+
 import org.apache.commons.dbcp.BasicDataSource;
 
+import voldemort.store.mysql.MysqlStorageConfiguration;
+
 /**
  * create table test_table (key_ varchar(200) primary key, value_ varchar(200))
  * engine=InnoDB;
  * 
+ * Each operation borrows a connection from a pool configured like the server's,
+ * optionally caching prepared statements, so the effect of statement caching
+ * on the growth curve can be compared.
+ * 
  * @author jay
  * 
  */
 public class MysqlGrowth {
 
     public static void main(String[] args) throws Exception {
-        if(args.length != 3) {
-            System.err.println("USAGE: java MySQLGrowth total_size increment threads");
+        if(args.length != 3 && args.length != 4) {
+            System.err.println("USAGE: java MySQLGrowth total_size increment threads [statement_cache_size]");
             System.exit(1);
         }
         final int totalSize = Integer.parseInt(args[0]);
         final int increment = Integer.parseInt(args[1]);
         final int threads = Integer.parseInt(args[2]);
+        int statementCacheSize = args.length > 3 ? Integer.parseInt(args[3]) : 0;
 
-        BasicDataSource ds = new BasicDataSource();
-        ds.setDriverClassName("com.mysql.jdbc.Driver");
-        ds.setUsername("root");
-        ds.setPassword("");
-        ds.setUrl("jdbc:mysql://127.0.0.1:3306/test");
-        final Connection conn = ds.getConnection();
+        final BasicDataSource ds = MysqlStorageConfiguration.createDataSource("jdbc:mysql://127.0.0.1:3306/test",
+                                                                              "root",
+                                                                              "",
+                                                                              threads,
+                                                                              5000,
+                                                                              statementCacheSize);
+        Connection conn = ds.getConnection();
         conn.createStatement().execute("truncate table test_table");
+        conn.close();
 
         final Random rand = new Random();
         int iterations = totalSize / increment;
@@ -70,7 +81,7 @@ public class MysqlGrowth {
                 results.add(service.submit(new Callable<Object>() {
 
                     public Object call() throws Exception {
-                        upsert(conn,
+                        upsert(ds,
                                Integer.toString(fi * increment + fj),
                                Integer.toString(fi * increment + fj));
                         return null;
@@ -88,7 +99,7 @@ public class MysqlGrowth {
                 results.add(service.submit(new Callable<Object>() {
 
                     public Object call() throws Exception {
-                        return select(conn, Integer.toString(rand.nextInt((fi + 1) * increment)));
+                        return select(ds, Integer.toString(rand.nextInt((fi + 1) * increment)));
                     }
                 }));
             }
@@ -97,7 +108,7 @@ public class MysqlGrowth {
             readTimes[i] = (System.currentTimeMillis() - startTime);
             System.out.println("read: " + (readTimes[i] / (double) increment));
         }
-        conn.close();
+        ds.close();
 
         System.out.println();
         System.out.println("iteration read write:");
@@ -110,8 +121,9 @@ public class MysqlGrowth {
         System.exit(0);
     }
 
-    private static void upsert(Connection conn, String key, String value) throws Exception {
+    private static void upsert(DataSource ds, String key, String value) throws Exception {
         String upsert = "insert into test_table (key_, value_) values (?, ?) on duplicate key update value_ = ?";
+        Connection conn = ds.getConnection();
         PreparedStatement stmt = conn.prepareStatement(upsert);
         try {
             stmt.setString(1, key);
@@ -122,11 +134,15 @@ public class MysqlGrowth {
             try {
                 stmt.close();
             } catch(Exception e) {}
+            try {
+                conn.close();
+            } catch(Exception e) {}
         }
     }
 
-    private static String select(Connection conn, String key) throws Exception {
+    private static String select(DataSource ds, String key) throws Exception {
         String upsert = "select value_ from test_table where key_ = ?";
+        Connection conn = ds.getConnection();
         PreparedStatement stmt = conn.prepareStatement(upsert);
         ResultSet results = null;
         try {
@@ -140,6 +156,9 @@ public class MysqlGrowth {
             try {
                 stmt.close();
             } catch(Exception e) {}
+            try {
+                conn.close();
+            } catch(Exception e) {}
         }
     }
 
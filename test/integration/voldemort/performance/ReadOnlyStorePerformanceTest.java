@@ -19,7 +19,9 @@ package voldemort.performance;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import voldemort.serialization.DefaultSerializerFactory;
@@ -39,13 +41,14 @@ import voldemort.xml.StoreDefinitionsMapper;
 public class ReadOnlyStorePerformanceTest {
 
     public static void main(String[] args) throws FileNotFoundException, IOException {
-        if(args.length != 4)
+        if(args.length != 4 && args.length != 5)
             Utils.croak("USAGE: java " + ReadOnlyStorePerformanceTest.class.getName()
-                        + " num-threads num-requests server-properties-file storeName");
+                        + " num-threads num-requests server-properties-file storeName [batch-size]");
         int numThreads = Integer.parseInt(args[0]);
         int numRequests = Integer.parseInt(args[1]);
         String serverPropsFile = args[2];
         String storeName = args[3];
+        final int batchSize = args.length > 4 ? Integer.parseInt(args[4]) : 1;
 
         final VoldemortConfig voldemortConfig = new VoldemortConfig(new Props(new File(serverPropsFile)));
         final Store<ByteArray, byte[]> store = new ReadOnlyStorageConfiguration(voldemortConfig).getStore(storeName);
@@ -82,13 +85,24 @@ public class ReadOnlyStorePerformanceTest {
             @Override
             public void doOperation(int index) throws Exception {
                 try {
-                    Integer memberId = new Integer((int) (Math.random() * MaxMemberID));
-                    totalResults.incrementAndGet();
-                    List<Versioned<byte[]>> results = store.get(new ByteArray(keySerializer.toBytes(memberId)));
-
-                    if(results.size() == 0)
-                        nullResults.incrementAndGet();
+                    if(batchSize > 1) {
+                        // a getAll of batchSize random keys
+                        List<ByteArray> keys = new ArrayList<ByteArray>(batchSize);
+                        for(int i = 0; i < batchSize; i++) {
+                            Integer memberId = new Integer((int) (Math.random() * MaxMemberID));
+                            keys.add(new ByteArray(keySerializer.toBytes(memberId)));
+                        }
+                        Map<ByteArray, List<Versioned<byte[]>>> results = store.getAll(keys);
+                        totalResults.addAndGet(batchSize);
+                        nullResults.addAndGet(batchSize - results.size());
+                    } else {
+                        Integer memberId = new Integer((int) (Math.random() * MaxMemberID));
+                        totalResults.incrementAndGet();
+                        List<Versioned<byte[]>> results = store.get(new ByteArray(keySerializer.toBytes(memberId)));
 
+                        if(results.size() == 0)
+                            nullResults.incrementAndGet();
+                    }
                 } catch(ObsoleteVersionException e) {
                     obsoletes.incrementAndGet();
                 }
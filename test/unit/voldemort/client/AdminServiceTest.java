@@ -19,9 +19,12 @@ package voldemort.client;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import junit.framework.TestCase;
@@ -241,6 +244,14 @@ public class AdminServiceTest extends TestCase {
     }
 
     public void testFetchAsStream() {
+        checkFetchAsStream(false);
+    }
+
+    public void testFetchAsFramedStream() {
+        checkFetchAsStream(true);
+    }
+
+    private void checkFetchAsStream(boolean framed) {
         // user store should be present
         Store<ByteArray, byte[]> store = server.getStoreRepository().getStorageEngine(storeName);
         assertNotSame("Store '" + storeName + "' should not be null", null, store);
@@ -257,6 +268,7 @@ public class AdminServiceTest extends TestCase {
         AdminClient client = new AdminClient(server.getIdentityNode(),
                                              server.getVoldemortMetadata(),
                                              new SocketPool(100, 100, 2000, 1000, 10000));
+        client.setFramedStreams(framed);
         Iterator<Pair<ByteArray, Versioned<byte[]>>> entryIterator = client.fetchPartitionEntries(0,
                                                                                                   storeName,
                                                                                                   Arrays.asList(new Integer[] { 0 }));
@@ -289,6 +301,14 @@ public class AdminServiceTest extends TestCase {
     }
 
     public void testUpdateAsStream() throws IOException {
+        checkUpdateAsStream(false);
+    }
+
+    public void testUpdateAsFramedStream() throws IOException {
+        checkUpdateAsStream(true);
+    }
+
+    private void checkUpdateAsStream(boolean framed) throws IOException {
         Store<ByteArray, byte[]> store = server.getStoreRepository().getStorageEngine(storeName);
         assertNotSame("Store '" + storeName + "' should not be null", null, store);
 
@@ -309,6 +329,7 @@ public class AdminServiceTest extends TestCase {
         AdminClient client = new AdminClient(server.getIdentityNode(),
                                              server.getVoldemortMetadata(),
                                              new SocketPool(100, 100, 2000, 1000, 10000));
+        client.setFramedStreams(framed);
 
         client.updatePartitionEntries(0, storeName, entryList.iterator());
 
@@ -401,6 +422,114 @@ public class AdminServiceTest extends TestCase {
         assertEquals("All Values should have matched", checked, matched);
     }
 
+    public void testMigratePartitionsResumesFromCheckpoint() throws IOException {
+        Store<ByteArray, byte[]> store = server.getStoreRepository().getStorageEngine(storeName);
+        for(int i = 100; i <= 1000; i++) {
+            ByteArray key = new ByteArray(ByteUtils.getBytes("" + i, "UTF-8"));
+            byte[] value = ByteUtils.getBytes("value-" + i, "UTF-8");
+            store.put(key, new Versioned<byte[]>(value, new VectorClock().incremented(0,
+                                                                                      System.currentTimeMillis())));
+        }
+
+        VoldemortConfig config2 = ServerTestUtils.createServerConfig(1,
+                                                                     TestUtils.createTempDir()
+                                                                              .getAbsolutePath(),
+                                                                     null,
+                                                                     storesXmlfile);
+        VoldemortServer server2 = new VoldemortServer(config2, cluster);
+        server2.start();
+        try {
+            AdminClient client = new AdminClient(server2.getIdentityNode(),
+                                                 server2.getVoldemortMetadata(),
+                                                 new SocketPool(100, 100, 2000, 1000, 10000));
+
+            // as if an earlier attempt had copied partition 0 and then failed
+            client.markPartitionCompleted(1, storeName, 0, "migration-1", 0);
+            assertEquals(Collections.singleton(0),
+                         client.getCompletedPartitions(1, storeName, 0, "migration-1"));
+
+            Map<Integer, List<Integer>> donorPartitions = new HashMap<Integer, List<Integer>>();
+            donorPartitions.put(0, Arrays.asList(0, 1));
+            List<PartitionTransfer> transfers = client.migratePartitions(1,
+                                                                         storeName,
+                                                                         "migration-1",
+                                                                         donorPartitions,
+                                                                         2,
+                                                                         1);
+            assertEquals(1, transfers.size());
+            assertEquals(Arrays.asList(1), transfers.get(0).getPartitions());
+            assertTrue(transfers.get(0).getEntries() > 0);
+            assertTrue("Checkpoint should be cleared once the migration is done.",
+                       client.getCompletedPartitions(1, storeName, 0, "migration-1").isEmpty());
+
+            Store<ByteArray, byte[]> store2 = server2.getStoreRepository()
+                                                     .getStorageEngine(storeName);
+            RoutingStrategy routingStrategy = new RoutingStrategyFactory(cluster).getRoutingStrategy(server.getVoldemortMetadata()
+                                                                                                          .getStoreDef(storeName));
+            for(int i = 100; i <= 1000; i++) {
+                ByteArray key = new ByteArray(ByteUtils.getBytes("" + i, "UTF-8"));
+                boolean inPartition1 = routingStrategy.getPartitionList(key.get()).contains(1);
+                assertEquals("Only the keys of partition 1 should have been copied.",
+                             inPartition1,
+                             store2.get(key).size() > 0);
+            }
+        } finally {
+            server2.stop();
+        }
+    }
+
+    public void testMigrateCopiesAllPartitionsInOneScanOfUnawareDonor() throws IOException {
+        VoldemortConfig config2 = ServerTestUtils.createServerConfig(1,
+                                                                     TestUtils.createTempDir()
+                                                                              .getAbsolutePath(),
+                                                                     null,
+                                                                     storesXmlfile);
+        VoldemortServer server2 = new VoldemortServer(config2, cluster);
+        server2.start();
+        try {
+            AdminClient client = new AdminClient(server2.getIdentityNode(),
+                                                 server2.getVoldemortMetadata(),
+                                                 new SocketPool(100, 100, 2000, 1000, 10000));
+
+            // the in-memory engine has to be scanned whole for any partition
+            assertFalse(client.isPartitionAware(0, storeName));
+            Map<Integer, List<Integer>> donorPartitions = new HashMap<Integer, List<Integer>>();
+            donorPartitions.put(0, Arrays.asList(0, 1));
+            List<PartitionTransfer> transfers = client.migratePartitions(1,
+                                                                         storeName,
+                                                                         "migration-1",
+                                                                         donorPartitions,
+                                                                         2,
+                                                                         2);
+            assertEquals(1, transfers.size());
+            assertEquals(Arrays.asList(0, 1), transfers.get(0).getPartitions());
+        } finally {
+            server2.stop();
+        }
+    }
+
+    public void testMigrationIgnoresCheckpointOfAbandonedMigration() throws IOException {
+        VoldemortConfig config2 = ServerTestUtils.createServerConfig(1,
+                                                                     TestUtils.createTempDir()
+                                                                              .getAbsolutePath(),
+                                                                     null,
+                                                                     storesXmlfile);
+        VoldemortServer server2 = new VoldemortServer(config2, cluster);
+        server2.start();
+        try {
+            AdminClient client = new AdminClient(server2.getIdentityNode(),
+                                                 server2.getVoldemortMetadata(),
+                                                 new SocketPool(100, 100, 2000, 1000, 10000));
+
+            client.markPartitionCompleted(1, storeName, 0, "abandoned", 0);
+            assertTrue(client.getCompletedPartitions(1, storeName, 0, "migration-2").isEmpty());
+            assertTrue("Starting a new migration should discard the old checkpoint.",
+                       client.getCompletedPartitions(1, storeName, 0, "abandoned").isEmpty());
+        } finally {
+            server2.stop();
+        }
+    }
+
     private void checkEntriesForPartitions(byte[] key,
                                            int[] partitionList,
                                            RoutingStrategy routingStrategy) {
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.client.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import voldemort.TestUtils;
+import voldemort.VoldemortException;
+import voldemort.utils.ByteArray;
+import voldemort.utils.Pair;
+import voldemort.versioning.Versioned;
+
+public class FramedEntryStreamTest extends TestCase {
+
+    private List<Pair<ByteArray, Versioned<byte[]>>> createEntries(int count) {
+        List<Pair<ByteArray, Versioned<byte[]>>> entries = new ArrayList<Pair<ByteArray, Versioned<byte[]>>>();
+        for(int i = 0; i < count; i++) {
+            byte[] value = new byte[100 + i % 50];
+            // compressible but not uniform
+            Arrays.fill(value, (byte) (i % 7));
+            entries.add(Pair.create(new ByteArray(TestUtils.randomBytes(10)),
+                                    new Versioned<byte[]>(value, TestUtils.getClock(1, i % 3))));
+        }
+        return entries;
+    }
+
+    private byte[] write(List<Pair<ByteArray, Versioned<byte[]>>> entries,
+                         boolean compress,
+                         boolean writeStatus,
+                         int frameBytes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        FramedEntryWriter writer = new FramedEntryWriter(new DataOutputStream(bytes),
+                                                         compress,
+                                                         writeStatus,
+                                                         frameBytes);
+        for(Pair<ByteArray, Versioned<byte[]>> entry: entries)
+            writer.write(entry.getFirst(), entry.getSecond());
+        writer.finish();
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private List<Pair<ByteArray, Versioned<byte[]>>> read(byte[] bytes, boolean readStatus)
+            throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        FramedEntryReader reader = new FramedEntryReader(input);
+        List<Pair<ByteArray, Versioned<byte[]>>> entries = new ArrayList<Pair<ByteArray, Versioned<byte[]>>>();
+        try {
+            while(true) {
+                if(readStatus)
+                    assertEquals(0, input.readShort());
+                List<Pair<ByteArray, Versioned<byte[]>>> frame = reader.readFrame();
+                if(frame == null)
+                    break;
+                entries.addAll(frame);
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals("Stream should be fully consumed.", -1, input.read());
+        return entries;
+    }
+
+    private void assertSameEntries(List<Pair<ByteArray, Versioned<byte[]>>> expected,
+                                   List<Pair<ByteArray, Versioned<byte[]>>> actual) {
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getFirst(), actual.get(i).getFirst());
+            assertTrue(Arrays.equals(expected.get(i).getSecond().getValue(), actual.get(i)
+                                                                                   .getSecond()
+                                                                                   .getValue()));
+            assertEquals(expected.get(i).getSecond().getVersion(), actual.get(i)
+                                                                         .getSecond()
+                                                                         .getVersion());
+        }
+    }
+
+    public void testRoundTrip() throws IOException {
+        List<Pair<ByteArray, Versioned<byte[]>>> entries = createEntries(1000);
+        for(boolean compress: new boolean[] { true, false }) {
+            for(boolean status: new boolean[] { true, false }) {
+                // a small frame size gives many frames
+                assertSameEntries(entries, read(write(entries, compress, status, 1024), status));
+                assertSameEntries(entries, read(write(entries,
+                                                      compress,
+                                                      status,
+                                                      FramedEntryWriter.DEFAULT_MAX_FRAME_BYTES),
+                                                status));
+            }
+        }
+    }
+
+    public void testEmptyStream() throws IOException {
+        List<Pair<ByteArray, Versioned<byte[]>>> none = createEntries(0);
+        assertSameEntries(none, read(write(none, true, false, 1024), false));
+    }
+
+    public void testCompressionShrinksStream() throws IOException {
+        List<Pair<ByteArray, Versioned<byte[]>>> entries = createEntries(1000);
+        int compressed = write(entries, true, false, 64 * 1024).length;
+        int uncompressed = write(entries, false, false, 64 * 1024).length;
+        assertTrue("Compressed stream of " + compressed + " bytes should be smaller than "
+                   + uncompressed + " bytes.", compressed < uncompressed / 2);
+    }
+
+    public void testCorruptHeaderIsDetected() throws IOException {
+        // the entry count, then the uncompressed length, of the first frame
+        for(int offset: new int[] { 8, 12 }) {
+            byte[] bytes = write(createEntries(10), false, false, 64 * 1024);
+            bytes[offset] ^= 1;
+            try {
+                read(bytes, false);
+                fail("Corruption should have been detected.");
+            } catch(VoldemortException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testInvalidLengthsAreRejected() throws IOException {
+        int tooLong = FramedEntryWriter.MAX_FRAME_BYTES + 1;
+        // body length, entries, uncompressed length
+        int[][] headers = { { -5, 1, 10 }, { tooLong, 1, 10 }, { 10, 1, -1 }, { 10, 1, tooLong },
+                { 16, -1, 16 }, { 16, 3, 16 } };
+        for(int[] header: headers) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(header[0]);
+            output.writeByte(0);
+            output.writeInt(header[1]);
+            output.writeInt(header[2]);
+            output.writeInt(0);
+            try {
+                read(bytes.toByteArray(), false);
+                fail("Frame header " + Arrays.toString(header) + " should have been rejected.");
+            } catch(VoldemortException e) {
+                // expected
+            }
+        }
+    }
+
+    public void testCorruptFrameIsDetected() throws IOException {
+        for(boolean compress: new boolean[] { true, false }) {
+            byte[] bytes = write(createEntries(10), compress, false, 64 * 1024);
+            // the first frame's header is 17 bytes, flip a bit in its body
+            bytes[17 + 5] ^= 1;
+            try {
+                read(bytes, false);
+                fail("Corruption should have been detected.");
+            } catch(VoldemortException e) {
+                // expected
+            }
+        }
+    }
+}
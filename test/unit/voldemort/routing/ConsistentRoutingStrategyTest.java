@@ -76,6 +76,15 @@ public class ConsistentRoutingStrategyTest extends TestCase {
         assertNodeOrder(getRouter(16, 3).routeRequest(key), 3, 2, 1);
     }
 
+    public void testReplicatingPartitionList() {
+        assertEquals(ImmutableList.of(16, 17, 0), getRouter(0, 3).getReplicatingPartitionList(16));
+        assertEquals(ImmutableList.of(4), getRouter(0, 1).getReplicatingPartitionList(4));
+        for(int hash = 0; hash < 18; hash++) {
+            ConsistentRoutingStrategy router = getRouter(hash, 3);
+            assertEquals(router.getPartitionList(key), router.getReplicatingPartitionList(hash));
+        }
+    }
+
     public void testGetNodes() {
         getRouter(0, 3).getNodes().containsAll(getTestNodes());
     }
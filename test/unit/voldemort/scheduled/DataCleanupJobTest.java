@@ -16,18 +16,44 @@
 
 package voldemort.scheduled;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.Semaphore;
 
 import junit.framework.TestCase;
+
+import org.apache.commons.io.FileDeleteStrategy;
+
 import voldemort.MockTime;
+import voldemort.TestUtils;
+import voldemort.VoldemortException;
+import voldemort.cluster.Node;
+import voldemort.routing.ConsistentRoutingStrategy;
+import voldemort.routing.RoutingStrategy;
+import voldemort.server.PartitionCheckpointStore;
 import voldemort.server.scheduler.DataCleanupJob;
+import voldemort.store.PartitionAwareStorageEngine;
 import voldemort.store.StorageEngine;
+import voldemort.store.bdb.BdbStorageEngine;
+import voldemort.store.cache.CachingStore;
 import voldemort.store.memory.InMemoryStorageEngine;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.Pair;
 import voldemort.utils.Time;
 import voldemort.versioning.VectorClock;
 import voldemort.versioning.Versioned;
 
+import com.google.common.collect.ImmutableList;
+import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.Environment;
+import com.sleepycat.je.EnvironmentConfig;
+
 public class DataCleanupJobTest extends TestCase {
 
     private MockTime time;
@@ -56,6 +82,247 @@ public class DataCleanupJobTest extends TestCase {
         assertContains("a", "d", "e", "f");
     }
 
+    public void testCleanupDeletesExpiredEntries() {
+        time.setTime(123);
+        put("a", "b");
+        VectorClock clock = new VectorClock(time.getMilliseconds());
+        clock.setTimeToLive(1000);
+        engine.put("c", new Versioned<String>("c", clock));
+
+        time.setTime(123 + 1000);
+        new DataCleanupJob<String, String>(engine, new Semaphore(1), Time.MS_PER_DAY, time).run();
+
+        assertContains("a", "b");
+        assertEquals(0, engine.get("c").size());
+    }
+
+    public void testExpiredCleanupWithoutRetention() {
+        time.setTime(123);
+        put("a", "b");
+        VectorClock clock = new VectorClock(time.getMilliseconds());
+        clock.setTimeToLive(1000);
+        engine.put("c", new Versioned<String>("c", clock));
+
+        // however old, only the expired value goes
+        time.setTime(123 + 365 * Time.MS_PER_DAY);
+        new DataCleanupJob<String, String>(engine, new Semaphore(1), Long.MAX_VALUE, time).run();
+
+        assertContains("a", "b");
+        assertEquals(0, engine.get("c").size());
+    }
+
+    public void testCleanupDeletesThroughCache() {
+        CachingStore<String, String> cached = new CachingStore<String, String>(engine,
+                                                                               new InMemoryStorageEngine<String, String>("cache"));
+        time.setTime(123);
+        put("a", "b");
+        assertEquals(1, cached.get("a").size());
+
+        time.setTime(123 + Time.MS_PER_DAY + 1);
+        new DataCleanupJob<String, String>(engine,
+                                           new Semaphore(1),
+                                           Time.MS_PER_DAY,
+                                           time,
+                                           null,
+                                           DataCleanupJob.DEFAULT_MAX_KEYS_PER_RUN,
+                                           1,
+                                           null,
+                                           null,
+                                           null,
+                                           cached).run();
+        assertEquals(0, cached.get("a").size());
+        assertEquals(0, engine.get("b").size());
+    }
+
+    public void testIncrementalCleanupWithTimeIndex() throws Exception {
+        File tempDir = TestUtils.createTempDir();
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setAllowCreate(true);
+        envConfig.setTransactional(true);
+        Environment environment = new Environment(tempDir, envConfig);
+        DatabaseConfig databaseConfig = new DatabaseConfig();
+        databaseConfig.setAllowCreate(true);
+        databaseConfig.setTransactional(true);
+        databaseConfig.setSortedDuplicates(true);
+        BdbStorageEngine bdb = new BdbStorageEngine("test",
+                                                    environment,
+                                                    environment.openDatabase(null,
+                                                                             "test",
+                                                                             databaseConfig));
+        try {
+            bdb.enableTimeIndex(1000, Time.MS_PER_DAY);
+            for(int i = 0; i < 10; i++)
+                bdb.put(new ByteArray(new byte[] { (byte) i }),
+                        new Versioned<byte[]>(new byte[] { (byte) i }, new VectorClock(i * 1000)));
+
+            // keys 0 to 4 have expired, three are cleaned up each run
+            time.setTime(5000 + Time.MS_PER_DAY);
+            DataCleanupJob<ByteArray, byte[]> job = new DataCleanupJob<ByteArray, byte[]>(bdb,
+                                                                                          new Semaphore(1),
+                                                                                          Time.MS_PER_DAY,
+                                                                                          time,
+                                                                                          null,
+                                                                                          3);
+            job.run();
+            assertEquals(0, bdb.get(new ByteArray(new byte[] { 2 })).size());
+            assertEquals(1, bdb.get(new ByteArray(new byte[] { 3 })).size());
+            job.run();
+            for(int i = 0; i < 10; i++)
+                assertEquals(i < 5 ? 0 : 1, bdb.get(new ByteArray(new byte[] { (byte) i }))
+                                              .size());
+            assertEquals(0, bdb.getKeysExpiredBy(5000 + Time.MS_PER_DAY, 10).size());
+
+            // a key the index has out of date is put back in its bucket
+            ByteArray stale = new ByteArray(new byte[] { 5 });
+            BdbStorageEngine unindexed = new BdbStorageEngine("test",
+                                                              environment,
+                                                              environment.openDatabase(null,
+                                                                                       "test",
+                                                                                       databaseConfig));
+            unindexed.put(stale, new Versioned<byte[]>(new byte[] { 5 },
+                                                       new VectorClock(5000).incremented(0,
+                                                                                         20000)));
+            unindexed.close();
+            time.setTime(10000 + Time.MS_PER_DAY);
+            job.run();
+            assertEquals(1, bdb.get(stale).size());
+            assertEquals(0, bdb.get(new ByteArray(new byte[] { 7 })).size());
+            assertEquals(1, bdb.get(new ByteArray(new byte[] { 8 })).size());
+            job.run();
+            assertEquals(1, bdb.get(stale).size());
+            for(int i = 6; i < 10; i++)
+                assertEquals(0, bdb.get(new ByteArray(new byte[] { (byte) i })).size());
+            assertEquals(0, bdb.getKeysExpiredBy(10000 + Time.MS_PER_DAY, 10).size());
+            assertEquals(Arrays.asList(stale), bdb.getKeysExpiredBy(21000 + Time.MS_PER_DAY, 10));
+
+            // a value with a time-to-live is found when it expires, well
+            // before the retention period is up
+            ByteArray expiring = new ByteArray(new byte[] { 20 });
+            VectorClock clock = new VectorClock(time.getMilliseconds());
+            clock.setTimeToLive(1000);
+            bdb.put(expiring, new Versioned<byte[]>(new byte[] { 20 }, clock));
+            time.addMilliseconds(2000);
+            job.run();
+            assertEquals(0, bdb.get(expiring).size());
+            assertEquals(1, bdb.get(stale).size());
+        } finally {
+            bdb.close();
+            environment.close();
+            FileDeleteStrategy.FORCE.delete(tempDir);
+        }
+    }
+
+    public void testParallelPartitionedCleanupResumes() throws Exception {
+        List<Node> nodes = new ArrayList<Node>();
+        nodes.add(new Node(0, "localhost", 1, 2, 3, ImmutableList.of(0, 1, 2)));
+        nodes.add(new Node(1, "localhost", 4, 5, 6, ImmutableList.of(3, 4, 5)));
+        RoutingStrategy routing = new ConsistentRoutingStrategy(nodes, 1);
+        PartitionedEngine partitioned = new PartitionedEngine(routing);
+        for(int i = 0; i < 300; i++)
+            partitioned.put(new ByteArray(Integer.toString(i).getBytes()),
+                            new Versioned<byte[]>(new byte[] { 1 }, new VectorClock(i < 200 ? 0
+                                                                                           : 2 * Time.MS_PER_DAY)));
+
+        File tempDir = TestUtils.createTempDir();
+        PartitionCheckpointStore checkpoints = new PartitionCheckpointStore(tempDir);
+        time.setTime(2 * Time.MS_PER_DAY);
+        DataCleanupJob<ByteArray, byte[]> job = new DataCleanupJob<ByteArray, byte[]>(partitioned,
+                                                                                      new Semaphore(1),
+                                                                                      Time.MS_PER_DAY,
+                                                                                      time,
+                                                                                      null,
+                                                                                      DataCleanupJob.DEFAULT_MAX_KEYS_PER_RUN,
+                                                                                      3,
+                                                                                      routing,
+                                                                                      Arrays.asList(0,
+                                                                                                    1,
+                                                                                                    2,
+                                                                                                    3,
+                                                                                                    4,
+                                                                                                    5),
+                                                                                      checkpoints);
+        try {
+            // the scan fails part way through
+            partitioned.failOn = 2;
+            job.run();
+            assertEquals(Arrays.asList(0, 1, 2), partitioned.scanned);
+            assertEquals(new TreeSet<Integer>(Arrays.asList(0, 1)),
+                         checkpoints.getCompletedPartitions("test"));
+
+            // and carries on from where it stopped
+            partitioned.failOn = -1;
+            partitioned.scanned.clear();
+            job.run();
+            assertEquals(Arrays.asList(2, 3, 4, 5), partitioned.scanned);
+            // the entries of no known partition are scanned once per pass
+            assertEquals(1, partitioned.unknownScans);
+            assertTrue(checkpoints.getCompletedPartitions("test").isEmpty());
+            assertEquals("6 of 6 partitions", job.getProgress());
+            assertEquals(200, job.getTotalEntriesDeleted());
+            assertFalse(job.isRunning());
+            for(int i = 0; i < 300; i++)
+                assertEquals(i < 200 ? 0 : 1,
+                             partitioned.get(new ByteArray(Integer.toString(i).getBytes())).size());
+        } finally {
+            FileDeleteStrategy.FORCE.delete(tempDir);
+        }
+    }
+
+    private static class PartitionedEngine extends InMemoryStorageEngine<ByteArray, byte[]>
+            implements PartitionAwareStorageEngine<ByteArray, byte[]> {
+
+        private final RoutingStrategy routing;
+        final List<Integer> scanned = new ArrayList<Integer>();
+        volatile int failOn = -1;
+        int unknownScans = 0;
+
+        PartitionedEngine(RoutingStrategy routing) {
+            super("test");
+            this.routing = routing;
+        }
+
+        public void setRoutingStrategy(RoutingStrategy routingStrategy) {}
+
+        public boolean isPartitionAware() {
+            return true;
+        }
+
+        public ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> entries(Collection<Integer> masterPartitions,
+                                                                            boolean includeUnknown) {
+            if(includeUnknown)
+                unknownScans++;
+            scanned.addAll(masterPartitions);
+            if(masterPartitions.contains(failOn))
+                throw new VoldemortException("Scan failed.");
+            final List<Pair<ByteArray, Versioned<byte[]>>> found = new ArrayList<Pair<ByteArray, Versioned<byte[]>>>();
+            ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> all = entries();
+            while(all.hasNext()) {
+                Pair<ByteArray, Versioned<byte[]>> entry = all.next();
+                if(masterPartitions.contains(routing.getPartitionList(entry.getFirst().get())
+                                                    .get(0)))
+                    found.add(entry);
+            }
+            all.close();
+            final Iterator<Pair<ByteArray, Versioned<byte[]>>> iterator = found.iterator();
+            return new ClosableIterator<Pair<ByteArray, Versioned<byte[]>>>() {
+
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                public Pair<ByteArray, Versioned<byte[]>> next() {
+                    return iterator.next();
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                public void close() {}
+            };
+        }
+    }
+
     private void put(String... items) {
         for(String item: items) {
             VectorClock clock = null;
@@ -21,13 +21,17 @@ import static voldemort.TestUtils.bytesEqual;
 import java.util.Date;
 
 import junit.framework.TestCase;
+import voldemort.MockTime;
 import voldemort.TestUtils;
+import voldemort.VoldemortException;
 import voldemort.server.StoreRepository;
 import voldemort.server.scheduler.SlopPusherJob;
 import voldemort.store.FailingStore;
+import voldemort.store.memory.InMemoryStorageConfiguration;
 import voldemort.store.memory.InMemoryStorageEngine;
 import voldemort.store.slop.Slop;
 import voldemort.store.slop.Slop.Operation;
+import voldemort.store.slop.SlopStorageEngine;
 import voldemort.utils.ByteArray;
 import voldemort.versioning.Versioned;
 
@@ -46,7 +50,7 @@ public class SlopPusherTest extends TestCase {
     @Override
     protected void setUp() throws Exception {
         repo = new StoreRepository();
-        repo.setSlopStore(new InMemoryStorageEngine<ByteArray, Slop>("slop"));
+        repo.setSlopStore(new SlopStorageEngine(new InMemoryStorageConfiguration()));
         repo.addNodeStore(0, new InMemoryStorageEngine<ByteArray, byte[]>(STORE_NAME));
         repo.addNodeStore(1, new InMemoryStorageEngine<ByteArray, byte[]>(STORE_NAME));
         this.failingNodeId = 2;
@@ -83,7 +87,7 @@ public class SlopPusherTest extends TestCase {
             Slop slop = vs.getValue();
             assertEquals("Slop remains.", 0, repo.getSlopStore().get(slop.makeKey()).size());
             assertTrue(bytesEqual(slop.getValue(), repo.getNodeStore(STORE_NAME, slop.getNodeId())
-                                                       .get(slop.makeKey())
+                                                       .get(slop.getKey())
                                                        .get(0)
                                                        .getValue()));
         }
@@ -114,4 +118,70 @@ public class SlopPusherTest extends TestCase {
         pushSlop(good1, bad, good2);
         checkPush(new Versioned[] { good1, good2 }, new Versioned[] { bad });
     }
+
+    @SuppressWarnings("unchecked")
+    public void testFailingDestinationIsBackedOff() {
+        MockTime time = new MockTime(1000000);
+        int downNodeId = 3;
+        CountingFailingStore failing = new CountingFailingStore();
+        repo.addNodeStore(downNodeId, failing);
+        pusher = new SlopPusherJob(repo, null, null, time, 2, 2, 4000);
+
+        Versioned<Slop>[] good = new Versioned[5];
+        for(int i = 0; i < good.length; i++)
+            good[i] = randomSlop(STORE_NAME, i % 2);
+        Versioned<Slop> bad1 = randomSlop(STORE_NAME, downNodeId);
+        Versioned<Slop> bad2 = randomSlop(STORE_NAME, downNodeId);
+        pushSlop(good);
+        pushSlop(bad1, bad2);
+        checkPush(good, new Versioned[] { bad1, bad2 });
+        assertEquals(5, pusher.getSlopsPushed());
+        assertEquals(2, pusher.getBacklog());
+        assertEquals(2L, pusher.getBacklogs().get(downNodeId).longValue());
+        assertEquals(0L, pusher.getBacklogs().get(0).longValue());
+        assertEquals("[" + downNodeId + "]", pusher.getBackedOffDestinations());
+        // the first failure stops the destination for the run
+        assertEquals(1, failing.attempts);
+
+        // within the backoff the destination is skipped
+        pusher.run();
+        assertEquals(1, failing.attempts);
+        time.addMilliseconds(1000);
+        pusher.run();
+        assertEquals(2, failing.attempts);
+
+        // the second failure doubles the backoff
+        time.addMilliseconds(1000);
+        pusher.run();
+        assertEquals(2, failing.attempts);
+        time.addMilliseconds(1000);
+        pusher.run();
+        assertEquals(3, failing.attempts);
+
+        // once the node recovers its backlog drains and the backoff resets
+        failing.failing = false;
+        time.addMilliseconds(4000);
+        pusher.run();
+        assertEquals(0, pusher.getBacklog());
+        assertEquals("[]", pusher.getBackedOffDestinations());
+        assertEquals(7, pusher.getSlopsPushed());
+    }
+
+    private static class CountingFailingStore extends InMemoryStorageEngine<ByteArray, byte[]> {
+
+        volatile boolean failing = true;
+        volatile int attempts = 0;
+
+        CountingFailingStore() {
+            super(STORE_NAME);
+        }
+
+        @Override
+        public void put(ByteArray key, Versioned<byte[]> value) {
+            attempts++;
+            if(failing)
+                throw new VoldemortException("Node down.");
+            super.put(key, value);
+        }
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.server;
+
+import java.io.File;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import voldemort.TestUtils;
+import voldemort.VoldemortException;
+
+public class PartitionCheckpointStoreTest extends TestCase {
+
+    private File directory;
+    private PartitionCheckpointStore checkpoints;
+
+    @Override
+    public void setUp() {
+        directory = TestUtils.createTempDir();
+        checkpoints = new PartitionCheckpointStore(directory);
+    }
+
+    public void testMarkAndClear() {
+        checkpoints.markCompleted("test.1", 3);
+        checkpoints.markCompleted("test.1", 0);
+        checkpoints.markCompleted("test.2", 5);
+        Set<Integer> partitions = checkpoints.getCompletedPartitions("test.1");
+        assertEquals(2, partitions.size());
+        assertTrue(partitions.contains(0) && partitions.contains(3));
+        checkpoints.clear("test.1");
+        assertTrue(checkpoints.getCompletedPartitions("test.1").isEmpty());
+        assertEquals(1, checkpoints.getCompletedPartitions("test.2").size());
+    }
+
+    public void testCheckpointOfOtherWorkIsCleared() {
+        checkpoints.markCompleted("test.1", "a", 3);
+        checkpoints.markCompleted("test.1", "a", 4);
+        assertEquals(2, checkpoints.getCompletedPartitions("test.1", "a").size());
+        assertTrue(checkpoints.getCompletedPartitions("test.1", "b").isEmpty());
+        assertTrue(checkpoints.getCompletedPartitions("test.1", "a").isEmpty());
+
+        checkpoints.markCompleted("test.1", "a", 3);
+        checkpoints.markCompleted("test.1", "b", 5);
+        assertEquals(1, checkpoints.getCompletedPartitions("test.1", "b").size());
+        assertTrue(checkpoints.getCompletedPartitions("test.1", "b").contains(5));
+    }
+
+    public void testRejectsPathsAsKeys() {
+        for(String name: new String[] { "", "..", "../test", "a/b", "a\\b", ".hidden" }) {
+            try {
+                checkpoints.markCompleted(name, 0);
+                fail("Key '" + name + "' should have been rejected.");
+            } catch(VoldemortException e) {
+                // expected
+            }
+        }
+        assertEquals(0, directory.listFiles().length);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.server.throttle;
+
+import junit.framework.TestCase;
+import voldemort.server.StoreRepository;
+import voldemort.server.scheduler.SchedulerService;
+import voldemort.store.SleepyStore;
+import voldemort.store.memory.InMemoryStorageEngine;
+import voldemort.store.stats.StatTrackingStore;
+import voldemort.utils.ByteArray;
+import voldemort.utils.SystemTime;
+
+public class IoThrottlingServiceTest extends TestCase {
+
+    private static final long MIN_RATE = 1000;
+    private static final long MAX_RATE = 11000;
+
+    private StoreRepository repository;
+    private SchedulerService scheduler;
+    private IoThrottlingService service;
+
+    @Override
+    public void setUp() {
+        repository = new StoreRepository();
+        scheduler = new SchedulerService(1, SystemTime.INSTANCE);
+        service = new IoThrottlingService(repository,
+                                          scheduler,
+                                          MIN_RATE,
+                                          MAX_RATE,
+                                          5.0,
+                                          1000,
+                                          true);
+    }
+
+    @Override
+    public void tearDown() {
+        scheduler.stop();
+    }
+
+    public void testStartsAtMaximum() {
+        assertEquals(MAX_RATE, service.getCurrentBytesPerSec());
+        assertEquals(MAX_RATE, service.getThrottler().getMaxBytesPerSecond());
+    }
+
+    public void testSlowLatencyHalvesRateDownToMinimum() {
+        service.adjust(10.0);
+        assertEquals(MAX_RATE / 2, service.getCurrentBytesPerSec());
+        for(int i = 0; i < 10; i++)
+            service.adjust(10.0);
+        assertEquals(MIN_RATE, service.getCurrentBytesPerSec());
+    }
+
+    public void testFastLatencyGrowsRateBackToMaximum() {
+        for(int i = 0; i < 10; i++)
+            service.adjust(10.0);
+        service.adjust(1.0);
+        assertEquals(MIN_RATE + (MAX_RATE - MIN_RATE) / 10, service.getCurrentBytesPerSec());
+        // no foreground requests at all counts as fast
+        for(int i = 0; i < 20; i++)
+            service.adjust(-1);
+        assertEquals(MAX_RATE, service.getCurrentBytesPerSec());
+    }
+
+    public void testFollowsForegroundLatency() {
+        InMemoryStorageEngine<ByteArray, byte[]> engine = new InMemoryStorageEngine<ByteArray, byte[]>("test");
+        StatTrackingStore<ByteArray, byte[]> store = new StatTrackingStore<ByteArray, byte[]>(new SleepyStore<ByteArray, byte[]>(10,
+                                                                                                                                 engine));
+        repository.addLocalStore(store);
+        for(int i = 0; i < 3; i++)
+            store.get(new ByteArray(new byte[] { (byte) i }));
+        service.adjust();
+        assertTrue(service.getObservedLatencyMs() >= 10.0);
+        assertEquals(MAX_RATE / 2, service.getCurrentBytesPerSec());
+
+        // only requests since the last adjustment count
+        service.adjust();
+        assertEquals(-1.0, service.getObservedLatencyMs(), 0.0);
+        assertEquals(MAX_RATE / 2 + (MAX_RATE - MIN_RATE) / 10, service.getCurrentBytesPerSec());
+    }
+
+    public void testJmxChanges() {
+        service.adjust(10.0);
+        service.setMaxBytesPerSec(4000);
+        assertEquals(4000, service.getCurrentBytesPerSec());
+        service.setAdaptive(false);
+        service.setMaxBytesPerSec(8000);
+        assertEquals(8000, service.getCurrentBytesPerSec());
+        service.setMinBytesPerSec(2000);
+        try {
+            service.setMinBytesPerSec(9000);
+            fail("Minimum above maximum should be rejected.");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -17,6 +17,8 @@
 package voldemort.store.bdb;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
@@ -42,6 +44,8 @@ import com.sleepycat.je.EnvironmentConfig;
 
 public class BdbStorageEngineTest extends AbstractStorageEngineTest {
 
+    private static final long RETENTION_MS = 100000;
+
     private Environment environment;
     private EnvironmentConfig envConfig;
     private Database database;
@@ -134,6 +138,144 @@ public class BdbStorageEngineTest extends AbstractStorageEngineTest {
         fail("No exception thrown for null database.");
     }
 
+    public void testBulkPut() {
+        ByteArray k1 = new ByteArray("k1".getBytes());
+        ByteArray k2 = new ByteArray("k2".getBytes());
+        store.put(k1, new Versioned<byte[]>("a".getBytes(), TestUtils.getClock(1)));
+        store.put(k2, new Versioned<byte[]>("b".getBytes(), TestUtils.getClock(1, 1)));
+
+        List<Pair<ByteArray, Versioned<byte[]>>> entries = new ArrayList<Pair<ByteArray, Versioned<byte[]>>>();
+        // supercedes the stored version
+        entries.add(Pair.create(k1, new Versioned<byte[]>("c".getBytes(), TestUtils.getClock(1, 1))));
+        // concurrent with the one before it in the batch
+        entries.add(Pair.create(k1, new Versioned<byte[]>("d".getBytes(), TestUtils.getClock(2))));
+        // obsolete
+        entries.add(Pair.create(k2, new Versioned<byte[]>("e".getBytes(), TestUtils.getClock(1))));
+        assertEquals(1, store.bulkPut(entries));
+
+        List<Versioned<byte[]>> k1Values = store.get(k1);
+        assertEquals(2, k1Values.size());
+        for(Versioned<byte[]> value: k1Values)
+            assertFalse("a".equals(new String(value.getValue())));
+        List<Versioned<byte[]>> k2Values = store.get(k2);
+        assertEquals(1, k2Values.size());
+        assertEquals("b", new String(k2Values.get(0).getValue()));
+    }
+
+    private Versioned<byte[]> valueAt(long timestamp) {
+        return new Versioned<byte[]>("v".getBytes(), new VectorClock(timestamp));
+    }
+
+    /*
+     * The indexed keys written before the time, if none has a time-to-live
+     */
+    private List<String> keysWrittenBefore(long timestamp) {
+        return keysExpiredBy(timestamp + RETENTION_MS);
+    }
+
+    private List<String> keysExpiredBy(long timestamp) {
+        List<String> keys = new ArrayList<String>();
+        for(ByteArray key: store.getKeysExpiredBy(timestamp, 10))
+            keys.add(new String(key.get()));
+        return keys;
+    }
+
+    public void testTimeIndex() throws Exception {
+        ByteArray k0 = new ByteArray("k0".getBytes());
+        ByteArray k1 = new ByteArray("k1".getBytes());
+        ByteArray k2 = new ByteArray("k2".getBytes());
+        // written before the index exists, so found by building it
+        store.put(k0, valueAt(500));
+        store.enableTimeIndex(1000, RETENTION_MS);
+        assertTrue(store.isTimeIndexEnabled());
+        store.put(k1, valueAt(1500));
+        List<Pair<ByteArray, Versioned<byte[]>>> entries = new ArrayList<Pair<ByteArray, Versioned<byte[]>>>();
+        entries.add(Pair.create(k2, valueAt(5000)));
+        store.bulkPut(entries);
+
+        // only whole buckets before the time are returned
+        assertEquals(Arrays.asList("k0"), keysWrittenBefore(1999));
+        assertEquals(Arrays.asList("k0", "k1"), keysWrittenBefore(2000));
+
+        // a newer version moves the key to a later bucket
+        store.put(k0, new Versioned<byte[]>("v".getBytes(), new VectorClock(500).incremented(0,
+                                                                                             6000)));
+        assertEquals(Arrays.asList("k1"), keysWrittenBefore(2000));
+        // a deleted key leaves the index
+        assertTrue(store.delete(k1, store.get(k1).get(0).getVersion()));
+        assertEquals(Arrays.asList("k2", "k0"), keysWrittenBefore(10000));
+
+        // the index persists and isn't rebuilt
+        this.store.close();
+        this.environment.close();
+        this.environment = new Environment(this.tempDir, envConfig);
+        this.database = environment.openDatabase(null, "test", databaseConfig);
+        this.store = new BdbStorageEngine("test", this.environment, this.database);
+        assertFalse(store.isTimeIndexEnabled());
+        store.enableTimeIndex(1000, RETENTION_MS);
+        assertEquals(Arrays.asList("k2", "k0"), keysWrittenBefore(10000));
+        assertEquals(1, store.getKeysExpiredBy(10000 + RETENTION_MS, 1).size());
+    }
+
+    public void testTimeIndexOrdersKeysByExpiry() throws Exception {
+        ByteArray k0 = new ByteArray("k0".getBytes());
+        ByteArray k1 = new ByteArray("k1".getBytes());
+        store.enableTimeIndex(1000, RETENTION_MS);
+        store.put(k0, valueAt(500));
+        Versioned<byte[]> expiring = valueAt(1500);
+        expiring.setTimeToLive(1000);
+        store.put(k1, expiring);
+
+        // the time-to-live runs out long before the retention period
+        assertEquals(Arrays.asList("k1"), keysExpiredBy(3000));
+        assertEquals(Arrays.asList("k1", "k0"), keysExpiredBy(1000 + RETENTION_MS));
+
+        // a different retention period rebuilds the index
+        this.store.close();
+        this.environment.close();
+        this.environment = new Environment(this.tempDir, envConfig);
+        this.database = environment.openDatabase(null, "test", databaseConfig);
+        this.store = new BdbStorageEngine("test", this.environment, this.database);
+        store.enableTimeIndex(1000, 2000);
+        assertEquals(Arrays.asList("k0", "k1"), keysExpiredBy(3000));
+    }
+
+    public void testTimeIndexIsRebuiltAfterBeingDisabled() throws Exception {
+        ByteArray k0 = new ByteArray("k0".getBytes());
+        ByteArray k1 = new ByteArray("k1".getBytes());
+        store.put(k0, valueAt(500));
+        store.enableTimeIndex(1000, RETENTION_MS);
+
+        // writes made while the index is disabled aren't lost when it returns
+        store.disableTimeIndex();
+        assertFalse(store.isTimeIndexEnabled());
+        store.put(k0, new Versioned<byte[]>("v".getBytes(), new VectorClock(500).incremented(0,
+                                                                                             6000)));
+        store.put(k1, valueAt(1500));
+        store.enableTimeIndex(1000, RETENTION_MS);
+        assertEquals(Arrays.asList("k1"), keysWrittenBefore(2000));
+        assertEquals(Arrays.asList("k1", "k0"), keysWrittenBefore(10000));
+    }
+
+    public void testReindex() throws Exception {
+        ByteArray k0 = new ByteArray("k0".getBytes());
+        ByteArray k1 = new ByteArray("k1".getBytes());
+        store.put(k0, valueAt(500));
+        store.put(k1, valueAt(1500));
+        store.enableTimeIndex(1000, RETENTION_MS);
+
+        // an engine without the index leaves it out of date
+        BdbStorageEngine unindexed = new BdbStorageEngine("test", environment, database);
+        unindexed.put(k0, new Versioned<byte[]>("v".getBytes(),
+                                                new VectorClock(500).incremented(0, 6000)));
+        assertTrue(unindexed.delete(k1, unindexed.get(k1).get(0).getVersion()));
+        assertEquals(Arrays.asList("k0", "k1"), keysWrittenBefore(2000));
+
+        store.reindex(store.getKeysExpiredBy(2000 + RETENTION_MS, 10), 2000 + RETENTION_MS);
+        assertEquals(Arrays.asList(), keysWrittenBefore(2000));
+        assertEquals(Arrays.asList("k0"), keysWrittenBefore(10000));
+    }
+
     public void testSimultaneousIterationAndModification() throws Exception {
         // start a thread to do modifications
         ExecutorService executor = Executors.newFixedThreadPool(2);
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.cache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import voldemort.store.AbstractByteArrayStoreTest;
+import voldemort.store.Store;
+import voldemort.store.memory.BoundedCacheStorageEngine;
+import voldemort.store.memory.InMemoryStorageEngine;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+/**
+ * Does all the normal store tests but also checks that the cache is loaded,
+ * used and invalidated.
+ */
+public class CachingStoreTest extends AbstractByteArrayStoreTest {
+
+    private InMemoryStorageEngine<ByteArray, byte[]> inner;
+    private BoundedCacheStorageEngine cache;
+    private CachingStore<ByteArray, byte[]> store;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        inner = new InMemoryStorageEngine<ByteArray, byte[]>("test");
+        cache = new BoundedCacheStorageEngine("test", 1024 * 1024, 4);
+        store = new CachingStore<ByteArray, byte[]>(inner, cache);
+    }
+
+    @Override
+    public Store<ByteArray, byte[]> getStore() {
+        return store;
+    }
+
+    private static ByteArray key(String s) {
+        return new ByteArray(s.getBytes());
+    }
+
+    public void testGetIsServedFromCache() {
+        ByteArray key = key("a");
+        store.put(key, new Versioned<byte[]>("1".getBytes()));
+        assertEquals(1, store.get(key).size());
+        assertEquals(1, cache.getNumEntries());
+
+        // a value only in the cache proves the get didn't reach the inner store
+        inner.delete(key, null);
+        assertEquals(1, store.get(key).size());
+    }
+
+    public void testWritesInvalidate() {
+        ByteArray key = key("a");
+        VectorClock clock = new VectorClock().incremented(0, 1);
+        store.put(key, new Versioned<byte[]>("1".getBytes(), clock));
+        store.get(key);
+
+        clock = clock.incremented(0, 2);
+        store.put(key, new Versioned<byte[]>("2".getBytes(), clock));
+        assertEquals(0, cache.getNumEntries());
+        List<Versioned<byte[]>> found = store.get(key);
+        assertEquals(1, found.size());
+        assertTrue(Arrays.equals("2".getBytes(), found.get(0).getValue()));
+
+        assertTrue(store.delete(key, clock.incremented(0, 3)));
+        assertEquals(0, store.get(key).size());
+        assertEquals(0, cache.getNumEntries());
+    }
+
+    public void testInvalidateDropsWritesMadeAroundTheCache() {
+        ByteArray key = key("a");
+        VectorClock clock = new VectorClock().incremented(0, 1);
+        store.put(key, new Versioned<byte[]>("1".getBytes(), clock));
+        store.get(key);
+
+        inner.put(key, new Versioned<byte[]>("2".getBytes(), clock.incremented(0, 2)));
+        assertTrue(Arrays.equals("1".getBytes(), store.get(key).get(0).getValue()));
+        store.invalidate(key);
+        assertTrue(Arrays.equals("2".getBytes(), store.get(key).get(0).getValue()));
+    }
+
+    public void testConcurrentVersionsAreCached() {
+        ByteArray key = key("a");
+        store.put(key, new Versioned<byte[]>("1".getBytes(), new VectorClock().incremented(0, 1)));
+        store.put(key, new Versioned<byte[]>("2".getBytes(), new VectorClock().incremented(1, 1)));
+        assertEquals(2, store.get(key).size());
+        inner.deleteAll();
+        assertEquals(2, store.get(key).size());
+    }
+
+    public void testGetAllPartialHits() {
+        for(String s: new String[] { "a", "b", "c" })
+            store.put(key(s), new Versioned<byte[]>(s.getBytes()));
+        store.get(key("a"));
+        assertEquals(1, cache.getNumEntries());
+
+        Map<ByteArray, List<Versioned<byte[]>>> found = store.getAll(Arrays.asList(key("a"),
+                                                                                   key("b"),
+                                                                                   key("c"),
+                                                                                   key("d")));
+        assertEquals(3, found.size());
+        assertFalse(found.containsKey(key("d")));
+        assertEquals(3, cache.getNumEntries());
+        assertEquals(1, cache.getHits());
+    }
+
+}
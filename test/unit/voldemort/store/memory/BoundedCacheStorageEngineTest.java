@@ -0,0 +1,115 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import voldemort.TestUtils;
+import voldemort.store.StorageEngine;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ByteUtils;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+/**
+ * Does all the normal tests but also checks that the cache stays within its
+ * byte capacity and keeps frequently used keys through a scan.
+ */
+public class BoundedCacheStorageEngineTest extends InMemoryStorageEngineTest {
+
+    private static final int VALUE_SIZE = 100;
+
+    private BoundedCacheStorageEngine store;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        this.store = new BoundedCacheStorageEngine("test", 10 * 1024 * 1024, 4);
+    }
+
+    @Override
+    public StorageEngine<ByteArray, byte[]> getStorageEngine() {
+        return store;
+    }
+
+    private static ByteArray key(int i) {
+        return new ByteArray(ByteUtils.getBytes("key" + i, "UTF-8"));
+    }
+
+    private static int entrySize(ByteArray key) {
+        return BoundedCacheStorageEngine.ENTRY_OVERHEAD + key.length()
+               + BoundedCacheStorageEngine.VERSION_OVERHEAD + new VectorClock().sizeInBytes()
+               + VALUE_SIZE;
+    }
+
+    public void testCapacityIsRespected() {
+        long maxBytes = 100 * entrySize(key(0));
+        BoundedCacheStorageEngine cache = new BoundedCacheStorageEngine("test", maxBytes, 1);
+        for(int i = 0; i < 1000; i++) {
+            cache.put(key(i), new Versioned<byte[]>(TestUtils.randomBytes(VALUE_SIZE)));
+            assertTrue("Cache exceeded its capacity.", cache.getBytesUsed() <= maxBytes);
+        }
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(1000 - cache.getEvictions(), cache.getNumEntries());
+        assertTrue(cache.getNumEntries() > 50);
+
+        cache.deleteAll();
+        assertEquals(0, cache.getBytesUsed());
+        assertEquals(0, cache.getNumEntries());
+    }
+
+    public void testEntryLargerThanCapacityIsNotCached() {
+        BoundedCacheStorageEngine cache = new BoundedCacheStorageEngine("test", 1000, 1);
+        ByteArray key = key(0);
+        cache.put(key, new Versioned<byte[]>(new byte[2000]));
+        assertEquals(0, cache.get(key).size());
+        assertEquals(0, cache.getBytesUsed());
+    }
+
+    public void testHotKeysSurviveScan() {
+        int numHot = 50;
+        BoundedCacheStorageEngine cache = new BoundedCacheStorageEngine("test",
+                                                                        200 * entrySize(key(0)),
+                                                                        1);
+        for(int i = 0; i < numHot; i++)
+            cache.put(key(i), new Versioned<byte[]>(new byte[VALUE_SIZE]));
+        for(int round = 0; round < 3; round++)
+            for(int i = 0; i < numHot; i++)
+                assertEquals(1, cache.get(key(i)).size());
+
+        // write ten times the capacity of keys that are never read
+        for(int i = numHot; i < numHot + 2000; i++)
+            cache.put(key(i), new Versioned<byte[]>(new byte[VALUE_SIZE]));
+
+        for(int i = 0; i < numHot; i++)
+            assertEquals("Hot key " + i + " was evicted by the scan.", 1, cache.get(key(i)).size());
+    }
+
+    public void testStats() {
+        ByteArray key = key(0);
+        store.put(key, new Versioned<byte[]>(new byte[VALUE_SIZE]));
+        store.get(key);
+        store.get(key(1));
+        assertEquals(1, store.getHits());
+        assertEquals(1, store.getMisses());
+        assertEquals(0.5, store.getHitRate(), 0.0001);
+        assertEquals(1, store.getNumEntries());
+        assertEquals(entrySize(key), store.getBytesUsed());
+
+        store.delete(key, null);
+        assertEquals(0, store.getBytesUsed());
+    }
+
+}
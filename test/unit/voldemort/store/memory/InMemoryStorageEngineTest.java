@@ -17,12 +17,17 @@
 package voldemort.store.memory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import voldemort.TestUtils;
 import voldemort.store.StorageEngine;
 import voldemort.store.AbstractStorageEngineTest;
 import voldemort.utils.ByteArray;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
 
 public class InMemoryStorageEngineTest extends AbstractStorageEngineTest {
 
@@ -47,4 +52,55 @@ public class InMemoryStorageEngineTest extends AbstractStorageEngineTest {
         return keys;
     }
 
+    public void testGetReturnsModifiableLists() {
+        ByteArray key = new ByteArray("key".getBytes());
+        List<Versioned<byte[]>> found = store.get(key);
+        found.add(new Versioned<byte[]>(new byte[] { 1 }));
+
+        store.put(key, new Versioned<byte[]>(new byte[] { 1 }, TestUtils.getClock(1)));
+        found = store.get(key);
+        found.add(new Versioned<byte[]>(new byte[] { 2 }, TestUtils.getClock(2)));
+        Collections.sort(found, new Versioned.HappenedBeforeComparator<byte[]>());
+        assertEquals(1, store.get(key).size());
+    }
+
+    public void testConcurrentWritersKeepLatestVersionEach() throws Exception {
+        final int numThreads = 8;
+        final int numWrites = 2000;
+        final StorageEngine<ByteArray, byte[]> engine = getStorageEngine();
+        final ByteArray key = new ByteArray("key".getBytes());
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        for(int t = 0; t < numThreads; t++) {
+            final int node = t;
+            new Thread(new Runnable() {
+
+                public void run() {
+                    try {
+                        // each writer's versions supersede its own earlier ones
+                        // and are concurrent with every other writer's
+                        VectorClock clock = new VectorClock();
+                        for(int i = 1; i <= numWrites; i++) {
+                            clock = clock.incremented(node, i);
+                            engine.put(key, new Versioned<byte[]>(new byte[] { (byte) node },
+                                                                  clock));
+                        }
+                    } catch(Throwable e) {
+                        error.set(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        done.await();
+        assertNull(error.get());
+        List<Versioned<byte[]>> found = engine.get(key);
+        assertEquals(numThreads, found.size());
+        for(Versioned<byte[]> versioned: found) {
+            VectorClock clock = (VectorClock) versioned.getVersion();
+            assertEquals(numWrites, clock.getMaxVersion());
+        }
+    }
+
 }
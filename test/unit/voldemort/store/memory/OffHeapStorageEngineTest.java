@@ -0,0 +1,132 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.memory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import voldemort.TestUtils;
+import voldemort.VoldemortException;
+import voldemort.store.StorageEngine;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.Pair;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+/**
+ * Does all the normal tests but also checks the hash index and slab reuse
+ * against a random mix of operations.
+ */
+public class OffHeapStorageEngineTest extends InMemoryStorageEngineTest {
+
+    private OffHeapStorageEngine store;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        this.store = new OffHeapStorageEngine("test", 64 * 1024, 64 * 1024 * 1024, 4);
+    }
+
+    @Override
+    public StorageEngine<ByteArray, byte[]> getStorageEngine() {
+        return store;
+    }
+
+    public void testRandomOperations() {
+        Random random = new Random(1234);
+        Map<ByteArray, byte[]> expected = new HashMap<ByteArray, byte[]>();
+        Map<ByteArray, VectorClock> clocks = new HashMap<ByteArray, VectorClock>();
+        for(int i = 0; i < 20000; i++) {
+            // a small key space so there are many updates and deletes
+            ByteArray key = new ByteArray(new byte[] { (byte) random.nextInt(50),
+                    (byte) random.nextInt(50) });
+            if(random.nextInt(4) == 0) {
+                store.delete(key, null);
+                expected.remove(key);
+                clocks.remove(key);
+            } else {
+                VectorClock clock = clocks.containsKey(key) ? clocks.get(key) : new VectorClock();
+                clock = clock.incremented(0, i);
+                byte[] value = TestUtils.randomBytes(random.nextInt(500));
+                store.put(key, new Versioned<byte[]>(value, clock));
+                expected.put(key, value);
+                clocks.put(key, clock);
+            }
+        }
+
+        assertEquals(expected.size(), store.getNumEntries());
+        for(Map.Entry<ByteArray, byte[]> entry: expected.entrySet()) {
+            List<Versioned<byte[]>> found = store.get(entry.getKey());
+            assertEquals(1, found.size());
+            assertTrue(Arrays.equals(entry.getValue(), found.get(0).getValue()));
+            assertEquals(clocks.get(entry.getKey()), found.get(0).getVersion());
+        }
+
+        int count = 0;
+        ClosableIterator<Pair<ByteArray, Versioned<byte[]>>> iterator = store.entries();
+        while(iterator.hasNext()) {
+            Pair<ByteArray, Versioned<byte[]>> pair = iterator.next();
+            assertTrue(Arrays.equals(expected.get(pair.getFirst()), pair.getSecond().getValue()));
+            count++;
+        }
+        iterator.close();
+        assertEquals(expected.size(), count);
+    }
+
+    public void testChunksAreReused() {
+        ByteArray key = new ByteArray("key".getBytes());
+        VectorClock clock = new VectorClock();
+        for(int i = 0; i < 1000; i++) {
+            clock = clock.incremented(0, i);
+            store.put(key, new Versioned<byte[]>(new byte[1000], clock));
+            store.put(new ByteArray(("other" + i).getBytes()), new Versioned<byte[]>(new byte[100]));
+            store.delete(new ByteArray(("other" + i).getBytes()), null);
+        }
+        // one slab for each of the two size classes
+        assertEquals(2 * 64 * 1024, store.getBytesAllocated());
+    }
+
+    public void testRecordLargerThanSlab() {
+        ByteArray key = new ByteArray("big".getBytes());
+        byte[] value = TestUtils.randomBytes(200 * 1024);
+        store.put(key, new Versioned<byte[]>(value));
+        assertTrue(Arrays.equals(value, store.get(key).get(0).getValue()));
+        store.delete(key, null);
+        assertEquals(0, store.getBytesAllocated());
+    }
+
+    public void testMemoryLimit() {
+        OffHeapStorageEngine small = new OffHeapStorageEngine("test", 1024, 4096, 1);
+        try {
+            for(int i = 0; i < 100; i++)
+                small.put(new ByteArray(("key" + i).getBytes()),
+                          new Versioned<byte[]>(new byte[200]));
+            fail("Exceeded the memory limit.");
+        } catch(VoldemortException e) {
+            // this is good
+        }
+        assertTrue(small.getBytesAllocated() <= 4096);
+        small.deleteAll();
+        assertEquals(0, small.getNumEntries());
+        assertEquals(0, small.getBytesAllocated());
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.readonly;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+import voldemort.TestUtils;
+import voldemort.utils.ByteUtils;
+import voldemort.utils.Utils;
+
+/**
+ * Tests for the fetcher framework using the local filesystem fetcher
+ */
+public class LocalFileFetcherTest extends TestCase {
+
+    private static final int NUM_CHUNKS = 6;
+
+    private File testDir;
+    private File sourceDir;
+    private File fetchDir;
+
+    @Override
+    public void setUp() throws IOException {
+        this.testDir = TestUtils.createTempDir();
+        this.sourceDir = new File(testDir, "node-0");
+        this.fetchDir = new File(testDir, "fetched");
+        sourceDir.mkdirs();
+        for(int chunk = 0; chunk < NUM_CHUNKS; chunk++) {
+            write(new File(sourceDir, chunk + ".index"), TestUtils.randomBytes(20 * (chunk + 1)));
+            write(new File(sourceDir, chunk + ".data"), TestUtils.randomBytes(10000 * chunk));
+        }
+        StoreManifest.compute(sourceDir).write(sourceDir);
+    }
+
+    @Override
+    public void tearDown() {
+        Utils.rm(testDir);
+    }
+
+    private void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(bytes);
+        output.close();
+    }
+
+    private byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream input = new FileInputStream(file);
+        try {
+            ByteUtils.read(input, bytes);
+        } finally {
+            input.close();
+        }
+        return bytes;
+    }
+
+    private void assertSameFiles(File expected, File found) throws IOException {
+        assertEquals(StoreManifest.compute(expected), StoreManifest.compute(found));
+        assertTrue(new File(found, StoreManifest.FILE_NAME).exists());
+    }
+
+    public void testParallelFetch() throws IOException {
+        LocalFileFetcher fetcher = new LocalFileFetcher(fetchDir, 3, 0, null);
+        File fetched = fetcher.fetch(sourceDir.getAbsolutePath());
+        assertEquals(fetchDir, fetched.getParentFile());
+        assertSameFiles(sourceDir, fetched);
+        assertEquals(2 * NUM_CHUNKS + 1, fetcher.getFilesCopied());
+    }
+
+    public void testFetchSingleFile() throws IOException {
+        LocalFileFetcher fetcher = new LocalFileFetcher(fetchDir, 2, 0, null);
+        File source = new File(sourceDir, "1.data");
+        File fetched = fetcher.fetch("file://" + source.getAbsolutePath());
+        assertEquals(0, ByteUtils.compare(read(source), read(fetched)));
+    }
+
+    public void testChecksumFailure() throws IOException {
+        // corrupt a file after the manifest is written
+        File data = new File(sourceDir, "2.data");
+        byte[] bytes = read(data);
+        bytes[0]++;
+        write(data, bytes);
+        LocalFileFetcher fetcher = new LocalFileFetcher(fetchDir, 2, 2, null);
+        try {
+            fetcher.fetch(sourceDir.getAbsolutePath());
+            fail("Fetch of a corrupt file should fail.");
+        } catch(IOException e) {
+            // this is good
+        }
+        assertEquals(3, fetcher.getChecksumFailures());
+        assertFalse(new File(fetchDir.listFiles()[0], "2.data").exists());
+    }
+
+    public void testResume() throws IOException {
+        LocalFileFetcher fetcher = new LocalFileFetcher(fetchDir, 2, 0, null);
+        File fetched = fetcher.fetch(sourceDir.getAbsolutePath());
+
+        // leave one file half copied and remove another as if the fetch had
+        // failed, and leave behind a file from some other version
+        File data = new File(fetched, "3.data");
+        byte[] bytes = read(data);
+        byte[] partial = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, partial, 0, partial.length);
+        write(new File(fetched, "3.data" + ParallelFileFetcher.PARTIAL_SUFFIX), partial);
+        assertTrue(data.delete());
+        assertTrue(new File(fetched, "4.data").delete());
+        write(new File(fetched, "99.data"), new byte[10]);
+
+        fetcher = new LocalFileFetcher(fetchDir, 2, 0, null);
+        fetched = fetcher.fetch(sourceDir.getAbsolutePath());
+        assertSameFiles(sourceDir, fetched);
+        assertFalse(new File(fetched, "99.data").exists());
+        assertFalse(new File(fetched, "3.data" + ParallelFileFetcher.PARTIAL_SUFFIX).exists());
+        // every non-empty chunk file that was already there is resumed
+        assertEquals(NUM_CHUNKS * 2 - 2, fetcher.getFilesResumed());
+        assertEquals(bytes.length - partial.length + new File(sourceDir, "4.data").length()
+                     + new File(sourceDir, StoreManifest.FILE_NAME).length(),
+                     fetcher.getBytesCopied());
+    }
+
+    public void testDeltaFetch() throws IOException {
+        // the current version differs from the new one in one file
+        File current = new File(testDir, "version-0");
+        current.mkdirs();
+        for(File file: sourceDir.listFiles())
+            write(new File(current, file.getName()), read(file));
+        write(new File(current, "5.data"), TestUtils.randomBytes(100));
+        StoreManifest.compute(current).write(current);
+
+        LocalFileFetcher fetcher = new LocalFileFetcher(fetchDir, 2, 0, null);
+        File fetched = fetcher.fetch(sourceDir.getAbsolutePath(), "test", current);
+        assertSameFiles(sourceDir, fetched);
+        assertEquals(2 * NUM_CHUNKS - 1, fetcher.getFilesLinked());
+        assertEquals(2, fetcher.getFilesCopied());
+    }
+
+    public void testRefetchDoesNotWriteThroughLinks() throws IOException {
+        File current = new File(testDir, "version-0");
+        current.mkdirs();
+        for(File file: sourceDir.listFiles())
+            write(new File(current, file.getName()), read(file));
+        LocalFileFetcher fetcher = new LocalFileFetcher(fetchDir, 2, 0, null);
+        File fetched = fetcher.fetch(sourceDir.getAbsolutePath(), "test", current);
+        assertEquals(2 * NUM_CHUNKS, fetcher.getFilesLinked());
+
+        // a fetch of a new version into the same directory finds the links
+        byte[] served = read(new File(current, "5.data"));
+        write(new File(sourceDir, "5.data"), TestUtils.randomBytes(2 * served.length));
+        StoreManifest.compute(sourceDir).write(sourceDir);
+        fetched = new LocalFileFetcher(fetchDir, 2, 0, null).fetch(sourceDir.getAbsolutePath(),
+                                                                   "test",
+                                                                   null);
+        assertSameFiles(sourceDir, fetched);
+        assertEquals(0, ByteUtils.compare(served, read(new File(current, "5.data"))));
+    }
+
+    public void testStoresFetchToTheirOwnDirectories() throws IOException {
+        // every store's build output is named after the node
+        File otherSource = new File(new File(testDir, "other"), "node-0");
+        otherSource.mkdirs();
+        write(new File(otherSource, "0.data"), TestUtils.randomBytes(100));
+        StoreManifest.compute(otherSource).write(otherSource);
+        LocalFileFetcher fetcher = new LocalFileFetcher(fetchDir, 2, 0, null);
+        File fetched = fetcher.fetch(sourceDir.getAbsolutePath(), "test", null);
+        File other = fetcher.fetch(otherSource.getAbsolutePath(), "other", null);
+        File unnamed = fetcher.fetch(otherSource.getAbsolutePath());
+        assertFalse(fetched.equals(other));
+        assertEquals(new File(fetchDir, "test"), fetched.getParentFile());
+        assertEquals(new File(fetchDir, "other"), other.getParentFile());
+        assertFalse(other.equals(unnamed));
+        assertSameFiles(sourceDir, fetched);
+        assertSameFiles(otherSource, other);
+        assertSameFiles(otherSource, unnamed);
+    }
+
+    public void testThrottledFetch() throws IOException {
+        // all the copy threads share one throttler
+        LocalFileFetcher fetcher = new LocalFileFetcher(fetchDir, 4, 0, 100 * 1024L);
+        File fetched = fetcher.fetch(sourceDir.getAbsolutePath());
+        assertSameFiles(sourceDir, fetched);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.readonly;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import voldemort.TestUtils;
+import voldemort.serialization.StringSerializer;
+
+import com.google.common.collect.Lists;
+
+public class PackedExternalSorterTest extends TestCase {
+
+    private List<String> strings;
+
+    @Override
+    public void setUp() {
+        strings = new ArrayList<String>();
+        for(int i = 0; i < 5000; i++)
+            strings.add(TestUtils.randomLetters(10));
+    }
+
+    public void testInMemorySort() {
+        PackedExternalSorter<String> sorter = new PackedExternalSorter<String>(new StringSerializer(),
+                                                                               1024 * 1024,
+                                                                               1);
+        assertSorted(sorter);
+        assertEquals(0, sorter.getRunsWritten());
+    }
+
+    public void testSpillingSort() {
+        checkSpillingSort(1, true);
+        checkSpillingSort(3, true);
+        checkSpillingSort(3, false);
+    }
+
+    private void checkSpillingSort(int threads, boolean compress) {
+        PackedExternalSorter<String> sorter = newSorter(threads, 64, compress);
+        assertSorted(sorter);
+        assertTrue(sorter.getRunsWritten() > 1);
+        assertEquals(0, sorter.getMergePasses());
+    }
+
+    public void testMultiLevelMerge() {
+        PackedExternalSorter<String> sorter = newSorter(2, 3, true);
+        assertSorted(sorter);
+        assertTrue(sorter.getMergePasses() > 1);
+    }
+
+    public void testEmptyInput() {
+        PackedExternalSorter<String> sorter = newSorter(2, 3, true);
+        List<String> empty = Collections.emptyList();
+        assertEquals(0, Lists.newArrayList(sorter.sorted(empty.iterator())).size());
+    }
+
+    private PackedExternalSorter<String> newSorter(int threads, int fanIn, boolean compress) {
+        // room for roughly 150 strings per buffer
+        return new PackedExternalSorter<String>(new StringSerializer(),
+                                                threads * 4000,
+                                                threads,
+                                                System.getProperty("java.io.tmpdir"),
+                                                1024,
+                                                fanIn,
+                                                compress);
+    }
+
+    private void assertSorted(PackedExternalSorter<String> sorter) {
+        List<String> sorted = Lists.newArrayList(sorter.sorted(strings.iterator()));
+        List<String> expected = new ArrayList<String>(strings);
+        Collections.sort(expected);
+        assertEquals(expected, sorted);
+        assertEquals(strings.size(), sorter.getRecordsRead());
+        assertEquals(strings.size(), sorter.getRecordsMerged());
+    }
+
+}
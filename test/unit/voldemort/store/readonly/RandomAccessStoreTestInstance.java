@@ -78,6 +78,14 @@ public class RandomAccessStoreTestInstance {
                                                        int testSize,
                                                        int numNodes,
                                                        int repFactor) throws Exception {
+        return create(baseDir, testSize, numNodes, repFactor, 1);
+    }
+
+    public static RandomAccessStoreTestInstance create(File baseDir,
+                                                       int testSize,
+                                                       int numNodes,
+                                                       int repFactor,
+                                                       int numThreads) throws Exception {
         // create some test data
         Map<String, String> data = createTestData(testSize);
         JsonReader reader = makeTestDataReader(data, baseDir);
@@ -115,8 +123,8 @@ public class RandomAccessStoreTestInstance {
                                                              storeDef,
                                                              router,
                                                              outputDir,
-                                                             testSize / 5,
-                                                             1,
+                                                             1024 * numThreads,
+                                                             numThreads,
                                                              2);
         storeBuilder.build();
 
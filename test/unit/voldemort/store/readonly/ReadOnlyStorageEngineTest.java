@@ -4,16 +4,21 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 import voldemort.TestUtils;
 import voldemort.VoldemortException;
 import voldemort.cluster.Node;
 import voldemort.store.Store;
+import voldemort.utils.ByteArray;
 import voldemort.utils.Utils;
 import voldemort.versioning.Versioned;
 
@@ -82,6 +87,28 @@ public class ReadOnlyStorageEngineTest extends TestCase {
         testData.delete();
     }
 
+    /**
+     * Build with several threads and check that every node sees every value
+     * it should
+     */
+    public void testParallelBuildGetsGoodValues() throws Exception {
+        RandomAccessStoreTestInstance testData = RandomAccessStoreTestInstance.create(dir,
+                                                                                      5000,
+                                                                                      3,
+                                                                                      2,
+                                                                                      4);
+        for(Map.Entry<String, String> entry: testData.getData().entrySet()) {
+            for(Node node: testData.routeRequest(entry.getKey())) {
+                Store<String, String> store = testData.getNodeStores().get(node.getId());
+                List<Versioned<String>> found = store.get(entry.getKey());
+                assertEquals("Lookup failure for '" + entry.getKey() + "' on node " + node.getId()
+                             + ".", 1, found.size());
+                assertEquals(entry.getValue(), found.get(0).getValue());
+            }
+        }
+        testData.delete();
+    }
+
     public void testCanMultigetGoodValues() throws Exception {
         RandomAccessStoreTestInstance testData = RandomAccessStoreTestInstance.create(dir,
                                                                                       TEST_SIZE,
@@ -109,6 +136,33 @@ public class ReadOnlyStorageEngineTest extends TestCase {
         testData.delete();
     }
 
+    public void testMultigetMatchesGet() throws Exception {
+        RandomAccessStoreTestInstance testData = RandomAccessStoreTestInstance.create(dir,
+                                                                                      1000,
+                                                                                      1,
+                                                                                      1);
+        Store<String, String> store = testData.getNodeStores().get(0);
+        List<String> queryKeys = new ArrayList<String>(testData.getData().keySet());
+        // missing keys and repeated keys
+        for(int i = 0; i < 100; i++)
+            queryKeys.add("missing-" + i);
+        queryKeys.addAll(queryKeys.subList(0, 10));
+        Collections.shuffle(queryKeys);
+
+        Map<String, List<Versioned<String>>> values = store.getAll(queryKeys);
+        assertEquals(testData.getData().size(), values.size());
+        for(String key: queryKeys) {
+            List<Versioned<String>> found = store.get(key);
+            if(found.isEmpty()) {
+                assertFalse("Found missing key " + key, values.containsKey(key));
+            } else {
+                assertEquals(1, values.get(key).size());
+                assertEquals(found.get(0).getValue(), values.get(key).get(0).getValue());
+            }
+        }
+        testData.delete();
+    }
+
     public void testOpenInvalidStoreFails() throws Exception {
         // empty is okay
         testOpenInvalidStoreFails(0, 0, true);
@@ -157,6 +211,230 @@ public class ReadOnlyStorageEngineTest extends TestCase {
         assertVersionsExist(dir, 0);
     }
 
+    public void testFailedSwapKeepsCurrentVersion() throws IOException {
+        createStoreFiles(dir, ReadOnlyStorageEngine.INDEX_ENTRY_SIZE * 5, 4 * 5 * 10, 2);
+        ReadOnlyStorageEngine engine = new ReadOnlyStorageEngine("test", dir, 2, 2, 1000);
+
+        // a corrupt index file can't be opened
+        File newDir = TestUtils.createTempDir();
+        createStoreFiles(newDir, 73, 1024, 2);
+        try {
+            engine.swapFiles(newDir.getAbsolutePath());
+            fail("Swap of corrupt files should fail.");
+        } catch(VoldemortException e) {
+            // this is good
+        }
+        assertVersionsExist(dir, 0);
+        assertEquals(0, engine.get(new ByteArray("hello".getBytes())).size());
+        Utils.rm(newDir);
+    }
+
+    public void testFileSetReleasedAfterReaders() throws IOException {
+        createStoreFiles(dir, 0, 0, 1);
+        ChunkedFileSet fileSet = new ChunkedFileSet(dir, 1, 1000);
+        assertTrue(fileSet.acquire());
+        fileSet.close();
+        assertTrue(fileSet.isClosed());
+        assertFalse("Released while a reader still holds it.", fileSet.isReleased());
+        fileSet.release();
+        assertTrue(fileSet.isReleased());
+        assertFalse("Acquired a released file set.", fileSet.acquire());
+    }
+
+    public void testSwapDoesNotBlockReads() throws Exception {
+        createStoreFiles(dir, 0, 0, 2);
+        final ReadOnlyStorageEngine engine = new ReadOnlyStorageEngine("test", dir, 2, 2, 1000);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicInteger reads = new AtomicInteger(0);
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> readers = new ArrayList<Thread>();
+        for(int i = 0; i < 4; i++) {
+            Thread reader = new Thread(new Runnable() {
+
+                public void run() {
+                    ByteArray key = new ByteArray("key".getBytes());
+                    while(!done.get()) {
+                        try {
+                            engine.get(key);
+                            engine.getAll(Collections.singletonList(key));
+                            reads.incrementAndGet();
+                        } catch(Exception e) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        for(int i = 0; i < 10; i++) {
+            File newDir = TestUtils.createTempDir();
+            createStoreFiles(newDir, 0, 0, 2);
+            engine.swapFiles(newDir.getAbsolutePath());
+            if(i % 3 == 0)
+                engine.rollback();
+        }
+        done.set(true);
+        for(Thread reader: readers)
+            reader.join();
+        assertEquals("Reads failed during swap: " + errors, 0, errors.size());
+        assertTrue(reads.get() > 0);
+        engine.close();
+    }
+
+    public void testSwapLinksUnchangedFiles() throws IOException {
+        File current = new File(dir, "version-0");
+        createStoreFiles(current, ReadOnlyStorageEngine.INDEX_ENTRY_SIZE * 5, 4 * 5 * 10, 2);
+        StoreManifest.compute(current).write(current);
+        ReadOnlyStorageEngine engine = new ReadOnlyStorageEngine("test", dir, 2, 2, 1000);
+
+        // the same files except for one data file
+        File newDir = TestUtils.createTempDir();
+        createStoreFiles(newDir, ReadOnlyStorageEngine.INDEX_ENTRY_SIZE * 5, 4 * 5 * 10, 2);
+        FileOutputStream output = new FileOutputStream(new File(newDir, "1.data"));
+        output.write(new byte[4 * 5 * 10]);
+        output.close();
+        for(File file: newDir.listFiles())
+            file.setLastModified(file.lastModified() - 100000);
+        StoreManifest.compute(newDir).write(newDir);
+
+        engine.swapFiles(newDir.getAbsolutePath());
+        assertVersionsExist(dir, 0, 1);
+
+        // only the changed data file and the manifest are not shared
+        File backup = new File(dir, "version-1");
+        long expected = new File(backup, "1.data").length()
+                        + new File(backup, StoreManifest.FILE_NAME).length()
+                        + new File(backup, ReadOnlyUtils.SHARED_FILES_NAME).length();
+        for(File file: current.listFiles())
+            expected += file.length();
+        assertEquals(expected, engine.getDiskUsageBytes());
+        long shared = 2 * ReadOnlyStorageEngine.INDEX_ENTRY_SIZE * 5 + 4 * 5 * 10;
+        assertTrue(engine.getVersionDiskUsage(),
+                   engine.getVersionDiskUsage().endsWith("(" + shared + " shared)"));
+    }
+
+    public void testIdenticalCopiesAreNotShared() throws IOException {
+        File current = new File(dir, "version-0");
+        createStoreFiles(current, ReadOnlyStorageEngine.INDEX_ENTRY_SIZE, 4, 2);
+        ReadOnlyStorageEngine engine = new ReadOnlyStorageEngine("test", dir, 2, 2, 1000);
+
+        // same lengths and modification times, but separate copies
+        File newDir = TestUtils.createTempDir();
+        createStoreFiles(newDir, ReadOnlyStorageEngine.INDEX_ENTRY_SIZE, 4, 2);
+        for(File file: newDir.listFiles())
+            file.setLastModified(new File(current, file.getName()).lastModified());
+        engine.swapFiles(newDir.getAbsolutePath());
+
+        assertEquals(2 * 2 * (ReadOnlyStorageEngine.INDEX_ENTRY_SIZE + 4),
+                     engine.getDiskUsageBytes());
+        assertTrue(engine.getVersionDiskUsage(),
+                   engine.getVersionDiskUsage().endsWith("(0 shared)"));
+    }
+
+    public void testDeletingSharedFilesFreesNothing() throws IOException {
+        File current = new File(dir, "version-0");
+        createStoreFiles(current, ReadOnlyStorageEngine.INDEX_ENTRY_SIZE, 4, 2);
+        StoreManifest.compute(current).write(current);
+        VersionDeleter deleter = new VersionDeleter(100 * 1000 * 1000);
+        ReadOnlyStorageEngine engine = new ReadOnlyStorageEngine("test",
+                                                                 dir,
+                                                                 1,
+                                                                 2,
+                                                                 1000,
+                                                                 null,
+                                                                 false,
+                                                                 deleter);
+        // the same files each time, so every version links to the first
+        for(int i = 0; i < 2; i++) {
+            File newDir = TestUtils.createTempDir();
+            createStoreFiles(newDir, ReadOnlyStorageEngine.INDEX_ENTRY_SIZE, 4, 2);
+            StoreManifest.compute(newDir).write(newDir);
+            engine.swapFiles(newDir.getAbsolutePath());
+        }
+        assertTrue("Deletion did not complete.", deleter.awaitCompletion(10000));
+        assertVersionsExist(dir, 0, 1);
+        // only the manifest and the list of shared files were not shared
+        File retiredShared = new File(new File(dir, "version-1"), ReadOnlyUtils.SHARED_FILES_NAME);
+        assertEquals(new File(current, StoreManifest.FILE_NAME).length()
+                     + retiredShared.length(), deleter.getBytesDeleted());
+        assertEquals(0, engine.getPendingDeletionBytes());
+        deleter.close();
+    }
+
+    public void testBackgroundDeletion() throws IOException {
+        createStoreFiles(new File(dir, "version-0"), ReadOnlyStorageEngine.INDEX_ENTRY_SIZE, 4, 2);
+        // left over from a deletion that was interrupted
+        File leftOver = new File(dir, "version-2.1234" + VersionDeleter.RETIRED_SUFFIX);
+        createStoreFiles(leftOver, ReadOnlyStorageEngine.INDEX_ENTRY_SIZE, 4, 2);
+
+        VersionDeleter deleter = new VersionDeleter(100 * 1000 * 1000);
+        ReadOnlyStorageEngine engine = new ReadOnlyStorageEngine("test",
+                                                                 dir,
+                                                                 1,
+                                                                 2,
+                                                                 1000,
+                                                                 null,
+                                                                 false,
+                                                                 deleter);
+        for(int i = 0; i < 3; i++) {
+            File newDir = TestUtils.createTempDir();
+            createStoreFiles(newDir, ReadOnlyStorageEngine.INDEX_ENTRY_SIZE, 4, 2);
+            engine.swapFiles(newDir.getAbsolutePath());
+        }
+        assertTrue("Deletion did not complete.", deleter.awaitCompletion(10000));
+        assertVersionsExist(dir, 0, 1);
+        for(File file: dir.listFiles())
+            assertFalse("Found retired version " + file,
+                        file.getName().endsWith(VersionDeleter.RETIRED_SUFFIX));
+        // the left over version and two retired versions of 2 chunks each
+        assertEquals(3 * 2 * (ReadOnlyStorageEngine.INDEX_ENTRY_SIZE + 4),
+                     deleter.getBytesDeleted());
+        assertEquals(0, engine.getPendingDeletionBytes());
+        deleter.close();
+    }
+
+    public void testSwapWithWarmUp() throws IOException {
+        createStoreFiles(dir, ReadOnlyStorageEngine.INDEX_ENTRY_SIZE * 5, 4 * 5 * 10, 2);
+        StoreWarmer warmer = new StoreWarmer(1024 * 1024, 10);
+        ReadOnlyStorageEngine engine = new ReadOnlyStorageEngine("test",
+                                                                 dir,
+                                                                 2,
+                                                                 2,
+                                                                 1000,
+                                                                 warmer,
+                                                                 true);
+        assertTrue(engine.isWarmUpEnabled());
+
+        File newDir = TestUtils.createTempDir();
+        createStoreFiles(newDir, ReadOnlyStorageEngine.INDEX_ENTRY_SIZE * 5, 4 * 5 * 10, 2);
+        engine.swapFiles(newDir.getAbsolutePath());
+        assertVersionsExist(dir, 0, 1);
+        assertFalse(engine.isWarming());
+        assertEquals(newDir.getAbsolutePath(), warmer.getCurrentDirectory());
+        // both index files plus half the data budget from each chunk
+        assertEquals(2 * ReadOnlyStorageEngine.INDEX_ENTRY_SIZE * 5 + 10, warmer.getTotalBytes());
+        assertEquals(warmer.getTotalBytes(), engine.getWarmUpBytes());
+        assertEquals(1.0, engine.getWarmUpProgress(), 0.0001);
+
+        // warming the current version explicitly works too
+        engine.warmUp(null);
+        assertEquals(new File(dir, "version-0").getAbsolutePath(), warmer.getCurrentDirectory());
+    }
+
+    public void testWarmUpDisabled() throws IOException {
+        createStoreFiles(dir, ReadOnlyStorageEngine.INDEX_ENTRY_SIZE * 5, 4 * 5 * 10, 2);
+        ReadOnlyStorageEngine engine = new ReadOnlyStorageEngine("test", dir, 2, 2, 1000);
+        assertFalse(engine.isWarmUpEnabled());
+        try {
+            engine.warmUp(null);
+            fail("Warm-up should fail when no warmer is configured.");
+        } catch(VoldemortException e) {
+            // this is good
+        }
+    }
+
     private void assertVersionsExist(File dir, int... versions) {
         for(int i = 0; i < versions.length; i++) {
             File versionDir = new File(dir, "version-" + versions[i]);
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.readonly;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import voldemort.TestUtils;
+import voldemort.utils.ByteUtils;
+import voldemort.utils.Utils;
+
+/**
+ * Tests for the read-only store manifest
+ */
+public class StoreManifestTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    public void setUp() throws IOException {
+        this.dir = TestUtils.createTempDir();
+        write("0.index", "index0");
+        write("0.data", "data0");
+        write("1.index", "index1");
+        write("1.data", "data1");
+    }
+
+    @Override
+    public void tearDown() {
+        Utils.rm(dir);
+    }
+
+    private void write(String name, String contents) throws IOException {
+        FileOutputStream output = new FileOutputStream(new File(dir, name));
+        output.write(contents.getBytes());
+        output.close();
+    }
+
+    public void testCompute() throws IOException {
+        write("other.txt", "not a chunk file");
+        StoreManifest manifest = StoreManifest.compute(dir);
+        assertEquals(4, manifest.getFileNames().size());
+        assertFalse(manifest.contains("other.txt"));
+        assertEquals(5, manifest.getLength("0.data"));
+        assertEquals(ByteUtils.toHexString(ByteUtils.md5("index1".getBytes())),
+                     manifest.getChecksum("1.index"));
+    }
+
+    public void testReadWrite() throws IOException {
+        StoreManifest manifest = StoreManifest.compute(dir);
+        assertNull(StoreManifest.read(dir));
+        manifest.write(dir);
+        assertEquals(manifest, StoreManifest.read(dir));
+    }
+
+    public void testConcatenatedManifests() throws IOException {
+        StoreManifest first = new StoreManifest();
+        first.add("0.index", 6, ByteUtils.md5("index0".getBytes()));
+        StoreManifest second = new StoreManifest();
+        second.add("1.index", 6, ByteUtils.md5("index1".getBytes()));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        first.write(output);
+        second.write(output);
+        StoreManifest combined = StoreManifest.read(new ByteArrayInputStream(output.toByteArray()));
+        assertEquals(2, combined.getFileNames().size());
+        assertTrue(combined.isUnchanged("0.index", first));
+        assertTrue(combined.isUnchanged("1.index", second));
+    }
+
+    public void testIsUnchanged() throws IOException {
+        StoreManifest before = StoreManifest.compute(dir);
+        write("1.data", "data2");
+        StoreManifest after = StoreManifest.compute(dir);
+        assertTrue(after.isUnchanged("0.index", before));
+        assertTrue(after.isUnchanged("0.data", before));
+        assertTrue(after.isUnchanged("1.index", before));
+        assertFalse(after.isUnchanged("1.data", before));
+        assertFalse(after.isUnchanged("2.data", before));
+        assertFalse(after.isUnchanged("0.data", null));
+    }
+
+    public void testBuilderWritesManifest() throws Exception {
+        File baseDir = TestUtils.createTempDir();
+        try {
+            RandomAccessStoreTestInstance.create(baseDir, 500, 2, 1);
+            int found = 0;
+            // the built node directories are moved to <dir>/<node>/version-0
+            for(File dir: baseDir.listFiles()) {
+                for(int node = 0; node < 2; node++) {
+                    File versionDir = new File(dir, node + File.separator + "version-0");
+                    if(!new File(versionDir, StoreManifest.FILE_NAME).exists())
+                        continue;
+                    assertEquals(StoreManifest.compute(versionDir), StoreManifest.read(versionDir));
+                    found++;
+                }
+            }
+            assertEquals(2, found);
+        } finally {
+            Utils.rm(baseDir);
+        }
+    }
+}
@@ -17,7 +17,10 @@
 package voldemort.store.rebalancing;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import junit.framework.TestCase;
 import voldemort.ServerTestUtils;
@@ -210,4 +213,64 @@ public class RebalancingStoreTest extends TestCase {
             }
         }
     }
+
+    public void testBatchedAndCachedRedirects() {
+        Store<ByteArray, byte[]> donorStore = server1.getStoreRepository().getLocalStore(storeName);
+        for(int i = 100; i <= 1000; i++) {
+            ByteArray key = new ByteArray(ByteUtils.getBytes("" + i, "UTF-8"));
+            donorStore.put(key, Versioned.value(ByteUtils.getBytes("value-" + i, "UTF-8"),
+                                                new VectorClock().incremented(0,
+                                                                              System.currentTimeMillis())));
+        }
+
+        VoldemortMetadata metadata = server0.getVoldemortMetadata();
+        metadata.setDonorNode(metadata.getCurrentCluster().getNodeById(1));
+        metadata.setCurrentPartitionStealList(Arrays.asList(new Integer[] { 2, 3 }));
+        metadata.setServerState(VoldemortMetadata.ServerState.REBALANCING_STEALER_STATE);
+
+        RebalancingStore rebalancingStore = new RebalancingStore(0,
+                                                                 server0.getStoreRepository()
+                                                                        .getLocalStore(storeName),
+                                                                 metadata,
+                                                                 new SocketPool(100,
+                                                                                100,
+                                                                                2000,
+                                                                                1000,
+                                                                                10000),
+                                                                 60 * 1000,
+                                                                 10000,
+                                                                 50);
+
+        List<ByteArray> stolen = new ArrayList<ByteArray>();
+        for(int i = 100; i <= 1000; i++) {
+            ByteArray key = new ByteArray(ByteUtils.getBytes("" + i, "UTF-8"));
+            List<Integer> partitions = metadata.getRoutingStrategy(storeName)
+                                               .getPartitionList(key.get());
+            if(partitions.contains(2) || partitions.contains(3))
+                stolen.add(key);
+        }
+        assertTrue(stolen.size() > 0);
+
+        Map<ByteArray, List<Versioned<byte[]>>> values = rebalancingStore.getAll(stolen);
+        for(ByteArray key: stolen)
+            assertEquals("value-" + new String(key.get()), new String(values.get(key)
+                                                                             .get(0)
+                                                                             .getValue()));
+        assertEquals((stolen.size() + 49) / 50, rebalancingStore.getRedirectRequests());
+        assertEquals(stolen.size(), rebalancingStore.getRedirectedKeys());
+
+        // the donor's values were written through, so reads and puts of the
+        // same keys stay local
+        ByteArray first = stolen.get(0);
+        Versioned<byte[]> updated = rebalancingStore.get(first).get(0);
+        updated = new Versioned<byte[]>(ByteUtils.getBytes("updated", "UTF-8"),
+                                        ((VectorClock) updated.getVersion()).incremented(0,
+                                                                                         System.currentTimeMillis()));
+        rebalancingStore.put(first, updated);
+        assertEquals("updated", new String(rebalancingStore.get(first).get(0).getValue()));
+        for(ByteArray key: stolen)
+            rebalancingStore.get(key);
+        assertEquals(stolen.size(), rebalancingStore.getRedirectedKeys());
+        assertEquals(stolen.size() + 3, rebalancingStore.getRedirectCacheHits());
+    }
 }
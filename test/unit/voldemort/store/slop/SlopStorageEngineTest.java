@@ -0,0 +1,142 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.slop;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+import voldemort.TestUtils;
+import voldemort.store.memory.InMemoryStorageConfiguration;
+import voldemort.store.memory.InMemoryStorageEngine;
+import voldemort.store.slop.Slop.Operation;
+import voldemort.utils.ByteArray;
+import voldemort.utils.ClosableIterator;
+import voldemort.utils.Pair;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+public class SlopStorageEngineTest extends TestCase {
+
+    private SlopStorageEngine store;
+
+    @Override
+    protected void setUp() throws Exception {
+        store = new SlopStorageEngine(new InMemoryStorageConfiguration());
+    }
+
+    private Versioned<Slop> slop(byte[] key, int nodeId, VectorClock clock) {
+        return new Versioned<Slop>(new Slop("test",
+                                            Operation.PUT,
+                                            key,
+                                            TestUtils.randomBytes(10),
+                                            nodeId,
+                                            new Date()), clock);
+    }
+
+    private int count(ClosableIterator<Pair<ByteArray, Versioned<Slop>>> iterator) {
+        int count = 0;
+        try {
+            while(iterator.hasNext()) {
+                iterator.next();
+                count++;
+            }
+        } finally {
+            iterator.close();
+        }
+        return count;
+    }
+
+    public void testSlopIsKeptByDestination() {
+        for(int i = 0; i < 3; i++) {
+            Versioned<Slop> s = slop(TestUtils.randomBytes(8), 1, new VectorClock());
+            store.put(s.getValue().makeKey(), s);
+        }
+        Versioned<Slop> other = slop(TestUtils.randomBytes(8), 2, new VectorClock());
+        store.put(other.getValue().makeKey(), other);
+
+        assertEquals(new TreeSet<Integer>(Arrays.asList(1, 2)), store.getDestinations());
+        assertEquals(3, store.getSize(1));
+        assertEquals(1, store.getSize(2));
+        assertEquals(0, store.getSize(3));
+        assertEquals(4, store.getSize());
+        assertEquals(3, count(store.entries(1)));
+        assertEquals(4, count(store.entries()));
+        assertEquals(1, store.get(other.getValue().makeKey()).size());
+
+        assertTrue(store.delete(2, other.getValue().makeKey(), other.getVersion()));
+        assertEquals(0, store.getSize(2));
+        assertEquals(0, store.get(other.getValue().makeKey()).size());
+    }
+
+    public void testNewVersionsOfAKeyAreCountedOnce() {
+        byte[] key = TestUtils.randomBytes(8);
+        VectorClock clock = new VectorClock();
+        Versioned<Slop> first = slop(key, 1, clock);
+        store.put(first.getValue().makeKey(), first);
+        Versioned<Slop> second = slop(key, 1, clock.incremented(0, 1));
+        store.put(second.getValue().makeKey(), second);
+        assertEquals(1, store.getSize(1));
+
+        // deleting the older version leaves the key
+        assertFalse(store.delete(1, first.getValue().makeKey(), first.getVersion()));
+        assertEquals(1, store.getSize(1));
+        assertTrue(store.delete(1, second.getValue().makeKey(), second.getVersion()));
+        assertEquals(0, store.getSize(1));
+    }
+
+    public void testWritesToAKeyAreCoalesced() {
+        byte[] key = TestUtils.randomBytes(8);
+        VectorClock clock = new VectorClock();
+        Versioned<Slop> put = slop(key, 1, clock.incremented(0, 1));
+        store.put(put.getValue().makeKey(), put);
+
+        // a later delete of the key replaces the put
+        Slop delete = new Slop("test", Operation.DELETE, key, null, 1, new Date());
+        VectorClock deleteClock = ((VectorClock) put.getVersion()).incremented(0, 2);
+        store.put(delete.makeKey(), new Versioned<Slop>(delete, deleteClock));
+        // an older put is dropped
+        store.put(put.getValue().makeKey(), put);
+        // a concurrent put is kept alongside the delete
+        Versioned<Slop> concurrent = slop(key, 1, clock.incremented(1, 3));
+        store.put(concurrent.getValue().makeKey(), concurrent);
+        // the same key for another destination is not coalesced
+        Versioned<Slop> other = slop(key, 2, clock.incremented(0, 1));
+        store.put(other.getValue().makeKey(), other);
+
+        assertEquals(5, store.getSlopWrites());
+        assertEquals(1, store.getDroppedSlops());
+        assertEquals(1, store.getReplacedSlops());
+        assertEquals(2, store.getCoalescedSlops());
+        assertEquals(1, store.getSize(1));
+        assertEquals(2, count(store.entries(1)));
+        assertEquals(3, store.get(delete.makeKey()).size());
+    }
+
+    public void testMigrateAndReopen() {
+        InMemoryStorageEngine<ByteArray, Slop> legacy = new InMemoryStorageEngine<ByteArray, Slop>("slop");
+        for(int i = 0; i < 5; i++) {
+            Versioned<Slop> s = slop(TestUtils.randomBytes(8), i % 2, new VectorClock());
+            legacy.put(s.getValue().makeKey(), s);
+        }
+        assertEquals(5, store.migrate(legacy));
+        assertEquals(0, count(legacy.entries()));
+        assertEquals(3, store.getSize(0));
+        assertEquals(2, store.getSize(1));
+    }
+}
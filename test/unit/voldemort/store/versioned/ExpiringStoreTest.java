@@ -0,0 +1,127 @@
+/*
+ * Copyright 2008-2009 LinkedIn, Inc
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package voldemort.store.versioned;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import voldemort.MockTime;
+import voldemort.store.AbstractByteArrayStoreTest;
+import voldemort.store.Store;
+import voldemort.store.StoreOperationFailureException;
+import voldemort.store.memory.InMemoryStorageEngine;
+import voldemort.utils.ByteArray;
+import voldemort.versioning.VectorClock;
+import voldemort.versioning.Versioned;
+
+/**
+ * Does all the normal store tests but also checks that expired values are
+ * hidden and deleted.
+ */
+public class ExpiringStoreTest extends AbstractByteArrayStoreTest {
+
+    // delete synchronously so the tests can see the deletes
+    private static final Executor SYNCHRONOUS = new Executor() {
+
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private MockTime time;
+    private InMemoryStorageEngine<ByteArray, byte[]> inner;
+    private ExpiringStore<ByteArray, byte[]> store;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        time = new MockTime(System.currentTimeMillis());
+        inner = new InMemoryStorageEngine<ByteArray, byte[]>("test");
+        store = new ExpiringStore<ByteArray, byte[]>(inner, SYNCHRONOUS, time, true);
+    }
+
+    @Override
+    public Store<ByteArray, byte[]> getStore() {
+        return store;
+    }
+
+    private static ByteArray key(String s) {
+        return new ByteArray(s.getBytes());
+    }
+
+    private Versioned<byte[]> value(String value, long timeToLiveMs, int... nodes) {
+        VectorClock clock = new VectorClock(time.getMilliseconds());
+        for(int node: nodes)
+            clock.incrementVersion(node, time.getMilliseconds());
+        clock.setTimeToLive(timeToLiveMs);
+        return new Versioned<byte[]>(value.getBytes(), clock);
+    }
+
+    public void testExpiredValuesAreHiddenAndDeleted() {
+        store.put(key("a"), value("1", 1000, 0));
+        store.put(key("b"), value("2", 0, 0));
+        time.addMilliseconds(999);
+        assertEquals(1, store.get(key("a")).size());
+
+        time.addMilliseconds(1);
+        assertEquals(0, store.get(key("a")).size());
+        assertEquals(0, inner.get(key("a")).size());
+        assertEquals(1, store.get(key("b")).size());
+    }
+
+    public void testOnlyExpiredVersionsAreHidden() {
+        store.put(key("a"), value("1", 1000, 0));
+        store.put(key("a"), value("2", 0, 1));
+        time.addMilliseconds(1000);
+
+        List<Versioned<byte[]>> found = store.get(key("a"));
+        assertEquals(1, found.size());
+        assertEquals("2", new String(found.get(0).getValue()));
+        assertEquals(1, inner.get(key("a")).size());
+    }
+
+    public void testTimeToLiveRefusedUnlessEnabled() {
+        ExpiringStore<ByteArray, byte[]> disabled = new ExpiringStore<ByteArray, byte[]>(inner,
+                                                                                         SYNCHRONOUS,
+                                                                                         time,
+                                                                                         false);
+        try {
+            disabled.put(key("a"), value("1", 1000, 0));
+            fail("A value with a time-to-live should have been refused.");
+        } catch(StoreOperationFailureException e) {
+            // expected
+        }
+        assertEquals(0, inner.get(key("a")).size());
+        disabled.put(key("a"), value("1", 0, 0));
+        assertEquals(1, disabled.get(key("a")).size());
+    }
+
+    public void testGetAllHidesExpiredValues() {
+        store.put(key("a"), value("1", 1000, 0));
+        store.put(key("b"), value("2", 2000, 0));
+        time.addMilliseconds(1500);
+
+        Map<ByteArray, List<Versioned<byte[]>>> found = store.getAll(Arrays.asList(key("a"),
+                                                                                   key("b")));
+        assertFalse(found.containsKey(key("a")));
+        assertEquals(1, found.get(key("b")).size());
+        assertEquals(0, inner.get(key("a")).size());
+    }
+
+}
@@ -17,6 +17,9 @@
 package voldemort.versioning;
 
 import static voldemort.TestUtils.getClock;
+
+import java.util.Arrays;
+
 import junit.framework.TestCase;
 import voldemort.TestUtils;
 
@@ -79,6 +82,32 @@ public class VectorClockTest extends TestCase {
                      new VectorClock(clock.toBytes()));
     }
 
+    public void testTimeToLive() {
+        VectorClock clock = getClock(1, 1, 2);
+        byte[] withoutTtl = clock.toBytes();
+        clock.setTimeToLive(5000);
+        assertEquals("The time to live doesn't take part in equality.", getClock(1, 1, 2), clock);
+        assertEquals(clock.getTimestamp() + 5000, clock.getExpiryTime());
+        assertFalse(clock.isExpired(clock.getTimestamp() + 4999));
+        assertTrue(clock.isExpired(clock.getTimestamp() + 5000));
+        assertEquals(5000, clock.clone().getTimeToLive());
+        assertEquals(5000, clock.incremented(1, clock.getTimestamp()).getTimeToLive());
+
+        byte[] bytes = clock.toBytes();
+        assertEquals(withoutTtl.length + 8, bytes.length);
+        assertEquals(bytes.length, clock.sizeInBytes());
+        VectorClock read = new VectorClock(bytes);
+        assertEquals(clock, read);
+        assertEquals(5000, read.getTimeToLive());
+        assertEquals(clock.getTimestamp(), read.getTimestamp());
+
+        // clocks without a time to live keep the old format
+        clock.setTimeToLive(0);
+        assertTrue(Arrays.equals(withoutTtl, clock.toBytes()));
+        assertEquals(0, new VectorClock(withoutTtl).getTimeToLive());
+        assertEquals(Long.MAX_VALUE, clock.getExpiryTime());
+    }
+
     public void testSerializationWraps() {
         VectorClock clock = getClock(1, 1, 2, 3, 3, 6);
         for(int i = 0; i < 300; i++)
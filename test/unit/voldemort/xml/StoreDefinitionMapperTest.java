@@ -71,6 +71,15 @@ public class StoreDefinitionMapperTest extends TestCase {
         assertEquals(storeDefs, mapper.readStoreList(new StringReader(written)));
     }
 
+    public void testCacheStore() {
+        StoreDefinitionsMapper mapper = new StoreDefinitionsMapper();
+        List<StoreDefinition> storeDefs = mapper.readStoreList(new StringReader(VoldemortTestConstants.getStoreDefinitionsWithCacheXml()));
+        assertTrue(storeDefs.get(0).hasCache());
+        assertEquals(1024 * 1024L, (long) storeDefs.get(0).getCacheBytes());
+        String written = mapper.writeStoreList(storeDefs);
+        assertEquals(storeDefs, mapper.readStoreList(new StringReader(written)));
+    }
+
     private void assertEqual(List<StoreDefinition> l1, List<StoreDefinition> l2) {
         assertEquals(l1.size(), l2.size());
         for(int i = 0; i < l1.size(); i++) {